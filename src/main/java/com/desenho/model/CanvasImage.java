@@ -0,0 +1,78 @@
+package com.desenho.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.lang.ref.WeakReference;
+import java.util.Base64;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * A canvas snapshot or tile image, held decoded: its bytes and MIME type rather
+ * than the base64 {@code data:} URL clients send, which is a third larger. In
+ * JSON (messages, journal, cold storage) it still reads and writes as a data
+ * URL. The URL is built on first use and only weakly kept: it is shared while
+ * something still holds it, e.g. during one join burst, but never retained
+ * next to the bytes.
+ * The bytes must not be modified.
+ */
+@RegisterForReflection
+public final class CanvasImage {
+
+    private static final String BASE64_MARKER = ";base64";
+
+    private final String mimeType;
+    private final byte[] bytes;
+    private volatile WeakReference<String> dataUrl;
+
+    public CanvasImage(String mimeType, byte[] bytes) {
+        this.mimeType = mimeType;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Decodes a base64 image data URL; null or empty gives null (no image).
+     *
+     * @throws IllegalArgumentException if it isn't a base64 image data URL
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public static CanvasImage fromDataUrl(String dataUrl) {
+        if (dataUrl == null || dataUrl.isEmpty()) {
+            return null;
+        }
+        int comma = dataUrl.indexOf(',');
+        if (!dataUrl.startsWith("data:image/") || comma < 0
+                || !dataUrl.regionMatches(comma - BASE64_MARKER.length(), BASE64_MARKER, 0, BASE64_MARKER.length())) {
+            throw new IllegalArgumentException("Not a base64 image data URL");
+        }
+        String mimeType = dataUrl.substring("data:".length(), comma - BASE64_MARKER.length());
+        CanvasImage image = new CanvasImage(mimeType, Base64.getMimeDecoder().decode(dataUrl.substring(comma + 1)));
+        // The URL it came in as can be relayed as is while it lasts
+        image.dataUrl = new WeakReference<>(dataUrl);
+        return image;
+    }
+
+    @JsonValue
+    public String toDataUrl() {
+        WeakReference<String> cached = dataUrl;
+        String url = cached != null ? cached.get() : null;
+        if (url == null) {
+            url = "data:" + mimeType + BASE64_MARKER + "," + Base64.getEncoder().encodeToString(bytes);
+            dataUrl = new WeakReference<>(url);
+        }
+        return url;
+    }
+
+    public String getMimeType() { return mimeType; }
+
+    public byte[] getBytes() { return bytes; }
+
+    public int getSize() { return bytes.length; }
+
+    /**
+     * Length of the data URL, without building it.
+     */
+    public int getDataUrlLength() {
+        return "data:".length() + mimeType.length() + BASE64_MARKER.length() + 1 + (bytes.length + 2) / 3 * 4;
+    }
+}
@@ -1,6 +1,8 @@
 package com.desenho.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
 
 import io.quarkus.runtime.annotations.RegisterForReflection;
 
@@ -16,8 +18,9 @@ public class DrawingMessage {
     @JsonProperty("playerName")
     private String playerName;
     
+    // A data URL in JSON, decoded as it is parsed
     @JsonProperty("canvasData")
-    private String canvasData;
+    private CanvasImage canvasData;
     
     @JsonProperty("drawingAction")
     private DrawingAction drawingAction;
@@ -28,6 +31,10 @@ public class DrawingMessage {
     @JsonProperty("imageId")
     private String imageId;
     
+    // SHA-256 of the image in the asset store (/api/assets/{hash})
+    @JsonProperty("imageHash")
+    private String imageHash;
+    
     @JsonProperty("imageX")
     private Double imageX;
     
@@ -40,15 +47,61 @@ public class DrawingMessage {
     @JsonProperty("imageHeight")
     private Double imageHeight;
     
+    @JsonProperty("binaryStrokes")
+    private Boolean binaryStrokes;
+    
+    // JOIN_ROOM/JOIN_ACCEPTED: canvas snapshots and tiles as binary frames (see CanvasCodec)
+    @JsonProperty("binaryCanvas")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Boolean binaryCanvas;
+    
+    @JsonProperty("tiles")
+    private List<CanvasTile> tiles;
+    
+    // Roster version a PLAYER_LIST_UPDATE is as of, or a PLAYER_JOINED/LEFT leads to
+    @JsonProperty("rosterVersion")
+    private Long rosterVersion;
+    
+    // JOIN_ACCEPTED: fraction of stroke segments the client should trace; left out when tracing is off
+    @JsonProperty("traceSampleRate")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Double traceSampleRate;
+    
+    // JOIN_ROOM: tag of the room state the client last saw, to catch up from on reconnect;
+    // ROOM_VERSION: tag of the state the client has now received
+    @JsonProperty("roomVersion")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String roomVersion;
+    
+    // JOIN_ACCEPTED: only the changes since roomVersion follow, not the whole room state
+    @JsonProperty("resumed")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Boolean resumed;
+    
     @RegisterForReflection
     public enum MessageType {
         JOIN_ROOM,
+        JOIN_ACCEPTED,
         LEAVE_ROOM,
         CANVAS_UPDATE,
         FORCE_CANVAS_UPDATE,
+        CANVAS_TILE_UPDATE,
+        // Outbound only: the client fell behind; drop local state, the room state follows
+        RESYNC,
         DRAWING_ACTION,
+        // Outbound only: {"messages": [DRAWING_ACTION, ...]} relayed as one frame
+        DRAWING_ACTION_BATCH,
         CLEAR_CANVAS,
         PLAYER_LIST_UPDATE,
+        // Outbound only: names (comma-separated) that joined or left since the previous version
+        PLAYER_JOINED,
+        PLAYER_LEFT,
+        // Inbound only: asks for a full PLAYER_LIST_UPDATE after a missed version
+        ROSTER_REQUEST,
+        // Inbound only: a recipient drew a traced segment (drawingAction carries seq, sentAt, receivedAt)
+        STROKE_ACK,
+        // Outbound only: the client is up to date with the room state tagged roomVersion
+        ROOM_VERSION,
         FLOATING_IMAGE_ADD,
         FLOATING_IMAGE_REMOVE
     }
@@ -82,6 +135,20 @@ public class DrawingMessage {
         @JsonProperty("isEnd")
         private boolean isEnd;
 
+        // Set only on sampled segments: the sender's sequence number and send time
+        // (epoch ms), and in a STROKE_ACK the time the recipient drew it
+        @JsonProperty("seq")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private Long seq;
+        
+        @JsonProperty("sentAt")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private Long sentAt;
+        
+        @JsonProperty("receivedAt")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        private Long receivedAt;
+
         // Getters and Setters
         public String getTool() { return tool; }
         public void setTool(String tool) { this.tool = tool; }
@@ -109,6 +176,59 @@ public class DrawingMessage {
         
         public boolean isEnd() { return isEnd; }
         public void setEnd(boolean end) { isEnd = end; }
+        
+        public Long getSeq() { return seq; }
+        public void setSeq(Long seq) { this.seq = seq; }
+        
+        public Long getSentAt() { return sentAt; }
+        public void setSentAt(Long sentAt) { this.sentAt = sentAt; }
+        
+        public Long getReceivedAt() { return receivedAt; }
+        public void setReceivedAt(Long receivedAt) { this.receivedAt = receivedAt; }
+    }
+    
+    /**
+     * One {@value #SIZE}x{@value #SIZE} tile of the canvas, addressed by column and
+     * row. A null {@code data} means the tile was erased.
+     */
+    @RegisterForReflection
+    public static class CanvasTile {
+        public static final int SIZE = 128;
+        
+        @JsonProperty("col")
+        private int col;
+        
+        @JsonProperty("row")
+        private int row;
+        
+        @JsonProperty("version")
+        private long version;
+        
+        @JsonProperty("data")
+        private CanvasImage data;
+        
+        public CanvasTile() {
+        }
+        
+        public CanvasTile(int col, int row, long version, CanvasImage data) {
+            this.col = col;
+            this.row = row;
+            this.version = version;
+            this.data = data;
+        }
+        
+        // Getters and Setters
+        public int getCol() { return col; }
+        public void setCol(int col) { this.col = col; }
+        
+        public int getRow() { return row; }
+        public void setRow(int row) { this.row = row; }
+        
+        public long getVersion() { return version; }
+        public void setVersion(long version) { this.version = version; }
+        
+        public CanvasImage getData() { return data; }
+        public void setData(CanvasImage data) { this.data = data; }
     }
 
     // Getters and Setters
@@ -121,8 +241,8 @@ public class DrawingMessage {
     public String getPlayerName() { return playerName; }
     public void setPlayerName(String playerName) { this.playerName = playerName; }
     
-    public String getCanvasData() { return canvasData; }
-    public void setCanvasData(String canvasData) { this.canvasData = canvasData; }
+    public CanvasImage getCanvasData() { return canvasData; }
+    public void setCanvasData(CanvasImage canvasData) { this.canvasData = canvasData; }
     
     public DrawingAction getDrawingAction() { return drawingAction; }
     public void setDrawingAction(DrawingAction drawingAction) { this.drawingAction = drawingAction; }
@@ -133,6 +253,9 @@ public class DrawingMessage {
     public String getImageId() { return imageId; }
     public void setImageId(String imageId) { this.imageId = imageId; }
     
+    public String getImageHash() { return imageHash; }
+    public void setImageHash(String imageHash) { this.imageHash = imageHash; }
+    
     public Double getImageX() { return imageX; }
     public void setImageX(Double imageX) { this.imageX = imageX; }
     
@@ -144,4 +267,25 @@ public class DrawingMessage {
     
     public Double getImageHeight() { return imageHeight; }
     public void setImageHeight(Double imageHeight) { this.imageHeight = imageHeight; }
+    
+    public Boolean getBinaryStrokes() { return binaryStrokes; }
+    public void setBinaryStrokes(Boolean binaryStrokes) { this.binaryStrokes = binaryStrokes; }
+    
+    public Boolean getBinaryCanvas() { return binaryCanvas; }
+    public void setBinaryCanvas(Boolean binaryCanvas) { this.binaryCanvas = binaryCanvas; }
+    
+    public Long getRosterVersion() { return rosterVersion; }
+    public void setRosterVersion(Long rosterVersion) { this.rosterVersion = rosterVersion; }
+    
+    public Double getTraceSampleRate() { return traceSampleRate; }
+    public void setTraceSampleRate(Double traceSampleRate) { this.traceSampleRate = traceSampleRate; }
+    
+    public String getRoomVersion() { return roomVersion; }
+    public void setRoomVersion(String roomVersion) { this.roomVersion = roomVersion; }
+    
+    public Boolean getResumed() { return resumed; }
+    public void setResumed(Boolean resumed) { this.resumed = resumed; }
+    
+    public List<CanvasTile> getTiles() { return tiles; }
+    public void setTiles(List<CanvasTile> tiles) { this.tiles = tiles; }
 }
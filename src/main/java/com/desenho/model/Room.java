@@ -1,8 +1,17 @@
 package com.desenho.model;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import io.quarkus.runtime.annotations.RegisterForReflection;
 
@@ -10,9 +19,90 @@ import io.quarkus.runtime.annotations.RegisterForReflection;
 public class Room {
     private String roomId;
     private Set<String> players;
-    private String canvasData;
+    // Volatile: read without the monitor by monitoring and the idle-room spiller
+    private volatile CanvasImage canvasData;
     private Map<String, DrawingMessage> floatingImages;
-    private long lastUpdate;
+    private volatile long lastUpdate;
+    
+    // Segments drawn since the last canvas checkpoint, oldest first (guarded by this)
+    private final Deque<LoggedStroke> strokeLog = new ArrayDeque<>();
+    // Sequence number of the last segment ever appended (guarded by this)
+    private long strokeSeq;
+    // Heap the logged segments hold (guarded by this)
+    private long strokeLogBytes;
+    
+    // Checkpointed tiles layered over canvasData, keyed by row * MAX_TILE_COLS + col (guarded by this)
+    private final Map<Integer, DrawingMessage.CanvasTile> tiles = new TreeMap<>();
+    // Receive time before which each tile's last checkpoint covers segments, same keys (guarded by this)
+    private final Map<Integer, Long> tilesCoveredUntil = new HashMap<>();
+    
+    // State version, bumped by every mutation of the drawing state, and the
+    // oldest one a client can still catch up from with a delta. Versions only
+    // mean something within this instance, hence the epoch (guarded by this)
+    private final String epoch = Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36);
+    private long version;
+    private long resumeFloor;
+    // Version at which each floating image was added, and recent removals (guarded by this)
+    private final Map<String, Long> imageVersions = new HashMap<>();
+    private final Map<String, Long> removedImages = new LinkedHashMap<>();
+    
+    // Journal sequence number of the last journaled mutation (guarded by this)
+    private long journalSeq;
+    
+    // Last bus mutation applied from each node run, for dropping replays (guarded by this)
+    private final Map<String, Long> busApplied = new HashMap<>();
+    
+    public static final int MAX_TILE_COLS = 16;
+    public static final int MAX_TILE_ROWS = 16;
+    
+    private static final int MAX_REMOVED_IMAGES = 64;
+    
+    private static final class LoggedStroke {
+        final long seq;
+        final long version;
+        final long receivedAt;
+        final StrokeSegment segment;
+        
+        LoggedStroke(long seq, long version, long receivedAt, StrokeSegment segment) {
+            this.seq = seq;
+            this.version = version;
+            this.receivedAt = receivedAt;
+            this.segment = segment;
+        }
+    }
+    
+    /**
+     * What changed in the room after a version a client presented: the tiles
+     * and floating images added or replaced since, the segments logged since and
+     * the images removed since. Not resumable if the room can't tell, e.g. after
+     * a clear or once the segments in between were trimmed; the client then
+     * needs the whole state again.
+     */
+    public static final class Changes {
+        private final String version;
+        private final boolean resumable;
+        private final List<DrawingMessage.CanvasTile> tiles;
+        private final List<DrawingMessage.DrawingAction> strokes;
+        private final List<DrawingMessage> images;
+        private final List<String> removedImageIds;
+        
+        Changes(String version, boolean resumable, List<DrawingMessage.CanvasTile> tiles,
+                List<DrawingMessage.DrawingAction> strokes, List<DrawingMessage> images, List<String> removedImageIds) {
+            this.version = version;
+            this.resumable = resumable;
+            this.tiles = tiles;
+            this.strokes = strokes;
+            this.images = images;
+            this.removedImageIds = removedImageIds;
+        }
+        
+        public String getVersion() { return version; }
+        public boolean isResumable() { return resumable; }
+        public List<DrawingMessage.CanvasTile> getTiles() { return tiles; }
+        public List<DrawingMessage.DrawingAction> getStrokes() { return strokes; }
+        public List<DrawingMessage> getImages() { return images; }
+        public List<String> getRemovedImageIds() { return removedImageIds; }
+    }
     
     public Room(String roomId) {
         this.roomId = roomId;
@@ -36,18 +126,377 @@ public class Room {
         return players.isEmpty();
     }
 
-    public void updateCanvas(String canvasData) {
+    public synchronized void updateCanvas(CanvasImage canvasData) {
+        this.canvasData = canvasData;
+        resumeFloor = ++version;
+        updateTimestamp();
+    }
+
+    /**
+     * Appends segments to the stroke log, dropping the oldest ones beyond
+     * {@code maxSegments} or {@code maxBytes} of retained heap. Returns the
+     * sequence number of the last appended segment.
+     */
+    public synchronized long appendStrokes(List<StrokeSegment> segments, int maxSegments, long maxBytes, long receivedAt) {
+        version++;
+        for (StrokeSegment segment : segments) {
+            logStroke(new LoggedStroke(++strokeSeq, version, receivedAt, segment));
+        }
+        while (strokeLog.size() > maxSegments || strokeLogBytes > maxBytes) {
+            // Not covered by a checkpoint, so lost to clients catching up
+            resumeFloor = Math.max(resumeFloor, dropOldestStroke().version);
+        }
+        updateTimestamp();
+        return strokeSeq;
+    }
+    
+    /**
+     * Stores a canvas snapshot and drops the logged segments it is assumed to
+     * contain, i.e. those received before {@code coveredUntil}.
+     */
+    public synchronized void checkpointCanvas(CanvasImage canvasData, long coveredUntil) {
         this.canvasData = canvasData;
+        resumeFloor = ++version;
+        tiles.clear();
+        tilesCoveredUntil.clear();
+        while (!strokeLog.isEmpty() && strokeLog.peekFirst().receivedAt < coveredUntil) {
+            dropOldestStroke();
+        }
         updateTimestamp();
     }
+    
+    /**
+     * Stores checkpointed tiles, like {@link #checkpointCanvas} for part of the
+     * canvas. Tiles outside the grid are ignored; an erased tile is only kept as a
+     * tombstone while there is a full canvas snapshot underneath it. A client
+     * checkpoints just the tiles it drew on, so a logged segment is only dropped
+     * once every tile it touches has been checkpointed since it came in. Returns
+     * the stored tiles, versioned with the room's new version.
+     */
+    public synchronized List<DrawingMessage.CanvasTile> checkpointTiles(List<DrawingMessage.CanvasTile> updates, long coveredUntil) {
+        List<DrawingMessage.CanvasTile> stored = new ArrayList<>(updates.size());
+        version++;
+        for (DrawingMessage.CanvasTile update : updates) {
+            if (update.getCol() < 0 || update.getCol() >= MAX_TILE_COLS
+                    || update.getRow() < 0 || update.getRow() >= MAX_TILE_ROWS) {
+                continue;
+            }
+            CanvasImage data = update.getData();
+            DrawingMessage.CanvasTile tile = new DrawingMessage.CanvasTile(update.getCol(), update.getRow(), version, data);
+            int key = tile.getRow() * MAX_TILE_COLS + tile.getCol();
+            if (data == null && canvasData == null) {
+                tiles.remove(key);
+            } else {
+                tiles.put(key, tile);
+            }
+            tilesCoveredUntil.merge(key, coveredUntil, Math::max);
+            stored.add(tile);
+        }
+        Iterator<LoggedStroke> it = strokeLog.iterator();
+        while (it.hasNext()) {
+            LoggedStroke stroke = it.next();
+            if (stroke.receivedAt >= coveredUntil) {
+                break;
+            }
+            DrawingMessage.DrawingAction action = stroke.segment.action();
+            if (action == null || coveredByTiles(action, stroke.receivedAt)) {
+                it.remove();
+                strokeLogBytes -= stroke.segment.getRetainedBytes();
+            }
+        }
+        updateTimestamp();
+        return stored;
+    }
+    
+    /**
+     * Whether every tile the segment can have painted on was checkpointed after
+     * it came in. A segment reaches as far from its line as the client draws it:
+     * half its size for a brush or eraser, its whole size for a spray, plus a pixel.
+     */
+    private boolean coveredByTiles(DrawingMessage.DrawingAction action, long receivedAt) {
+        double reach = ("spray".equals(action.getTool()) ? action.getSize() : action.getSize() / 2.0) + 1;
+        int size = DrawingMessage.CanvasTile.SIZE;
+        int firstCol = clamp((int) Math.floor((Math.min(action.getStartX(), action.getEndX()) - reach) / size), MAX_TILE_COLS);
+        int lastCol = clamp((int) Math.floor((Math.max(action.getStartX(), action.getEndX()) + reach) / size), MAX_TILE_COLS);
+        int firstRow = clamp((int) Math.floor((Math.min(action.getStartY(), action.getEndY()) - reach) / size), MAX_TILE_ROWS);
+        int lastRow = clamp((int) Math.floor((Math.max(action.getStartY(), action.getEndY()) + reach) / size), MAX_TILE_ROWS);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Long coveredUntil = tilesCoveredUntil.get(row * MAX_TILE_COLS + col);
+                if (coveredUntil == null || coveredUntil <= receivedAt) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    private static int clamp(int index, int count) {
+        return Math.max(0, Math.min(count - 1, index));
+    }
+    
+    public synchronized List<DrawingMessage.CanvasTile> getTiles() {
+        return new ArrayList<>(tiles.values());
+    }
+    
+    /**
+     * Clears the canvas and the stroke log. Returns the sequence number of the
+     * last segment the clear wipes out.
+     */
+    public synchronized long clearCanvas() {
+        this.canvasData = null;
+        resumeFloor = ++version;
+        tiles.clear();
+        tilesCoveredUntil.clear();
+        clearStrokeLog();
+        updateTimestamp();
+        return strokeSeq;
+    }
+    
+    public synchronized List<DrawingMessage.DrawingAction> getStrokeLog() {
+        return getStrokeLogSince(0);
+    }
+    
+    /**
+     * Logged segments with a sequence number greater than {@code afterSeq},
+     * bound if they weren't yet.
+     */
+    public synchronized List<DrawingMessage.DrawingAction> getStrokeLogSince(long afterSeq) {
+        List<StrokeSegment> segments = new ArrayList<>();
+        for (LoggedStroke stroke : strokeLog) {
+            if (stroke.seq > afterSeq) {
+                segments.add(stroke.segment);
+            }
+        }
+        return StrokeSegment.actions(segments);
+    }
+    
+    public synchronized int getStrokeLogSize() {
+        return strokeLog.size();
+    }
+    
+    /**
+     * Opaque tag of the current state version, for clients to present when
+     * they reconnect; see {@link #changesSince(String)}.
+     */
+    public synchronized String getVersionTag() {
+        return epoch + "-" + version;
+    }
+    
+    /**
+     * Changes after the state tagged {@code versionTag}, or null if the tag
+     * isn't one of this room instance's (a recreated room, another node, a
+     * restart), in which case nothing is known about what the client has.
+     */
+    public synchronized Changes changesSince(String versionTag) {
+        String prefix = epoch + "-";
+        if (versionTag == null || !versionTag.startsWith(prefix)) {
+            return null;
+        }
+        long since;
+        try {
+            since = Long.parseLong(versionTag.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (since > version) {
+            return null;
+        }
+        String current = getVersionTag();
+        if (since < resumeFloor) {
+            return new Changes(current, false, List.of(), List.of(), List.of(), List.of());
+        }
+        List<DrawingMessage.CanvasTile> changedTiles = new ArrayList<>();
+        for (DrawingMessage.CanvasTile tile : tiles.values()) {
+            if (tile.getVersion() > since) {
+                changedTiles.add(tile);
+            }
+        }
+        List<StrokeSegment> strokes = new ArrayList<>();
+        for (LoggedStroke stroke : strokeLog) {
+            if (stroke.version > since) {
+                strokes.add(stroke.segment);
+            }
+        }
+        List<DrawingMessage> images = new ArrayList<>();
+        for (Map.Entry<String, Long> image : imageVersions.entrySet()) {
+            DrawingMessage message = floatingImages.get(image.getKey());
+            if (image.getValue() > since && message != null) {
+                images.add(message);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Long> image : removedImages.entrySet()) {
+            if (image.getValue() > since) {
+                removed.add(image.getKey());
+            }
+        }
+        return new Changes(current, true, changedTiles, StrokeSegment.actions(strokes), images, removed);
+    }
 
-    public void addFloatingImage(DrawingMessage image) {
+    public synchronized long getJournalSeq() {
+        return journalSeq;
+    }
+    
+    public synchronized void setJournalSeq(long journalSeq) {
+        this.journalSeq = journalSeq;
+    }
+    
+    /**
+     * Records that bus mutation {@code seq} from {@code source} is applied.
+     * Returns false if it, or a later one from the same source, already was.
+     */
+    public synchronized boolean markBusApplied(String source, long seq) {
+        Long applied = busApplied.get(source);
+        if (applied != null && applied >= seq) {
+            return false;
+        }
+        busApplied.put(source, seq);
+        return true;
+    }
+    
+    public synchronized long getBusApplied(String source) {
+        return busApplied.getOrDefault(source, 0L);
+    }
+    
+    /**
+     * Copies the drawing state for the room journal. Callers that journal
+     * mutations hold the room's monitor, so the copy and its journal sequence
+     * number are consistent.
+     */
+    public synchronized RoomSnapshot toSnapshot() {
+        RoomSnapshot snapshot = canvasPayload();
+        snapshot.setRoomId(roomId);
+        snapshot.setJournalSeq(journalSeq);
+        snapshot.setFloatingImages(new ArrayList<>(floatingImages.values()));
+        snapshot.setBusApplied(new HashMap<>(busApplied));
+        return snapshot;
+    }
+    
+    /**
+     * Replaces the drawing state with a journal snapshot.
+     */
+    public synchronized void restore(RoomSnapshot snapshot) {
+        journalSeq = snapshot.getJournalSeq();
+        strokeSeq = snapshot.getStrokeSeq();
+        restoreCanvas(snapshot);
+        // A wholly new state: nobody can catch up to it from an older version
+        resumeFloor = ++version;
+        floatingImages.clear();
+        imageVersions.clear();
+        removedImages.clear();
+        if (snapshot.getFloatingImages() != null) {
+            for (DrawingMessage image : snapshot.getFloatingImages()) {
+                floatingImages.put(image.getImageId(), image);
+                imageVersions.put(image.getImageId(), version);
+            }
+        }
+        busApplied.clear();
+        if (snapshot.getBusApplied() != null) {
+            busApplied.putAll(snapshot.getBusApplied());
+        }
+        updateTimestamp();
+    }
+    
+    /**
+     * Copies just the canvas payload (canvas, tiles and stroke log), the part of
+     * the room worth moving off the heap while it is idle.
+     */
+    public synchronized RoomSnapshot canvasPayload() {
+        RoomSnapshot payload = new RoomSnapshot();
+        payload.setCanvasData(canvasData);
+        payload.setTiles(new ArrayList<>(tiles.values()));
+        payload.setStrokeSeq(strokeSeq);
+        List<RoomSnapshot.Stroke> strokes = new ArrayList<>(strokeLog.size());
+        for (LoggedStroke stroke : strokeLog) {
+            DrawingMessage.DrawingAction action = stroke.segment.action();
+            if (action != null) {
+                strokes.add(new RoomSnapshot.Stroke(stroke.receivedAt, action));
+            }
+        }
+        payload.setStrokes(strokes);
+        return payload;
+    }
+    
+    /**
+     * Drops the canvas payload after it was saved elsewhere. Sequence numbers and
+     * the last update time are kept.
+     */
+    public synchronized void releaseCanvas() {
+        canvasData = null;
+        tiles.clear();
+        tilesCoveredUntil.clear();
+        clearStrokeLog();
+    }
+    
+    /**
+     * Puts back a payload taken with {@link #canvasPayload()} (or a snapshot).
+     */
+    public synchronized void restoreCanvas(RoomSnapshot payload) {
+        canvasData = payload.getCanvasData();
+        tiles.clear();
+        tilesCoveredUntil.clear();
+        if (payload.getTiles() != null) {
+            for (DrawingMessage.CanvasTile tile : payload.getTiles()) {
+                tiles.put(tile.getRow() * MAX_TILE_COLS + tile.getCol(), tile);
+                version = Math.max(version, tile.getVersion());
+            }
+        }
+        clearStrokeLog();
+        if (payload.getStrokes() != null) {
+            // Their versions weren't kept; clients that saw an older state get them again
+            long seq = payload.getStrokeSeq() - payload.getStrokes().size();
+            for (RoomSnapshot.Stroke stroke : payload.getStrokes()) {
+                logStroke(new LoggedStroke(++seq, version, stroke.getReceivedAt(),
+                        StrokeSegment.bound(stroke.getAction())));
+            }
+        }
+    }
+    
+    /**
+     * Rough heap footprint of the canvas payload: the decoded images, plus
+     * what the logged segments hold.
+     */
+    public synchronized long estimateCanvasBytes() {
+        long bytes = canvasData != null ? canvasData.getSize() : 0;
+        for (DrawingMessage.CanvasTile tile : tiles.values()) {
+            bytes += tile.getData() != null ? tile.getData().getSize() : 0;
+        }
+        return bytes + strokeLogBytes;
+    }
+    
+    private void logStroke(LoggedStroke stroke) {
+        strokeLog.addLast(stroke);
+        strokeLogBytes += stroke.segment.getRetainedBytes();
+    }
+    
+    private LoggedStroke dropOldestStroke() {
+        LoggedStroke stroke = strokeLog.removeFirst();
+        strokeLogBytes -= stroke.segment.getRetainedBytes();
+        return stroke;
+    }
+    
+    private void clearStrokeLog() {
+        strokeLog.clear();
+        strokeLogBytes = 0;
+    }
+    
+    public synchronized void addFloatingImage(DrawingMessage image) {
         floatingImages.put(image.getImageId(), image);
+        imageVersions.put(image.getImageId(), ++version);
+        removedImages.remove(image.getImageId());
         updateTimestamp();
     }
 
-    public void removeFloatingImage(String imageId) {
+    public synchronized void removeFloatingImage(String imageId) {
         floatingImages.remove(imageId);
+        imageVersions.remove(imageId);
+        removedImages.put(imageId, ++version);
+        if (removedImages.size() > MAX_REMOVED_IMAGES) {
+            Iterator<Long> eldest = removedImages.values().iterator();
+            resumeFloor = Math.max(resumeFloor, eldest.next());
+            eldest.remove();
+        }
         updateTimestamp();
     }
     
@@ -62,8 +511,8 @@ public class Room {
     public Set<String> getPlayers() { return players; }
     public void setPlayers(Set<String> players) { this.players = players; }
     
-    public String getCanvasData() { return canvasData; }
-    public void setCanvasData(String canvasData) { this.canvasData = canvasData; }
+    public CanvasImage getCanvasData() { return canvasData; }
+    public void setCanvasData(CanvasImage canvasData) { this.canvasData = canvasData; }
 
     public Map<String, DrawingMessage> getFloatingImages() { return floatingImages; }
     public void setFloatingImages(Map<String, DrawingMessage> floatingImages) { this.floatingImages = floatingImages; }
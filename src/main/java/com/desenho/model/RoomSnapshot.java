@@ -0,0 +1,71 @@
+package com.desenho.model;
+
+import java.util.List;
+import java.util.Map;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * Persistent copy of a room's drawing state, written by the room journal.
+ * Players are not part of it since their sessions do not survive a restart.
+ */
+@RegisterForReflection
+public class RoomSnapshot {
+    private String roomId;
+    private long journalSeq;
+    private CanvasImage canvasData;
+    private List<DrawingMessage.CanvasTile> tiles;
+    private long strokeSeq;
+    private List<Stroke> strokes;
+    private List<DrawingMessage> floatingImages;
+    // Last bus mutation included from each node run
+    private Map<String, Long> busApplied;
+
+    /**
+     * A logged stroke segment with the time the server received it.
+     */
+    @RegisterForReflection
+    public static class Stroke {
+        private long receivedAt;
+        private DrawingMessage.DrawingAction action;
+
+        public Stroke() {
+        }
+
+        public Stroke(long receivedAt, DrawingMessage.DrawingAction action) {
+            this.receivedAt = receivedAt;
+            this.action = action;
+        }
+
+        public long getReceivedAt() { return receivedAt; }
+        public void setReceivedAt(long receivedAt) { this.receivedAt = receivedAt; }
+
+        public DrawingMessage.DrawingAction getAction() { return action; }
+        public void setAction(DrawingMessage.DrawingAction action) { this.action = action; }
+    }
+
+    // Getters and Setters
+    public String getRoomId() { return roomId; }
+    public void setRoomId(String roomId) { this.roomId = roomId; }
+
+    public long getJournalSeq() { return journalSeq; }
+    public void setJournalSeq(long journalSeq) { this.journalSeq = journalSeq; }
+
+    public CanvasImage getCanvasData() { return canvasData; }
+    public void setCanvasData(CanvasImage canvasData) { this.canvasData = canvasData; }
+
+    public List<DrawingMessage.CanvasTile> getTiles() { return tiles; }
+    public void setTiles(List<DrawingMessage.CanvasTile> tiles) { this.tiles = tiles; }
+
+    public long getStrokeSeq() { return strokeSeq; }
+    public void setStrokeSeq(long strokeSeq) { this.strokeSeq = strokeSeq; }
+
+    public List<Stroke> getStrokes() { return strokes; }
+    public void setStrokes(List<Stroke> strokes) { this.strokes = strokes; }
+
+    public List<DrawingMessage> getFloatingImages() { return floatingImages; }
+    public void setFloatingImages(List<DrawingMessage> floatingImages) { this.floatingImages = floatingImages; }
+
+    public Map<String, Long> getBusApplied() { return busApplied; }
+    public void setBusApplied(Map<String, Long> busApplied) { this.busApplied = busApplied; }
+}
@@ -0,0 +1,81 @@
+package com.desenho.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A segment in a room's stroke log. Segments relayed verbatim are logged with
+ * what binds them rather than bound, so the relay path never parses them; they
+ * are bound the first time something reads the log back, such as a join
+ * replay, and kept bound from then on.
+ */
+public final class StrokeSegment {
+
+    // DrawingAction plus its log entry, roughly
+    static final long BOUND_BYTES = 96;
+
+    private Supplier<DrawingMessage.DrawingAction> binder;
+    private DrawingMessage.DrawingAction action;
+    private final long retainedBytes;
+
+    private StrokeSegment(Supplier<DrawingMessage.DrawingAction> binder, DrawingMessage.DrawingAction action,
+                          long retainedBytes) {
+        this.binder = binder;
+        this.action = action;
+        this.retainedBytes = retainedBytes;
+    }
+
+    public static StrokeSegment bound(DrawingMessage.DrawingAction action) {
+        return new StrokeSegment(null, action, BOUND_BYTES);
+    }
+
+    /**
+     * A segment bound by {@code binder} on first use; the binder may return
+     * null for a segment that doesn't bind, which readers then skip.
+     * {@code frameChars} is the length of the text the binder holds on to.
+     */
+    public static StrokeSegment unbound(Supplier<DrawingMessage.DrawingAction> binder, int frameChars) {
+        return new StrokeSegment(binder, null, BOUND_BYTES + frameChars);
+    }
+
+    public static List<StrokeSegment> boundAll(List<DrawingMessage.DrawingAction> actions) {
+        List<StrokeSegment> segments = new ArrayList<>(actions.size());
+        for (DrawingMessage.DrawingAction action : actions) {
+            segments.add(bound(action));
+        }
+        return segments;
+    }
+
+    /**
+     * The segments' actions, binding those that aren't yet and leaving out any
+     * that don't bind.
+     */
+    public static List<DrawingMessage.DrawingAction> actions(Iterable<StrokeSegment> segments) {
+        List<DrawingMessage.DrawingAction> actions = new ArrayList<>();
+        for (StrokeSegment segment : segments) {
+            DrawingMessage.DrawingAction action = segment.action();
+            if (action != null) {
+                actions.add(action);
+            }
+        }
+        return actions;
+    }
+
+    /**
+     * Heap the segment holds as logged: the frame for an unbound one, which
+     * stays an upper bound once it is bound.
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized DrawingMessage.DrawingAction action() {
+        if (binder != null) {
+            action = binder.get();
+            // Lets go of the frame the segment came in
+            binder = null;
+        }
+        return action;
+    }
+}
@@ -0,0 +1,83 @@
+package com.desenho.resource;
+
+import com.desenho.service.AssetStore;
+import com.desenho.websocket.RateLimits;
+import io.vertx.core.http.HttpServerRequest;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+@Path("/api/assets")
+public class AssetResource {
+
+    // Assets are immutable: the URL is the content hash
+    private static final int MAX_AGE_SECONDS = 365 * 24 * 60 * 60;
+
+    @Inject
+    AssetStore assetStore;
+
+    @Inject
+    RateLimits rateLimits;
+
+    @POST
+    @Consumes(MediaType.WILDCARD)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response upload(byte[] body, @Context HttpServerRequest httpRequest) {
+        if (!rateLimits.admitUpload(httpRequest.remoteAddress().host(), body != null ? body.length : 0)) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Muitos envios; aguarde um momento");
+            return Response.status(Response.Status.TOO_MANY_REQUESTS).entity(error).build();
+        }
+        AssetStore.Asset asset;
+        try {
+            asset = assetStore.put(body);
+        } catch (IllegalArgumentException e) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("hash", asset.getHash());
+        response.put("url", "/api/assets/" + asset.getHash());
+        return Response.created(URI.create("/api/assets/" + asset.getHash()))
+                .entity(response)
+                .build();
+    }
+
+    @GET
+    @Path("/{hash}")
+    public Response download(@PathParam("hash") String hash, @Context Request request) {
+        AssetStore.Asset asset = assetStore.get(hash);
+        if (asset == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(MAX_AGE_SECONDS);
+        cacheControl.setPrivate(false);
+        EntityTag etag = new EntityTag(asset.getHash());
+
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return notModified.cacheControl(cacheControl).build();
+        }
+        return Response.ok(asset.getBytes(), asset.getMimeType())
+                .tag(etag)
+                .cacheControl(cacheControl)
+                .build();
+    }
+}
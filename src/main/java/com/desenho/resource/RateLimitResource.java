@@ -0,0 +1,56 @@
+package com.desenho.resource;
+
+import com.desenho.websocket.RateLimits;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.PUT;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-session and per-room message limits (see {@link RateLimits}). PUT replaces
+ * only the keys it is sent, without a restart, and requires an X-Admin-Token
+ * header matching desenho.ratelimit.admin-token; the change holds on this node
+ * until it restarts.
+ */
+@Path("/api/rate-limits")
+public class RateLimitResource {
+
+    @Inject
+    RateLimits rateLimits;
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, String> getLimits() {
+        return rateLimits.current();
+    }
+
+    @PUT
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response updateLimits(@HeaderParam("X-Admin-Token") String token, Map<String, String> changes) {
+        if (!rateLimits.acceptsToken(token)) {
+            return error(Response.Status.FORBIDDEN, "Token de administração ausente ou inválido");
+        }
+        if (changes == null || changes.isEmpty()) {
+            return error(Response.Status.BAD_REQUEST, "Nenhum limite informado");
+        }
+        try {
+            return Response.ok(rateLimits.update(changes)).build();
+        } catch (IllegalArgumentException e) {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    private static Response error(Response.Status status, String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("error", message);
+        return Response.status(status).entity(error).build();
+    }
+}
@@ -0,0 +1,402 @@
+package com.desenho.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Content-addressed store for floating image bytes, keyed by SHA-256 so the
+ * same picture uploaded to several rooms is kept once.
+ *
+ * Assets live in a memory tier and, when the asset directory is writable, a
+ * disk tier; both evict least recently used entries beyond their byte budget.
+ * Assets still referenced by a room (see {@link #retain}) are never evicted
+ * from the last tier that holds them.
+ */
+@ApplicationScoped
+public class AssetStore {
+
+    /**
+     * An image and its content hash. The MIME type is sniffed from the bytes,
+     * so nothing but the bytes has to be persisted.
+     */
+    public static final class Asset {
+        private final String hash;
+        private final String mimeType;
+        private final byte[] bytes;
+
+        Asset(String hash, String mimeType, byte[] bytes) {
+            this.hash = hash;
+            this.mimeType = mimeType;
+            this.bytes = bytes;
+        }
+
+        public String getHash() { return hash; }
+        public String getMimeType() { return mimeType; }
+        public byte[] getBytes() { return bytes; }
+    }
+
+    // Files of writes and evictions in progress, next to the assets
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String EVICTED_SUFFIX = ".evicted";
+
+    @ConfigProperty(name = "desenho.assets.dir", defaultValue = "${java.io.tmpdir}/desenho-assets")
+    String directory;
+
+    @ConfigProperty(name = "desenho.assets.max-asset-bytes", defaultValue = "5242880")
+    int maxAssetBytes;
+
+    @ConfigProperty(name = "desenho.assets.memory-max-bytes", defaultValue = "33554432")
+    long memoryMaxBytes;
+
+    @ConfigProperty(name = "desenho.assets.disk-max-bytes", defaultValue = "268435456")
+    long diskMaxBytes;
+
+    // Both tiers and the reference counts are guarded by this
+    private final LinkedHashMap<String, Asset> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+    private final Map<String, Integer> references = new HashMap<>();
+
+    private Path root;
+
+    @PostConstruct
+    void init() {
+        try {
+            Path dir = Paths.get(directory);
+            Files.createDirectories(dir);
+            // Rebuild the disk index, oldest first so LRU order roughly survives restarts
+            List<Path> files;
+            try (Stream<Path> listing = Files.list(dir)) {
+                files = listing.sorted(Comparator.comparingLong(p -> p.toFile().lastModified()))
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                // Writes and evictions a stop cut short
+                if (name.endsWith(TEMP_SUFFIX) || name.endsWith(EVICTED_SUFFIX)) {
+                    delete(file);
+                    continue;
+                }
+                if (!isHash(name)) {
+                    continue;
+                }
+                long size = Files.size(file);
+                disk.put(file.getFileName().toString(), size);
+                diskBytes += size;
+            }
+            root = dir;
+        } catch (IOException | RuntimeException e) {
+            // No usable directory: keep assets in memory only
+            root = null;
+        }
+    }
+
+    /**
+     * Stores image bytes and returns the asset.
+     *
+     * @throws IllegalArgumentException if the bytes are too large or not a supported image
+     */
+    public Asset put(byte[] bytes) {
+        if (bytes == null || bytes.length == 0 || bytes.length > maxAssetBytes) {
+            throw new IllegalArgumentException("Imagem muito grande");
+        }
+        String mimeType = sniffMimeType(bytes);
+        if (mimeType == null) {
+            throw new IllegalArgumentException("Formato de imagem não suportado");
+        }
+        String hash = sha256(bytes);
+        Asset asset = new Asset(hash, mimeType, bytes);
+        synchronized (this) {
+            Asset existing = memory.get(hash);
+            if (existing != null) {
+                return existing;
+            }
+            if (root == null || disk.containsKey(hash)) {
+                cache(asset);
+                return asset;
+            }
+        }
+        // Written outside the lock, so a slow disk only holds up this upload;
+        // the lock covers the rename into place and the index
+        Path temp = writeTemp(hash, bytes);
+        List<Path> garbage = new ArrayList<>();
+        try {
+            synchronized (this) {
+                Asset existing = memory.get(hash);
+                if (existing != null) {
+                    garbage.add(temp);
+                    return existing;
+                }
+                if (temp != null && !disk.containsKey(hash)) {
+                    publish(hash, temp, bytes.length, garbage);
+                } else {
+                    garbage.add(temp);
+                }
+                cache(asset);
+                return asset;
+            }
+        } finally {
+            for (Path file : garbage) {
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Stores the bytes of a base64 {@code data:} URL, as sent by older clients.
+     *
+     * @throws IllegalArgumentException if the URL is malformed or {@link #put} rejects it
+     */
+    public Asset putDataUrl(String dataUrl) {
+        int comma = dataUrl.indexOf(',');
+        if (!dataUrl.startsWith("data:") || comma < 0 || !dataUrl.substring(0, comma).endsWith(";base64")) {
+            throw new IllegalArgumentException("Formato de imagem não suportado");
+        }
+        // Reject before decoding: base64 is 4 chars per 3 bytes
+        if ((long) (dataUrl.length() - comma - 1) * 3 / 4 > maxAssetBytes) {
+            throw new IllegalArgumentException("Imagem muito grande");
+        }
+        return put(Base64.getMimeDecoder().decode(dataUrl.substring(comma + 1)));
+    }
+
+    /**
+     * Looks an asset up in memory, then on disk. Returns null if unknown.
+     */
+    public Asset get(String hash) {
+        if (!isHash(hash)) {
+            return null;
+        }
+        synchronized (this) {
+            Asset asset = memory.get(hash);
+            if (asset != null || root == null || disk.get(hash) == null) {
+                return asset;
+            }
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(root.resolve(hash));
+        } catch (IOException e) {
+            synchronized (this) {
+                // Unless it was put again meanwhile
+                if (!memory.containsKey(hash)) {
+                    forgetOnDisk(hash);
+                }
+                return memory.get(hash);
+            }
+        }
+        synchronized (this) {
+            Asset cached = memory.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+            Asset asset = new Asset(hash, sniffMimeType(bytes), bytes);
+            cache(asset);
+            return asset;
+        }
+    }
+
+    public synchronized boolean contains(String hash) {
+        return isHash(hash) && (memory.containsKey(hash) || disk.containsKey(hash));
+    }
+
+    /**
+     * Pins an asset while a room shows it.
+     */
+    public synchronized void retain(String hash) {
+        references.merge(hash, 1, Integer::sum);
+    }
+
+    public synchronized void release(String hash) {
+        references.computeIfPresent(hash, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public synchronized int getMemoryAssetCount() {
+        return memory.size();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * Sizes of the assets held in memory, by hash. Unlike {@link #get}, this
+     * doesn't count as a use for eviction.
+     */
+    public synchronized Map<String, Integer> getMemorySizes() {
+        Map<String, Integer> sizes = new HashMap<>(memory.size() * 2);
+        for (Asset asset : memory.values()) {
+            sizes.put(asset.getHash(), asset.getBytes().length);
+        }
+        return sizes;
+    }
+
+    public synchronized int getDiskAssetCount() {
+        return disk.size();
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    private void cache(Asset asset) {
+        memory.put(asset.getHash(), asset);
+        memoryBytes += asset.getBytes().length;
+        Iterator<Map.Entry<String, Asset>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > memoryMaxBytes && eldest.hasNext()) {
+            Map.Entry<String, Asset> entry = eldest.next();
+            // Without a disk tier, memory is the only copy of pinned assets
+            if (entry.getValue() == asset || (root == null && references.containsKey(entry.getKey()))) {
+                continue;
+            }
+            memoryBytes -= entry.getValue().getBytes().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Writes the bytes to a new temporary file in the asset directory, or
+     * returns null if it can't; the memory tier still has them then.
+     */
+    private Path writeTemp(String hash, byte[] bytes) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(root, hash, TEMP_SUFFIX);
+            Files.write(temp, bytes);
+            return temp;
+        } catch (IOException e) {
+            delete(temp);
+            return null;
+        }
+    }
+
+    /**
+     * Renames a written temporary file into place and evicts least recently
+     * used files beyond the disk budget. Evicted files are only renamed out of
+     * the way here; they and anything left unused go to {@code garbage} for the
+     * caller to delete once it let go of the lock.
+     */
+    private void publish(String hash, Path temp, long size, List<Path> garbage) {
+        try {
+            Files.move(temp, root.resolve(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            garbage.add(temp);
+            return;
+        }
+        disk.put(hash, size);
+        diskBytes += size;
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > diskMaxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            if (entry.getKey().equals(hash) || references.containsKey(entry.getKey())) {
+                continue;
+            }
+            // Renamed rather than deleted later by name, so a put of the same
+            // asset meanwhile can't lose its new file
+            Path evicted = root.resolve(entry.getKey() + EVICTED_SUFFIX);
+            try {
+                Files.move(root.resolve(entry.getKey()), evicted, StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException e) {
+                evicted = null;
+            } catch (IOException e) {
+                continue;
+            }
+            if (evicted != null) {
+                garbage.add(evicted);
+            }
+            diskBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private static void delete(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left for the next start to clean up
+        }
+    }
+
+    private void forgetOnDisk(String hash) {
+        Long size = disk.remove(hash);
+        if (size != null) {
+            diskBytes -= size;
+        }
+    }
+
+    private static boolean isHash(String value) {
+        if (value == null || value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sniffMimeType(byte[] bytes) {
+        if (startsWith(bytes, 0, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        }
+        if (startsWith(bytes, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(bytes, 0, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(bytes, 0, 'R', 'I', 'F', 'F') && startsWith(bytes, 8, 'W', 'E', 'B', 'P')) {
+            return "image/webp";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, int... prefix) {
+        if (bytes.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if ((bytes[offset + i] & 0xFF) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
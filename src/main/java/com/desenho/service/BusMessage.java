@@ -0,0 +1,97 @@
+package com.desenho.service;
+
+import com.desenho.model.DrawingMessage;
+import com.desenho.model.RoomSnapshot;
+import java.util.List;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * Message exchanged between nodes over the {@link RoomBus}. Received messages
+ * are fired as CDI events; only the fields relevant to {@code type} are set.
+ */
+@RegisterForReflection
+public class BusMessage {
+
+    @RegisterForReflection
+    public enum Type {
+        // Sent first on every connection to identify the sender
+        HELLO,
+        // An encoded frame broadcast to the room's sessions on the origin node
+        FRAME,
+        // A room mutation, as written to the journal
+        MUTATION,
+        PLAYER_JOINED,
+        PLAYER_LEFT,
+        // Asks the room's owner for its state; answered with STATE
+        STATE_REQUEST,
+        STATE,
+        // Fired locally when a peer connects or goes away; never sent
+        NODE_UP,
+        NODE_DOWN
+    }
+
+    private Type type;
+    private String origin;
+    // Start time of the origin node, so sequence numbers restart safely
+    private long epoch;
+    // Per-origin sequence number of MUTATION messages
+    private long seq;
+    private String roomId;
+    private String frame;
+    private DrawingMessage.MessageType messageType;
+    private JournalRecord record;
+    // Images referenced by an IMAGE_ADD mutation or a STATE snapshot
+    private List<byte[]> assets;
+    private String playerName;
+    private RoomSnapshot snapshot;
+
+    public BusMessage() {
+    }
+
+    public BusMessage(Type type, String roomId) {
+        this.type = type;
+        this.roomId = roomId;
+    }
+
+    /**
+     * Identifies the origin node's current run, for deduplicating mutations.
+     */
+    public String source() {
+        return origin + "@" + epoch;
+    }
+
+    // Getters and Setters
+    public Type getType() { return type; }
+    public void setType(Type type) { this.type = type; }
+
+    public String getOrigin() { return origin; }
+    public void setOrigin(String origin) { this.origin = origin; }
+
+    public long getEpoch() { return epoch; }
+    public void setEpoch(long epoch) { this.epoch = epoch; }
+
+    public long getSeq() { return seq; }
+    public void setSeq(long seq) { this.seq = seq; }
+
+    public String getRoomId() { return roomId; }
+    public void setRoomId(String roomId) { this.roomId = roomId; }
+
+    public String getFrame() { return frame; }
+    public void setFrame(String frame) { this.frame = frame; }
+
+    public DrawingMessage.MessageType getMessageType() { return messageType; }
+    public void setMessageType(DrawingMessage.MessageType messageType) { this.messageType = messageType; }
+
+    public JournalRecord getRecord() { return record; }
+    public void setRecord(JournalRecord record) { this.record = record; }
+
+    public List<byte[]> getAssets() { return assets; }
+    public void setAssets(List<byte[]> assets) { this.assets = assets; }
+
+    public String getPlayerName() { return playerName; }
+    public void setPlayerName(String playerName) { this.playerName = playerName; }
+
+    public RoomSnapshot getSnapshot() { return snapshot; }
+    public void setSnapshot(RoomSnapshot snapshot) { this.snapshot = snapshot; }
+}
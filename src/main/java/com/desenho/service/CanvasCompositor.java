@@ -0,0 +1,243 @@
+package com.desenho.service;
+
+import com.desenho.model.DrawingMessage;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Keeps an authoritative raster per room by replaying relayed stroke segments,
+ * so joiners can get a checkpoint rendered by the server instead of the last
+ * CANVAS_UPDATE a client happened to send.
+ *
+ * Rendering runs on a small bounded pool, never on the WebSocket IO threads.
+ * Work for a room is queued on its own lane and drained by at most one pool
+ * task at a time, which keeps segments in order without locking the raster.
+ * When the pool or a lane overflows the raster can no longer be exact; it is
+ * then marked invalid and callers fall back to the client checkpoint path until
+ * the room's canvas is cleared.
+ */
+@ApplicationScoped
+public class CanvasCompositor {
+
+    // Operations a lane runs per pool task before yielding to other rooms
+    private static final int DRAIN_BATCH = 64;
+
+    /**
+     * A rendered checkpoint: the non-empty tiles of the raster and the stroke log
+     * sequence number of the last segment they include.
+     */
+    public static final class Checkpoint {
+        private final List<DrawingMessage.CanvasTile> tiles;
+        private final long seq;
+
+        Checkpoint(List<DrawingMessage.CanvasTile> tiles, long seq) {
+            this.tiles = tiles;
+            this.seq = seq;
+        }
+
+        public List<DrawingMessage.CanvasTile> getTiles() { return tiles; }
+        public long getSeq() { return seq; }
+    }
+
+    private interface Op {
+        void run(RoomLane lane);
+
+        default void abandon() {
+        }
+    }
+
+    private final class RoomLane {
+        private final Queue<Op> ops = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger pendingSegments = new AtomicInteger();
+        private volatile boolean invalid;
+        // Only touched by the task currently draining the lane
+        private RoomRaster raster;
+
+        RoomRaster raster() {
+            if (raster == null) {
+                raster = new RoomRaster(width, height);
+            }
+            return raster;
+        }
+    }
+
+    @ConfigProperty(name = "desenho.raster.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "desenho.raster.width", defaultValue = "800")
+    int width;
+
+    @ConfigProperty(name = "desenho.raster.height", defaultValue = "600")
+    int height;
+
+    @ConfigProperty(name = "desenho.raster.threads", defaultValue = "2")
+    int threads;
+
+    @ConfigProperty(name = "desenho.raster.queue-size", defaultValue = "256")
+    int queueSize;
+
+    @ConfigProperty(name = "desenho.raster.max-pending-segments", defaultValue = "50000")
+    int maxPendingSegments;
+
+    private final Map<String, RoomLane> lanes = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "canvas-compositor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues segments for rendering; {@code lastSeq} is the stroke log sequence
+     * number of the last one.
+     */
+    public void applyStrokes(String roomId, List<DrawingMessage.DrawingAction> actions, long lastSeq) {
+        if (!enabled || actions.isEmpty()) {
+            return;
+        }
+        RoomLane lane = lanes.computeIfAbsent(roomId, k -> new RoomLane());
+        if (lane.pendingSegments.addAndGet(actions.size()) > maxPendingSegments) {
+            lane.invalid = true;
+        }
+        enqueue(lane, l -> {
+            l.pendingSegments.addAndGet(-actions.size());
+            if (!l.invalid) {
+                l.raster().apply(actions, lastSeq);
+            }
+        });
+    }
+
+    /**
+     * Queues a clear. This also makes an invalid raster exact again, since
+     * nothing drawn before the clear matters any more.
+     */
+    public void clear(String roomId, long lastSeq) {
+        if (!enabled) {
+            return;
+        }
+        enqueue(lanes.computeIfAbsent(roomId, k -> new RoomLane()), l -> {
+            l.raster().clear(lastSeq);
+            l.invalid = false;
+        });
+    }
+
+    /**
+     * Marks a room's raster as not matching its canvas, e.g. for rooms restored
+     * from the journal, until the canvas is next cleared.
+     */
+    public void invalidate(String roomId) {
+        if (enabled) {
+            lanes.computeIfAbsent(roomId, k -> new RoomLane()).invalid = true;
+        }
+    }
+
+    public void remove(String roomId) {
+        lanes.remove(roomId);
+    }
+
+    /**
+     * Renders a checkpoint once every segment queued so far has been applied.
+     * Returns null when the compositor is disabled; the future completes with
+     * null when the room's raster is invalid or could not be encoded.
+     */
+    public CompletableFuture<Checkpoint> checkpoint(String roomId) {
+        if (!enabled) {
+            return null;
+        }
+        CompletableFuture<Checkpoint> future = new CompletableFuture<>();
+        enqueue(lanes.computeIfAbsent(roomId, k -> new RoomLane()), new Op() {
+            @Override
+            public void run(RoomLane lane) {
+                if (lane.invalid) {
+                    future.complete(null);
+                    return;
+                }
+                try {
+                    RoomRaster raster = lane.raster();
+                    future.complete(new Checkpoint(raster.encodeTiles(), raster.getAppliedSeq()));
+                } catch (Exception e) {
+                    future.complete(null);
+                }
+            }
+
+            @Override
+            public void abandon() {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    private void enqueue(RoomLane lane, Op op) {
+        lane.ops.add(op);
+        schedule(lane);
+    }
+
+    private void schedule(RoomLane lane) {
+        while (!lane.ops.isEmpty() && lane.scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(lane));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Saturated: drop the backlog, the raster is no longer exact
+                lane.invalid = true;
+                Op op;
+                while ((op = lane.ops.poll()) != null) {
+                    op.abandon();
+                }
+                lane.pendingSegments.set(0);
+                lane.scheduled.set(false);
+            }
+        }
+    }
+
+    private void drain(RoomLane lane) {
+        try {
+            Op op;
+            for (int i = 0; i < DRAIN_BATCH && (op = lane.ops.poll()) != null; i++) {
+                try {
+                    op.run(lane);
+                } catch (RuntimeException e) {
+                    lane.invalid = true;
+                }
+            }
+        } finally {
+            lane.scheduled.set(false);
+        }
+        schedule(lane);
+    }
+}
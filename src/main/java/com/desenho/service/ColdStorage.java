@@ -0,0 +1,111 @@
+package com.desenho.service;
+
+import com.desenho.model.RoomSnapshot;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Holds the canvas payload of idle rooms in memory-mapped files instead of on
+ * the heap. The mapping is backed by the page cache, so the kernel decides how
+ * much of it stays in RAM, and reading it back needs no extra copy on disk.
+ *
+ * Spilled payloads do not outlive the process; the room journal is what makes
+ * rooms durable.
+ */
+@ApplicationScoped
+public class ColdStorage {
+
+    /**
+     * A spilled payload. The file is unlinked right after mapping, so the
+     * mapping is the only reference to it and it disappears with this handle.
+     */
+    public static final class Handle {
+        private final MappedByteBuffer buffer;
+        private final int size;
+
+        Handle(MappedByteBuffer buffer, int size) {
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        public int getSize() { return size; }
+    }
+
+    @ConfigProperty(name = "desenho.cold.dir", defaultValue = "${java.io.tmpdir}/desenho-cold")
+    String directory;
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong spilledRooms = new AtomicLong();
+
+    private Path root;
+
+    @PostConstruct
+    void init() {
+        try {
+            root = Paths.get(directory);
+            Files.createDirectories(root);
+        } catch (IOException | RuntimeException e) {
+            // Spilling is skipped and rooms simply stay on the heap
+            root = null;
+        }
+    }
+
+    public boolean isAvailable() {
+        return root != null;
+    }
+
+    /**
+     * Writes the payload to a new mapped file.
+     */
+    public Handle spill(String roomId, RoomSnapshot payload) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(payload);
+        Path file = Files.createTempFile(root, roomId, ".cold");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes.length);
+            buffer.put(bytes);
+            spilledBytes.addAndGet(bytes.length);
+            spilledRooms.incrementAndGet();
+            return new Handle(buffer, bytes.length);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Reads a spilled payload without releasing it.
+     */
+    public RoomSnapshot read(Handle handle) throws IOException {
+        byte[] bytes = new byte[handle.size];
+        handle.buffer.get(0, bytes);
+        return mapper.readValue(bytes, RoomSnapshot.class);
+    }
+
+    /**
+     * Accounts for a payload that was faulted back in or dropped.
+     */
+    public void release(Handle handle) {
+        spilledBytes.addAndGet(-handle.size);
+        spilledRooms.decrementAndGet();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    public long getSpilledRooms() {
+        return spilledRooms.get();
+    }
+}
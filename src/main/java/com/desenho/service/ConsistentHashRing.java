@@ -0,0 +1,47 @@
+package com.desenho.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys to nodes so that adding or removing a node only moves the keys
+ * of that node. Each node is placed on the ring at several points to even out
+ * the share each one gets.
+ */
+final class ConsistentHashRing {
+
+    private static final int POINTS_PER_NODE = 64;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    ConsistentHashRing(Collection<String> nodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    String nodeFor(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche step, so that similar room codes
+     * land far apart.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,74 @@
+package com.desenho.service;
+
+import com.desenho.model.CanvasImage;
+import com.desenho.model.DrawingMessage;
+import java.util.List;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * One room mutation in the journal, written as a line of JSON. Only the fields
+ * relevant to {@code op} are set.
+ */
+@RegisterForReflection
+public class JournalRecord {
+
+    @RegisterForReflection
+    public enum Op {
+        STROKES,
+        CANVAS,
+        TILES,
+        CLEAR,
+        IMAGE_ADD,
+        IMAGE_REMOVE,
+        ROOM_REMOVED
+    }
+
+    private long seq;
+    private String roomId;
+    private Op op;
+    // Receive time for STROKES, compaction bound for CANVAS and TILES
+    private long at;
+    private List<DrawingMessage.DrawingAction> actions;
+    private CanvasImage canvasData;
+    private List<DrawingMessage.CanvasTile> tiles;
+    private DrawingMessage image;
+    private String imageId;
+
+    public JournalRecord() {
+    }
+
+    JournalRecord(Op op, String roomId, long at) {
+        this.op = op;
+        this.roomId = roomId;
+        this.at = at;
+    }
+
+    // Getters and Setters
+    public long getSeq() { return seq; }
+    public void setSeq(long seq) { this.seq = seq; }
+
+    public String getRoomId() { return roomId; }
+    public void setRoomId(String roomId) { this.roomId = roomId; }
+
+    public Op getOp() { return op; }
+    public void setOp(Op op) { this.op = op; }
+
+    public long getAt() { return at; }
+    public void setAt(long at) { this.at = at; }
+
+    public List<DrawingMessage.DrawingAction> getActions() { return actions; }
+    public void setActions(List<DrawingMessage.DrawingAction> actions) { this.actions = actions; }
+
+    public CanvasImage getCanvasData() { return canvasData; }
+    public void setCanvasData(CanvasImage canvasData) { this.canvasData = canvasData; }
+
+    public List<DrawingMessage.CanvasTile> getTiles() { return tiles; }
+    public void setTiles(List<DrawingMessage.CanvasTile> tiles) { this.tiles = tiles; }
+
+    public DrawingMessage getImage() { return image; }
+    public void setImage(DrawingMessage image) { this.image = image; }
+
+    public String getImageId() { return imageId; }
+    public void setImageId(String imageId) { this.imageId = imageId; }
+}
@@ -0,0 +1,43 @@
+package com.desenho.service;
+
+/**
+ * Single-node bus: this node owns every room and there is nobody to tell.
+ */
+final class LocalRoomBus implements RoomBus {
+
+    private static final String NODE_ID = "local";
+
+    private final long epoch = System.currentTimeMillis();
+
+    @Override
+    public String getNodeId() {
+        return NODE_ID;
+    }
+
+    @Override
+    public long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public boolean isClustered() {
+        return false;
+    }
+
+    @Override
+    public String ownerOf(String roomId) {
+        return NODE_ID;
+    }
+
+    @Override
+    public void publish(BusMessage message) {
+    }
+
+    @Override
+    public void send(String nodeId, BusMessage message) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
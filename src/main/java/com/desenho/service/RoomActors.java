@@ -0,0 +1,87 @@
+package com.desenho.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Gives every room a single owner thread. Rooms are hashed across a fixed set
+ * of single-threaded shards, so all work submitted for one room runs one task
+ * at a time in submission order, while different rooms proceed in parallel.
+ *
+ * When disabled, tasks run on the calling thread, as they did before.
+ */
+@ApplicationScoped
+public class RoomActors {
+
+    @ConfigProperty(name = "desenho.rooms.actors.enabled", defaultValue = "true")
+    boolean enabled;
+
+    // 0 means one shard per available processor
+    @ConfigProperty(name = "desenho.rooms.actors.shards", defaultValue = "0")
+    int shardCount;
+
+    private ExecutorService[] shards;
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        shards = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "room-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (shards != null) {
+            for (ExecutorService shard : shards) {
+                shard.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the room's owner thread. A task that throws does not
+     * affect the ones queued after it.
+     */
+    public void execute(String roomId, Runnable task) {
+        executor(roomId).execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // logger.severe("Room task failed for " + roomId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * The room's owner thread as an executor, e.g. for completion callbacks.
+     */
+    public Executor executor(String roomId) {
+        if (shards == null || roomId == null) {
+            return Runnable::run;
+        }
+        ExecutorService shard = shards[Math.floorMod(roomId.hashCode(), shards.length)];
+        return task -> {
+            try {
+                shard.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Shutting down; nothing is delivered any more
+            }
+        };
+    }
+}
@@ -0,0 +1,43 @@
+package com.desenho.service;
+
+/**
+ * Connects the nodes serving rooms. Broadcasts, room mutations and rosters
+ * are published to every other node, and each room's authoritative state is
+ * owned by one node, chosen by consistent hashing over the live nodes. The
+ * owner journals the room and answers state requests for it.
+ *
+ * Received messages are fired as {@link BusMessage} CDI events on the bus's
+ * threads.
+ */
+public interface RoomBus {
+
+    String getNodeId();
+
+    /**
+     * Start time of this node, sent with every message.
+     */
+    long getEpoch();
+
+    /**
+     * Whether there are other nodes to talk to at all.
+     */
+    boolean isClustered();
+
+    String ownerOf(String roomId);
+
+    default boolean isOwner(String roomId) {
+        return getNodeId().equals(ownerOf(roomId));
+    }
+
+    /**
+     * Sends the message to every connected node.
+     */
+    void publish(BusMessage message);
+
+    /**
+     * Sends the message to one node, if connected.
+     */
+    void send(String nodeId, BusMessage message);
+
+    void close();
+}
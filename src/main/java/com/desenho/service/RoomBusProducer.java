@@ -0,0 +1,81 @@
+package com.desenho.service;
+
+import io.quarkus.runtime.Startup;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Event;
+import jakarta.enterprise.inject.Disposes;
+import jakarta.enterprise.inject.Produces;
+import jakarta.inject.Inject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Creates the room bus configured by {@code desenho.bus.type}: {@code local}
+ * for a single node, or {@code tcp} to connect to the nodes listed in
+ * {@code desenho.bus.peers}.
+ */
+@ApplicationScoped
+public class RoomBusProducer {
+
+    @ConfigProperty(name = "desenho.bus.type", defaultValue = "local")
+    String type;
+
+    @ConfigProperty(name = "desenho.bus.node-id")
+    Optional<String> nodeId;
+
+    @ConfigProperty(name = "desenho.bus.port", defaultValue = "7800")
+    int port;
+
+    // Comma-separated id=host:port entries; may include this node
+    @ConfigProperty(name = "desenho.bus.peers")
+    Optional<String> peers;
+
+    @Inject
+    Event<BusMessage> events;
+
+    @Produces
+    @ApplicationScoped
+    @Startup
+    RoomBus roomBus() {
+        if (!"tcp".equalsIgnoreCase(type.trim())) {
+            return new LocalRoomBus();
+        }
+        String id = nodeId.orElseThrow(() -> new IllegalStateException("desenho.bus.node-id is required for the tcp bus"));
+        TcpRoomBus bus = new TcpRoomBus(id, port, parsePeers(peers.orElse("")), events::fire);
+        try {
+            bus.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the room bus on port " + port, e);
+        }
+        // logger.info("Room bus " + id + " listening on port " + port);
+        return bus;
+    }
+
+    void close(@Disposes RoomBus bus) {
+        bus.close();
+    }
+
+    private static Map<String, InetSocketAddress> parsePeers(String value) {
+        Map<String, InetSocketAddress> result = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int eq = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (eq <= 0 || colon < eq) {
+                throw new IllegalArgumentException("Invalid desenho.bus.peers entry: " + entry);
+            }
+            result.put(entry.substring(0, eq).trim(),
+                    InetSocketAddress.createUnresolved(entry.substring(eq + 1, colon).trim(),
+                            Integer.parseInt(entry.substring(colon + 1).trim())));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,387 @@
+package com.desenho.service;
+
+import com.desenho.model.RoomSnapshot;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Optional append-only journal of room mutations, so drawings survive a
+ * restart.
+ *
+ * Callers assign each record a sequence number and queue it; nothing touches
+ * the disk on their thread. A single writer thread drains the queue in batches,
+ * writing each batch as JSON lines followed by one fsync (group commit). At
+ * every snapshot interval the writer rolls over to a new journal segment,
+ * writes a snapshot of all rooms and deletes the segments and snapshots it
+ * supersedes.
+ *
+ * Each snapshot records, per room, the sequence number of the last mutation it
+ * contains. Records written around a rollover may already be part of the
+ * snapshot, so replay skips records at or below that number for their room.
+ *
+ * A failed write is retried in a fresh segment, since the old one may now end
+ * in a torn record that would stop replay there. Records that still can't be
+ * written, or that don't fit the bounded queue, are dropped and counted, and
+ * a snapshot is taken as soon as possible to make up for them.
+ */
+@ApplicationScoped
+public class RoomJournal {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".json";
+    private static final int MAX_BATCH = 1024;
+    private static final int WRITE_ATTEMPTS = 3;
+    private static final long RETRY_MILLIS = 200;
+    private static final long SNAPSHOT_RETRY_MILLIS = 5000;
+
+    private static final Logger logger = Logger.getLogger(RoomJournal.class.getName());
+
+    @ConfigProperty(name = "desenho.journal.enabled", defaultValue = "false")
+    volatile boolean enabled;
+
+    @ConfigProperty(name = "desenho.journal.dir", defaultValue = "${java.io.tmpdir}/desenho-journal")
+    String directory;
+
+    @ConfigProperty(name = "desenho.journal.snapshot-interval-ms", defaultValue = "60000")
+    long snapshotIntervalMs;
+
+    @ConfigProperty(name = "desenho.journal.fsync", defaultValue = "true")
+    boolean fsync;
+
+    @ConfigProperty(name = "desenho.journal.max-pending-records", defaultValue = "100000")
+    int maxPendingRecords;
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    private final AtomicLong seq = new AtomicLong();
+    private BlockingQueue<JournalRecord> queue;
+
+    private Path root;
+    private Supplier<List<RoomSnapshot>> snapshotSource;
+    private volatile boolean running;
+    // Set when records were lost; the writer then snapshots without waiting
+    private volatile boolean snapshotDue;
+    private Thread writer;
+
+    // Only touched by the writer thread once started
+    private long generation;
+    private FileChannel channel;
+    private OutputStream out;
+
+    private volatile long lastRecoveryMillis;
+    private volatile int lastRecoveredRooms;
+    private volatile long lastRecoveredRecords;
+    private final AtomicLong writtenRecords = new AtomicLong();
+    private final AtomicLong writtenBatches = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private volatile String lastFailure;
+
+    @PostConstruct
+    void init() {
+        queue = new LinkedBlockingQueue<>(Math.max(1, maxPendingRecords));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Numbers the record and queues it for the writer. Returns the sequence
+     * number; callers hold the room's monitor so per-room order matches it.
+     * When the writer is that far behind the record is dropped rather than
+     * blocking the room, and the next snapshot covers it.
+     */
+    public long append(JournalRecord record) {
+        long next = seq.incrementAndGet();
+        record.setSeq(next);
+        if (!queue.offer(record)) {
+            if (droppedRecords.getAndIncrement() == 0 || !snapshotDue) {
+                logger.warning("Room journal queue full at " + maxPendingRecords + " records; dropping until the next snapshot");
+            }
+            snapshotDue = true;
+        }
+        return next;
+    }
+
+    /**
+     * Loads the latest snapshot and replays the journal segments written after
+     * it, in order. A torn record at the end of a segment ends that segment.
+     */
+    public void recover(Consumer<RoomSnapshot> restore, Consumer<JournalRecord> replay) throws IOException {
+        long started = System.nanoTime();
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+
+        TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        TreeMap<Long, Path> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        long from = 0;
+        int rooms = 0;
+        long records = 0;
+        long maxSeq = 0;
+        if (!snapshots.isEmpty()) {
+            from = snapshots.lastKey();
+            List<RoomSnapshot> saved = mapper.readValue(snapshots.lastEntry().getValue().toFile(),
+                    new TypeReference<List<RoomSnapshot>>() { });
+            for (RoomSnapshot snapshot : saved) {
+                restore.accept(snapshot);
+                maxSeq = Math.max(maxSeq, snapshot.getJournalSeq());
+                rooms++;
+            }
+        }
+        for (Path segment : segments.tailMap(from, true).values()) {
+            try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JournalRecord record;
+                    try {
+                        record = mapper.readValue(line, JournalRecord.class);
+                    } catch (IOException e) {
+                        break;
+                    }
+                    replay.accept(record);
+                    maxSeq = Math.max(maxSeq, record.getSeq());
+                    records++;
+                }
+            }
+        }
+        seq.set(maxSeq);
+        generation = Math.max(snapshots.isEmpty() ? 0 : snapshots.lastKey(), segments.isEmpty() ? 0 : segments.lastKey());
+        lastRecoveredRooms = rooms;
+        lastRecoveredRecords = records;
+        lastRecoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    /**
+     * Takes a first snapshot of the recovered state and starts the writer.
+     */
+    public synchronized void start(Supplier<List<RoomSnapshot>> snapshots) throws IOException {
+        if (running) {
+            return;
+        }
+        this.snapshotSource = snapshots;
+        snapshot();
+        running = true;
+        writer = new Thread(this::run, "room-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Turns journaling off after the journal could not be opened.
+     */
+    public void disable() {
+        enabled = false;
+        queue.clear();
+    }
+
+    public long getLastRecoveryMillis() { return lastRecoveryMillis; }
+    public int getLastRecoveredRooms() { return lastRecoveredRooms; }
+    public long getLastRecoveredRecords() { return lastRecoveredRecords; }
+    public long getWrittenRecords() { return writtenRecords.get(); }
+    public long getWrittenBatches() { return writtenBatches.get(); }
+    public int getPendingRecords() { return queue.size(); }
+    public int getMaxPendingRecords() { return maxPendingRecords; }
+    public long getFailedWrites() { return failedWrites.get(); }
+    public long getDroppedRecords() { return droppedRecords.get(); }
+    public String getLastFailure() { return lastFailure; }
+
+    private void run() {
+        List<JournalRecord> batch = new ArrayList<>();
+        long nextSnapshot = System.currentTimeMillis() + snapshotIntervalMs;
+        // Keep draining after shutdown starts so queued records still reach the disk
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = Math.max(1, Math.min(nextSnapshot - System.currentTimeMillis(), 100));
+                JournalRecord first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    writeOrDrop(batch);
+                    batch.clear();
+                }
+                if (snapshotDue || System.currentTimeMillis() >= nextSnapshot) {
+                    snapshotDue = false;
+                    try {
+                        snapshot();
+                        nextSnapshot = System.currentTimeMillis() + snapshotIntervalMs;
+                    } catch (IOException | RuntimeException e) {
+                        failed("snapshot", e);
+                        nextSnapshot = System.currentTimeMillis() + Math.min(snapshotIntervalMs, SNAPSHOT_RETRY_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        closeSegment();
+    }
+
+    /**
+     * Writes the batch, retrying in a new segment; if that keeps failing the
+     * batch is dropped and a snapshot is due.
+     */
+    private void writeOrDrop(List<JournalRecord> batch) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (out == null) {
+                    openSegment();
+                }
+                write(batch);
+                return;
+            } catch (IOException | RuntimeException e) {
+                failed("write of " + batch.size() + " records", e);
+                // It may end in part of a record now, which would end its replay
+                closeSegment();
+                if (attempt == WRITE_ATTEMPTS || !running) {
+                    droppedRecords.addAndGet(batch.size());
+                    snapshotDue = true;
+                    logger.severe("Room journal dropped " + batch.size() + " records after " + attempt + " attempts");
+                    return;
+                }
+                Thread.sleep(RETRY_MILLIS * attempt);
+            }
+        }
+    }
+
+    private void failed(String what, Exception e) {
+        failedWrites.incrementAndGet();
+        lastFailure = what + ": " + e;
+        logger.log(Level.WARNING, "Room journal " + what + " failed", e);
+    }
+
+    private void write(List<JournalRecord> batch) throws IOException {
+        for (JournalRecord record : batch) {
+            out.write(mapper.writeValueAsBytes(record));
+            out.write('\n');
+        }
+        out.flush();
+        if (fsync) {
+            channel.force(false);
+        }
+        writtenRecords.addAndGet(batch.size());
+        writtenBatches.incrementAndGet();
+    }
+
+    /**
+     * Rolls over to a new segment, writes a snapshot for it and deletes what it
+     * supersedes. Runs on the writer thread (or before it starts).
+     */
+    private void snapshot() throws IOException {
+        openSegment();
+
+        Path temp = root.resolve(SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX + ".tmp");
+        try (FileChannel snapshotChannel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream snapshotOut = new BufferedOutputStream(Channels.newOutputStream(snapshotChannel), 64 * 1024);
+            mapper.writeValue(snapshotOut, snapshotSource.get());
+            snapshotOut.flush();
+            snapshotChannel.force(true);
+        }
+        Files.move(temp, root.resolve(SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path old : list(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(generation).values()) {
+            Files.deleteIfExists(old);
+        }
+        for (Path old : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(generation).values()) {
+            Files.deleteIfExists(old);
+        }
+    }
+
+    /**
+     * Continues in a new segment; replay reads segments in order, so records
+     * may move on to a new one at any time.
+     */
+    private void openSegment() throws IOException {
+        closeSegment();
+        generation++;
+        channel = FileChannel.open(root.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+    }
+
+    private void closeSegment() {
+        if (out != null) {
+            try {
+                out.flush();
+                channel.force(false);
+                out.close();
+            } catch (IOException e) {
+                // logger.warning("Failed to close journal segment: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing more to do with it
+                }
+            }
+            out = null;
+            channel = null;
+        }
+    }
+
+    private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (Stream<Path> listing = Files.list(root)) {
+            listing.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), path);
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            });
+        }
+        return files;
+    }
+}
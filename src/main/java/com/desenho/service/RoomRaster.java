@@ -0,0 +1,175 @@
+package com.desenho.service;
+
+import com.desenho.model.CanvasImage;
+import com.desenho.model.DrawingMessage;
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.imageio.ImageIO;
+
+/**
+ * Server-side bitmap of a room, built by replaying stroke segments the same way
+ * script.js draws them. The bitmap is encoded per {@link DrawingMessage.CanvasTile}
+ * and only tiles touched since the previous encode are re-encoded. Not thread-safe: {@link CanvasCompositor} confines each
+ * raster to one render task at a time.
+ */
+class RoomRaster {
+
+    private static final int SPRAY_DENSITY = 20;
+
+    private static final int TILE = DrawingMessage.CanvasTile.SIZE;
+
+    private final BufferedImage image;
+    private final int cols;
+    private final int rows;
+    private long appliedSeq;
+
+    // Encoded PNG per tile (null while empty), refreshed for dirty tiles
+    private final CanvasImage[] tileData;
+    private final long[] tileVersion;
+    private final BitSet dirty = new BitSet();
+    private long version;
+
+    RoomRaster(int width, int height) {
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.cols = (width + TILE - 1) / TILE;
+        this.rows = (height + TILE - 1) / TILE;
+        this.tileData = new CanvasImage[cols * rows];
+        this.tileVersion = new long[cols * rows];
+    }
+
+    /**
+     * Draws the segments; {@code lastSeq} is the stroke log sequence of the last one.
+     */
+    void apply(List<DrawingMessage.DrawingAction> actions, long lastSeq) {
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            for (DrawingMessage.DrawingAction action : actions) {
+                draw(g, action);
+            }
+        } finally {
+            g.dispose();
+        }
+        appliedSeq = lastSeq;
+    }
+
+    void clear(long lastSeq) {
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        } finally {
+            g.dispose();
+        }
+        appliedSeq = lastSeq;
+        dirty.set(0, cols * rows);
+    }
+
+    long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    /**
+     * The non-empty tiles of the bitmap, re-encoding only those drawn on since the
+     * previous call.
+     */
+    List<DrawingMessage.CanvasTile> encodeTiles() throws IOException {
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            tileData[i] = encodeTile(i % cols, i / cols);
+            tileVersion[i] = ++version;
+        }
+        dirty.clear();
+        List<DrawingMessage.CanvasTile> tiles = new ArrayList<>();
+        for (int i = 0; i < tileData.length; i++) {
+            if (tileData[i] != null) {
+                tiles.add(new DrawingMessage.CanvasTile(i % cols, i / cols, tileVersion[i], tileData[i]));
+            }
+        }
+        return tiles;
+    }
+
+    private CanvasImage encodeTile(int col, int row) throws IOException {
+        int x = col * TILE;
+        int y = row * TILE;
+        BufferedImage tile = image.getSubimage(x, y, Math.min(TILE, image.getWidth() - x), Math.min(TILE, image.getHeight() - y));
+        if (isTransparent(tile)) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(tile, "png", out);
+        return new CanvasImage("image/png", out.toByteArray());
+    }
+
+    private static boolean isTransparent(BufferedImage tile) {
+        int[] pixels = tile.getRGB(0, 0, tile.getWidth(), tile.getHeight(), null, 0, tile.getWidth());
+        for (int pixel : pixels) {
+            if ((pixel >>> 24) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void markDirty(double minX, double minY, double maxX, double maxY) {
+        int firstCol = Math.max(0, (int) Math.floor(minX) / TILE);
+        int lastCol = Math.min(cols - 1, (int) Math.ceil(maxX) / TILE);
+        int firstRow = Math.max(0, (int) Math.floor(minY) / TILE);
+        int lastRow = Math.min(rows - 1, (int) Math.ceil(maxY) / TILE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                dirty.set(row * cols + col);
+            }
+        }
+    }
+
+    private void draw(Graphics2D g, DrawingMessage.DrawingAction action) {
+        Color color = parseColor(action.getColor());
+        String tool = action.getTool();
+        if ("spray".equals(tool)) {
+            // Same scatter as script.js spray(): random 1px dots around the end point
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setColor(color);
+            int radius = action.getSize();
+            markDirty(action.getEndX() - radius - 1, action.getEndY() - radius - 1,
+                    action.getEndX() + radius + 1, action.getEndY() + radius + 1);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < SPRAY_DENSITY; i++) {
+                double x = action.getEndX() + (random.nextDouble() - 0.5) * radius * 2;
+                double y = action.getEndY() + (random.nextDouble() - 0.5) * radius * 2;
+                g.fill(new Ellipse2D.Double(x - 1, y - 1, 2, 2));
+            }
+            return;
+        }
+        double reach = Math.max(1, action.getSize()) / 2.0 + 1;
+        markDirty(Math.min(action.getStartX(), action.getEndX()) - reach, Math.min(action.getStartY(), action.getEndY()) - reach,
+                Math.max(action.getStartX(), action.getEndX()) + reach, Math.max(action.getStartY(), action.getEndY()) + reach);
+        // The eraser is destination-out in the browser
+        g.setComposite("eraser".equals(tool) ? AlphaComposite.DstOut : AlphaComposite.SrcOver);
+        g.setColor("eraser".equals(tool) ? Color.BLACK : color);
+        g.setStroke(new BasicStroke(Math.max(1, action.getSize()), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.draw(new Line2D.Double(action.getStartX(), action.getStartY(), action.getEndX(), action.getEndY()));
+    }
+
+    private static Color parseColor(String color) {
+        if (color != null && color.length() == 7 && color.charAt(0) == '#') {
+            try {
+                return new Color(Integer.parseInt(color.substring(1), 16));
+            } catch (NumberFormatException e) {
+                // Fall through to the default
+            }
+        }
+        return Color.BLACK;
+    }
+}
@@ -1,18 +1,136 @@
 package com.desenho.service;
 
+import com.desenho.model.CanvasImage;
 import com.desenho.model.Room;
 import com.desenho.model.DrawingMessage;
+import com.desenho.model.RoomSnapshot;
+import com.desenho.model.StrokeSegment;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 @ApplicationScoped
 public class RoomService {
     
     private final Map<String, Room> rooms = new ConcurrentHashMap<>();
     private final Random random = new Random();
+    // Rooms whose canvas payload currently lives in cold storage
+    private final Map<Room, ColdStorage.Handle> spilled = new ConcurrentHashMap<>();
+    // Spills idle rooms and removes rooms left empty
+    private ScheduledExecutorService maintenance;
+    // Set once shutdown starts: rooms emptied by it aren't journaled as removed.
+    // Quarkus closes the WebSocket sessions before ShutdownEvent observers run,
+    // so this is set from a JVM shutdown hook of our own
+    private volatile boolean stopping;
+    private final Thread shutdownHook = new Thread(() -> stopping = true, "room-shutdown");
+    // Sequence number of the last mutation this node published on the bus
+    private final AtomicLong busSeq = new AtomicLong();
+    // Replicas waiting for their owner's state, with the mutations seen meanwhile
+    private final Map<Room, StateSync> syncs = new ConcurrentHashMap<>();
+    // Players connected to other nodes: node id -> room id -> player names
+    private final Map<String, Map<String, Set<String>>> remotePlayers = new ConcurrentHashMap<>();
+    
+    @Inject
+    CanvasCompositor compositor;
+    
+    @Inject
+    RoomBus bus;
+    
+    @Inject
+    AssetStore assetStore;
+    
+    @Inject
+    RoomJournal journal;
+    
+    @Inject
+    ColdStorage coldStorage;
+    
+    @Inject
+    RoomActors roomActors;
+    
+    @ConfigProperty(name = "desenho.strokes.log-max-segments", defaultValue = "20000")
+    int strokeLogMaxSegments;
+    
+    @ConfigProperty(name = "desenho.strokes.log-max-bytes", defaultValue = "8388608")
+    long strokeLogMaxBytes;
+    
+    @ConfigProperty(name = "desenho.strokes.checkpoint-grace-ms", defaultValue = "2000")
+    long checkpointGraceMs;
+    
+    @ConfigProperty(name = "desenho.cold.enabled", defaultValue = "true")
+    boolean coldEnabled;
+    
+    @ConfigProperty(name = "desenho.cold.idle-minutes", defaultValue = "10")
+    long coldIdleMinutes;
+    
+    @ConfigProperty(name = "desenho.cold.scan-interval-ms", defaultValue = "60000")
+    long coldScanIntervalMs;
+    
+    @ConfigProperty(name = "desenho.bus.state-timeout-ms", defaultValue = "3000")
+    long stateTimeoutMs;
+    
+    // How long a room with a drawing is kept after its last player left; 0 removes it at once
+    @ConfigProperty(name = "desenho.rooms.empty-ttl-minutes", defaultValue = "30")
+    long emptyRoomTtlMinutes;
+    
+    @ConfigProperty(name = "desenho.rooms.cleanup-interval-ms", defaultValue = "60000")
+    long cleanupIntervalMs;
+    
+    /**
+     * A replica's pending state request. Mutations applied while it is
+     * outstanding are kept, to be applied again on top of the owner's state.
+     */
+    private static final class StateSync {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final List<BusMessage> applied = new ArrayList<>();
+    }
+    
+    @PostConstruct
+    void startMaintenance() {
+        maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (emptyRoomTtlMinutes > 0) {
+            maintenance.scheduleWithFixedDelay(this::cleanupEmptyRooms, cleanupIntervalMs, cleanupIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        if (coldEnabled && coldStorage.isAvailable()) {
+            maintenance.scheduleWithFixedDelay(this::spillIdleRooms, coldScanIntervalMs, coldScanIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        // Shutdown closes every session and so empties every room; none of that
+        // is a room going away
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    
+    @PreDestroy
+    void stopMaintenance() {
+        stopping = true;
+        maintenance.shutdownNow();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down
+        }
+    }
     
     public String createRoom() {
         String roomId = generateRoomCode();
@@ -24,28 +142,44 @@ public class RoomService {
     }
     
     public Room getRoom(String roomId) {
-        return rooms.get(roomId);
+        return faultIn(rooms.get(roomId));
     }
     
     public Room getOrCreateRoom(String roomId) {
-        return rooms.computeIfAbsent(roomId, Room::new);
+        return faultIn(rooms.computeIfAbsent(roomId, this::newRoom));
     }
     
     public void removeRoom(String roomId) {
-        rooms.remove(roomId);
+        Room room = rooms.remove(roomId);
+        if (room != null) {
+            synchronized (room) {
+                ColdStorage.Handle handle = spilled.remove(room);
+                if (handle != null) {
+                    coldStorage.release(handle);
+                }
+                syncs.remove(room);
+                if (!stopping) {
+                    journal(room, new JournalRecord(JournalRecord.Op.ROOM_REMOVED, roomId, System.currentTimeMillis()));
+                }
+            }
+            releaseAssets(room);
+        }
+        compositor.remove(roomId);
     }
     
     public void addPlayerToRoom(String roomId, String playerName) {
         Room room = getOrCreateRoom(roomId);
         room.addPlayer(playerName);
+        publishPlayer(BusMessage.Type.PLAYER_JOINED, roomId, playerName);
     }
     
     public void removePlayerFromRoom(String roomId, String playerName) {
         Room room = getRoom(roomId);
         if (room != null) {
             room.removePlayer(playerName);
+            publishPlayer(BusMessage.Type.PLAYER_LEFT, roomId, playerName);
             if (room.isEmpty()) {
-                removeRoom(roomId);
+                roomEmptied(room);
             }
         }
     }
@@ -55,27 +189,174 @@ public class RoomService {
         return room != null && room.getPlayers().contains(playerName);
     }
     
-    public void updateRoomCanvas(String roomId, String canvasData) {
+    /**
+     * Stores a client canvas snapshot as the room's checkpoint. Logged segments
+     * older than the grace period are assumed to be part of it and compacted away;
+     * newer ones are kept since the sender may not have rendered them yet.
+     */
+    public void updateRoomCanvas(String roomId, CanvasImage canvasData) {
         Room room = getRoom(roomId);
         if (room != null) {
-            room.updateCanvas(canvasData);
+            long coveredUntil = System.currentTimeMillis() - checkpointGraceMs;
+            synchronized (room) {
+                faultIn(room);
+                room.checkpointCanvas(canvasData, coveredUntil);
+                JournalRecord record = new JournalRecord(JournalRecord.Op.CANVAS, roomId, coveredUntil);
+                record.setCanvasData(canvasData);
+                commit(room, record);
+            }
+        }
+    }
+    
+    /**
+     * Stores checkpointed canvas tiles; compaction works as in
+     * {@link #updateRoomCanvas}, for the segments within checkpointed tiles
+     * (see {@link Room#checkpointTiles}). Returns the stored tiles with their versions.
+     */
+    public List<DrawingMessage.CanvasTile> updateRoomTiles(String roomId, List<DrawingMessage.CanvasTile> tiles) {
+        Room room = getRoom(roomId);
+        if (room == null || tiles == null || tiles.isEmpty()) {
+            return java.util.Collections.emptyList();
         }
+        long coveredUntil = System.currentTimeMillis() - checkpointGraceMs;
+        synchronized (room) {
+            faultIn(room);
+            List<DrawingMessage.CanvasTile> stored = room.checkpointTiles(tiles, coveredUntil);
+            JournalRecord record = new JournalRecord(JournalRecord.Op.TILES, roomId, coveredUntil);
+            record.setTiles(stored);
+            commit(room, record);
+            return stored;
+        }
+    }
+    
+    public void clearRoomCanvas(String roomId) {
+        Room room = getRoom(roomId);
+        if (room != null) {
+            synchronized (room) {
+                faultIn(room);
+                compositor.clear(roomId, room.clearCanvas());
+                commit(room, new JournalRecord(JournalRecord.Op.CLEAR, roomId, System.currentTimeMillis()));
+            }
+        }
+    }
+    
+    /**
+     * Logs segments as they are. They are only bound here when the raster, the
+     * journal or other nodes need them; otherwise whatever reads the log back
+     * binds them.
+     */
+    public void appendStrokes(String roomId, List<StrokeSegment> segments) {
+        Room room = getRoom(roomId);
+        if (room != null && !segments.isEmpty()) {
+            long now = System.currentTimeMillis();
+            synchronized (room) {
+                faultIn(room);
+                long seq = room.appendStrokes(segments, strokeLogMaxSegments, strokeLogMaxBytes, now);
+                if (compositor.isEnabled() || isJournaled(room) || bus.isClustered()) {
+                    List<DrawingMessage.DrawingAction> actions = StrokeSegment.actions(segments);
+                    compositor.applyStrokes(roomId, actions, seq);
+                    JournalRecord record = new JournalRecord(JournalRecord.Op.STROKES, roomId, now);
+                    record.setActions(actions);
+                    commit(room, record);
+                }
+            }
+        }
+    }
+    
+    public List<DrawingMessage.DrawingAction> getStrokeLog(String roomId) {
+        return getStrokeLogSince(roomId, 0);
+    }
+    
+    public List<DrawingMessage.DrawingAction> getStrokeLogSince(String roomId, long afterSeq) {
+        Room room = getRoom(roomId);
+        return room != null ? room.getStrokeLogSince(afterSeq) : java.util.Collections.emptyList();
+    }
+    
+    /**
+     * Tag of the room's current state version, or null if there is no such room.
+     */
+    public String getRoomVersion(String roomId) {
+        Room room = getRoom(roomId);
+        return room != null ? room.getVersionTag() : null;
+    }
+    
+    /**
+     * Changes to the room since the state tagged {@code versionTag}; see
+     * {@link Room#changesSince(String)}.
+     */
+    public Room.Changes getRoomChanges(String roomId, String versionTag) {
+        Room room = getRoom(roomId);
+        return room != null ? room.changesSince(versionTag) : null;
+    }
+    
+    /**
+     * Server-rendered checkpoint of the room, or null when the raster compositor
+     * is disabled. See {@link CanvasCompositor#checkpoint(String)}.
+     */
+    public CompletableFuture<CanvasCompositor.Checkpoint> renderCheckpoint(String roomId) {
+        return getRoom(roomId) != null ? compositor.checkpoint(roomId) : null;
     }
 
+    /**
+     * Adds a floating image to the room. The message must reference an uploaded
+     * asset by {@code imageHash}; inline {@code imageData} from older clients is
+     * moved into the asset store, so rooms only ever hold the hash.
+     *
+     * @throws IllegalArgumentException if the image is missing or rejected by the store
+     */
     public void addFloatingImage(String roomId, DrawingMessage image) {
         Room room = getRoom(roomId);
         if (room != null) {
+            if (image.getImageData() != null && !image.getImageData().isEmpty()) {
+                image.setImageHash(assetStore.putDataUrl(image.getImageData()).getHash());
+                image.setImageData(null);
+            } else if (!assetStore.contains(image.getImageHash())) {
+                throw new IllegalArgumentException("Imagem não encontrada");
+            }
             if (image.getImageId() == null || image.getImageId().isBlank()) {
                 image.setImageId(java.util.UUID.randomUUID().toString());
             }
-            room.addFloatingImage(image);
+            synchronized (room) {
+                putFloatingImage(room, image);
+                JournalRecord record = new JournalRecord(JournalRecord.Op.IMAGE_ADD, roomId, System.currentTimeMillis());
+                record.setImage(image);
+                commit(room, record, bus.isClustered() ? assetStore.get(image.getImageHash()) : null);
+            }
         }
     }
 
     public void removeFloatingImage(String roomId, String imageId) {
         Room room = getRoom(roomId);
-        if (room != null) {
-            room.removeFloatingImage(imageId);
+        if (room != null && imageId != null) {
+            synchronized (room) {
+                deleteFloatingImage(room, imageId);
+                JournalRecord record = new JournalRecord(JournalRecord.Op.IMAGE_REMOVE, roomId, System.currentTimeMillis());
+                record.setImageId(imageId);
+                commit(room, record);
+            }
+        }
+    }
+    
+    private void putFloatingImage(Room room, DrawingMessage image) {
+        assetStore.retain(image.getImageHash());
+        DrawingMessage previous = room.getFloatingImages().get(image.getImageId());
+        room.addFloatingImage(image);
+        if (previous != null) {
+            assetStore.release(previous.getImageHash());
+        }
+    }
+    
+    private void deleteFloatingImage(Room room, String imageId) {
+        DrawingMessage removed = room.getFloatingImages().get(imageId);
+        room.removeFloatingImage(imageId);
+        if (removed != null) {
+            assetStore.release(removed.getImageHash());
+        }
+    }
+    
+    private void releaseAssets(Room room) {
+        for (DrawingMessage image : room.getFloatingImages().values()) {
+            assetStore.release(image.getImageHash());
         }
     }
 
@@ -93,9 +374,464 @@ public class RoomService {
         return code.toString();
     }
     
-    // Cleanup empty rooms periodically
+    /**
+     * Removes a room its last player left, unless it has a drawing: that is
+     * kept for {@code desenho.rooms.empty-ttl-minutes}, so players coming back,
+     * or the journal across a restart, still find it.
+     */
+    private void roomEmptied(Room room) {
+        if (emptyRoomTtlMinutes <= 0 || !hasDrawing(room)) {
+            removeRoom(room.getRoomId());
+        }
+    }
+    
+    private boolean hasDrawing(Room room) {
+        return spilled.containsKey(room) || room.estimateCanvasBytes() > 0 || !room.getFloatingImages().isEmpty();
+    }
+    
+    // Cleanup empty rooms periodically: those nobody has been in for the TTL,
+    // including rooms recovered from the journal that nobody rejoined
     public void cleanupEmptyRooms() {
-        rooms.entrySet().removeIf(entry -> entry.getValue().isEmpty());
+        long emptySince = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(emptyRoomTtlMinutes);
+        for (Room room : rooms.values()) {
+            if (room.isEmpty() && room.getLastUpdate() <= emptySince) {
+                String roomId = room.getRoomId();
+                // On the room's owner thread, so a join can't slip in between
+                roomActors.execute(roomId, () -> {
+                    if (rooms.get(roomId) == room && room.isEmpty() && room.getLastUpdate() <= emptySince) {
+                        removeRoom(roomId);
+                    }
+                });
+            }
+        }
+    }
+    
+    /**
+     * Journals a mutation of {@code room}. Callers hold the room's monitor, which
+     * keeps journal order per room equal to the order the mutations were applied.
+     */
+    private boolean isJournaled(Room room) {
+        return journal.isEnabled() && bus.isOwner(room.getRoomId());
+    }
+    
+    private void journal(Room room, JournalRecord record) {
+        if (isJournaled(room)) {
+            room.setJournalSeq(journal.append(record));
+        }
+    }
+    
+    private void commit(Room room, JournalRecord record) {
+        commit(room, record, null);
+    }
+    
+    /**
+     * Journals a local mutation and publishes it to the other nodes, along with
+     * the image an IMAGE_ADD refers to. Callers hold the room's monitor, so
+     * mutations of a room are published in the order they were applied.
+     */
+    private void commit(Room room, JournalRecord record, AssetStore.Asset asset) {
+        journal(room, record);
+        if (!bus.isClustered()) {
+            return;
+        }
+        BusMessage message = new BusMessage(BusMessage.Type.MUTATION, room.getRoomId());
+        message.setOrigin(bus.getNodeId());
+        message.setEpoch(bus.getEpoch());
+        message.setSeq(busSeq.incrementAndGet());
+        message.setRecord(record);
+        if (asset != null) {
+            message.setAssets(List.of(asset.getBytes()));
+        }
+        room.markBusApplied(message.source(), message.getSeq());
+        buffer(room, message);
+        bus.publish(message);
+    }
+    
+    /**
+     * Keeps an applied mutation for replaying over the owner's state, while the
+     * room is waiting for it.
+     */
+    private void buffer(Room room, BusMessage message) {
+        StateSync sync = syncs.get(room);
+        if (sync != null && !sync.done.isDone()) {
+            sync.applied.add(message);
+        }
+    }
+    
+    private void publishPlayer(BusMessage.Type type, String roomId, String playerName) {
+        if (bus.isClustered()) {
+            BusMessage message = new BusMessage(type, roomId);
+            message.setPlayerName(playerName);
+            bus.publish(message);
+        }
+    }
+    
+    /**
+     * Tells a node that just came up about a player connected here.
+     */
+    public void announcePlayer(String nodeId, String roomId, String playerName) {
+        BusMessage message = new BusMessage(BusMessage.Type.PLAYER_JOINED, roomId);
+        message.setPlayerName(playerName);
+        bus.send(nodeId, message);
+    }
+    
+    /**
+     * Applies a mutation published by another node, if this node owns the room
+     * or holds a copy of it. Returns whether it was applied; replays of an
+     * already applied mutation are not.
+     */
+    public boolean applyRemoteMutation(BusMessage message) {
+        String roomId = message.getRoomId();
+        Room room = bus.isOwner(roomId) ? getOrCreateRoom(roomId) : getRoom(roomId);
+        if (room == null || message.getRecord() == null || !putAssets(message)) {
+            return false;
+        }
+        synchronized (room) {
+            faultIn(room);
+            if (!room.markBusApplied(message.source(), message.getSeq())) {
+                return false;
+            }
+            applyRecord(room, message.getRecord(), true);
+            journal(room, message.getRecord());
+            buffer(room, message);
+            return true;
+        }
+    }
+    
+    /**
+     * Completes once this node's copy of the room is current: at once when this
+     * node owns the room, otherwise when the owner's state has arrived or after
+     * {@code desenho.bus.state-timeout-ms}, whichever comes first. The owner is
+     * only asked once per room.
+     */
+    public CompletableFuture<Void> awaitState(String roomId) {
+        Room room = getRoom(roomId);
+        if (room == null || !bus.isClustered() || bus.isOwner(roomId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        StateSync sync = new StateSync();
+        StateSync existing = syncs.putIfAbsent(room, sync);
+        if (existing != null) {
+            return existing.done;
+        }
+        sync.done.whenComplete((ignored, error) -> {
+            synchronized (room) {
+                sync.applied.clear();
+            }
+        });
+        bus.send(bus.ownerOf(roomId), new BusMessage(BusMessage.Type.STATE_REQUEST, roomId));
+        sync.done.completeOnTimeout(null, stateTimeoutMs, TimeUnit.MILLISECONDS);
+        return sync.done;
+    }
+    
+    /**
+     * Answers a STATE_REQUEST with the room's state and the images it shows.
+     * The snapshot is empty if this node has no such room.
+     */
+    public BusMessage stateFor(String roomId) {
+        BusMessage reply = new BusMessage(BusMessage.Type.STATE, roomId);
+        Room room = getRoom(roomId);
+        if (room != null) {
+            synchronized (room) {
+                faultIn(room);
+                reply.setSnapshot(room.toSnapshot());
+            }
+            List<byte[]> assets = new ArrayList<>();
+            for (DrawingMessage image : reply.getSnapshot().getFloatingImages()) {
+                AssetStore.Asset asset = assetStore.get(image.getImageHash());
+                if (asset != null) {
+                    assets.add(asset.getBytes());
+                }
+            }
+            reply.setAssets(assets);
+        }
+        return reply;
+    }
+    
+    /**
+     * Replaces the room's copy with the owner's state, then applies again the
+     * mutations seen since the request that the state does not include yet.
+     * A state arriving after the request timed out is ignored.
+     */
+    public void applyState(BusMessage message) {
+        Room room = getRoom(message.getRoomId());
+        StateSync sync = room != null ? syncs.get(room) : null;
+        if (sync == null || sync.done.isDone()) {
+            return;
+        }
+        RoomSnapshot snapshot = message.getSnapshot();
+        if (snapshot != null && putAssets(message)) {
+            synchronized (room) {
+                faultIn(room);
+                long journalSeq = room.getJournalSeq();
+                releaseAssets(room);
+                room.restore(snapshot);
+                room.setJournalSeq(journalSeq);
+                for (DrawingMessage image : room.getFloatingImages().values()) {
+                    assetStore.retain(image.getImageHash());
+                }
+                for (BusMessage applied : sync.applied) {
+                    if (room.markBusApplied(applied.source(), applied.getSeq())) {
+                        applyRecord(room, applied.getRecord(), false);
+                    }
+                }
+                // The raster only knows the strokes applied here
+                compositor.invalidate(room.getRoomId());
+            }
+        }
+        sync.done.complete(null);
+    }
+    
+    private boolean putAssets(BusMessage message) {
+        if (message.getAssets() == null) {
+            return true;
+        }
+        try {
+            for (byte[] bytes : message.getAssets()) {
+                assetStore.put(bytes);
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            // logger.warning("Rejected image from node " + message.getOrigin() + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    public void addRemotePlayer(String nodeId, String roomId, String playerName) {
+        remotePlayers.computeIfAbsent(nodeId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet())
+                .add(playerName);
+        Room room = bus.isOwner(roomId) ? getOrCreateRoom(roomId) : getRoom(roomId);
+        if (room != null) {
+            room.addPlayer(playerName);
+        }
+    }
+    
+    public void removeRemotePlayer(String nodeId, String roomId, String playerName) {
+        Map<String, Set<String>> byRoom = remotePlayers.get(nodeId);
+        Set<String> players = byRoom != null ? byRoom.get(roomId) : null;
+        if (players != null) {
+            players.remove(playerName);
+        }
+        dropPlayer(roomId, playerName);
+    }
+    
+    /**
+     * Forgets the players of a node that went away. Returns the rooms they were in.
+     */
+    public Set<String> dropRemotePlayers(String nodeId) {
+        Map<String, Set<String>> byRoom = remotePlayers.remove(nodeId);
+        if (byRoom == null) {
+            return java.util.Collections.emptySet();
+        }
+        for (Map.Entry<String, Set<String>> entry : byRoom.entrySet()) {
+            for (String playerName : entry.getValue()) {
+                dropPlayer(entry.getKey(), playerName);
+            }
+        }
+        return new HashSet<>(byRoom.keySet());
+    }
+    
+    private void dropPlayer(String roomId, String playerName) {
+        Room room = rooms.get(roomId);
+        if (room != null) {
+            room.removePlayer(playerName);
+            if (room.isEmpty()) {
+                roomEmptied(room);
+            }
+        }
+    }
+    
+    private Room newRoom(String roomId) {
+        Room room = new Room(roomId);
+        // Players already in the room on other nodes
+        for (Map<String, Set<String>> byRoom : remotePlayers.values()) {
+            Set<String> players = byRoom.get(roomId);
+            if (players != null) {
+                players.forEach(room::addPlayer);
+            }
+        }
+        return room;
+    }
+    
+    /**
+     * Rebuilds rooms from the journal before clients connect. Recovered rooms have
+     * no players until someone joins again.
+     */
+    void recoverRooms(@Observes StartupEvent event) {
+        if (!journal.isEnabled()) {
+            return;
+        }
+        try {
+            journal.recover(this::restoreRoom, this::replayRecord);
+            // Strokes compacted into client checkpoints are gone, so a server raster
+            // rebuilt from the log alone would be wrong until the next clear
+            for (String roomId : rooms.keySet()) {
+                compositor.invalidate(roomId);
+            }
+            journal.start(this::snapshotRooms);
+        } catch (IOException | RuntimeException e) {
+            // logger.severe("Room journal unavailable, continuing without durability: " + e.getMessage());
+            journal.disable();
+        }
+    }
+    
+    private void restoreRoom(RoomSnapshot snapshot) {
+        Room room = new Room(snapshot.getRoomId());
+        room.restore(snapshot);
+        for (DrawingMessage image : room.getFloatingImages().values()) {
+            assetStore.retain(image.getImageHash());
+        }
+        rooms.put(room.getRoomId(), room);
+    }
+    
+    private void replayRecord(JournalRecord record) {
+        if (record.getOp() == JournalRecord.Op.ROOM_REMOVED) {
+            Room removed = rooms.get(record.getRoomId());
+            if (removed != null && record.getSeq() > removed.getJournalSeq()) {
+                rooms.remove(record.getRoomId());
+                releaseAssets(removed);
+            }
+            return;
+        }
+        Room room = getOrCreateRoom(record.getRoomId());
+        if (record.getSeq() <= room.getJournalSeq()) {
+            // Already part of the snapshot this room was restored from
+            return;
+        }
+        applyRecord(room, record, false);
+        room.setJournalSeq(record.getSeq());
+    }
+    
+    /**
+     * Applies a journaled or replicated mutation. {@code live} mutations also
+     * update the server raster, which a journal replay rebuilds afterwards.
+     */
+    private void applyRecord(Room room, JournalRecord record, boolean live) {
+        switch (record.getOp()) {
+            case STROKES:
+                long seq = room.appendStrokes(StrokeSegment.boundAll(record.getActions()), strokeLogMaxSegments, strokeLogMaxBytes, record.getAt());
+                if (live) {
+                    compositor.applyStrokes(room.getRoomId(), record.getActions(), seq);
+                }
+                break;
+            case CANVAS:
+                room.checkpointCanvas(record.getCanvasData(), record.getAt());
+                break;
+            case TILES:
+                room.checkpointTiles(record.getTiles(), record.getAt());
+                break;
+            case CLEAR:
+                long cleared = room.clearCanvas();
+                if (live) {
+                    compositor.clear(room.getRoomId(), cleared);
+                }
+                break;
+            case IMAGE_ADD:
+                putFloatingImage(room, record.getImage());
+                break;
+            case IMAGE_REMOVE:
+                deleteFloatingImage(room, record.getImageId());
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Snapshots every room for the journal. Spilled rooms are read straight from
+     * cold storage and stay spilled.
+     */
+    private List<RoomSnapshot> snapshotRooms() {
+        List<RoomSnapshot> snapshots = new ArrayList<>(rooms.size());
+        for (Room room : rooms.values()) {
+            synchronized (room) {
+                RoomSnapshot snapshot = room.toSnapshot();
+                ColdStorage.Handle handle = spilled.get(room);
+                if (handle != null) {
+                    try {
+                        RoomSnapshot payload = coldStorage.read(handle);
+                        snapshot.setCanvasData(payload.getCanvasData());
+                        snapshot.setTiles(payload.getTiles());
+                        snapshot.setStrokes(payload.getStrokes());
+                    } catch (IOException e) {
+                        // logger.warning("Could not read spilled room " + room.getRoomId() + ": " + e.getMessage());
+                    }
+                }
+                snapshots.add(snapshot);
+            }
+        }
+        return snapshots;
+    }
+    
+    /**
+     * Moves the canvas payload of rooms that have not changed for
+     * {@code desenho.cold.idle-minutes} into cold storage, along with dropping
+     * their server raster. The next access faults the payload back in.
+     */
+    void spillIdleRooms() {
+        long idleSince = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(coldIdleMinutes);
+        for (Room room : rooms.values()) {
+            synchronized (room) {
+                if (spilled.containsKey(room) || room.getLastUpdate() > idleSince
+                        || room.estimateCanvasBytes() == 0 || rooms.get(room.getRoomId()) != room) {
+                    continue;
+                }
+                try {
+                    spilled.put(room, coldStorage.spill(room.getRoomId(), room.canvasPayload()));
+                } catch (IOException | RuntimeException e) {
+                    // logger.warning("Could not spill room " + room.getRoomId() + ": " + e.getMessage());
+                    continue;
+                }
+                room.releaseCanvas();
+                // Frees the raster; joiners fall back to the client checkpoint
+                compositor.remove(room.getRoomId());
+                compositor.invalidate(room.getRoomId());
+            }
+        }
+    }
+    
+    /**
+     * Brings a spilled room's canvas payload back onto the heap. Safe to call on
+     * resident rooms and with the room's monitor already held.
+     */
+    private Room faultIn(Room room) {
+        if (room == null || spilled.isEmpty()) {
+            return room;
+        }
+        synchronized (room) {
+            ColdStorage.Handle handle = spilled.remove(room);
+            if (handle != null) {
+                try {
+                    room.restoreCanvas(coldStorage.read(handle));
+                } catch (IOException e) {
+                    // logger.severe("Lost spilled canvas of room " + room.getRoomId() + ": " + e.getMessage());
+                }
+                coldStorage.release(handle);
+            }
+        }
+        return room;
+    }
+    
+    // Heap bytes held by canvas payloads of resident rooms (estimate)
+    public long getResidentCanvasBytes() {
+        long bytes = 0;
+        for (Room room : rooms.values()) {
+            if (!spilled.containsKey(room)) {
+                bytes += room.estimateCanvasBytes();
+            }
+        }
+        return bytes;
+    }
+    
+    // Same for one room, without faulting a spilled room back in
+    public long getResidentCanvasBytes(String roomId) {
+        Room room = rooms.get(roomId);
+        return room != null && !spilled.containsKey(room) ? room.estimateCanvasBytes() : 0;
+    }
+    
+    public int getSpilledRoomsCount() {
+        return spilled.size();
     }
     
     // Get all rooms with their players
@@ -0,0 +1,401 @@
+package com.desenho.service;
+
+import com.desenho.model.DrawingMessage;
+import com.desenho.model.Room;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Runtime statistics for the monitoring endpoints and the admin page, gathered
+ * on a timer into one snapshot that requests read as is. Memory limits come from
+ * the container's cgroup (v1 or v2) rather than being guessed from the heap, and
+ * everything else from the platform MXBeans, each part left out when the
+ * runtime doesn't provide it (e.g. some MXBeans in native mode).
+ */
+@ApplicationScoped
+public class RuntimeStats {
+
+    private static final Path CGROUP = Paths.get("/sys/fs/cgroup");
+    // cgroup v1 reports "no limit" as a page-aligned Long.MAX_VALUE
+    private static final long UNLIMITED = Long.MAX_VALUE / 2;
+
+    @Inject
+    RoomService roomService;
+
+    @Inject
+    AssetStore assetStore;
+
+    @Inject
+    ColdStorage coldStorage;
+
+    @Inject
+    RoomJournal roomJournal;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @ConfigProperty(name = "desenho.monitoring.refresh-ms", defaultValue = "5000")
+    long refreshMs;
+
+    /**
+     * One refresh, with the views the endpoints serve built up front.
+     */
+    public static final class Snapshot {
+        private final Map<String, Object> stats;
+        private final Map<String, Object> memory;
+        private final Map<String, Object> health;
+        private final Map<String, Object> summary;
+        private final Map<String, Object> storage;
+
+        private Snapshot(Map<String, Object> stats, Map<String, Object> memory, Map<String, Object> health,
+                         Map<String, Object> summary, Map<String, Object> storage) {
+            this.stats = stats;
+            this.memory = memory;
+            this.health = health;
+            this.summary = summary;
+            this.storage = storage;
+        }
+
+        public Map<String, Object> getStats() { return stats; }
+        public Map<String, Object> getMemory() { return memory; }
+        public Map<String, Object> getHealth() { return health; }
+        public Map<String, Object> getSummary() { return summary; }
+        public Map<String, Object> getStorage() { return storage; }
+    }
+
+    private final boolean nativeMode = System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+    private final Map<String, long[]> previousGc = new HashMap<>();
+    private ScheduledExecutorService refresher;
+    private volatile Snapshot current;
+
+    @PostConstruct
+    void start() {
+        current = collect();
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "runtime-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * The latest snapshot, at most one refresh interval old.
+     */
+    public Snapshot current() {
+        return current;
+    }
+
+    private void refresh() {
+        try {
+            current = collect();
+        } catch (RuntimeException e) {
+            // logger.warning("Failed to refresh runtime stats: " + e.getMessage());
+        }
+    }
+
+    private synchronized Snapshot collect() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> heap = heap();
+        Map<String, Object> container = container();
+        List<Map<String, Object>> gc = gc();
+        List<Map<String, Object>> bufferPools = bufferPools();
+        List<Map<String, Object>> rooms = rooms();
+        Map<String, Object> storage = storage(now);
+        long uptimeSeconds = uptimeSeconds();
+        double sessions = gauge("desenho.websocket.sessions");
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("timestamp", now);
+        stats.put("uptime_seconds", uptimeSeconds);
+        stats.put("native_mode", nativeMode);
+        stats.put("processors", Runtime.getRuntime().availableProcessors());
+        stats.put("heap", heap);
+        stats.put("container", container);
+        stats.put("gc", gc);
+        stats.put("buffer_pools", bufferPools);
+        stats.put("threads", threadCount());
+        stats.put("sessions", (long) sessions);
+        stats.put("rooms", rooms);
+        stats.put("storage", storage);
+
+        Map<String, Object> memory = new LinkedHashMap<>();
+        memory.put("heap", heap);
+        memory.put("container", container);
+        memory.put("buffer_pools", bufferPools);
+        memory.put("native_mode", nativeMode);
+        memory.put("timestamp", now);
+
+        // Container usage when there is a limit to measure against, the heap otherwise
+        Object containerUsage = container.get("memory_usage_percentage");
+        double usage = containerUsage instanceof Double ? (Double) containerUsage : (Double) heap.get("usage_percentage");
+        Map<String, Object> health = new LinkedHashMap<>();
+        health.put("status", usage > 90 ? "WARNING" : "HEALTHY");
+        health.put("memory_usage_percentage", usage);
+        health.put("native_mode", nativeMode);
+        health.put("uptime_seconds", uptimeSeconds);
+        health.put("thread_count", threadCount());
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("heap_used_mb", (long) heap.get("used_bytes") / (1024 * 1024));
+        summary.put("heap_max_mb", (long) heap.get("max_bytes") / (1024 * 1024));
+        summary.put("heap_usage_percentage", heap.get("usage_percentage"));
+        summary.put("container_memory_limit_mb", megabytes(container.get("memory_limit_bytes")));
+        summary.put("container_memory_used_mb", megabytes(container.get("memory_usage_bytes")));
+        summary.put("container_memory_usage_percentage", containerUsage);
+        summary.put("sessions", (long) sessions);
+        summary.put("rooms", rooms.size());
+        summary.put("processors", Runtime.getRuntime().availableProcessors());
+        summary.put("native_mode", nativeMode);
+        summary.put("uptime_seconds", uptimeSeconds);
+        summary.put("timestamp", now);
+
+        return new Snapshot(freeze(stats), freeze(memory), freeze(health), freeze(summary), storage);
+    }
+
+    private Map<String, Object> heap() {
+        Map<String, Object> heap = new LinkedHashMap<>();
+        long used;
+        long committed;
+        long max;
+        try {
+            MemoryUsage usage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            used = usage.getUsed();
+            committed = usage.getCommitted();
+            max = usage.getMax() > 0 ? usage.getMax() : Runtime.getRuntime().maxMemory();
+            heap.put("non_heap_used_bytes", ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getUsed());
+        } catch (Exception e) {
+            Runtime runtime = Runtime.getRuntime();
+            committed = runtime.totalMemory();
+            used = committed - runtime.freeMemory();
+            max = runtime.maxMemory();
+        }
+        heap.put("used_bytes", used);
+        heap.put("committed_bytes", committed);
+        heap.put("max_bytes", max);
+        heap.put("usage_percentage", (double) used / max * 100);
+        return freeze(heap);
+    }
+
+    /**
+     * Memory and CPU limits of the container, from cgroup v2 or v1. Unlimited
+     * values are reported as null.
+     */
+    private Map<String, Object> container() {
+        Map<String, Object> container = new LinkedHashMap<>();
+        Long limit;
+        Long usage;
+        Double cpus = null;
+        if (Files.exists(CGROUP.resolve("cgroup.controllers"))) {
+            container.put("cgroup_version", 2);
+            limit = readLong(CGROUP.resolve("memory.max"));
+            usage = readLong(CGROUP.resolve("memory.current"));
+            String[] cpuMax = readString(CGROUP.resolve("cpu.max")).split(" ");
+            if (cpuMax.length == 2 && !"max".equals(cpuMax[0])) {
+                cpus = Double.parseDouble(cpuMax[0]) / Double.parseDouble(cpuMax[1]);
+            }
+        } else if (Files.exists(CGROUP.resolve("memory"))) {
+            container.put("cgroup_version", 1);
+            limit = readLong(CGROUP.resolve("memory/memory.limit_in_bytes"));
+            usage = readLong(CGROUP.resolve("memory/memory.usage_in_bytes"));
+            Long quota = readLong(CGROUP.resolve("cpu/cpu.cfs_quota_us"));
+            Long period = readLong(CGROUP.resolve("cpu/cpu.cfs_period_us"));
+            if (quota != null && quota > 0 && period != null && period > 0) {
+                cpus = (double) quota / period;
+            }
+        } else {
+            container.put("cgroup_version", null);
+            return freeze(container);
+        }
+        if (limit != null && limit >= UNLIMITED) {
+            limit = null;
+        }
+        container.put("memory_limit_bytes", limit);
+        container.put("memory_usage_bytes", usage);
+        container.put("memory_usage_percentage", limit != null && usage != null ? (double) usage / limit * 100 : null);
+        container.put("cpu_limit", cpus);
+        return freeze(container);
+    }
+
+    /**
+     * Collections and accumulated pause time per collector, in total and since
+     * the previous refresh.
+     */
+    private List<Map<String, Object>> gc() {
+        List<Map<String, Object>> collectors = new ArrayList<>();
+        try {
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                long count = Math.max(0, bean.getCollectionCount());
+                long time = Math.max(0, bean.getCollectionTime());
+                long[] previous = previousGc.put(bean.getName(), new long[] { count, time });
+                Map<String, Object> collector = new LinkedHashMap<>();
+                collector.put("name", bean.getName());
+                collector.put("collections", count);
+                collector.put("time_ms", time);
+                collector.put("recent_collections", previous != null ? count - previous[0] : count);
+                collector.put("recent_time_ms", previous != null ? time - previous[1] : time);
+                collectors.add(freeze(collector));
+            }
+        } catch (Exception e) {
+            // Not provided by this runtime
+        }
+        return Collections.unmodifiableList(collectors);
+    }
+
+    private List<Map<String, Object>> bufferPools() {
+        List<Map<String, Object>> pools = new ArrayList<>();
+        try {
+            for (BufferPoolMXBean bean : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                Map<String, Object> pool = new LinkedHashMap<>();
+                pool.put("name", bean.getName());
+                pool.put("count", bean.getCount());
+                pool.put("used_bytes", bean.getMemoryUsed());
+                pool.put("capacity_bytes", bean.getTotalCapacity());
+                pools.add(freeze(pool));
+            }
+        } catch (Exception e) {
+            // Not provided by this runtime
+        }
+        return Collections.unmodifiableList(pools);
+    }
+
+    /**
+     * Estimated heap footprint and sessions of each room. Spilled rooms count no
+     * canvas bytes, and images count only while their asset is held in memory.
+     */
+    private List<Map<String, Object>> rooms() {
+        Map<String, Integer> assetSizes = assetStore.getMemorySizes();
+        Map<String, Double> sessions = new HashMap<>();
+        meterRegistry.find("desenho.room.sessions").gauges()
+                .forEach(g -> sessions.put(g.getId().getTag("room"), g.value()));
+        List<Map<String, Object>> rooms = new ArrayList<>();
+        for (Map.Entry<String, Room> entry : roomService.getAllRooms().entrySet()) {
+            String roomId = entry.getKey();
+            long imageBytes = 0;
+            for (DrawingMessage image : entry.getValue().getFloatingImages().values()) {
+                Integer size = image.getImageHash() != null ? assetSizes.get(image.getImageHash()) : null;
+                imageBytes += size != null ? size : 0;
+            }
+            Map<String, Object> room = new LinkedHashMap<>();
+            room.put("room_id", roomId);
+            room.put("players", entry.getValue().getPlayers().size());
+            room.put("sessions", sessions.getOrDefault(roomId, 0.0).longValue());
+            room.put("canvas_bytes", roomService.getResidentCanvasBytes(roomId));
+            room.put("image_bytes", imageBytes);
+            rooms.add(freeze(room));
+        }
+        return Collections.unmodifiableList(rooms);
+    }
+
+    private Map<String, Object> storage(long now) {
+        // Room canvases: on the heap (estimated) vs. spilled to memory-mapped files
+        Map<String, Object> canvas = new LinkedHashMap<>();
+        int spilledRooms = roomService.getSpilledRoomsCount();
+        canvas.put("resident_rooms", roomService.getActiveRoomsCount() - spilledRooms);
+        canvas.put("resident_bytes", roomService.getResidentCanvasBytes());
+        canvas.put("spilled_rooms", spilledRooms);
+        canvas.put("spilled_bytes", coldStorage.getSpilledBytes());
+        canvas.put("cold_storage_available", coldStorage.isAvailable());
+
+        // Floating images: memory cache vs. disk
+        Map<String, Object> assets = new LinkedHashMap<>();
+        assets.put("memory_bytes", assetStore.getMemoryBytes());
+        assets.put("disk_bytes", assetStore.getDiskBytes());
+
+        // Room journal: backlog, write failures and what was lost to them
+        Map<String, Object> journal = new LinkedHashMap<>();
+        journal.put("enabled", roomJournal.isEnabled());
+        journal.put("pending_records", roomJournal.getPendingRecords());
+        journal.put("max_pending_records", roomJournal.getMaxPendingRecords());
+        journal.put("written_records", roomJournal.getWrittenRecords());
+        journal.put("written_batches", roomJournal.getWrittenBatches());
+        journal.put("failed_writes", roomJournal.getFailedWrites());
+        journal.put("dropped_records", roomJournal.getDroppedRecords());
+        journal.put("last_failure", roomJournal.getLastFailure());
+        journal.put("last_recovery_ms", roomJournal.getLastRecoveryMillis());
+        journal.put("last_recovered_rooms", roomJournal.getLastRecoveredRooms());
+        journal.put("last_recovered_records", roomJournal.getLastRecoveredRecords());
+
+        Map<String, Object> storage = new LinkedHashMap<>();
+        storage.put("canvas", freeze(canvas));
+        storage.put("assets", freeze(assets));
+        storage.put("journal", freeze(journal));
+        storage.put("timestamp", now);
+        return freeze(storage);
+    }
+
+    private double gauge(String name) {
+        Gauge gauge = meterRegistry.find(name).gauge();
+        return gauge != null ? gauge.value() : 0;
+    }
+
+    private static long uptimeSeconds() {
+        try {
+            return ManagementFactory.getRuntimeMXBean().getUptime() / 1000;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static Integer threadCount() {
+        try {
+            return ManagementFactory.getThreadMXBean().getThreadCount();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Long megabytes(Object bytes) {
+        return bytes instanceof Long ? (Long) bytes / (1024 * 1024) : null;
+    }
+
+    private static String readString(Path file) {
+        try {
+            return Files.readString(file).trim();
+        } catch (IOException | RuntimeException e) {
+            return "";
+        }
+    }
+
+    private static Long readLong(Path file) {
+        try {
+            return Long.parseLong(readString(file));
+        } catch (NumberFormatException e) {
+            // "max" in cgroup v2, or unreadable
+            return null;
+        }
+    }
+
+    private static <V> Map<String, V> freeze(Map<String, V> map) {
+        return Collections.unmodifiableMap(map);
+    }
+}
@@ -0,0 +1,300 @@
+package com.desenho.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Room bus over plain TCP between a fixed list of peers. Every node listens on
+ * its bus port and keeps one outgoing connection to each peer, reconnecting
+ * while the peer is down. Messages are length-prefixed JSON.
+ *
+ * A peer counts as live while the outgoing connection to it is up, so room
+ * ownership only moves to nodes this one can actually reach. Messages for a
+ * peer that is down, or too far behind, are dropped; the peer catches up by
+ * requesting room state when it next needs it.
+ */
+final class TcpRoomBus implements RoomBus {
+
+    private static final int MAX_MESSAGE_BYTES = 64 * 1024 * 1024;
+    private static final int PEER_QUEUE_SIZE = 10_000;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final String nodeId;
+    private final long epoch = System.currentTimeMillis();
+    private final int port;
+    private final Consumer<BusMessage> deliver;
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Set<String> live = ConcurrentHashMap.newKeySet();
+
+    private volatile ConsistentHashRing ring;
+    private volatile boolean running;
+    private ServerSocket server;
+
+    TcpRoomBus(String nodeId, int port, Map<String, InetSocketAddress> peerAddresses, Consumer<BusMessage> deliver) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.deliver = deliver;
+        peerAddresses.forEach((id, address) -> {
+            if (!id.equals(nodeId)) {
+                peers.put(id, new Peer(id, address));
+            }
+        });
+        rebuildRing();
+    }
+
+    void start() throws IOException {
+        running = true;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        daemon("room-bus-accept", this::acceptLoop).start();
+        for (Peer peer : peers.values()) {
+            daemon("room-bus-out-" + peer.id, peer::writeLoop).start();
+        }
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public long getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public boolean isClustered() {
+        return !peers.isEmpty();
+    }
+
+    @Override
+    public String ownerOf(String roomId) {
+        return ring.nodeFor(roomId);
+    }
+
+    @Override
+    public void publish(BusMessage message) {
+        byte[] encoded = encode(message);
+        if (encoded != null) {
+            for (Peer peer : peers.values()) {
+                peer.offer(encoded);
+            }
+        }
+    }
+
+    @Override
+    public void send(String targetId, BusMessage message) {
+        Peer peer = peers.get(targetId);
+        if (peer != null) {
+            byte[] encoded = encode(message);
+            if (encoded != null) {
+                peer.offer(encoded);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Peer peer : peers.values()) {
+            peer.disconnect();
+        }
+    }
+
+    private byte[] encode(BusMessage message) {
+        message.setOrigin(nodeId);
+        message.setEpoch(epoch);
+        try {
+            return mapper.writeValueAsBytes(message);
+        } catch (IOException e) {
+            // logger.severe("Failed to encode bus message: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                daemon("room-bus-in", () -> readLoop(socket)).start();
+            } catch (IOException e) {
+                // Closed on shutdown; otherwise keep accepting
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String peerId = null;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            BusMessage hello = read(in);
+            if (hello.getType() != BusMessage.Type.HELLO || !peers.containsKey(hello.getOrigin())) {
+                // logger.warning("Rejected bus connection from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            peerId = hello.getOrigin();
+            while (running) {
+                deliver.accept(read(in));
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+        } catch (IOException | RuntimeException e) {
+            // logger.warning("Bus connection from " + peerId + " failed: " + e.getMessage());
+        }
+        if (peerId != null) {
+            // The peer went away; drop our side too, so it is marked down now
+            // rather than on our next write
+            peers.get(peerId).disconnect();
+        }
+    }
+
+    private BusMessage read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Bus message too large: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return mapper.readValue(bytes, BusMessage.class);
+    }
+
+    private void peerUp(String peerId) {
+        live.add(peerId);
+        rebuildRing();
+        BusMessage event = new BusMessage(BusMessage.Type.NODE_UP, null);
+        event.setOrigin(peerId);
+        deliver.accept(event);
+    }
+
+    private void peerDown(String peerId) {
+        live.remove(peerId);
+        rebuildRing();
+        BusMessage event = new BusMessage(BusMessage.Type.NODE_DOWN, null);
+        event.setOrigin(peerId);
+        deliver.accept(event);
+    }
+
+    private void rebuildRing() {
+        List<String> nodes = new ArrayList<>(live);
+        nodes.add(nodeId);
+        ring = new ConsistentHashRing(nodes);
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * The outgoing connection to one peer and the messages waiting for it.
+     */
+    private final class Peer {
+        private final String id;
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(PEER_QUEUE_SIZE);
+        private volatile Socket socket;
+
+        Peer(String id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        void offer(byte[] encoded) {
+            if (socket != null && !queue.offer(encoded)) {
+                // logger.warning("Bus queue for " + id + " is full; dropping message");
+            }
+        }
+
+        void disconnect() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+
+        void writeLoop() {
+            while (running) {
+                boolean connected = false;
+                try (Socket s = new Socket()) {
+                    // Resolved on every attempt, so peers may come up after this node
+                    s.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    write(out, encode(new BusMessage(BusMessage.Type.HELLO, null)));
+                    out.flush();
+                    socket = s;
+                    connected = true;
+                    peerUp(id);
+                    while (running && !s.isClosed()) {
+                        byte[] next = queue.poll(RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            continue;
+                        }
+                        write(out, next);
+                        // Batch whatever is already queued into one flush
+                        while ((next = queue.poll()) != null) {
+                            write(out, next);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // Peer not reachable yet, or the connection dropped
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    socket = null;
+                    queue.clear();
+                    if (connected) {
+                        peerDown(id);
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void write(DataOutputStream out, byte[] encoded) throws IOException {
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.desenho.websocket;
+
+import com.desenho.model.CanvasImage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.websocket.Session;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Per-room latest-wins buffer for full canvas snapshots. At most one snapshot
+ * per room is stored and broadcast every interval; snapshots that arrive in
+ * between replace the pending one, which is then never stored or sent. The
+ * first snapshot after a quiet interval goes out immediately.
+ *
+ * Delayed flushes run on the room's executor, the same one that submits and
+ * supersedes, so a flush never overtakes a forced update or a clear.
+ */
+final class CanvasCoalescer {
+
+    /**
+     * A canvas snapshot waiting to be stored, with the session that sent it.
+     */
+    static final class PendingCanvas {
+        final Session sender;
+        final CanvasImage canvasData;
+
+        PendingCanvas(Session sender, CanvasImage canvasData) {
+            this.sender = sender;
+            this.canvasData = canvasData;
+        }
+    }
+
+    private static final class RoomSlot {
+        // Held while flushing so snapshots of a room are stored in order
+        private final Object flushLock = new Object();
+        private PendingCanvas pending;
+        private long lastFlush;
+        private boolean scheduled;
+    }
+
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Function<String, Executor> roomExecutor;
+    private final BiConsumer<String, PendingCanvas> flush;
+    private final Map<String, RoomSlot> slots = new ConcurrentHashMap<>();
+    private final Counter suppressed;
+    private final Counter bytesSaved;
+
+    CanvasCoalescer(double maxHz, ScheduledExecutorService scheduler, Function<String, Executor> roomExecutor,
+                    BiConsumer<String, PendingCanvas> flush, MeterRegistry registry) {
+        this.intervalMillis = Math.max(1, Math.round(1000 / maxHz));
+        this.scheduler = scheduler;
+        this.roomExecutor = roomExecutor;
+        this.flush = flush;
+        this.suppressed = Counter.builder("desenho.canvas.updates.suppressed")
+                .description("Canvas snapshots replaced by a newer one before they were stored")
+                .register(registry);
+        this.bytesSaved = Counter.builder("desenho.canvas.updates.saved")
+                .description("Size of the canvas snapshots that were never stored or broadcast")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Holds the snapshot for the room; only for a room the sender is in, since a
+     * room's slot is kept until its last session leaves (see {@link #discard}).
+     */
+    void submit(String roomId, Session sender, CanvasImage canvasData) {
+        RoomSlot slot = slots.computeIfAbsent(roomId, k -> new RoomSlot());
+        long delay = -1;
+        synchronized (slot) {
+            suppress(slot.pending);
+            slot.pending = new PendingCanvas(sender, canvasData);
+            if (!slot.scheduled) {
+                slot.scheduled = true;
+                delay = Math.max(0, slot.lastFlush + intervalMillis - System.currentTimeMillis());
+            }
+        }
+        if (delay == 0) {
+            flushRoom(roomId, slot);
+        } else if (delay > 0) {
+            scheduler.schedule(() -> roomExecutor.apply(roomId).execute(() -> flushRoom(roomId, slot)),
+                    delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops the room's pending snapshot, e.g. when a forced update or a clear
+     * makes it obsolete.
+     */
+    void supersede(String roomId) {
+        RoomSlot slot = slots.get(roomId);
+        if (slot != null) {
+            // Waits for a flush in progress, so the older snapshot lands first
+            synchronized (slot.flushLock) {
+                synchronized (slot) {
+                    suppress(slot.pending);
+                    slot.pending = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops any pending snapshot of a room that no longer has sessions.
+     */
+    void discard(String roomId) {
+        slots.remove(roomId);
+    }
+
+    private void suppress(PendingCanvas pending) {
+        if (pending != null) {
+            suppressed.increment();
+            bytesSaved.increment(pending.canvasData != null ? pending.canvasData.getSize() : 0);
+        }
+    }
+
+    private void flushRoom(String roomId, RoomSlot slot) {
+        synchronized (slot.flushLock) {
+            PendingCanvas pending;
+            synchronized (slot) {
+                pending = slot.pending;
+                slot.pending = null;
+                slot.scheduled = false;
+                slot.lastFlush = System.currentTimeMillis();
+            }
+            if (pending != null) {
+                flush.accept(roomId, pending);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.desenho.websocket;
+
+import com.desenho.model.CanvasImage;
+import com.desenho.model.DrawingMessage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary frames carrying canvas images, used by clients that opt in with
+ * {@code binaryCanvas} on JOIN_ROOM. The first byte tells them apart from
+ * {@link StrokeCodec} frames.
+ *
+ * <pre>
+ * tiles  := kind:u8 (0x02) count:u8 tile{count}
+ * tile   := col:u8 row:u8 version:s64 image
+ * canvas := kind:u8 (0x03) force:u8 image
+ * image  := mimeLength:u8 mime:ascii length:u32 bytes   (an erased tile has mimeLength 0 and length 0)
+ * </pre>
+ *
+ * The image bytes go as they are stored, where JSON clients get a base64 data
+ * URL a third larger. Tiles are split across frames the way JSON tile messages
+ * are, so each frame is still one checkpoint message to the client.
+ */
+final class CanvasCodec {
+
+    static final int FRAME_TILE = 0x02;
+    static final int FRAME_CANVAS = 0x03;
+
+    private CanvasCodec() {
+    }
+
+    static final int MAX_TILES = 255;
+
+    /**
+     * Tile frames of up to {@code maxBytes} each (a single larger tile gets a
+     * frame of its own), or null if some tile can't be represented.
+     */
+    static List<byte[]> encodeTiles(List<DrawingMessage.CanvasTile> tiles, int maxBytes) {
+        List<byte[]> frames = new ArrayList<>();
+        int from = 0;
+        int bytes = 2;
+        for (int i = 0; i < tiles.size(); i++) {
+            byte[] mime = mimeBytes(tiles.get(i).getData());
+            if (mime == null) {
+                return null;
+            }
+            int length = 10 + imageLength(mime, tiles.get(i).getData());
+            if (i > from && (bytes + length > maxBytes || i - from == MAX_TILES)) {
+                frames.add(encodeTileFrame(tiles.subList(from, i), bytes));
+                from = i;
+                bytes = 2;
+            }
+            bytes += length;
+        }
+        if (from < tiles.size()) {
+            frames.add(encodeTileFrame(tiles.subList(from, tiles.size()), bytes));
+        }
+        return frames;
+    }
+
+    private static byte[] encodeTileFrame(List<DrawingMessage.CanvasTile> tiles, int bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        buffer.put((byte) FRAME_TILE);
+        buffer.put((byte) tiles.size());
+        for (DrawingMessage.CanvasTile tile : tiles) {
+            buffer.put((byte) tile.getCol());
+            buffer.put((byte) tile.getRow());
+            buffer.putLong(tile.getVersion());
+            putImage(buffer, mimeBytes(tile.getData()), tile.getData());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * A full canvas snapshot, or null if it can't be represented.
+     */
+    static byte[] encodeCanvas(CanvasImage image, boolean force) {
+        byte[] mime = mimeBytes(image);
+        if (mime == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(2 + imageLength(mime, image));
+        buffer.put((byte) FRAME_CANVAS);
+        buffer.put((byte) (force ? 1 : 0));
+        putImage(buffer, mime, image);
+        return buffer.array();
+    }
+
+    private static byte[] mimeBytes(CanvasImage image) {
+        if (image == null) {
+            return new byte[0];
+        }
+        byte[] mime = image.getMimeType().getBytes(StandardCharsets.US_ASCII);
+        return mime.length > 0 && mime.length <= 0xFF ? mime : null;
+    }
+
+    private static int imageLength(byte[] mime, CanvasImage image) {
+        return 1 + mime.length + 4 + (image != null ? image.getSize() : 0);
+    }
+
+    private static void putImage(ByteBuffer buffer, byte[] mime, CanvasImage image) {
+        buffer.put((byte) mime.length);
+        buffer.put(mime);
+        buffer.putInt(image != null ? image.getSize() : 0);
+        if (image != null) {
+            buffer.put(image.getBytes());
+        }
+    }
+}
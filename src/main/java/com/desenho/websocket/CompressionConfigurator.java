@@ -0,0 +1,37 @@
+package com.desenho.websocket;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import jakarta.websocket.Extension;
+import jakarta.websocket.server.ServerEndpointConfig;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.microprofile.config.ConfigProvider;
+
+/**
+ * Accepts the permessage-deflate offers of clients (every current browser
+ * makes one) unless {@code desenho.compression.enabled} is off; the container
+ * installs no extensions of its own. The first offer it can meet wins;
+ * {@link DeflateHandshake} gets the answer to the client and
+ * {@link FrameCompression} tunes the encoder once the session is open.
+ * Endpoint instances still come from the container, and so from CDI.
+ */
+@RegisterForReflection
+public class CompressionConfigurator extends ServerEndpointConfig.Configurator {
+
+    @Override
+    public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+        boolean enabled = ConfigProvider.getConfig()
+                .getOptionalValue("desenho.compression.enabled", Boolean.class)
+                .orElse(true);
+        if (!enabled) {
+            return super.getNegotiatedExtensions(installed, requested);
+        }
+        List<Extension> negotiated = new ArrayList<>();
+        for (Extension extension : requested) {
+            if (FrameCompression.EXTENSION.equals(extension.getName())) {
+                negotiated.add(extension);
+            }
+        }
+        return negotiated;
+    }
+}
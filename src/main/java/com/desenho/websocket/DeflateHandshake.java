@@ -0,0 +1,81 @@
+package com.desenho.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+
+/**
+ * Completes the permessage-deflate handshake of the drawing endpoint. The
+ * WebSocket container negotiates extensions (see
+ * {@link CompressionConfigurator}) and puts them in the response headers, but
+ * the upgrade itself is done by Vert.x, whose 101 response leaves them out;
+ * the client would then get compressed frames it never agreed to. For upgrade
+ * requests that offer extensions, a one-shot handler on the connection copies
+ * the negotiated ones into the 101 response. If the connection's channel
+ * can't be reached (see {@link NettyChannels}), the offer is dropped instead,
+ * so nothing is negotiated and frames go uncompressed.
+ */
+@ApplicationScoped
+public class DeflateHandshake {
+
+    private static final String HANDLER = "desenho-extension-headers";
+
+    void register(@Observes Router router) {
+        // Ahead of the WebSocket route
+        router.route("/drawing").order(Integer.MIN_VALUE).handler(this::prepare);
+    }
+
+    private void prepare(RoutingContext routingContext) {
+        HttpServerRequest request = routingContext.request();
+        if (request.getHeader(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS) != null) {
+            Channel channel = NettyChannels.of(request.connection());
+            if (channel == null) {
+                request.headers().remove(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+            } else {
+                ChannelPipeline pipeline = channel.pipeline();
+                if (pipeline.get(HANDLER) == null) {
+                    pipeline.addLast(HANDLER, new ExtensionHeaders(routingContext.response()));
+                }
+            }
+        }
+        routingContext.next();
+    }
+
+    /**
+     * Copies the negotiated extensions into the next response written on the
+     * connection if it is the 101, then removes itself.
+     */
+    private static final class ExtensionHeaders extends ChannelOutboundHandlerAdapter {
+        private final HttpServerResponse response;
+
+        ExtensionHeaders(HttpServerResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse) {
+                HttpResponse upgrade = (HttpResponse) msg;
+                String extensions = response.headers().get(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+                if (upgrade.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code() && extensions != null) {
+                    upgrade.headers().set(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS, extensions);
+                }
+                super.write(ctx, msg, promise);
+                ctx.pipeline().remove(this);
+                return;
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+}
@@ -1,17 +1,45 @@
 package com.desenho.websocket;
 
+import com.desenho.model.CanvasImage;
 import com.desenho.model.DrawingMessage;
 import com.desenho.model.Room;
+import com.desenho.model.StrokeSegment;
+import com.desenho.service.BusMessage;
+import com.desenho.service.CanvasCompositor;
+import com.desenho.service.JournalRecord;
+import com.desenho.service.RoomActors;
+import com.desenho.service.RoomBus;
 import com.desenho.service.RoomService;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import jakarta.websocket.*;
 import jakarta.websocket.server.ServerEndpoint;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
-@ServerEndpoint("/drawing")
+@ServerEndpoint(value = "/drawing", configurator = CompressionConfigurator.class)
 @ApplicationScoped
 public class DrawingWebSocket {
 
@@ -20,41 +48,379 @@ public class DrawingWebSocket {
     @Inject
     RoomService roomService;
     
+    @Inject
+    RoomActors roomActors;
+    
+    @Inject
+    MeterRegistry meterRegistry;
+    
+    @Inject
+    RoomBus bus;
+    
+    @Inject
+    RateLimits rateLimits;
+    
+    @ConfigProperty(name = "desenho.strokes.batch-window-ms", defaultValue = "16")
+    long strokeBatchWindowMs;
+    
+    @ConfigProperty(name = "desenho.strokes.batch-max-size", defaultValue = "64")
+    int strokeBatchMaxSize;
+    
+    @ConfigProperty(name = "desenho.canvas.update-max-hz", defaultValue = "4")
+    double canvasUpdateMaxHz;
+    
+    @ConfigProperty(name = "desenho.roster.debounce-ms", defaultValue = "50")
+    long rosterDebounceMs;
+    
+    @ConfigProperty(name = "desenho.websocket.execution-mode", defaultValue = "event-loop")
+    String executionMode;
+    
+    // 0 means two per available processor
+    @ConfigProperty(name = "desenho.websocket.worker-threads", defaultValue = "0")
+    int workerThreads;
+    
+    // What a session may have waiting for the worker or virtual threads
+    @ConfigProperty(name = "desenho.websocket.session-queue.max-messages", defaultValue = "1000")
+    int sessionQueueMaxMessages;
+    
+    @ConfigProperty(name = "desenho.websocket.session-queue.max-bytes", defaultValue = "16777216")
+    long sessionQueueMaxBytes;
+    
+    @ConfigProperty(name = "desenho.outbound.max-bytes", defaultValue = "4194304")
+    long outboundMaxBytes;
+    
+    @ConfigProperty(name = "desenho.compression.level", defaultValue = "1")
+    int compressionLevel;
+    
+    @ConfigProperty(name = "desenho.compression.context-takeover", defaultValue = "true")
+    boolean compressionContextTakeover;
+    
+    @ConfigProperty(name = "desenho.compression.min-bytes", defaultValue = "64")
+    int compressionMinBytes;
+    
+    // Sent uncompressed: their payload is already compressed image data
+    @ConfigProperty(name = "desenho.compression.skip-types",
+            defaultValue = "CANVAS_UPDATE,FORCE_CANVAS_UPDATE,CANVAS_TILE_UPDATE,FLOATING_IMAGE_ADD")
+    Set<String> compressionSkipTypes;
+    
+    // Largest message a client may send in chunks (see MessageChunks)
+    @ConfigProperty(name = "desenho.chunks.max-message-bytes", defaultValue = "16777216")
+    int chunkedMessageMaxBytes;
+    
+    // How long the frames encoded for joining sessions are kept; 0 turns caching off
+    @ConfigProperty(name = "desenho.join.snapshot-ttl-ms", defaultValue = "30000")
+    long joinSnapshotTtlMs;
+    
+    // Fraction of stroke segments traced end to end; 0 turns tracing off
+    @ConfigProperty(name = "desenho.trace.sample-rate", defaultValue = "0")
+    double traceSampleRate;
+    
+    private static final String CONTEXT = "desenho.context";
+    private static final int REPLAY_CHUNK_SEGMENTS = 1000;
+    private static final int TILE_MESSAGE_MAX_CHARS = 512 * 1024;
+    private static final String DRAWING_ACTION_TYPE = DrawingMessage.MessageType.DRAWING_ACTION.name();
+    // Longest DRAWING_ACTION relayed; a traced segment in a long room id is about
+    // 300 characters, so anything past this is padding
+    static final int MAX_STROKE_CHARS = 1024;
+    // Only messages carrying images outgrow a frame, so only they may come in chunks
+    private static final Set<DrawingMessage.MessageType> CHUNKED_TYPES = EnumSet.of(
+            DrawingMessage.MessageType.CANVAS_UPDATE, DrawingMessage.MessageType.FORCE_CANVAS_UPDATE,
+            DrawingMessage.MessageType.CANVAS_TILE_UPDATE, DrawingMessage.MessageType.FLOATING_IMAGE_ADD);
+    private static final String TYPE_PREFIX = "{\"type\":\"";
+    private static final int MAX_TYPE_LENGTH = 32;
+    private static final Map<String, DrawingMessage.MessageType> TYPE_NAMES = new HashMap<>();
+    static {
+        for (DrawingMessage.MessageType type : DrawingMessage.MessageType.values()) {
+            TYPE_NAMES.put(type.name(), type);
+        }
+    }
+    
     private final ObjectMapper objectMapper = new ObjectMapper();
-    private final Map<Session, String> sessionToRoom = new ConcurrentHashMap<>();
-    private final Map<Session, String> sessionToPlayer = new ConcurrentHashMap<>();
-    private final Map<String, Map<Session, String>> roomSessions = new ConcurrentHashMap<>();
+    private final SessionRegistry registry = new SessionRegistry();
+    
+    private ScheduledExecutorService flushScheduler;
+    private StrokeBatcher strokeBatcher;
+    private CanvasCoalescer canvasCoalescer;
+    private OutboundMetrics outboundMetrics;
+    private MessageExecutor messageExecutor;
+    private RosterBroadcaster rosterBroadcaster;
+    private MessageMetrics messageMetrics;
+    private LatencyTracer latencyTracer;
+    private JoinSnapshots joinSnapshots;
+    private FrameCompression frameCompression;
+    private AtomicInteger openSessions;
+    
+    @PostConstruct
+    void init() {
+        outboundMetrics = new OutboundMetrics(meterRegistry);
+        messageMetrics = new MessageMetrics(meterRegistry);
+        openSessions = meterRegistry.gauge("desenho.websocket.sessions", new AtomicInteger());
+        messageExecutor = new MessageExecutor(executionMode, workerThreads, sessionQueueMaxMessages,
+                sessionQueueMaxBytes);
+        if (strokeBatchWindowMs > 0 || canvasUpdateMaxHz > 0 || rosterDebounceMs > 0 || joinSnapshotTtlMs > 0) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "room-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (strokeBatchWindowMs > 0) {
+            strokeBatcher = new StrokeBatcher(strokeBatchWindowMs, strokeBatchMaxSize, flushScheduler,
+                    (roomId, strokes) -> roomActors.execute(roomId, () -> deliverStrokes(roomId, strokes)));
+        }
+        if (canvasUpdateMaxHz > 0) {
+            canvasCoalescer = new CanvasCoalescer(canvasUpdateMaxHz, flushScheduler, roomActors::executor,
+                    this::storeCanvas, meterRegistry);
+        }
+        if (traceSampleRate > 0) {
+            latencyTracer = new LatencyTracer(traceSampleRate, bus.getNodeId(), meterRegistry);
+        }
+        joinSnapshots = new JoinSnapshots(joinSnapshotTtlMs, meterRegistry);
+        frameCompression = new FrameCompression(compressionLevel, compressionContextTakeover, compressionMinBytes,
+                compressionSkipTypes);
+        if (joinSnapshotTtlMs > 0) {
+            flushScheduler.scheduleWithFixedDelay(joinSnapshots::expire, joinSnapshotTtlMs, joinSnapshotTtlMs, TimeUnit.MILLISECONDS);
+        }
+        rosterBroadcaster = new RosterBroadcaster(rosterDebounceMs, flushScheduler, roomActors::executor,
+                this::roomPlayers, this::sendRosterEvent);
+    }
+    
+    @PreDestroy
+    void shutdown() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+        }
+        messageExecutor.shutdown();
+    }
     
     @OnOpen
     public void onOpen(Session session) {
+        // Before anything is sent, so every message goes through the same encoder
+        frameCompression.install(session);
+        OutboundQueue outbound = new OutboundQueue(session, outboundMaxBytes, outboundMetrics, this::resync);
+        session.getUserProperties().put(CONTEXT, new SessionContext(session, outbound,
+                messageExecutor.forSession(() -> disconnectOverloaded(session)),
+                new MessageChunks(chunkedMessageMaxBytes), rateLimits.newSessionBuckets()));
+        openSessions.incrementAndGet();
         // logger.info("New WebSocket connection opened: " + session.getId());
     }
     
+    /**
+     * Hands the message to the configured execution mode (see
+     * {@link MessageExecutor}); a session's messages keep their order.
+     */
     @OnMessage
     public void onMessage(String message, Session session) {
+        inbound(session).offer(() -> processMessage(message, session, null), message.length());
+    }
+    
+    /**
+     * Handles a text message; {@code charged} is the type a chunked message
+     * was already charged as while its chunks came in.
+     */
+    private void processMessage(String message, Session session, DrawingMessage.MessageType charged) {
+        long started = System.nanoTime();
+        SessionContext context = context(session);
+        // Limited before parsing, so a flood costs as little as possible
+        DrawingMessage.MessageType peeked = peekType(message);
+        if (peeked != charged && !admit(context, peeked, 1, message.length())) {
+            return;
+        }
         try {
-             logger.info("Raw message received from session " + session.getId() + ": " + message);
+            // Fast path: pen strokes are relayed verbatim without binding. Longer
+            // ones, and anything put together from chunks, are bound, which
+            // rejects fields a segment doesn't have
+            String relayRoomId = charged == null && message.length() <= MAX_STROKE_CHARS
+                    ? peekDrawingActionRoom(message) : null;
+            if (relayRoomId != null) {
+                // Only into the room the session joined; anything else would let
+                // a socket draw in other rooms and leave batches behind for them
+                if (!requireMember(session, relayRoomId)) {
+                    return;
+                }
+                if (peeked != DrawingMessage.MessageType.DRAWING_ACTION
+                        && !admit(context, DrawingMessage.MessageType.DRAWING_ACTION, 1, message.length())) {
+                    return;
+                }
+                StrokeFrame strokes = StrokeFrame.ofJson(objectMapper, relayRoomId, message, started);
+                messageMetrics.of(DrawingMessage.MessageType.DRAWING_ACTION).received(System.nanoTime() - started);
+                relayStrokes(relayRoomId, strokes, session);
+                return;
+            }
+            
+            // logger.info("Raw message received from session " + session.getId() + ": " + message);
             DrawingMessage drawingMessage = objectMapper.readValue(message, DrawingMessage.class);
-             logger.info("Parsed message type: " + drawingMessage.getType() + " from session: " + session.getId());
-            handleMessage(drawingMessage, session);
+            // The type that counts is the one bound, should the peek have been fooled
+            if (drawingMessage.getType() != peeked && !admit(context, drawingMessage.getType(), 1, message.length())) {
+                return;
+            }
+            MessageMetrics.Meters meters = messageMetrics.of(drawingMessage.getType());
+            meters.received(System.nanoTime() - started);
+            // logger.info("Parsed message type: " + drawingMessage.getType() + " from session: " + session.getId());
+            // Everything that touches a room runs on that room's owner thread
+            roomActors.execute(drawingMessage.getRoomId(), () -> {
+                long handling = System.nanoTime();
+                try {
+                    handleMessage(drawingMessage, session);
+                } catch (RuntimeException e) {
+                    messageMetrics.invalid();
+                    sendErrorMessage(session, "Invalid message format");
+                }
+                meters.handled(System.nanoTime() - handling);
+            });
         } catch (Exception e) {
-             logger.severe("Error processing message from session " + session.getId() + ": " + e.getMessage());
-             logger.severe("Raw message was: " + message);
+            // Only the size and type of the message: it can be megabytes, and
+            // Jackson's original message leaves out its excerpt of the input
+            String reason = e instanceof JsonProcessingException ? ((JsonProcessingException) e).getOriginalMessage() : e.getMessage();
+            logger.severe("Error processing " + (peeked != null ? peeked : "untyped") + " message of " + message.length()
+                    + " characters from session " + session.getId() + ": " + reason);
+            messageMetrics.invalid();
             sendErrorMessage(session, "Invalid message format");
         }
     }
     
+    /**
+     * Binary stroke frames (see {@link StrokeCodec}) carry no room id; they are
+     * routed to the room the session joined. Chunk frames (see
+     * {@link MessageChunks}) are put back together into a text message.
+     */
+    @OnMessage
+    public void onBinaryMessage(ByteBuffer message, Session session) {
+        // Copied here: the container may reuse the buffer once we return
+        byte[] frame = new byte[message.remaining()];
+        message.get(frame);
+        inbound(session).offer(() -> processBinaryMessage(frame, session), frame.length);
+    }
+    
+    private void processBinaryMessage(byte[] frame, Session session) {
+        SessionContext context = context(session);
+        if (context != null && frame.length > 0 && (frame[0] & 0xFF) == MessageChunks.FRAME_CHUNK) {
+            processChunk(frame, context);
+            return;
+        }
+        String roomId = context != null ? context.getRoomId() : null;
+        if (roomId == null) {
+            sendErrorMessage(session, "Entre em uma sala antes de desenhar");
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            List<DrawingMessage.DrawingAction> actions = StrokeCodec.decode(ByteBuffer.wrap(frame));
+            // Charged per segment, as JSON strokes are; a frame carries up to 255
+            if (!admit(context, DrawingMessage.MessageType.DRAWING_ACTION, Math.max(1, actions.size()), frame.length)) {
+                return;
+            }
+            messageMetrics.of(DrawingMessage.MessageType.DRAWING_ACTION).received(System.nanoTime() - started);
+            relayStrokes(roomId, StrokeFrame.ofBinary(objectMapper, roomId, frame, actions, started), session);
+        } catch (Exception e) {
+            messageMetrics.invalid();
+            sendErrorMessage(session, "Invalid message format");
+        }
+    }
+    
+    /**
+     * Takes the message from the session's and its room's budgets (see
+     * {@link RateLimits}) as {@code messages} messages; for text messages,
+     * bytes are counted as characters.
+     * A dropped message is counted, and the client is told once per run of
+     * them; a client that keeps going over its own limits is disconnected.
+     */
+    private boolean admit(SessionContext context, DrawingMessage.MessageType type, int messages, long bytes) {
+        if (context == null || type == null) {
+            return true;
+        }
+        String scope = rateLimits.admit(context.rateBuckets, context.getRoomId(), type, messages, bytes);
+        if (scope == null) {
+            if (context.isThrottled()) {
+                context.setThrottled(false);
+            }
+            return true;
+        }
+        messageMetrics.of(type).rejected(scope);
+        // A full room budget is the whole room's doing, not this member's
+        if (RateLimits.SESSION.equals(scope) && !rateLimits.tolerate(context.rateBuckets)) {
+            disconnectFlooder(context.session);
+        } else if (!context.isThrottled()) {
+            context.setThrottled(true);
+            sendErrorMessage(context.session, "Muitas mensagens; aguarde um momento");
+        }
+        return false;
+    }
+    
+    private void disconnectFlooder(Session session) {
+        if (!session.isOpen()) {
+            return;
+        }
+        messageMetrics.floodDisconnected();
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Mensagens demais"));
+        } catch (IOException | RuntimeException e) {
+            // logger.warning("Failed to close flooding session " + session.getId() + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Closes a session whose messages pile up faster than they are handled;
+     * the client comes back and catches up from the room's state.
+     */
+    private void disconnectOverloaded(Session session) {
+        if (!session.isOpen()) {
+            return;
+        }
+        messageMetrics.overloadDisconnected();
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Servidor ocupado"));
+        } catch (IOException | RuntimeException e) {
+            // logger.warning("Failed to close overloaded session " + session.getId() + ": " + e.getMessage());
+        }
+    }
+    
+    private void processChunk(byte[] frame, SessionContext context) {
+        String message;
+        try {
+            String head = MessageChunks.head(frame, TYPE_PREFIX.length() + MAX_TYPE_LENGTH);
+            if (head != null) {
+                context.chunkedType = peekType(head);
+                if (!CHUNKED_TYPES.contains(context.chunkedType)) {
+                    throw new IllegalArgumentException("Chunked message of a type sent whole");
+                }
+            }
+            // Each chunk is charged as it comes, against the type the first one
+            // named, so a flood is refused before it is put together. Once one
+            // is refused, the rest of its message is let go without charge.
+            if (!context.chunks.continuesDropped(frame) && !admit(context, context.chunkedType,
+                    head != null ? 1 : 0, MessageChunks.payloadBytes(frame))) {
+                context.chunks.drop(frame);
+                return;
+            }
+            message = context.chunks.add(frame);
+        } catch (IllegalArgumentException e) {
+            messageMetrics.invalid();
+            sendErrorMessage(context.session, "Mensagem grande demais ou incompleta");
+            return;
+        }
+        if (message != null) {
+            processMessage(message, context.session, context.chunkedType);
+        }
+    }
+    
     @OnClose
     public void onClose(Session session) {
-        String roomId = sessionToRoom.get(session);
-        String playerName = sessionToPlayer.get(session);
-        
-        if (roomId != null && playerName != null) {
-            leaveRoom(roomId, playerName, session);
+        // After any messages of the session still being handled
+        inbound(session).execute(() -> closeSession(session));
+    }
+    
+    private void closeSession(Session session) {
+        SessionContext context = context(session);
+        if (context == null) {
+            return;
         }
-        
-        sessionToRoom.remove(session);
-        sessionToPlayer.remove(session);
+        SessionContext.Membership membership = context.getMembership();
+        if (membership != null) {
+            roomActors.execute(membership.roomId, () -> leaveRoom(membership));
+        }
+        context.outbound.close();
+        openSessions.decrementAndGet();
         // logger.info("WebSocket connection closed: " + session.getId());
     }
     
@@ -67,28 +433,52 @@ public class DrawingWebSocket {
         switch (message.getType()) {
             case JOIN_ROOM:
                 // logger.info("JOIN_ROOM request: " + message.getRoomId() + " player: " + message.getPlayerName() + " session: " + session.getId());
-                joinRoom(message.getRoomId(), message.getPlayerName(), session);
+                joinRoom(message.getRoomId(), message.getPlayerName(), Boolean.TRUE.equals(message.getBinaryStrokes()),
+                        Boolean.TRUE.equals(message.getBinaryCanvas()), message.getRoomVersion(), session);
                 break;
             case LEAVE_ROOM:
-                leaveRoom(message.getRoomId(), message.getPlayerName(), session);
+                leaveCurrentRoom(message.getRoomId(), session);
+                break;
+            case ROSTER_REQUEST:
+                if (isIn(session, message.getRoomId())) {
+                    sendPlayerList(message.getRoomId(), session);
+                }
+                break;
+            case STROKE_ACK:
+                if (latencyTracer != null && message.getDrawingAction() != null && isIn(session, message.getRoomId())) {
+                    latencyTracer.acknowledged(message.getRoomId(), message.getDrawingAction());
+                }
                 break;
             case CANVAS_UPDATE:
-                updateCanvas(message.getRoomId(), message.getCanvasData(), session);
+                if (requireMember(session, message.getRoomId())) {
+                    updateCanvas(message.getRoomId(), message.getCanvasData(), session);
+                }
                 break;
             case FORCE_CANVAS_UPDATE:
-                forceUpdateCanvas(message.getRoomId(), message.getCanvasData(), session);
+                if (requireMember(session, message.getRoomId())) {
+                    forceUpdateCanvas(message.getRoomId(), message.getCanvasData(), session);
+                }
+                break;
+            case CANVAS_TILE_UPDATE:
+                if (requireMember(session, message.getRoomId())) {
+                    updateCanvasTiles(message.getRoomId(), message.getTiles());
+                }
                 break;
             case DRAWING_ACTION:
                 broadcastDrawingAction(message, session);
                 break;
             case CLEAR_CANVAS:
-                clearCanvas(message.getRoomId(), session);
+                if (requireMember(session, message.getRoomId())) {
+                    clearCanvas(message.getRoomId(), session);
+                }
                 break;
             case FLOATING_IMAGE_ADD:
                 addFloatingImage(message, session);
                 break;
             case FLOATING_IMAGE_REMOVE:
-                removeFloatingImage(message, session);
+                if (requireMember(session, message.getRoomId())) {
+                    removeFloatingImage(message, session);
+                }
                 break;
             default:
                 // logger.warning("Unknown message type: " + message.getType() + " from session: " + session.getId());
@@ -96,10 +486,12 @@ public class DrawingWebSocket {
         }
     }
     
-    private void joinRoom(String roomId, String playerName, Session session) {
+    private void joinRoom(String roomId, String playerName, boolean binaryStrokes, boolean binaryCanvas, String resumeFrom,
+                          Session session) {
         // logger.info("Attempting to join room: " + roomId + " with player: " + playerName + " session: " + session.getId());
         
-        // Check if player name is already taken in this room
+        // Check if player name is already taken in this room; joins of a room run
+        // one at a time on its owner thread, so the check cannot go stale
         Room room = roomService.getRoom(roomId);
         if (room != null && room.getPlayers().contains(playerName)) {
             // logger.warning("Player name " + playerName + " already exists in room " + roomId);
@@ -107,157 +499,846 @@ public class DrawingWebSocket {
             return;
         }
         
-        // Remove from previous room if any
-        String previousRoom = sessionToRoom.get(session);
-        if (previousRoom != null) {
-            // logger.info("Removing player from previous room: " + previousRoom);
-            leaveRoom(previousRoom, sessionToPlayer.get(session), session);
+        SessionContext context = context(session);
+        if (context == null) {
+            return;
         }
         
-        // Add to new room
+        // Add to new room; the session's messages route there from now on
         // logger.info("Adding player " + playerName + " to room " + roomId);
         roomService.addPlayerToRoom(roomId, playerName);
-        sessionToRoom.put(session, roomId);
-        sessionToPlayer.put(session, playerName);
+        SessionContext.Membership previous = registry.join(context, roomId, playerName);
+        messageMetrics.trackRoom(roomId, id -> registry.members(id).length, roomService::getResidentCanvasBytes);
         
-        // Add session to room sessions
-        roomSessions.computeIfAbsent(roomId, k -> new ConcurrentHashMap<>()).put(session, playerName);
-        // logger.info("Added session to roomSessions. Room " + roomId + " now has " + roomSessions.get(roomId).size() + " sessions");
+        // Remove from previous room if any, on that room's owner thread
+        if (previous != null) {
+            // logger.info("Removing player from previous room: " + previous.roomId);
+            roomActors.execute(previous.roomId, () -> leaveRoom(previous));
+        }
         
-        // Send current canvas data to the new player
-        room = roomService.getRoom(roomId);
-        if (room != null && room.getCanvasData() != null && !room.getCanvasData().isEmpty()) {
-            // logger.info("Sending existing canvas data to new player");
-            sendCanvasData(session, room.getCanvasData());
-        } else {
-            // logger.info("No existing canvas data found for room " + roomId);
+        // Binary stroke and canvas frames are opt-in per connection and confirmed to the joiner
+        context.setBinaryStrokes(binaryStrokes);
+        context.setBinaryCanvas(binaryCanvas);
+        DrawingMessage accepted = new DrawingMessage();
+        accepted.setType(DrawingMessage.MessageType.JOIN_ACCEPTED);
+        accepted.setRoomId(roomId);
+        accepted.setPlayerName(playerName);
+        accepted.setBinaryStrokes(binaryStrokes);
+        accepted.setBinaryCanvas(binaryCanvas);
+        if (latencyTracer != null) {
+            accepted.setTraceSampleRate(latencyTracer.getSampleRate());
         }
-
-        // Send existing floating images to the new player
-        for (DrawingMessage img : roomService.getFloatingImages(roomId)) {
-            sendMessage(session, img);
+        
+        // A copy of a room owned by another node first catches up with the owner.
+        // A reconnecting client that presents the version it last saw only gets
+        // the changes since, if this room can still tell them
+        CompletableFuture<Void> current = roomService.awaitState(roomId);
+        Room.Changes changes = resumeFrom != null && current.isDone() ? roomService.getRoomChanges(roomId, resumeFrom) : null;
+        boolean resumed = changes != null && changes.isResumable();
+        accepted.setResumed(resumeFrom != null ? resumed : null);
+        sendMessage(session, accepted);
+        if (resumed) {
+            joinSnapshots.resumed(JoinSnapshots.DELTA);
+            sendParts(session, joinSnapshots.delta(roomId, changes.getVersion(), resumeFrom,
+                    () -> changeParts(roomId, changes)));
+        } else if (current.isDone()) {
+            if (changes != null) {
+                // Its canvas is older than anything a delta can fix; start over
+                joinSnapshots.resumed(JoinSnapshots.RESYNC);
+                sendResync(roomId, session);
+            } else if (resumeFrom != null) {
+                joinSnapshots.resumed(JoinSnapshots.FULL);
+            }
+            sendRoomState(roomId, session);
+        } else {
+            current.thenRunAsync(() -> {
+                if (session.isOpen() && context.isIn(roomId)) {
+                    sendRoomState(roomId, session);
+                }
+            }, roomActors.executor(roomId));
         }
         
-        // Broadcast updated player list
-        broadcastPlayerList(roomId);
+        // The joiner gets the full roster, everyone else a PLAYER_JOINED event
+        sendPlayerList(roomId, session);
+        rosterChanged(roomId);
         
         // logger.info("Player " + playerName + " successfully joined room " + roomId);
     }
     
-    private void leaveRoom(String roomId, String playerName, Session session) {
-        roomService.removePlayerFromRoom(roomId, playerName);
+    /**
+     * Sends the room's canvas and floating images to one session, then the
+     * version they are as of. Sessions joining an unchanged room share the
+     * frames encoded for the first one; see {@link JoinSnapshots}.
+     */
+    private void sendRoomState(String roomId, Session session) {
+        List<JoinSnapshots.Part> cached = joinSnapshots.getFull(roomId, roomService.getRoomVersion(roomId));
+        if (cached != null) {
+            sendParts(session, cached);
+            return;
+        }
+        // Prefer a checkpoint rendered by the server; it arrives once the room's
+        // raster has caught up, followed by whatever was logged after it
+        CompletableFuture<CanvasCompositor.Checkpoint> rendered = roomService.renderCheckpoint(roomId);
+        if (rendered != null) {
+            rendered.thenAcceptAsync(checkpoint -> {
+                if (session.isOpen() && isIn(session, roomId)) {
+                    sendParts(session, joinSnapshots.full(roomId, roomService.getRoomVersion(roomId),
+                            () -> stateParts(roomId, checkpoint)));
+                }
+            }, roomActors.executor(roomId));
+        } else {
+            sendParts(session, joinSnapshots.full(roomId, roomService.getRoomVersion(roomId),
+                    () -> stateParts(roomId, null)));
+        }
+    }
+    
+    /**
+     * The room's state: the server-rendered {@code checkpoint} if there is one,
+     * else the last canvas clients checkpointed; then the strokes drawn since,
+     * the floating images and the version all of it is as of. The version is
+     * taken first, so the frames are at least that recent.
+     */
+    private List<JoinSnapshots.Part> stateParts(String roomId, CanvasCompositor.Checkpoint checkpoint) {
+        String version = roomService.getRoomVersion(roomId);
+        List<JoinSnapshots.Part> parts = new ArrayList<>();
+        if (checkpoint != null) {
+            parts.add(tilesPart(roomId, checkpoint.getTiles()));
+            parts.addAll(strokeParts(roomId, roomService.getStrokeLogSince(roomId, checkpoint.getSeq())));
+        } else {
+            Room room = roomService.getRoom(roomId);
+            if (room != null && room.getCanvasData() != null) {
+                parts.add(canvasPart(room.getCanvasData()));
+            }
+            if (room != null) {
+                parts.add(tilesPart(roomId, room.getTiles()));
+            }
+            // The strokes drawn since that checkpoint
+            parts.addAll(strokeParts(roomId, roomService.getStrokeLogSince(roomId, 0)));
+        }
+        for (DrawingMessage image : roomService.getFloatingImages(roomId)) {
+            parts.add(messagePart(image));
+        }
+        parts.add(versionPart(roomId, version));
+        return parts;
+    }
+    
+    /**
+     * What changed since the version a reconnecting session presented, applied
+     * over the canvas it still has.
+     */
+    private List<JoinSnapshots.Part> changeParts(String roomId, Room.Changes changes) {
+        List<JoinSnapshots.Part> parts = new ArrayList<>();
+        if (!changes.getTiles().isEmpty()) {
+            parts.add(tilesPart(roomId, changes.getTiles()));
+        }
+        parts.addAll(strokeParts(roomId, changes.getStrokes()));
+        for (String imageId : changes.getRemovedImageIds()) {
+            DrawingMessage removal = new DrawingMessage();
+            removal.setType(DrawingMessage.MessageType.FLOATING_IMAGE_REMOVE);
+            removal.setRoomId(roomId);
+            removal.setImageId(imageId);
+            parts.add(messagePart(removal));
+        }
+        for (DrawingMessage image : changes.getImages()) {
+            parts.add(messagePart(image));
+        }
+        parts.add(versionPart(roomId, changes.getVersion()));
+        return parts;
+    }
+    
+    private JoinSnapshots.Part canvasPart(CanvasImage canvasData) {
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.CANVAS_UPDATE);
+        message.setCanvasData(canvasData);
+        return new JoinSnapshots.Part(message.getType(), true, () -> encodeAll(List.of(message)),
+                () -> {
+                    byte[] frame = CanvasCodec.encodeCanvas(canvasData, false);
+                    return frame != null ? List.of(frame) : null;
+                });
+    }
+    
+    /**
+     * Tiles split into messages that stay well under the WebSocket frame limit.
+     */
+    private JoinSnapshots.Part tilesPart(String roomId, List<DrawingMessage.CanvasTile> tiles) {
+        return new JoinSnapshots.Part(DrawingMessage.MessageType.CANVAS_TILE_UPDATE, true, () -> {
+            List<DrawingMessage> messages = new ArrayList<>();
+            int from = 0;
+            int chars = 0;
+            for (int i = 0; i < tiles.size(); i++) {
+                CanvasImage data = tiles.get(i).getData();
+                int length = data != null ? data.getDataUrlLength() : 0;
+                if (i > from && chars + length > TILE_MESSAGE_MAX_CHARS) {
+                    messages.add(tileMessage(roomId, tiles.subList(from, i)));
+                    from = i;
+                    chars = 0;
+                }
+                chars += length;
+            }
+            if (from < tiles.size()) {
+                messages.add(tileMessage(roomId, tiles.subList(from, tiles.size())));
+            }
+            return encodeAll(messages);
+        }, () -> CanvasCodec.encodeTiles(tiles, TILE_MESSAGE_MAX_CHARS));
+    }
+    
+    private static DrawingMessage tileMessage(String roomId, List<DrawingMessage.CanvasTile> tiles) {
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.CANVAS_TILE_UPDATE);
+        message.setRoomId(roomId);
+        message.setTiles(tiles);
+        return message;
+    }
+    
+    /**
+     * Logged segments in chunks, using the same batch frames as live relays.
+     */
+    private List<JoinSnapshots.Part> strokeParts(String roomId, List<DrawingMessage.DrawingAction> log) {
+        List<JoinSnapshots.Part> parts = new ArrayList<>();
+        for (int start = 0; start < log.size(); start += REPLAY_CHUNK_SEGMENTS) {
+            List<DrawingMessage.DrawingAction> chunk = log.subList(start, Math.min(log.size(), start + REPLAY_CHUNK_SEGMENTS));
+            List<StrokeFrame> frames = new ArrayList<>();
+            for (int i = 0; i < chunk.size(); i += StrokeCodec.MAX_RECORDS) {
+                frames.add(StrokeFrame.ofActions(objectMapper, roomId, chunk.subList(i, Math.min(chunk.size(), i + StrokeCodec.MAX_RECORDS))));
+            }
+            StrokeBatch batch = new StrokeBatch(objectMapper, roomId, frames);
+            parts.add(new JoinSnapshots.Part(DrawingMessage.MessageType.DRAWING_ACTION_BATCH, false,
+                    () -> List.of(batch.jsonFrame()), batch::binaryFrames));
+        }
+        return parts;
+    }
+    
+    private JoinSnapshots.Part messagePart(DrawingMessage message) {
+        return new JoinSnapshots.Part(message.getType(), false, () -> encodeAll(List.of(message)), null);
+    }
+    
+    private JoinSnapshots.Part versionPart(String roomId, String version) {
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.ROOM_VERSION);
+        message.setRoomId(roomId);
+        message.setRoomVersion(version);
+        return messagePart(message);
+    }
+    
+    private List<String> encodeAll(List<DrawingMessage> messages) {
+        List<String> frames = new ArrayList<>(messages.size());
+        for (DrawingMessage message : messages) {
+            String frame = encode(message);
+            if (frame != null) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+    
+    /**
+     * Sends parts of the room state to one session, as binary frames where it
+     * opted into them.
+     */
+    private void sendParts(Session session, List<JoinSnapshots.Part> parts) {
+        SessionContext context = context(session);
+        if (context == null) {
+            return;
+        }
+        for (JoinSnapshots.Part part : parts) {
+            MessageMetrics.Meters meters = messageMetrics.of(part.type);
+            boolean binary = part.canvas ? context.isBinaryCanvas() : context.isBinaryStrokes();
+            List<byte[]> binaryFrames = binary ? part.binary() : null;
+            if (binaryFrames != null) {
+                for (byte[] frame : binaryFrames) {
+                    sendBinaryFrame(session, frame, meters);
+                }
+            } else {
+                for (String frame : part.json()) {
+                    sendFrame(session, frame, meters);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tells the room's sessions here which state version they are up to date
+     * with, after a tile checkpoint; they present it when they reconnect.
+     */
+    private void announceRoomVersion(String roomId) {
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.ROOM_VERSION);
+        message.setRoomId(roomId);
+        message.setRoomVersion(roomService.getRoomVersion(roomId));
+        String frame = message.getRoomVersion() != null ? encode(message) : null;
+        if (frame != null) {
+            fanOutFrame(roomId, frame, message.getType(), null);
+        }
+    }
+    
+    /**
+     * Called when a session fell too far behind and its backlog was dropped: the
+     * client discards what it has and gets the room state again, as on join.
+     */
+    private void resync(Session session) {
+        SessionContext context = context(session);
+        String roomId = context != null ? context.getRoomId() : null;
+        if (roomId != null) {
+            roomActors.execute(roomId, () -> resyncRoom(roomId, session));
+        }
+    }
+    
+    private void resyncRoom(String roomId, Session session) {
+        Room room = roomService.getRoom(roomId);
+        if (room == null || !isIn(session, roomId)) {
+            return;
+        }
+        sendResync(roomId, session);
+        sendRoomState(roomId, session);
+        sendPlayerList(roomId, session);
+    }
+    
+    private void sendResync(String roomId, Session session) {
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.RESYNC);
+        message.setRoomId(roomId);
+        sendMessage(session, message);
+    }
+    
+    /**
+     * Leaves the room on request of the session itself; a request naming a room
+     * the session is no longer in is ignored.
+     */
+    private void leaveCurrentRoom(String roomId, Session session) {
+        SessionContext context = context(session);
+        SessionContext.Membership membership = context != null ? context.getMembership() : null;
+        if (membership != null && membership.roomId.equals(roomId)) {
+            leaveRoom(membership);
+        }
+    }
+    
+    /**
+     * Ends one membership; runs on the room's owner thread, like the join.
+     */
+    private void leaveRoom(SessionContext.Membership membership) {
+        String roomId = membership.roomId;
+        roomService.removePlayerFromRoom(roomId, membership.playerName);
         
-        // Remove session from room sessions
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            sessions.remove(session);
-            if (sessions.isEmpty()) {
-                roomSessions.remove(roomId);
+        if (registry.leave(membership)) {
+            // Last session of the room on this node
+            if (strokeBatcher != null) {
+                strokeBatcher.discard(roomId);
+            }
+            if (canvasCoalescer != null) {
+                canvasCoalescer.discard(roomId);
+            }
+            rosterBroadcaster.discard(roomId);
+            joinSnapshots.discard(roomId);
+            messageMetrics.untrackRoom(roomId);
+            rateLimits.discardRoom(roomId);
+            if (latencyTracer != null) {
+                latencyTracer.discard(roomId);
             }
         }
         
-        // Broadcast updated player list
-        broadcastPlayerList(roomId);
+        // Tell the rest of the room
+        rosterChanged(roomId);
         
-        // logger.info("Player " + playerName + " left room " + roomId);
+        // logger.info("Player " + membership.playerName + " left room " + roomId);
     }
     
-    private void updateCanvas(String roomId, String canvasData, Session session) {
-        roomService.updateRoomCanvas(roomId, canvasData);
+    /**
+     * Full canvas snapshots go through the per-room coalescer when enabled, so a
+     * burst of them is stored and broadcast once.
+     */
+    private void updateCanvas(String roomId, CanvasImage canvasData, Session session) {
+        if (canvasCoalescer != null) {
+            canvasCoalescer.submit(roomId, session, canvasData);
+        } else {
+            storeCanvas(roomId, new CanvasCoalescer.PendingCanvas(session, canvasData));
+        }
+    }
+    
+    private void storeCanvas(String roomId, CanvasCoalescer.PendingCanvas canvas) {
+        roomService.updateRoomCanvas(roomId, canvas.canvasData);
         
         // Broadcast canvas update to all other players in the room
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            DrawingMessage message = new DrawingMessage();
-            message.setType(DrawingMessage.MessageType.CANVAS_UPDATE);
-            message.setRoomId(roomId);
-            message.setCanvasData(canvasData);
-            
-            sessions.keySet().forEach(s -> {
-                if (!s.equals(session)) {
-                    sendMessage(s, message);
-                }
-            });
-        }
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.CANVAS_UPDATE);
+        message.setRoomId(roomId);
+        message.setCanvasData(canvas.canvasData);
+        broadcastCanvas(roomId, message, Collections.singletonList(CanvasCodec.encodeCanvas(canvas.canvasData, false)),
+                canvas.sender);
     }
     
-    private void forceUpdateCanvas(String roomId, String canvasData, Session session) {
+    private void forceUpdateCanvas(String roomId, CanvasImage canvasData, Session session) {
+        if (canvasCoalescer != null) {
+            canvasCoalescer.supersede(roomId);
+        }
         roomService.updateRoomCanvas(roomId, canvasData);
         
         // Broadcast FORCE canvas update to all other players in the room (for image uploads)
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            DrawingMessage message = new DrawingMessage();
-            message.setType(DrawingMessage.MessageType.FORCE_CANVAS_UPDATE);
-            message.setRoomId(roomId);
-            message.setCanvasData(canvasData);
-            
-            sessions.keySet().forEach(s -> {
-                if (!s.equals(session)) {
-                    sendMessage(s, message);
-                }
-            });
-        }
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.FORCE_CANVAS_UPDATE);
+        message.setRoomId(roomId);
+        message.setCanvasData(canvasData);
+        broadcastCanvas(roomId, message, Collections.singletonList(CanvasCodec.encodeCanvas(canvasData, true)), session);
         // logger.info("Force canvas update broadcasted to " + (sessions != null ? sessions.size() - 1 : 0) + " other players in room " + roomId);
     }
     
+    /**
+     * Stores a member's tile checkpoint. It isn't relayed: every member already
+     * drew the strokes it renders, and sessions that join, resume or resync get
+     * the stored tiles with the room state. Members only learn the new version.
+     */
+    private void updateCanvasTiles(String roomId, List<DrawingMessage.CanvasTile> tiles) {
+        if (!roomService.updateRoomTiles(roomId, tiles).isEmpty()) {
+            announceRoomVersion(roomId);
+        }
+    }
+    
     private void broadcastDrawingAction(DrawingMessage message, Session session) {
-        String roomId = message.getRoomId();
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            sessions.keySet().forEach(s -> {
-                if (!s.equals(session)) {
-                    sendMessage(s, message);
+        if (!requireMember(session, message.getRoomId())) {
+            return;
+        }
+        // Only the segment goes on, whatever else the message carried
+        DrawingMessage stroke = new DrawingMessage();
+        stroke.setType(DrawingMessage.MessageType.DRAWING_ACTION);
+        stroke.setRoomId(message.getRoomId());
+        stroke.setDrawingAction(message.getDrawingAction());
+        String frame = message.getDrawingAction() != null ? encode(stroke) : null;
+        if (frame == null || frame.length() > MAX_STROKE_CHARS) {
+            messageMetrics.invalid();
+            sendErrorMessage(session, "Invalid message format");
+            return;
+        }
+        relayStrokes(message.getRoomId(), StrokeFrame.ofJson(objectMapper, message.getRoomId(), frame, System.nanoTime()), session);
+    }
+    
+    /**
+     * Relays stroke segments to the rest of the room, through the per-room
+     * batcher when a flush window is configured.
+     */
+    private void relayStrokes(String roomId, StrokeFrame strokes, Session sender) {
+        if (strokeBatcher != null) {
+            strokeBatcher.submit(roomId, sender, strokes);
+        } else {
+            List<StrokeBatcher.PendingStroke> single = List.of(new StrokeBatcher.PendingStroke(sender, strokes));
+            roomActors.execute(roomId, () -> deliverStrokes(roomId, single));
+        }
+    }
+    
+    /**
+     * Fans a group of stroke segments out to the room, skipping each segment's
+     * sender. Binary-capable sessions get the compact encoding and everyone else
+     * JSON; each representation is built at most once for the recipients that see
+     * every segment, and separately only for recipients who sent part of it.
+     */
+    private void deliverStrokes(String roomId, List<StrokeBatcher.PendingStroke> strokes) {
+        SessionContext.Membership[] members = registry.members(roomId);
+        if (members.length == 0) {
+            return;
+        }
+        long started = System.nanoTime();
+        // JSON segments are logged unbound: a relay only binds them if tracing is on
+        List<StrokeSegment> segments = new ArrayList<>(strokes.size());
+        for (StrokeBatcher.PendingStroke stroke : strokes) {
+            segments.addAll(stroke.frame.segments());
+        }
+        roomService.appendStrokes(roomId, segments);
+        fanOutStrokes(roomId, members, strokes);
+        long dispatched = System.nanoTime();
+        if (latencyTracer != null) {
+            traceStrokes(roomId, strokes, dispatched);
+        }
+        messageMetrics.of(DrawingMessage.MessageType.DRAWING_ACTION).handled(dispatched - started);
+    }
+    
+    private void traceStrokes(String roomId, List<StrokeBatcher.PendingStroke> strokes, long dispatched) {
+        for (StrokeBatcher.PendingStroke stroke : strokes) {
+            for (DrawingMessage.DrawingAction action : stroke.frame.actions()) {
+                if (action.getSeq() != null) {
+                    latencyTracer.dispatched(roomId, action, stroke.frame.getReceivedNanos(), dispatched);
                 }
-            });
+            }
         }
     }
     
-    private void clearCanvas(String roomId, Session session) {
-        roomService.updateRoomCanvas(roomId, null);
+    private void fanOutStrokes(String roomId, SessionContext.Membership[] members, List<StrokeBatcher.PendingStroke> strokes) {
+        List<StrokeFrame> frames = new ArrayList<>(strokes.size());
+        for (StrokeBatcher.PendingStroke stroke : strokes) {
+            frames.add(stroke.frame);
+        }
+        StrokeBatch everything = new StrokeBatch(objectMapper, roomId, frames);
         
-        // Broadcast clear canvas to all players in the room
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            DrawingMessage message = new DrawingMessage();
-            message.setType(DrawingMessage.MessageType.CLEAR_CANVAS);
-            message.setRoomId(roomId);
-            
-            sessions.keySet().forEach(s -> sendMessage(s, message));
+        int recipients = 0;
+        long bytes = 0;
+        for (SessionContext.Membership member : members) {
+            SessionContext s = member.context;
+            StrokeBatch batch = everything;
+            if (isSender(s.session, strokes)) {
+                List<StrokeFrame> others = new ArrayList<>(strokes.size());
+                for (StrokeBatcher.PendingStroke stroke : strokes) {
+                    if (!s.session.equals(stroke.sender)) {
+                        others.add(stroke.frame);
+                    }
+                }
+                batch = new StrokeBatch(objectMapper, roomId, others);
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            OutboundQueue outbound = s.outbound;
+            List<byte[]> binary = s.isBinaryStrokes() ? batch.binaryFrames() : null;
+            if (binary != null) {
+                for (byte[] frame : binary) {
+                    outbound.relay(frame);
+                    bytes += frame.length;
+                }
+            } else {
+                String frame = batch.jsonFrame();
+                outbound.relay(frame, null);
+                bytes += frame.length();
+            }
+            recipients++;
         }
+        messageMetrics.of(DrawingMessage.MessageType.DRAWING_ACTION).fannedOut(recipients, bytes);
     }
     
-    private void broadcastPlayerList(String roomId) {
-        Room room = roomService.getRoom(roomId);
-        if (room == null) return;
-        
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            DrawingMessage message = new DrawingMessage();
-            message.setType(DrawingMessage.MessageType.PLAYER_LIST_UPDATE);
-            message.setRoomId(roomId);
-            message.setPlayerName(String.join(",", room.getPlayers()));
-            
-            sessions.keySet().forEach(s -> sendMessage(s, message));
+    private static boolean isSender(Session session, List<StrokeBatcher.PendingStroke> strokes) {
+        for (StrokeBatcher.PendingStroke stroke : strokes) {
+            if (session.equals(stroke.sender)) {
+                return true;
+            }
         }
+        return false;
     }
     
-    private void sendCanvasData(Session session, String canvasData) {
+    private void clearCanvas(String roomId, Session session) {
+        if (canvasCoalescer != null) {
+            canvasCoalescer.supersede(roomId);
+        }
+        roomService.clearRoomCanvas(roomId);
+        
+        // Broadcast clear canvas to all players in the room
         DrawingMessage message = new DrawingMessage();
-        message.setType(DrawingMessage.MessageType.CANVAS_UPDATE);
-        message.setCanvasData(canvasData);
+        message.setType(DrawingMessage.MessageType.CLEAR_CANVAS);
+        message.setRoomId(roomId);
+        broadcast(roomId, message, null);
+    }
+    
+    private void rosterChanged(String roomId) {
+        rosterBroadcaster.changed(roomId);
+    }
+    
+    /**
+     * Sends the room's full roster, with its version, to one session.
+     */
+    private void sendPlayerList(String roomId, Session session) {
+        RosterBroadcaster.Roster roster = rosterBroadcaster.current(roomId);
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.PLAYER_LIST_UPDATE);
+        message.setRoomId(roomId);
+        message.setPlayerName(String.join(",", roster.players));
+        message.setRosterVersion(roster.version);
         sendMessage(session, message);
     }
     
+    /**
+     * Fans a roster event out to the room's sessions on this node; other nodes
+     * derive their own from the relayed joins and leaves.
+     */
+    private void sendRosterEvent(String roomId, boolean joined, List<String> players, long version) {
+        DrawingMessage message = new DrawingMessage();
+        message.setType(joined ? DrawingMessage.MessageType.PLAYER_JOINED : DrawingMessage.MessageType.PLAYER_LEFT);
+        message.setRoomId(roomId);
+        message.setPlayerName(String.join(",", players));
+        message.setRosterVersion(version);
+        String frame = encode(message);
+        if (frame != null) {
+            fanOutFrame(roomId, frame, message.getType(), null);
+        }
+    }
+    
+    private Collection<String> roomPlayers(String roomId) {
+        Room room = roomService.getRoom(roomId);
+        return room != null ? room.getPlayers() : Collections.emptySet();
+    }
+    
     private void sendMessage(Session session, DrawingMessage message) {
-        try {
-            if (session.isOpen()) {
-                // Use async remote to avoid blocking IO thread
-                session.getAsyncRemote().sendText(objectMapper.writeValueAsString(message));
+        String frame = encode(message);
+        if (frame != null) {
+            sendFrame(session, frame, messageMetrics.of(message.getType()));
+        }
+    }
+    
+    /**
+     * Encodes the message once and fans the resulting frame out to every session
+     * in the room except {@code exclude} (which may be null to include everyone).
+     */
+    private void broadcast(String roomId, DrawingMessage message, Session exclude) {
+        if (registry.members(roomId).length == 0) {
+            return;
+        }
+        String frame = encode(message);
+        if (frame != null) {
+            broadcastFrame(roomId, frame, message.getType(), exclude);
+        }
+    }
+    
+    /**
+     * Queues an already encoded frame for every session in the room except
+     * {@code exclude}. The frame is relayed to the room's sessions on other
+     * nodes too.
+     */
+    private void broadcastFrame(String roomId, String frame, DrawingMessage.MessageType type, Session exclude) {
+        fanOutFrame(roomId, frame, type, exclude);
+        publishFrame(roomId, frame, type);
+    }
+    
+    /**
+     * Like {@link #broadcast}, for messages carrying canvas images: sessions that
+     * take binary canvas frames get {@code binaryFrames} (null if the images
+     * can't go as binary), and the JSON frame is only encoded if a session here
+     * or another node needs it.
+     */
+    private void broadcastCanvas(String roomId, DrawingMessage message, List<byte[]> binaryFrames, Session exclude) {
+        SessionContext.Membership[] members = registry.members(roomId);
+        if (members.length == 0) {
+            return;
+        }
+        if (binaryFrames != null && binaryFrames.contains(null)) {
+            binaryFrames = null;
+        }
+        OutboundQueue.Kind kind = OutboundQueue.Kind.of(message.getType());
+        String frame = null;
+        int recipients = 0;
+        long bytes = 0;
+        for (SessionContext.Membership member : members) {
+            SessionContext s = member.context;
+            if (s.session == exclude) {
+                continue;
             }
+            if (binaryFrames != null && s.isBinaryCanvas()) {
+                for (byte[] binary : binaryFrames) {
+                    s.outbound.relay(binary, kind);
+                    bytes += binary.length;
+                }
+            } else {
+                if (frame == null && (frame = encode(message)) == null) {
+                    return;
+                }
+                s.outbound.relay(frame, kind);
+                bytes += frame.length();
+            }
+            recipients++;
+        }
+        messageMetrics.of(message.getType()).fannedOut(recipients, bytes);
+        if (bus.isClustered() && (frame != null || (frame = encode(message)) != null)) {
+            publishFrame(roomId, frame, message.getType());
+        }
+    }
+    
+    private void publishFrame(String roomId, String frame, DrawingMessage.MessageType type) {
+        if (bus.isClustered()) {
+            BusMessage message = new BusMessage(BusMessage.Type.FRAME, roomId);
+            message.setFrame(frame);
+            message.setMessageType(type);
+            bus.publish(message);
+        }
+    }
+    
+    private void fanOutFrame(String roomId, String frame, DrawingMessage.MessageType type, Session exclude) {
+        // Frames of some types make older queued ones redundant
+        OutboundQueue.Kind kind = type != null ? OutboundQueue.Kind.of(type) : null;
+        int recipients = 0;
+        for (SessionContext.Membership member : registry.members(roomId)) {
+            if (member.context.session != exclude) {
+                member.context.outbound.relay(frame, kind);
+                recipients++;
+            }
+        }
+        messageMetrics.of(type).fannedOut(recipients, (long) frame.length() * recipients);
+    }
+    
+    /**
+     * Handles traffic from other nodes. Room messages run on the room's owner
+     * thread, in the order the origin node sent them.
+     */
+    void onBusMessage(@Observes BusMessage message) {
+        switch (message.getType()) {
+            case NODE_UP:
+                // Tell the new node who is connected here
+                registry.forEachRoom((roomId, members) -> {
+                    for (SessionContext.Membership member : members) {
+                        roomService.announcePlayer(message.getOrigin(), roomId, member.playerName);
+                    }
+                });
+                break;
+            case NODE_DOWN:
+                for (String roomId : roomService.dropRemotePlayers(message.getOrigin())) {
+                    roomActors.execute(roomId, () -> rosterChanged(roomId));
+                }
+                break;
+            default:
+                if (message.getRoomId() != null) {
+                    roomActors.execute(message.getRoomId(), () -> handleBusMessage(message));
+                }
+        }
+    }
+    
+    private void handleBusMessage(BusMessage message) {
+        String roomId = message.getRoomId();
+        switch (message.getType()) {
+            case FRAME:
+                fanOutFrame(roomId, message.getFrame(), message.getMessageType(), null);
+                break;
+            case MUTATION:
+                if (!roomService.applyRemoteMutation(message)) {
+                    break;
+                }
+                if (message.getRecord().getOp() == JournalRecord.Op.STROKES) {
+                    SessionContext.Membership[] members = registry.members(roomId);
+                    if (members.length > 0) {
+                        fanOutStrokes(roomId, members, remoteStrokes(roomId, message.getRecord().getActions()));
+                    }
+                } else if (message.getRecord().getOp() == JournalRecord.Op.TILES) {
+                    // Tile checkpoints aren't relayed as frames; see updateCanvasTiles
+                    announceRoomVersion(roomId);
+                }
+                break;
+            case PLAYER_JOINED:
+                roomService.addRemotePlayer(message.getOrigin(), roomId, message.getPlayerName());
+                rosterChanged(roomId);
+                break;
+            case PLAYER_LEFT:
+                roomService.removeRemotePlayer(message.getOrigin(), roomId, message.getPlayerName());
+                rosterChanged(roomId);
+                break;
+            case STATE_REQUEST:
+                bus.send(message.getOrigin(), roomService.stateFor(roomId));
+                break;
+            case STATE:
+                roomService.applyState(message);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Stroke segments drawn on another node, in frames no session here sent.
+     */
+    private List<StrokeBatcher.PendingStroke> remoteStrokes(String roomId, List<DrawingMessage.DrawingAction> actions) {
+        List<StrokeBatcher.PendingStroke> strokes = new ArrayList<>();
+        for (int i = 0; i < actions.size(); i += StrokeCodec.MAX_RECORDS) {
+            List<DrawingMessage.DrawingAction> chunk = actions.subList(i, Math.min(actions.size(), i + StrokeCodec.MAX_RECORDS));
+            strokes.add(new StrokeBatcher.PendingStroke(null, StrokeFrame.ofActions(objectMapper, roomId, chunk)));
+        }
+        return strokes;
+    }
+    
+    /**
+     * Streams through the raw frame looking only at the top-level {@code type} and
+     * {@code roomId} fields. Returns the room id when the frame is a well-formed
+     * DRAWING_ACTION that can be relayed as-is, or null when the message has to go
+     * through full binding (any other type, missing room or malformed JSON).
+     */
+    private String peekDrawingActionRoom(String message) {
+        try (JsonParser parser = objectMapper.getFactory().createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            String type = null;
+            String roomId = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("type".equals(field) && value == JsonToken.VALUE_STRING) {
+                    type = parser.getText();
+                    if (!DRAWING_ACTION_TYPE.equals(type)) {
+                        return null;
+                    }
+                } else if ("roomId".equals(field) && value == JsonToken.VALUE_STRING) {
+                    roomId = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            // Walk to the end so that truncated frames are never relayed
+            if (parser.currentToken() != JsonToken.END_OBJECT || parser.nextToken() != null) {
+                return null;
+            }
+            return DRAWING_ACTION_TYPE.equals(type) ? roomId : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /**
+     * The type of a message that starts with it, as client messages do, found
+     * without parsing; null when it doesn't.
+     */
+    private static DrawingMessage.MessageType peekType(String message) {
+        if (!message.startsWith(TYPE_PREFIX)) {
+            return null;
+        }
+        int from = TYPE_PREFIX.length();
+        int limit = Math.min(message.length(), from + MAX_TYPE_LENGTH);
+        for (int i = from; i < limit; i++) {
+            if (message.charAt(i) == '"') {
+                return TYPE_NAMES.get(message.substring(from, i));
+            }
+        }
+        return null;
+    }
+    
+    private String encode(DrawingMessage message) {
+        try {
+            String frame = objectMapper.writeValueAsString(message);
+            messageMetrics.of(message.getType()).encoded();
+            return frame;
         } catch (Exception e) {
-            // logger.severe("Error sending message to session " + session.getId() + ": " + e.getMessage());
+            // logger.severe("Error encoding message of type " + message.getType() + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Queues a direct reply to the session; see {@link OutboundQueue}.
+     */
+    private void sendFrame(Session session, String frame, MessageMetrics.Meters meters) {
+        OutboundQueue outbound = outbound(session);
+        if (outbound != null && session.isOpen()) {
+            outbound.reply(frame);
+            meters.sent(frame.length());
+        }
+    }
+    
+    private static SessionContext context(Session session) {
+        return (SessionContext) session.getUserProperties().get(CONTEXT);
+    }
+    
+    private static boolean isIn(Session session, String roomId) {
+        SessionContext context = context(session);
+        return context != null && context.isIn(roomId);
+    }
+    
+    /**
+     * Whether the session is in the room a message names; if not, it is told so.
+     * Room state and per-room buffers are only ever touched for members.
+     */
+    private boolean requireMember(Session session, String roomId) {
+        if (isIn(session, roomId)) {
+            return true;
         }
+        sendErrorMessage(session, "Você não está na sala especificada");
+        return false;
+    }
+    
+    private MessageExecutor.SessionExecutor inbound(Session session) {
+        SessionContext context = context(session);
+        return context != null ? context.inbound : MessageExecutor.INLINE;
+    }
+    
+    private OutboundQueue outbound(Session session) {
+        SessionContext context = context(session);
+        return context != null ? context.outbound : null;
     }
     
     private void addFloatingImage(DrawingMessage message, Session sender) {
@@ -265,27 +1346,23 @@ public class DrawingWebSocket {
         // logger.info("Adding floating image to room: " + roomId + " imageId: " + message.getImageId());
         
         // Verify sender is in the room
-        String senderRoom = sessionToRoom.get(sender);
-        if (!roomId.equals(senderRoom)) {
-            // logger.warning("Session " + sender.getId() + " trying to add image to room " + roomId + " but is in room " + senderRoom);
+        if (!isIn(sender, roomId)) {
+            // logger.warning("Session " + sender.getId() + " trying to add image to room " + roomId + " but is in another room");
             sendErrorMessage(sender, "Você não está na sala especificada");
             return;
         }
         
-        // Store image in room state (service will assign an ID if needed)
-        roomService.addFloatingImage(roomId, message);
+        // Store image in room state (service will assign an ID if needed and move
+        // inline image data into the asset store, leaving only its hash)
+        try {
+            roomService.addFloatingImage(roomId, message);
+        } catch (IllegalArgumentException e) {
+            sendErrorMessage(sender, e.getMessage());
+            return;
+        }
 
         // Broadcast to all users in the room (including sender for confirmation)
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            // logger.info("Broadcasting floating image to " + sessions.size() + " sessions in room " + roomId);
-            sessions.keySet().forEach(s -> {
-                // logger.info("Sending floating image to session " + s.getId() + " in room " + roomId);
-                sendMessage(s, message);
-            });
-        } else {
-            // logger.warning("No sessions found for room " + roomId);
-        }
+        broadcast(roomId, message, null);
     }
 
     private void removeFloatingImage(DrawingMessage message, Session sender) {
@@ -300,24 +1377,18 @@ public class DrawingWebSocket {
     }
     
     private void broadcastToRoom(String roomId, DrawingMessage message, Session sender) {
-        Map<Session, String> sessions = roomSessions.get(roomId);
-        if (sessions != null) {
-            sessions.keySet().forEach(s -> {
-                if (!s.equals(sender)) {
-                    sendMessage(s, message);
-                }
-            });
+        broadcast(roomId, message, sender);
+    }
+    
+    private void sendBinaryFrame(Session session, byte[] frame, MessageMetrics.Meters meters) {
+        OutboundQueue outbound = outbound(session);
+        if (outbound != null && session.isOpen()) {
+            outbound.reply(frame);
+            meters.sent(frame.length);
         }
     }
     
     private void sendErrorMessage(Session session, String error) {
-        try {
-            if (session.isOpen()) {
-                // Use async remote to avoid blocking IO thread
-                session.getAsyncRemote().sendText("{\"error\":\"" + error + "\"}");
-            }
-        } catch (Exception e) {
-            // logger.severe("Error sending error message: " + e.getMessage());
-        }
+        sendFrame(session, "{\"error\":\"" + error + "\"}", messageMetrics.errors());
     }
 }
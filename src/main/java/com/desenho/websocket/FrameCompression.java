@@ -0,0 +1,145 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import jakarta.websocket.Session;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outbound permessage-deflate for connections that negotiated it (see
+ * {@link CompressionConfigurator}). The container installs a deflate encoder
+ * with fixed settings; once the session is open it is swapped for one at the
+ * configured level that sends frames under {@code minBytes} and messages of
+ * the {@code skipTypes} uncompressed. Those are meant to be the image
+ * messages: PNG data gains nothing, and its base64 form saves only about a
+ * quarter at a CPU cost paid again for every recipient.
+ *
+ * With context takeover the deflate state carries over between messages, which
+ * is what makes small JSON messages compress well, at about 256 KB of native
+ * memory per connection. Without it each message is compressed on its own.
+ * Messages from clients are inflated by the decoder the container installed.
+ */
+final class FrameCompression implements WebSocketExtensionFilter {
+
+    static final String EXTENSION = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+    private static final String ENCODER_NAME = "desenho-deflate-encoder";
+    // Outbound JSON always starts with the type (see DrawingMessage)
+    private static final byte[] TYPE_PREFIX = "{\"type\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_TYPE_LENGTH = 32;
+
+    private final boolean contextTakeover;
+    private final int minBytes;
+    private final Set<String> skipTypes;
+    private final PerMessageDeflateServerExtensionHandshaker handshaker;
+
+    FrameCompression(int level, boolean contextTakeover, int minBytes, Set<String> skipTypes) {
+        this.contextTakeover = contextTakeover;
+        this.minBytes = minBytes;
+        this.skipTypes = skipTypes;
+        this.handshaker = new PerMessageDeflateServerExtensionHandshaker(level, false,
+                PerMessageDeflateServerExtensionHandshaker.MAX_WINDOW_SIZE, true, false,
+                new WebSocketExtensionFilterProvider() {
+                    @Override
+                    public WebSocketExtensionFilter encoderFilter() {
+                        return FrameCompression.this;
+                    }
+
+                    @Override
+                    public WebSocketExtensionFilter decoderFilter() {
+                        return WebSocketExtensionFilter.NEVER_SKIP;
+                    }
+                });
+    }
+
+    /**
+     * Swaps in the tuned encoder if the session negotiated permessage-deflate;
+     * call before anything is sent on it.
+     *
+     * @return whether the session's messages are now compressed this way
+     */
+    boolean install(Session session) {
+        Channel channel = NettyChannels.of(session);
+        if (channel == null) {
+            return false;
+        }
+        ChannelPipeline pipeline = channel.pipeline();
+        // Only permessage-deflate is ever negotiated, and the session's own list
+        // of negotiated extensions stays empty, so the pipeline is what tells
+        WebSocketExtensionEncoder installed = pipeline.get(WebSocketExtensionEncoder.class);
+        if (installed == null) {
+            return false;
+        }
+        // The server may always start each message afresh; the client needn't be told
+        Map<String, String> parameters = contextTakeover
+                ? Collections.emptyMap()
+                : Collections.singletonMap(SERVER_NO_CONTEXT, null);
+        WebSocketServerExtension extension = handshaker.handshakeExtension(new WebSocketExtensionData(EXTENSION, parameters));
+        if (extension == null) {
+            return false;
+        }
+        pipeline.replace(installed, ENCODER_NAME, extension.newExtensionEncoder());
+        return true;
+    }
+
+    @Override
+    public boolean mustSkip(WebSocketFrame frame) {
+        if (frame.content().readableBytes() < minBytes) {
+            return true;
+        }
+        if (skipTypes.isEmpty()) {
+            return false;
+        }
+        String type = typeOf(frame);
+        return type != null && skipTypes.contains(type);
+    }
+
+    /**
+     * The message type a frame carries, or null if it can't be told cheaply.
+     */
+    static String typeOf(WebSocketFrame frame) {
+        ByteBuf content = frame.content();
+        int start = content.readerIndex();
+        int length = content.readableBytes();
+        if (frame instanceof BinaryWebSocketFrame && length > 0) {
+            switch (content.getUnsignedByte(start)) {
+                case StrokeCodec.FRAME_STROKES:
+                    return DrawingMessage.MessageType.DRAWING_ACTION.name();
+                case CanvasCodec.FRAME_TILE:
+                    return DrawingMessage.MessageType.CANVAS_TILE_UPDATE.name();
+                case CanvasCodec.FRAME_CANVAS:
+                    return (length > 1 && content.getByte(start + 1) != 0
+                            ? DrawingMessage.MessageType.FORCE_CANVAS_UPDATE
+                            : DrawingMessage.MessageType.CANVAS_UPDATE).name();
+                default:
+                    return null;
+            }
+        }
+        if (!(frame instanceof TextWebSocketFrame) || length <= TYPE_PREFIX.length) {
+            return null;
+        }
+        for (int i = 0; i < TYPE_PREFIX.length; i++) {
+            if (content.getByte(start + i) != TYPE_PREFIX[i]) {
+                return null;
+            }
+        }
+        int from = start + TYPE_PREFIX.length;
+        int end = content.indexOf(from, Math.min(from + MAX_TYPE_LENGTH, start + length), (byte) '"');
+        return end < 0 ? null : content.toString(from, end - from, StandardCharsets.US_ASCII);
+    }
+}
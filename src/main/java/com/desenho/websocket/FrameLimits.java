@@ -0,0 +1,34 @@
+package com.desenho.websocket;
+
+import io.quarkus.vertx.http.HttpServerOptionsCustomizer;
+import io.vertx.core.http.HttpServerOptions;
+import jakarta.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Vert.x decodes WebSocket frames ahead of the WebSocket container, with its
+ * own limit of 64 KB per frame, so larger frames were dropped whatever
+ * {@code quarkus.websockets.max-frame-size} said. This gives Vert.x the same
+ * limit; messages larger still are sent in chunks (see {@link MessageChunks}).
+ */
+@ApplicationScoped
+public class FrameLimits implements HttpServerOptionsCustomizer {
+
+    @ConfigProperty(name = "quarkus.websockets.max-frame-size", defaultValue = "65536")
+    int maxFrameSize;
+
+    @Override
+    public void customizeHttpServer(HttpServerOptions options) {
+        apply(options);
+    }
+
+    @Override
+    public void customizeHttpsServer(HttpServerOptions options) {
+        apply(options);
+    }
+
+    private void apply(HttpServerOptions options) {
+        options.setMaxWebSocketFrameSize(Math.max(options.getMaxWebSocketFrameSize(), maxFrameSize));
+        options.setMaxWebSocketMessageSize(Math.max(options.getMaxWebSocketMessageSize(), maxFrameSize));
+    }
+}
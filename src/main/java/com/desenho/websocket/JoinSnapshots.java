@@ -0,0 +1,198 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Per-room cache of the frames a joining session is sent: the whole room state,
+ * and the changes since the versions resuming sessions present. Entries are
+ * built for one room version and rebuilt once the room has changed, so a burst
+ * of joins into an unchanged room, e.g. everyone reconnecting after a network
+ * blip, encodes the state once. Frames are encoded on first use; an entry is
+ * dropped after {@code ttlMillis} so idle rooms don't keep them.
+ *
+ * Lookups and builds run on the room's owner thread.
+ */
+final class JoinSnapshots {
+
+    /**
+     * One message of the state, or a few it is split into, as JSON and, if it
+     * has a binary form, as binary frames for sessions that opted into those.
+     */
+    static final class Part {
+        final DrawingMessage.MessageType type;
+        // Whose opt-in selects the binary form: binary canvas or binary strokes
+        final boolean canvas;
+        private final Supplier<List<String>> jsonEncoder;
+        private final Supplier<List<byte[]>> binaryEncoder;
+        private List<String> json;
+        private List<byte[]> binary;
+        private boolean binaryEncoded;
+
+        Part(DrawingMessage.MessageType type, boolean canvas, Supplier<List<String>> jsonEncoder,
+             Supplier<List<byte[]>> binaryEncoder) {
+            this.type = type;
+            this.canvas = canvas;
+            this.jsonEncoder = jsonEncoder;
+            this.binaryEncoder = binaryEncoder;
+        }
+
+        synchronized List<String> json() {
+            if (json == null) {
+                json = jsonEncoder.get();
+            }
+            return json;
+        }
+
+        /**
+         * Binary frames, or null if the part has no binary form.
+         */
+        synchronized List<byte[]> binary() {
+            if (!binaryEncoded) {
+                binary = binaryEncoder != null ? binaryEncoder.get() : null;
+                binaryEncoded = true;
+            }
+            return binary;
+        }
+    }
+
+    private static final class Entry {
+        final String version;
+        final long createdAt;
+        List<Part> full;
+        // Changes since a version a session resumed from, keyed by that version
+        final Map<String, List<Part>> deltas = new ConcurrentHashMap<>();
+
+        Entry(String version, long createdAt) {
+            this.version = version;
+            this.createdAt = createdAt;
+        }
+    }
+
+    // How a join that presented a room version was served
+    static final String DELTA = "delta";
+    static final String FULL = "full";
+    static final String RESYNC = "resync";
+
+    private final long ttlMillis;
+    private final Map<String, Entry> rooms = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+    private final Map<String, Counter> resumes = new ConcurrentHashMap<>();
+
+    JoinSnapshots(long ttlMillis, MeterRegistry registry) {
+        this.ttlMillis = ttlMillis;
+        for (String result : new String[] { DELTA, FULL, RESYNC }) {
+            resumes.put(result, Counter.builder("desenho.join.resumes")
+                    .description("Joins that presented the room version the client last saw")
+                    .tag("result", result)
+                    .register(registry));
+        }
+        this.hits = Counter.builder("desenho.join.snapshots")
+                .description("Joins served room state frames encoded for an earlier join")
+                .tag("result", "hit")
+                .register(registry);
+        this.misses = Counter.builder("desenho.join.snapshots")
+                .description("Joins served room state frames encoded for an earlier join")
+                .tag("result", "miss")
+                .register(registry);
+    }
+
+    /**
+     * Counts a join that presented a room version, by how it was served: only
+     * the changes since, the whole state (an unknown version) or a resync (a
+     * version too old to catch up from).
+     */
+    void resumed(String result) {
+        resumes.get(result).increment();
+    }
+
+    /**
+     * The cached room state at {@code version}, or null if there is none yet.
+     */
+    List<Part> getFull(String roomId, String version) {
+        Entry entry = current(roomId, version, false);
+        List<Part> full = entry != null ? entry.full : null;
+        if (full != null) {
+            hits.increment();
+        }
+        return full;
+    }
+
+    /**
+     * The room state at {@code version}, built and cached unless another join
+     * just did.
+     */
+    List<Part> full(String roomId, String version, Supplier<List<Part>> build) {
+        Entry entry = current(roomId, version, true);
+        if (entry == null) {
+            misses.increment();
+            return build.get();
+        }
+        if (entry.full != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            entry.full = build.get();
+        }
+        return entry.full;
+    }
+
+    /**
+     * Changes from {@code since} to {@code version}, built and cached unless
+     * another session resuming from the same version just did.
+     */
+    List<Part> delta(String roomId, String version, String since, Supplier<List<Part>> build) {
+        Entry entry = current(roomId, version, true);
+        if (entry == null) {
+            misses.increment();
+            return build.get();
+        }
+        List<Part> delta = entry.deltas.get(since);
+        if (delta != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            delta = build.get();
+            entry.deltas.put(since, delta);
+        }
+        return delta;
+    }
+
+    /**
+     * Drops what is cached for a room that no longer has sessions.
+     */
+    void discard(String roomId) {
+        rooms.remove(roomId);
+    }
+
+    /**
+     * Drops entries older than the time to live.
+     */
+    void expire() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        rooms.values().removeIf(entry -> entry.createdAt < cutoff);
+    }
+
+    private Entry current(String roomId, String version, boolean create) {
+        if (ttlMillis <= 0 || version == null) {
+            return null;
+        }
+        Entry entry = rooms.get(roomId);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.version.equals(version) && now - entry.createdAt < ttlMillis) {
+            return entry;
+        }
+        if (!create) {
+            return null;
+        }
+        entry = new Entry(version, now);
+        rooms.put(roomId, entry);
+        return entry;
+    }
+}
@@ -0,0 +1,188 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the latency of stroke segments from one player's pen to another
+ * player's screen. Clients stamp a fraction of their segments with a sequence
+ * number and their send time; the server notes when it received and dispatched
+ * each one, and every recipient acknowledges it with the time it drew it. Each
+ * sample is recorded per room and per node, as p50/p95/p99, in three stages:
+ * <ul>
+ *   <li>{@code relay}: sender's send time to recipient's draw time. Both are
+ *       client clocks, so this is only as good as their synchronization; samples
+ *       that come out negative or absurdly large are dropped</li>
+ *   <li>{@code server}: arrival at the server to hand-off to the recipients'
+ *       outbound queues, including batching and the room's queue</li>
+ *   <li>{@code delivery}: hand-off to the recipient's acknowledgement arriving,
+ *       i.e. the way down, drawing and the way back, on the server's clock</li>
+ * </ul>
+ */
+final class LatencyTracer {
+
+    enum Stage {
+        RELAY,
+        SERVER,
+        DELIVERY
+    }
+
+    // Traced segments remembered per room for matching acknowledgements
+    private static final int MAX_PENDING = 1024;
+    private static final long MAX_RELAY_MILLIS = 60_000;
+    private static final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+    private static final Duration[] LATENCY_BUCKETS = {
+            Duration.ofMillis(5), Duration.ofMillis(10), Duration.ofMillis(25), Duration.ofMillis(50),
+            Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500), Duration.ofSeconds(1),
+            Duration.ofSeconds(2)
+    };
+
+    private final double sampleRate;
+    private final String node;
+    private final MeterRegistry registry;
+    private final Timer[] nodeTimers = new Timer[Stage.values().length];
+    private final Map<String, RoomTraces> rooms = new ConcurrentHashMap<>();
+
+    LatencyTracer(double sampleRate, String node, MeterRegistry registry) {
+        this.sampleRate = Math.min(1, sampleRate);
+        this.node = node;
+        this.registry = registry;
+        for (Stage stage : Stage.values()) {
+            // Buckets as well, so the node-level latencies can be aggregated across nodes
+            nodeTimers[stage.ordinal()] = Timer.builder("desenho.trace.node.latency")
+                    .description("Sampled stroke latency on this node")
+                    .tags("stage", tag(stage), "node", node)
+                    .publishPercentiles(PERCENTILES)
+                    .serviceLevelObjectives(LATENCY_BUCKETS)
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Fraction of stroke segments clients are asked to trace.
+     */
+    double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Notes a traced segment that was handed to the room's recipients.
+     */
+    void dispatched(String roomId, DrawingMessage.DrawingAction action, long receivedNanos, long dispatchedNanos) {
+        RoomTraces traces = rooms.computeIfAbsent(roomId, RoomTraces::new);
+        record(traces, Stage.SERVER, dispatchedNanos - receivedNanos);
+        synchronized (traces) {
+            traces.pending.put(key(action), dispatchedNanos);
+        }
+    }
+
+    /**
+     * Records a recipient's acknowledgement of a traced segment. Only segments
+     * this node dispatched count, so a client can't inject samples of its own.
+     */
+    void acknowledged(String roomId, DrawingMessage.DrawingAction ack) {
+        long now = System.nanoTime();
+        RoomTraces traces = rooms.get(roomId);
+        if (traces == null || ack.getSeq() == null || ack.getSentAt() == null) {
+            return;
+        }
+        Long dispatched;
+        synchronized (traces) {
+            dispatched = traces.pending.get(key(ack));
+        }
+        if (dispatched == null) {
+            return;
+        }
+        record(traces, Stage.DELIVERY, now - dispatched);
+        if (ack.getReceivedAt() != null) {
+            long relay = ack.getReceivedAt() - ack.getSentAt();
+            if (relay >= 0 && relay <= MAX_RELAY_MILLIS) {
+                record(traces, Stage.RELAY, TimeUnit.MILLISECONDS.toNanos(relay));
+            }
+        }
+    }
+
+    /**
+     * Drops the room's meters once it has no sessions on this node.
+     */
+    void discard(String roomId) {
+        RoomTraces traces = rooms.remove(roomId);
+        if (traces != null) {
+            synchronized (traces) {
+                for (Timer timer : traces.timers) {
+                    if (timer != null) {
+                        registry.remove(timer);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The segment as kept in the room's log and relayed to other nodes: without
+     * the trace, which only concerns the live recipients here.
+     */
+    static DrawingMessage.DrawingAction untraced(DrawingMessage.DrawingAction action) {
+        DrawingMessage.DrawingAction copy = new DrawingMessage.DrawingAction();
+        copy.setTool(action.getTool());
+        copy.setColor(action.getColor());
+        copy.setSize(action.getSize());
+        copy.setStartX(action.getStartX());
+        copy.setStartY(action.getStartY());
+        copy.setEndX(action.getEndX());
+        copy.setEndY(action.getEndY());
+        copy.setStart(action.isStart());
+        copy.setEnd(action.isEnd());
+        return copy;
+    }
+
+    private void record(RoomTraces traces, Stage stage, long nanos) {
+        nodeTimers[stage.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+        traces.timer(stage).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Sequence numbers are per client, so the send time tells apart two senders'
+    private static String key(DrawingMessage.DrawingAction action) {
+        return action.getSeq() + "@" + action.getSentAt();
+    }
+
+    private static String tag(Stage stage) {
+        return stage.name().toLowerCase(Locale.ROOT);
+    }
+
+    private final class RoomTraces {
+        private final String roomId;
+        private final Timer[] timers = new Timer[Stage.values().length];
+        private final Map<String, Long> pending = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_PENDING;
+            }
+        };
+
+        RoomTraces(String roomId) {
+            this.roomId = roomId;
+        }
+
+        synchronized Timer timer(Stage stage) {
+            Timer timer = timers[stage.ordinal()];
+            if (timer == null) {
+                // Percentiles only: per-room buckets would multiply the series count
+                timer = Timer.builder("desenho.trace.room.latency")
+                        .description("Sampled stroke latency per room")
+                        .tags("stage", tag(stage), "room", roomId, "node", node)
+                        .publishPercentiles(PERCENTILES)
+                        .register(registry);
+                timers[stage.ordinal()] = timer;
+            }
+            return timer;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.desenho.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reassembles messages too large for one WebSocket frame, which clients send
+ * as a run of binary chunk frames carrying the UTF-8 JSON in order:
+ *
+ * <pre>
+ * chunk := kind:u8 (0x04) id:u32 index:u16 count:u16 bytes
+ * </pre>
+ *
+ * Once the last chunk is in, the message is handled like any text message.
+ * A connection assembles one message at a time; a chunk of another message
+ * drops the one in progress. A message can also be dropped on purpose, e.g.
+ * when a chunk goes over a rate limit; the rest of its chunks are then taken
+ * and let go. Used on the session's inbound executor only.
+ */
+final class MessageChunks {
+
+    static final int FRAME_CHUNK = 0x04;
+    private static final int HEADER_BYTES = 9;
+
+    private final int maxBytes;
+
+    private int id;
+    private int count;
+    private int received;
+    private byte[] buffer;
+    private int length;
+    // The message in progress was dropped; its chunks are counted, not kept
+    private boolean dropped;
+
+    MessageChunks(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The start of the message, up to {@code maxBytes} of it, if the frame is
+     * the first chunk of one; otherwise null.
+     */
+    static String head(byte[] frame, int maxBytes) {
+        if (frame.length < HEADER_BYTES || (frame[0] & 0xFF) != FRAME_CHUNK
+                || ByteBuffer.wrap(frame, 5, 2).getShort() != 0) {
+            return null;
+        }
+        return new String(frame, HEADER_BYTES, Math.min(maxBytes, frame.length - HEADER_BYTES), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Bytes of the message the chunk frame carries.
+     */
+    static int payloadBytes(byte[] frame) {
+        return Math.max(0, frame.length - HEADER_BYTES);
+    }
+
+    /**
+     * Whether the frame continues a message that was dropped, and would be let
+     * go by {@link #add}.
+     */
+    boolean continuesDropped(byte[] frame) {
+        if (!dropped || frame.length < HEADER_BYTES) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.wrap(frame, 1, HEADER_BYTES - 1);
+        return header.getInt() == id && header.getShort() != 0;
+    }
+
+    /**
+     * Adds a chunk frame.
+     *
+     * @return the whole message once this was its last chunk, otherwise null
+     * @throws IllegalArgumentException if the frame is malformed, out of order
+     *         or makes the message larger than allowed; the message is dropped
+     */
+    String add(byte[] frame) {
+        return add(frame, true);
+    }
+
+    /**
+     * Takes the chunk frame but drops the message it belongs to.
+     *
+     * @throws IllegalArgumentException as {@link #add} does
+     */
+    void drop(byte[] frame) {
+        add(frame, false);
+    }
+
+    private String add(byte[] frame, boolean keep) {
+        if (frame.length < HEADER_BYTES || (frame[0] & 0xFF) != FRAME_CHUNK) {
+            throw fail("Malformed chunk frame");
+        }
+        ByteBuffer header = ByteBuffer.wrap(frame, 1, HEADER_BYTES - 1);
+        int chunkId = header.getInt();
+        int index = header.getShort() & 0xFFFF;
+        int chunkCount = header.getShort() & 0xFFFF;
+        if (index == 0) {
+            id = chunkId;
+            count = chunkCount;
+            received = 0;
+            length = 0;
+            dropped = false;
+        } else if ((buffer == null && !dropped) || chunkId != id || chunkCount != count || index != received) {
+            throw fail("Chunk out of order");
+        }
+        if (count == 0 || index >= count) {
+            throw fail("Malformed chunk frame");
+        }
+        int bytes = frame.length - HEADER_BYTES;
+        if (length + bytes > maxBytes) {
+            throw fail("Chunked message over " + maxBytes + " bytes");
+        }
+        if (!keep || dropped) {
+            dropped = true;
+            buffer = null;
+            length += bytes;
+            received++;
+            return null;
+        }
+        ensureCapacity(length + bytes);
+        System.arraycopy(frame, HEADER_BYTES, buffer, length, bytes);
+        length += bytes;
+        received++;
+        if (received < count) {
+            return null;
+        }
+        String message = new String(buffer, 0, length, StandardCharsets.UTF_8);
+        // Large buffers are not kept around between messages
+        buffer = null;
+        return message;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (buffer == null) {
+            buffer = new byte[Math.min(maxBytes, Math.max(needed, 64 * 1024))];
+        } else if (buffer.length < needed) {
+            byte[] grown = new byte[Math.min(maxBytes, Math.max(needed, buffer.length * 2))];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    private IllegalArgumentException fail(String reason) {
+        buffer = null;
+        dropped = false;
+        return new IllegalArgumentException(reason);
+    }
+}
@@ -0,0 +1,249 @@
+package com.desenho.websocket;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which threads handle inbound WebSocket messages:
+ * <ul>
+ *   <li>{@code event-loop}: the thread the container delivers the message on</li>
+ *   <li>{@code worker}: a fixed pool of platform threads</li>
+ *   <li>{@code virtual}: one virtual thread per task; needs Java 21, otherwise
+ *       the worker pool is used</li>
+ * </ul>
+ * Each session gets its own serial view of the executor, so its messages are
+ * still handled one at a time and in arrival order. Off the event loop nothing
+ * holds the container back, so each session's backlog is bounded instead: a
+ * session that sends faster than its messages are handled is closed, as the
+ * container would otherwise queue its messages without end.
+ */
+final class MessageExecutor {
+
+    enum Mode {
+        EVENT_LOOP,
+        WORKER,
+        VIRTUAL;
+
+        static Mode parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    /**
+     * A session's view of the executor.
+     */
+    interface SessionExecutor extends Executor {
+
+        /**
+         * Queues a message's task, which holds on to {@code bytes} bytes. Past
+         * the session's bound it is dropped, along with every later message,
+         * and the session's overflow handler runs once.
+         */
+        void offer(Runnable task, long bytes);
+
+        /**
+         * Queues a task after those already queued, whatever the bound.
+         */
+        @Override
+        void execute(Runnable task);
+    }
+
+    // Tasks a session runs before yielding its pool thread
+    private static final int DRAIN_BATCH = 64;
+
+    private final ExecutorService pool;
+    private final int maxQueuedMessages;
+    private final long maxQueuedBytes;
+
+    MessageExecutor(String mode, int workerThreads, int maxQueuedMessages, long maxQueuedBytes) {
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.maxQueuedBytes = maxQueuedBytes;
+        Mode requested = Mode.parse(mode);
+        ExecutorService executor = null;
+        if (requested == Mode.VIRTUAL) {
+            executor = newVirtualThreadExecutor();
+            if (executor == null) {
+                // logger.warning("Virtual threads need Java 21; using the worker pool");
+                requested = Mode.WORKER;
+            }
+        }
+        if (requested == Mode.WORKER) {
+            executor = newWorkerPool(workerThreads > 0 ? workerThreads : 2 * Runtime.getRuntime().availableProcessors());
+        }
+        this.pool = executor;
+    }
+
+    /**
+     * A new executor for one session's messages; {@code overflow} runs when
+     * the session's backlog goes over its bound.
+     */
+    SessionExecutor forSession(Runnable overflow) {
+        return pool != null ? new SerialExecutor(pool, maxQueuedMessages, maxQueuedBytes, overflow) : INLINE;
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively so the code still builds and runs on Java 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newWorkerPool(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        // Only one drain task per session is ever queued, and what sessions queue
+        // is bounded, so the pool's queue needs no bound of its own
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "message-worker-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // The event loop: the container waits for each message to be handled
+    static final SessionExecutor INLINE = new SessionExecutor() {
+        @Override
+        public void offer(Runnable task, long bytes) {
+            task.run();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    /**
+     * Runs tasks one at a time, in submission order, on the backing executor.
+     */
+    private static final class SerialExecutor implements SessionExecutor {
+
+        private static final class Queued {
+            final Runnable task;
+            final long bytes;
+
+            Queued(Runnable task, long bytes) {
+                this.task = task;
+                this.bytes = bytes;
+            }
+        }
+
+        private final Executor backing;
+        private final int maxMessages;
+        private final long maxBytes;
+        private final Runnable overflow;
+        private final ArrayDeque<Queued> tasks = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean draining;
+        private boolean overflowed;
+
+        SerialExecutor(Executor backing, int maxMessages, long maxBytes, Runnable overflow) {
+            this.backing = backing;
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+            this.overflow = overflow;
+        }
+
+        @Override
+        public void offer(Runnable task, long bytes) {
+            boolean over;
+            boolean start = false;
+            synchronized (this) {
+                if (overflowed) {
+                    return;
+                }
+                over = overflowed = tasks.size() >= maxMessages || queuedBytes + bytes > maxBytes;
+                if (!over) {
+                    start = add(task, bytes);
+                }
+            }
+            if (over) {
+                overflow.run();
+            } else if (start) {
+                startDraining();
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            boolean start;
+            synchronized (this) {
+                start = add(task, 0);
+            }
+            if (start) {
+                startDraining();
+            }
+        }
+
+        /**
+         * Queues the task; returns true if the caller has to start draining.
+         * Callers hold the lock.
+         */
+        private boolean add(Runnable task, long bytes) {
+            tasks.addLast(new Queued(task, bytes));
+            queuedBytes += bytes;
+            if (draining) {
+                return false;
+            }
+            draining = true;
+            return true;
+        }
+
+        private void startDraining() {
+            try {
+                backing.execute(this::drain);
+            } catch (RuntimeException e) {
+                // Pool shut down: run here rather than lose the session's messages
+                drain();
+            }
+        }
+
+        private void drain() {
+            for (int ran = 0; ; ran++) {
+                Queued next;
+                synchronized (this) {
+                    next = tasks.peekFirst();
+                    if (next == null) {
+                        draining = false;
+                        return;
+                    }
+                    if (ran < DRAIN_BATCH) {
+                        tasks.pollFirst();
+                        queuedBytes -= next.bytes;
+                    }
+                }
+                if (ran == DRAIN_BATCH) {
+                    // Give other sessions a turn on the pool before continuing
+                    try {
+                        backing.execute(this::drain);
+                        return;
+                    } catch (RuntimeException e) {
+                        ran = -1;
+                        continue;
+                    }
+                }
+                try {
+                    next.task.run();
+                } catch (RuntimeException e) {
+                    // logger.severe("Message task failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
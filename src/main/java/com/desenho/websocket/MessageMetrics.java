@@ -0,0 +1,203 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters for the message hot path, tagged by message type. Meters
+ * are created up front for every type so recording is a field access, and
+ * histograms use a short fixed list of buckets rather than client-side
+ * percentiles, which keeps them cheap enough to leave on.
+ */
+final class MessageMetrics {
+
+    private static final Duration[] TIME_BUCKETS = {
+            Duration.ofNanos(50_000), Duration.ofNanos(100_000), Duration.ofNanos(250_000),
+            Duration.ofNanos(500_000), Duration.ofMillis(1), Duration.ofNanos(2_500_000),
+            Duration.ofMillis(5), Duration.ofMillis(10), Duration.ofMillis(25), Duration.ofMillis(100)
+    };
+    private static final double[] FANOUT_BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500 };
+
+    /**
+     * The meters of one message type.
+     */
+    static final class Meters {
+        private final Counter inbound;
+        private final Timer parse;
+        private final Timer handle;
+        private final DistributionSummary fanout;
+        private final Counter encoded;
+        private final Counter outboundBytes;
+        private final Counter rejectedBySession;
+        private final Counter rejectedByRoom;
+
+        private Meters(MeterRegistry registry, String type) {
+            inbound = Counter.builder("desenho.messages.inbound")
+                    .description("Messages received from clients")
+                    .tag("type", type)
+                    .register(registry);
+            parse = Timer.builder("desenho.messages.parse")
+                    .description("Time to parse an inbound message")
+                    .tag("type", type)
+                    .serviceLevelObjectives(TIME_BUCKETS)
+                    .register(registry);
+            handle = Timer.builder("desenho.messages.handle")
+                    .description("Time spent handling a message on its room's thread; for strokes, per relayed batch")
+                    .tag("type", type)
+                    .serviceLevelObjectives(TIME_BUCKETS)
+                    .register(registry);
+            fanout = DistributionSummary.builder("desenho.messages.fanout")
+                    .description("Sessions a broadcast message was queued for")
+                    .tag("type", type)
+                    .serviceLevelObjectives(FANOUT_BUCKETS)
+                    .register(registry);
+            encoded = Counter.builder("desenho.messages.encoded")
+                    .description("Messages serialized to JSON; a broadcast is serialized once for all its recipients")
+                    .tag("type", type)
+                    .register(registry);
+            outboundBytes = Counter.builder("desenho.messages.outbound.bytes")
+                    .description("Bytes queued for clients")
+                    .tag("type", type)
+                    .baseUnit("bytes")
+                    .register(registry);
+            rejectedBySession = rejected(registry, type, RateLimits.SESSION);
+            rejectedByRoom = rejected(registry, type, RateLimits.ROOM);
+        }
+
+        private static Counter rejected(MeterRegistry registry, String type, String scope) {
+            return Counter.builder("desenho.messages.rejected")
+                    .description("Inbound messages dropped for going over a rate limit")
+                    .tag("type", type)
+                    .tag("scope", scope)
+                    .register(registry);
+        }
+
+        /**
+         * Counts a received message that took {@code parseNanos} to parse.
+         */
+        void received(long parseNanos) {
+            inbound.increment();
+            parse.record(parseNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void handled(long nanos) {
+            handle.record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void encoded() {
+            encoded.increment();
+        }
+
+        /**
+         * Records a broadcast queued for {@code recipients} sessions.
+         */
+        void fannedOut(int recipients, long bytes) {
+            fanout.record(recipients);
+            outboundBytes.increment(bytes);
+        }
+
+        /**
+         * Records a message queued for a single session.
+         */
+        void sent(long bytes) {
+            outboundBytes.increment(bytes);
+        }
+
+        /**
+         * Counts a message dropped by the limit of {@code scope} (see {@link RateLimits}).
+         */
+        void rejected(String scope) {
+            (RateLimits.ROOM.equals(scope) ? rejectedByRoom : rejectedBySession).increment();
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final Map<DrawingMessage.MessageType, Meters> byType = new EnumMap<>(DrawingMessage.MessageType.class);
+    private final Meters unknown;
+    private final Meters errors;
+    private final Counter invalid;
+    private final Counter floodDisconnects;
+    private final Counter overloadDisconnects;
+    private final Map<String, List<Meter>> roomGauges = new ConcurrentHashMap<>();
+
+    MessageMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (DrawingMessage.MessageType type : DrawingMessage.MessageType.values()) {
+            byType.put(type, new Meters(registry, type.name()));
+        }
+        unknown = new Meters(registry, "UNKNOWN");
+        errors = new Meters(registry, "ERROR");
+        invalid = Counter.builder("desenho.messages.invalid")
+                .description("Inbound messages that could not be parsed or handled")
+                .register(registry);
+        floodDisconnects = Counter.builder("desenho.messages.flood.disconnects")
+                .description("Sessions disconnected for going over their rate limits too often")
+                .register(registry);
+        overloadDisconnects = Counter.builder("desenho.messages.overload.disconnects")
+                .description("Sessions disconnected for sending faster than their messages were handled")
+                .register(registry);
+    }
+
+    Meters of(DrawingMessage.MessageType type) {
+        return type != null ? byType.get(type) : unknown;
+    }
+
+    /**
+     * Meters of the error replies sent to clients.
+     */
+    Meters errors() {
+        return errors;
+    }
+
+    void invalid() {
+        invalid.increment();
+    }
+
+    void floodDisconnected() {
+        floodDisconnects.increment();
+    }
+
+    void overloadDisconnected() {
+        overloadDisconnects.increment();
+    }
+
+    /**
+     * Registers the gauges of a room that has sessions on this node; a no-op
+     * if they already exist.
+     */
+    void trackRoom(String roomId, ToDoubleFunction<String> sessions, ToDoubleFunction<String> canvasBytes) {
+        roomGauges.computeIfAbsent(roomId, id -> List.of(
+                Gauge.builder("desenho.room.sessions", id, sessions)
+                        .description("Sessions connected to the room on this node")
+                        .tag("room", id)
+                        .register(registry),
+                Gauge.builder("desenho.room.canvas.bytes", id, canvasBytes)
+                        .description("Heap held by the room's canvas (estimate; 0 while spilled)")
+                        .tag("room", id)
+                        .baseUnit("bytes")
+                        .register(registry)));
+    }
+
+    /**
+     * Removes the gauges of a room whose last session here left, so the
+     * number of time series follows the number of live rooms.
+     */
+    void untrackRoom(String roomId) {
+        List<Meter> gauges = roomGauges.remove(roomId);
+        if (gauges != null) {
+            gauges.forEach(registry::remove);
+        }
+    }
+}
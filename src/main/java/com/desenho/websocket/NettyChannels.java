@@ -0,0 +1,67 @@
+package com.desenho.websocket;
+
+import io.netty.channel.Channel;
+import io.undertow.websockets.UndertowSession;
+import io.vertx.core.http.HttpConnection;
+import io.vertx.core.net.impl.ConnectionBase;
+import jakarta.websocket.Session;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * The Netty channel under a connection, which neither Vert.x nor the WebSocket
+ * container make public: Vert.x keeps it in an internal class and the
+ * container in its session implementation. {@link DeflateHandshake} and
+ * {@link FrameCompression} need it for permessage-deflate, and only reach it
+ * through here, so an upgrade that moves these internals costs compression
+ * settings, with a warning, rather than connections: without a channel the
+ * handshake drops the client's offer and frames go uncompressed, and a
+ * session keeps the encoder the container negotiated.
+ */
+final class NettyChannels {
+
+    private static final Logger logger = Logger.getLogger(NettyChannels.class.getName());
+
+    private static final String UNCOMPRESSED = "WebSocket frames are sent uncompressed";
+    private static final String UNTUNED = "negotiated deflate keeps the container's settings";
+
+    private static final AtomicBoolean warned = new AtomicBoolean();
+
+    private NettyChannels() {
+    }
+
+    /**
+     * The channel of an HTTP connection, or null if it can't be reached.
+     */
+    static Channel of(HttpConnection connection) {
+        try {
+            if (connection instanceof ConnectionBase) {
+                return ((ConnectionBase) connection).channel();
+            }
+            return unavailable("HTTP connection is a " + connection.getClass().getName(), UNCOMPRESSED);
+        } catch (LinkageError | RuntimeException e) {
+            return unavailable(e.toString(), UNCOMPRESSED);
+        }
+    }
+
+    /**
+     * The channel of a WebSocket session, or null if it can't be reached.
+     */
+    static Channel of(Session session) {
+        try {
+            if (session instanceof UndertowSession) {
+                return ((UndertowSession) session).getChannel();
+            }
+            return unavailable("WebSocket session is a " + session.getClass().getName(), UNTUNED);
+        } catch (LinkageError | RuntimeException e) {
+            return unavailable(e.toString(), UNTUNED);
+        }
+    }
+
+    private static Channel unavailable(String reason, String consequence) {
+        if (warned.compareAndSet(false, true)) {
+            logger.warning("No access to the Netty channel (" + reason + "); " + consequence);
+        }
+        return null;
+    }
+}
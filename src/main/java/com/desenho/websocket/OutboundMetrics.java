@@ -0,0 +1,85 @@
+package com.desenho.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micrometer meters for the outbound queues of all sessions.
+ */
+final class OutboundMetrics {
+
+    static final String SUPERSEDED = "superseded";
+    static final String OVERFLOW = "overflow";
+    static final String CLOSED = "closed";
+
+    private final AtomicLong queuedMessages = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Counter droppedSuperseded;
+    private final Counter droppedOverflow;
+    private final Counter droppedClosed;
+    private final Counter resyncs;
+    private final Counter disconnects;
+    private final Counter sendFailures;
+
+    OutboundMetrics(MeterRegistry registry) {
+        Gauge.builder("desenho.outbound.queue.depth", queuedMessages, AtomicLong::get)
+                .description("Messages queued for sending across all sessions")
+                .register(registry);
+        Gauge.builder("desenho.outbound.queue.bytes", queuedBytes, AtomicLong::get)
+                .description("Bytes queued for sending across all sessions")
+                .baseUnit("bytes")
+                .register(registry);
+        droppedSuperseded = dropCounter(registry, SUPERSEDED);
+        droppedOverflow = dropCounter(registry, OVERFLOW);
+        droppedClosed = dropCounter(registry, CLOSED);
+        resyncs = Counter.builder("desenho.outbound.resyncs")
+                .description("Sessions resynced after going over their outbound budget")
+                .register(registry);
+        disconnects = Counter.builder("desenho.outbound.disconnects")
+                .description("Sessions closed for staying over their outbound budget")
+                .register(registry);
+        sendFailures = Counter.builder("desenho.outbound.send.failures")
+                .description("Sends the container reported as failed, ending the session's queue")
+                .register(registry);
+    }
+
+    private static Counter dropCounter(MeterRegistry registry, String reason) {
+        return Counter.builder("desenho.outbound.dropped")
+                .description("Outbound messages dropped before sending")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    void queued(int messages, long bytes) {
+        queuedMessages.addAndGet(messages);
+        queuedBytes.addAndGet(bytes);
+    }
+
+    void dropped(String reason, int count) {
+        switch (reason) {
+            case SUPERSEDED:
+                droppedSuperseded.increment(count);
+                break;
+            case OVERFLOW:
+                droppedOverflow.increment(count);
+                break;
+            default:
+                droppedClosed.increment(count);
+                break;
+        }
+    }
+
+    void resynced() {
+        resyncs.increment();
+    }
+
+    void disconnected() {
+        disconnects.increment();
+    }
+
+    void sendFailed() {
+        sendFailures.increment();
+    }
+}
@@ -0,0 +1,266 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Outbound messages of one session, sent one at a time so that a slow client
+ * backs up here, where it can be bounded, instead of in the container's
+ * buffers.
+ *
+ * Messages relayed from other players count against a byte budget; direct
+ * replies to the session (join state, replays, errors) do not, since the
+ * client asked for them. Queued canvas updates are dropped when a newer one
+ * supersedes them. A session that goes over budget loses its backlog and is
+ * resynced; one that goes over budget again before its queue has drained
+ * since is disconnected.
+ */
+final class OutboundQueue {
+
+    /**
+     * Messages that make older queued ones of a related kind redundant.
+     */
+    enum Kind {
+        CANVAS,
+        FORCE_CANVAS;
+
+        static Kind of(DrawingMessage.MessageType type) {
+            switch (type) {
+                case CANVAS_UPDATE:
+                    return CANVAS;
+                case FORCE_CANVAS_UPDATE:
+                    return FORCE_CANVAS;
+                default:
+                    return null;
+            }
+        }
+
+        boolean supersedes(Kind older) {
+            // A plain canvas update only fills an empty canvas on the client, so
+            // it must not replace a forced one
+            return this == older || (this == FORCE_CANVAS && older == CANVAS);
+        }
+    }
+
+    private static final class Entry {
+        final String text;
+        final byte[] binary;
+        final Kind kind;
+        final boolean budgeted;
+        final long bytes;
+
+        Entry(String text, byte[] binary, Kind kind, boolean budgeted) {
+            this.text = text;
+            this.binary = binary;
+            this.kind = kind;
+            this.budgeted = budgeted;
+            // Frames are mostly ASCII JSON, so characters stand in for bytes
+            this.bytes = text != null ? text.length() : binary.length;
+        }
+    }
+
+    private final Session session;
+    private final long maxBytes;
+    private final OutboundMetrics metrics;
+    private final Consumer<Session> resync;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+
+    private Entry inFlight;
+    private boolean pumping;
+    private boolean closed;
+    private boolean resyncedSinceDrain;
+    private long budgetedBytes;
+
+    OutboundQueue(Session session, long maxBytes, OutboundMetrics metrics, Consumer<Session> resync) {
+        this.session = session;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+        this.resync = resync;
+    }
+
+    /**
+     * Queues a message relayed from another player.
+     */
+    void relay(String frame, Kind kind) {
+        offer(new Entry(frame, null, kind, true));
+    }
+
+    void relay(byte[] frame) {
+        relay(frame, null);
+    }
+
+    void relay(byte[] frame, Kind kind) {
+        offer(new Entry(null, frame, kind, true));
+    }
+
+    /**
+     * Queues a direct reply to this session, outside the budget.
+     */
+    void reply(String frame) {
+        offer(new Entry(frame, null, null, false));
+    }
+
+    void reply(byte[] frame) {
+        offer(new Entry(null, frame, null, false));
+    }
+
+    private int getDepth() {
+        return pending.size() + (inFlight != null ? 1 : 0);
+    }
+
+    /**
+     * Drops everything still queued, e.g. once the session has closed.
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            dropPending(false);
+        }
+    }
+
+    private void offer(Entry entry) {
+        boolean overflow = false;
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (entry.kind != null) {
+                dropSuperseded(entry.kind);
+            }
+            if (entry.budgeted && budgetedBytes + entry.bytes > maxBytes && getDepth() > 0) {
+                metrics.dropped(OutboundMetrics.OVERFLOW, 1);
+                dropPending(true);
+                if (resyncedSinceDrain) {
+                    closed = true;
+                    dropPending(false);
+                    disconnect = true;
+                } else {
+                    resyncedSinceDrain = true;
+                    overflow = true;
+                }
+            } else {
+                pending.addLast(entry);
+                account(entry, 1);
+            }
+        }
+        if (disconnect) {
+            metrics.disconnected();
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Conexão lenta demais"));
+            } catch (IOException | RuntimeException e) {
+                // logger.warning("Failed to close slow session " + session.getId() + ": " + e.getMessage());
+            }
+            return;
+        }
+        if (overflow) {
+            metrics.resynced();
+            resync.accept(session);
+        }
+        pump();
+    }
+
+    /**
+     * Sends queued messages while nothing is in flight. Completion callbacks may
+     * run synchronously on this thread, so they re-enter here and return
+     * immediately; the loop then picks up the next message.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (pumping) {
+                return;
+            }
+            pumping = true;
+        }
+        while (true) {
+            Entry next;
+            synchronized (this) {
+                if (inFlight != null || pending.isEmpty() || closed) {
+                    if (inFlight == null && pending.isEmpty()) {
+                        resyncedSinceDrain = false;
+                    }
+                    pumping = false;
+                    return;
+                }
+                next = pending.pollFirst();
+                inFlight = next;
+            }
+            transmit(next);
+        }
+    }
+
+    private void transmit(Entry entry) {
+        try {
+            if (entry.text != null) {
+                session.getAsyncRemote().sendText(entry.text, this::completed);
+            } else {
+                // Each send gets its own buffer view over the shared, read-only bytes
+                session.getAsyncRemote().sendBinary(ByteBuffer.wrap(entry.binary), this::completed);
+            }
+        } catch (RuntimeException e) {
+            completed(new SendResult(e));
+        }
+    }
+
+    private void completed(SendResult result) {
+        synchronized (this) {
+            if (inFlight != null) {
+                account(inFlight, -1);
+                inFlight = null;
+            }
+            if (!result.isOK()) {
+                // The connection is gone; onClose cleans up the rest
+                metrics.sendFailed();
+                closed = true;
+                dropPending(false);
+            }
+        }
+        pump();
+    }
+
+    private void dropSuperseded(Kind kind) {
+        Iterator<Entry> it = pending.iterator();
+        while (it.hasNext()) {
+            Entry queued = it.next();
+            if (queued.kind != null && kind.supersedes(queued.kind)) {
+                it.remove();
+                account(queued, -1);
+                metrics.dropped(OutboundMetrics.SUPERSEDED, 1);
+            }
+        }
+    }
+
+    /**
+     * Removes queued messages, only the budgeted ones if {@code budgetedOnly}.
+     * The message in flight stays accounted until it completes.
+     */
+    private void dropPending(boolean budgetedOnly) {
+        int dropped = 0;
+        Iterator<Entry> it = pending.iterator();
+        while (it.hasNext()) {
+            Entry queued = it.next();
+            if (!budgetedOnly || queued.budgeted) {
+                it.remove();
+                account(queued, -1);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            metrics.dropped(budgetedOnly ? OutboundMetrics.OVERFLOW : OutboundMetrics.CLOSED, dropped);
+        }
+    }
+
+    private void account(Entry entry, int sign) {
+        if (entry.budgeted) {
+            budgetedBytes += sign * entry.bytes;
+        }
+        metrics.queued(sign, sign * entry.bytes);
+    }
+}
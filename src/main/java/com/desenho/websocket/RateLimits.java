@@ -0,0 +1,300 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Token-bucket limits on what clients send, per message type: for each
+ * session and for each room (on this node), a budget of messages and,
+ * for the types that carry images and for DRAWING_ACTION, of bytes. Without
+ * them one client can make a room store and rebroadcast snapshots as fast as
+ * it can send them. Stroke byte budgets are sized for real segments (about
+ * 300 characters as JSON, 11 bytes in a binary frame), so a client padding
+ * its strokes runs out of bytes long before it runs out of messages.
+ *
+ * Limits are written {@code TYPE:rate:burst[,...]}, rate per second; types
+ * left out are not limited. A byte burst smaller than a message refuses that
+ * message outright, so byte bursts should be at least
+ * {@code desenho.chunks.max-message-bytes}. A session that keeps going over
+ * its own limits faster than {@code session.rejections} ({@code rate:burst})
+ * allows is disconnected; going over a room's limits only drops the message,
+ * since the room's other members share the blame. Room limits are meant to
+ * cap what a whole room costs rather than throttle a busy member, so stroke
+ * budgets are a session's times a classroom (about 40 members). Image uploads
+ * over HTTP have a budget of their own per client address ({@code uploads}
+ * and {@code upload.bytes}, {@code rate:burst}), sized for a classroom behind
+ * one address. The limits
+ * can be replaced while running (see {@code RateLimitResource}); buckets keep
+ * their state.
+ */
+@ApplicationScoped
+public class RateLimits {
+
+    static final String SESSION = "session";
+    static final String ROOM = "room";
+
+    public static final String ENABLED = "enabled";
+    public static final String SESSION_MESSAGES = "session.messages";
+    public static final String SESSION_BYTES = "session.bytes";
+    public static final String ROOM_MESSAGES = "room.messages";
+    public static final String ROOM_BYTES = "room.bytes";
+    public static final String SESSION_REJECTIONS = "session.rejections";
+    public static final String UPLOADS = "uploads";
+    public static final String UPLOAD_BYTES = "upload.bytes";
+
+    private static final DrawingMessage.MessageType[] TYPES = DrawingMessage.MessageType.values();
+    // A message and a byte bucket per type
+    private static final int SLOTS = TYPES.length * 2;
+    // Sessions also have one for their rejected messages
+    private static final int REJECTIONS_SLOT = SLOTS;
+    // Upload buckets of a client address: uploads and bytes
+    private static final int UPLOAD_SLOTS = 2;
+    // Client addresses tracked before idle ones are dropped
+    private static final int MAX_UPLOAD_CLIENTS = 10_000;
+
+    static final String DEFAULT_SESSION_MESSAGES = "JOIN_ROOM:2:10,LEAVE_ROOM:2:10,ROSTER_REQUEST:2:10,"
+            + "STROKE_ACK:50:200,DRAWING_ACTION:250:500,CANVAS_UPDATE:4:10,FORCE_CANVAS_UPDATE:1:3,"
+            + "CANVAS_TILE_UPDATE:20:60,CLEAR_CANVAS:1:5,FLOATING_IMAGE_ADD:2:10,FLOATING_IMAGE_REMOVE:10:30";
+    static final String DEFAULT_SESSION_BYTES = "DRAWING_ACTION:131072:262144,CANVAS_UPDATE:4194304:16777216,"
+            + "FORCE_CANVAS_UPDATE:4194304:16777216,CANVAS_TILE_UPDATE:4194304:16777216,"
+            + "FLOATING_IMAGE_ADD:2097152:16777216";
+    static final String DEFAULT_ROOM_MESSAGES = "DRAWING_ACTION:10000:20000,CANVAS_UPDATE:10:30,"
+            + "FORCE_CANVAS_UPDATE:2:6,CANVAS_TILE_UPDATE:100:300,CLEAR_CANVAS:2:10,FLOATING_IMAGE_ADD:5:20,"
+            + "FLOATING_IMAGE_REMOVE:20:60";
+    static final String DEFAULT_ROOM_BYTES = "DRAWING_ACTION:5242880:10485760,CANVAS_UPDATE:8388608:33554432,"
+            + "FORCE_CANVAS_UPDATE:8388608:33554432,CANVAS_TILE_UPDATE:8388608:33554432,"
+            + "FLOATING_IMAGE_ADD:4194304:33554432";
+
+    @ConfigProperty(name = "desenho.ratelimit.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "desenho.ratelimit.session.messages", defaultValue = DEFAULT_SESSION_MESSAGES)
+    String sessionMessages;
+
+    @ConfigProperty(name = "desenho.ratelimit.session.bytes", defaultValue = DEFAULT_SESSION_BYTES)
+    String sessionBytes;
+
+    @ConfigProperty(name = "desenho.ratelimit.room.messages", defaultValue = DEFAULT_ROOM_MESSAGES)
+    String roomMessages;
+
+    @ConfigProperty(name = "desenho.ratelimit.room.bytes", defaultValue = DEFAULT_ROOM_BYTES)
+    String roomBytes;
+
+    @ConfigProperty(name = "desenho.ratelimit.session.rejections", defaultValue = "5:100")
+    String sessionRejections;
+
+    @ConfigProperty(name = "desenho.ratelimit.uploads", defaultValue = "2:40")
+    String uploads;
+
+    @ConfigProperty(name = "desenho.ratelimit.upload.bytes", defaultValue = "4194304:67108864")
+    String uploadBytes;
+
+    // Required to change the limits while running; unset, they can only be read
+    @ConfigProperty(name = "desenho.ratelimit.admin-token")
+    Optional<String> adminToken;
+
+    /**
+     * One complete set of limits, indexed by message type.
+     */
+    private static final class Policy {
+        final Map<String, String> source;
+        final boolean enabled;
+        final TokenBuckets.Limit[] sessionMessages;
+        final TokenBuckets.Limit[] sessionBytes;
+        final TokenBuckets.Limit[] roomMessages;
+        final TokenBuckets.Limit[] roomBytes;
+        final TokenBuckets.Limit rejections;
+        final TokenBuckets.Limit uploads;
+        final TokenBuckets.Limit uploadBytes;
+
+        Policy(Map<String, String> source) {
+            this.source = Collections.unmodifiableMap(source);
+            String enabled = source.get(ENABLED).trim();
+            if (!"true".equalsIgnoreCase(enabled) && !"false".equalsIgnoreCase(enabled)) {
+                throw new IllegalArgumentException("Expected true or false for " + ENABLED + ", got " + enabled);
+            }
+            this.enabled = Boolean.parseBoolean(enabled);
+            this.sessionMessages = parse(source.get(SESSION_MESSAGES));
+            this.sessionBytes = parse(source.get(SESSION_BYTES));
+            this.roomMessages = parse(source.get(ROOM_MESSAGES));
+            this.roomBytes = parse(source.get(ROOM_BYTES));
+            this.rejections = parseRate(SESSION_REJECTIONS, source.get(SESSION_REJECTIONS));
+            this.uploads = parseRate(UPLOADS, source.get(UPLOADS));
+            this.uploadBytes = parseRate(UPLOAD_BYTES, source.get(UPLOAD_BYTES));
+        }
+
+        private static TokenBuckets.Limit parseRate(String key, String spec) {
+            if (spec.isBlank()) {
+                return null;
+            }
+            String[] parts = spec.trim().split(":");
+            try {
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("expected rate:burst");
+                }
+                return new TokenBuckets.Limit(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid " + key + " " + spec.trim() + ": " + e.getMessage());
+            }
+        }
+
+        private static TokenBuckets.Limit[] parse(String spec) {
+            TokenBuckets.Limit[] limits = new TokenBuckets.Limit[TYPES.length];
+            for (String entry : spec.split(",")) {
+                if (entry.isBlank()) {
+                    continue;
+                }
+                String[] parts = entry.trim().split(":");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("Expected TYPE:rate:burst, got " + entry.trim());
+                }
+                try {
+                    DrawingMessage.MessageType type = DrawingMessage.MessageType.valueOf(parts[0].trim());
+                    limits[type.ordinal()] = new TokenBuckets.Limit(
+                            Double.parseDouble(parts[1].trim()), Double.parseDouble(parts[2].trim()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid limit " + entry.trim() + ": " + e.getMessage());
+                }
+            }
+            return limits;
+        }
+    }
+
+    private final Map<String, TokenBuckets> rooms = new ConcurrentHashMap<>();
+    private final Map<String, TokenBuckets> uploadClients = new ConcurrentHashMap<>();
+    private volatile Policy policy;
+
+    @PostConstruct
+    void init() {
+        Map<String, String> source = new LinkedHashMap<>();
+        source.put(ENABLED, Boolean.toString(enabled));
+        source.put(SESSION_MESSAGES, sessionMessages.trim());
+        source.put(SESSION_BYTES, sessionBytes.trim());
+        source.put(ROOM_MESSAGES, roomMessages.trim());
+        source.put(ROOM_BYTES, roomBytes.trim());
+        source.put(SESSION_REJECTIONS, sessionRejections.trim());
+        source.put(UPLOADS, uploads.trim());
+        source.put(UPLOAD_BYTES, uploadBytes.trim());
+        policy = new Policy(source);
+    }
+
+    TokenBuckets newSessionBuckets() {
+        return new TokenBuckets(SLOTS + 1);
+    }
+
+    /**
+     * Takes {@code messages} messages of {@code bytes} bytes in all from the
+     * session's budget and, if it is in one, from its room's. What counts as
+     * a message is up to the caller: a binary stroke frame counts each of its
+     * segments, a chunk of a larger message only the first chunk.
+     *
+     * @return null if the message may go on, otherwise the scope whose budget
+     *         ran out ({@code session} or {@code room})
+     */
+    String admit(TokenBuckets session, String roomId, DrawingMessage.MessageType type, int messages, long bytes) {
+        Policy current = policy;
+        if (!current.enabled) {
+            return null;
+        }
+        int index = type.ordinal();
+        long now = System.nanoTime();
+        if (!take(session, current.sessionMessages[index], current.sessionBytes[index], index, messages, bytes, now)) {
+            return SESSION;
+        }
+        if (roomId == null || (current.roomMessages[index] == null && current.roomBytes[index] == null)) {
+            return null;
+        }
+        TokenBuckets room = rooms.computeIfAbsent(roomId, id -> new TokenBuckets(SLOTS));
+        return take(room, current.roomMessages[index], current.roomBytes[index], index, messages, bytes, now)
+                ? null : ROOM;
+    }
+
+    private static boolean take(TokenBuckets buckets, TokenBuckets.Limit messageLimit, TokenBuckets.Limit byteLimit,
+                                int index, int messages, long bytes, long now) {
+        return (messageLimit == null || buckets.take(index * 2, messageLimit, messages, now))
+                && (byteLimit == null || buckets.take(index * 2 + 1, byteLimit, bytes, now));
+    }
+
+    /**
+     * Counts a message the session's own limits rejected.
+     *
+     * @return false once the session went over its rejections and should be
+     *         disconnected
+     */
+    boolean tolerate(TokenBuckets session) {
+        TokenBuckets.Limit rejections = policy.rejections;
+        return rejections == null || session.take(REJECTIONS_SLOT, rejections, 1, System.nanoTime());
+    }
+
+    /**
+     * Takes an upload of {@code bytes} bytes from the budget of the client
+     * address it came from.
+     *
+     * @return false if the client went over its upload limits
+     */
+    public boolean admitUpload(String client, long bytes) {
+        Policy current = policy;
+        if (!current.enabled || (current.uploads == null && current.uploadBytes == null)) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (uploadClients.size() >= MAX_UPLOAD_CLIENTS) {
+            // Clients whose buckets are full again are no different from new ones
+            uploadClients.values().removeIf(buckets -> buckets.isFull(now));
+        }
+        TokenBuckets buckets = uploadClients.computeIfAbsent(client, c -> new TokenBuckets(UPLOAD_SLOTS));
+        return (current.uploads == null || buckets.take(0, current.uploads, 1, now))
+                && (current.uploadBytes == null || buckets.take(1, current.uploadBytes, bytes, now));
+    }
+
+    /**
+     * Drops the buckets of a room whose last session here left.
+     */
+    void discardRoom(String roomId) {
+        rooms.remove(roomId);
+    }
+
+    /**
+     * The limits in force, keyed like the {@code desenho.ratelimit.*} properties.
+     */
+    public Map<String, String> current() {
+        return policy.source;
+    }
+
+    /**
+     * Replaces the limits named in {@code changes}, keeping the others; nothing
+     * changes if any of them is invalid.
+     *
+     * @throws IllegalArgumentException if a key is unknown or a limit malformed
+     */
+    public synchronized Map<String, String> update(Map<String, String> changes) {
+        Map<String, String> source = new LinkedHashMap<>(policy.source);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (!source.containsKey(change.getKey()) || change.getValue() == null) {
+                throw new IllegalArgumentException("Unknown or empty setting " + change.getKey());
+            }
+            source.put(change.getKey(), change.getValue().trim());
+        }
+        Policy next = new Policy(source);
+        policy = next;
+        return next.source;
+    }
+
+    /**
+     * Whether {@code token} allows changing the limits.
+     */
+    public boolean acceptsToken(String token) {
+        return adminToken.isPresent() && token != null
+                && MessageDigest.isEqual(adminToken.get().getBytes(StandardCharsets.UTF_8),
+                        token.getBytes(StandardCharsets.UTF_8));
+    }
+}
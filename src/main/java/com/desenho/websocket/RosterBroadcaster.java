@@ -0,0 +1,151 @@
+package com.desenho.websocket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Keeps each room's sessions up to date with who is in the room by sending
+ * what changed rather than the whole roster. Changes within the debounce
+ * window are folded into at most one PLAYER_LEFT and one PLAYER_JOINED event,
+ * so a class joining at once costs one event per session instead of one full
+ * roster per join.
+ *
+ * Every event bumps the room's roster version by one. A session gets the full
+ * roster with the current version when it joins, and asks for it again when
+ * an event's version is not the next one it expects.
+ */
+final class RosterBroadcaster {
+
+    /**
+     * Receives the events to fan out to the room's sessions.
+     */
+    interface Sink {
+        void send(String roomId, boolean joined, List<String> players, long version);
+    }
+
+    /**
+     * A room's full roster as of a version.
+     */
+    static final class Roster {
+        final Collection<String> players;
+        final long version;
+
+        Roster(Collection<String> players, long version) {
+            this.players = players;
+            this.version = version;
+        }
+    }
+
+    private static final class RoomRoster {
+        // The roster as of the last event sent
+        private Set<String> sent;
+        private long version;
+        private boolean scheduled;
+
+        RoomRoster(Collection<String> players) {
+            this.sent = new LinkedHashSet<>(players);
+        }
+    }
+
+    private final long debounceMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Function<String, Executor> roomExecutor;
+    private final Function<String, Collection<String>> players;
+    private final Sink sink;
+    private final Map<String, RoomRoster> rosters = new ConcurrentHashMap<>();
+
+    RosterBroadcaster(long debounceMillis, ScheduledExecutorService scheduler, Function<String, Executor> roomExecutor,
+                      Function<String, Collection<String>> players, Sink sink) {
+        this.debounceMillis = debounceMillis;
+        this.scheduler = scheduler;
+        this.roomExecutor = roomExecutor;
+        this.players = players;
+        this.sink = sink;
+    }
+
+    /**
+     * The roster to send to a joining or resyncing session. It already reflects
+     * changes whose event is still pending; events only add or remove names, so
+     * receiving those again is harmless.
+     */
+    Roster current(String roomId) {
+        Collection<String> now = players.apply(roomId);
+        RoomRoster roster = rosters.computeIfAbsent(roomId, k -> new RoomRoster(now));
+        synchronized (roster) {
+            return new Roster(new ArrayList<>(now), roster.version);
+        }
+    }
+
+    /**
+     * Notes that the room's roster changed; the event goes out once the
+     * debounce window has passed.
+     */
+    void changed(String roomId) {
+        RoomRoster roster = rosters.get(roomId);
+        if (roster == null) {
+            // Nobody here has been sent a roster yet
+            return;
+        }
+        synchronized (roster) {
+            if (roster.scheduled) {
+                return;
+            }
+            roster.scheduled = debounceMillis > 0;
+        }
+        if (debounceMillis > 0) {
+            scheduler.schedule(() -> roomExecutor.apply(roomId).execute(() -> flush(roomId, roster)),
+                    debounceMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flush(roomId, roster);
+        }
+    }
+
+    /**
+     * Forgets a room that no longer has sessions here.
+     */
+    void discard(String roomId) {
+        rosters.remove(roomId);
+    }
+
+    private void flush(String roomId, RoomRoster roster) {
+        Set<String> now = new LinkedHashSet<>(players.apply(roomId));
+        List<String> left = new ArrayList<>();
+        List<String> joined = new ArrayList<>();
+        long leftVersion;
+        long joinedVersion;
+        synchronized (roster) {
+            roster.scheduled = false;
+            if (rosters.get(roomId) != roster) {
+                return;
+            }
+            for (String name : roster.sent) {
+                if (!now.contains(name)) {
+                    left.add(name);
+                }
+            }
+            for (String name : now) {
+                if (!roster.sent.contains(name)) {
+                    joined.add(name);
+                }
+            }
+            roster.sent = now;
+            leftVersion = left.isEmpty() ? 0 : ++roster.version;
+            joinedVersion = joined.isEmpty() ? 0 : ++roster.version;
+        }
+        if (!left.isEmpty()) {
+            sink.send(roomId, false, left, leftVersion);
+        }
+        if (!joined.isEmpty()) {
+            sink.send(roomId, true, joined, joinedVersion);
+        }
+    }
+}
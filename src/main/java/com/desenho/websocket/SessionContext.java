@@ -0,0 +1,104 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import jakarta.websocket.Session;
+
+/**
+ * Everything the endpoint keeps about one connection, stored in the session's
+ * user properties so lookups never go through a shared map.
+ */
+final class SessionContext {
+
+    /**
+     * One stay of a session in a room under a player name. Leaving removes
+     * exactly this membership, so a late leave of an old room cannot undo a
+     * newer join.
+     */
+    static final class Membership {
+        final SessionContext context;
+        final String roomId;
+        final String playerName;
+
+        Membership(SessionContext context, String roomId, String playerName) {
+            this.context = context;
+            this.roomId = roomId;
+            this.playerName = playerName;
+        }
+    }
+
+    final Session session;
+    final OutboundQueue outbound;
+    final MessageExecutor.SessionExecutor inbound;
+    final MessageChunks chunks;
+    final TokenBuckets rateBuckets;
+    // What the chunked message in progress is charged as; only touched on the
+    // inbound executor, like chunks
+    DrawingMessage.MessageType chunkedType;
+
+    private volatile Membership membership;
+    private volatile boolean binaryStrokes;
+    private volatile boolean binaryCanvas;
+    private volatile boolean throttled;
+
+    SessionContext(Session session, OutboundQueue outbound, MessageExecutor.SessionExecutor inbound, MessageChunks chunks,
+                   TokenBuckets rateBuckets) {
+        this.session = session;
+        this.outbound = outbound;
+        this.inbound = inbound;
+        this.chunks = chunks;
+        this.rateBuckets = rateBuckets;
+    }
+
+    Membership getMembership() {
+        return membership;
+    }
+
+    String getRoomId() {
+        Membership current = membership;
+        return current != null ? current.roomId : null;
+    }
+
+    boolean isIn(String roomId) {
+        return roomId != null && roomId.equals(getRoomId());
+    }
+
+    boolean isBinaryStrokes() {
+        return binaryStrokes;
+    }
+
+    void setBinaryStrokes(boolean binaryStrokes) {
+        this.binaryStrokes = binaryStrokes;
+    }
+
+    boolean isBinaryCanvas() {
+        return binaryCanvas;
+    }
+
+    void setBinaryCanvas(boolean binaryCanvas) {
+        this.binaryCanvas = binaryCanvas;
+    }
+
+    /**
+     * Whether the session's last message went over a rate limit; it is told
+     * once per run of dropped messages rather than for each of them.
+     */
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    synchronized Membership swap(Membership next) {
+        Membership previous = membership;
+        membership = next;
+        return previous;
+    }
+
+    synchronized void clearIf(Membership expected) {
+        if (membership == expected) {
+            membership = null;
+        }
+    }
+}
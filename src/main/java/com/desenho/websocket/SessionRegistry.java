@@ -0,0 +1,81 @@
+package com.desenho.websocket;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The sessions connected to each room on this node. Members are kept in a
+ * copy-on-write array per room: joins and leaves copy it, while broadcasts,
+ * which are far more frequent, iterate a stable array without locking or
+ * allocating.
+ */
+final class SessionRegistry {
+
+    private static final SessionContext.Membership[] NONE = new SessionContext.Membership[0];
+
+    private final Map<String, SessionContext.Membership[]> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Moves the session into the room and returns the membership it had
+     * before, which the caller still has to {@link #leave}.
+     */
+    SessionContext.Membership join(SessionContext context, String roomId, String playerName) {
+        SessionContext.Membership joined = new SessionContext.Membership(context, roomId, playerName);
+        SessionContext.Membership previous = context.swap(joined);
+        rooms.compute(roomId, (k, members) -> {
+            if (members == null) {
+                return new SessionContext.Membership[] { joined };
+            }
+            SessionContext.Membership[] grown = Arrays.copyOf(members, members.length + 1);
+            grown[members.length] = joined;
+            return grown;
+        });
+        return previous;
+    }
+
+    /**
+     * Ends the membership. Returns true if it was the room's last one here.
+     */
+    boolean leave(SessionContext.Membership membership) {
+        membership.context.clearIf(membership);
+        boolean[] emptied = new boolean[1];
+        rooms.computeIfPresent(membership.roomId, (k, members) -> {
+            int index = indexOf(members, membership);
+            if (index < 0) {
+                return members;
+            }
+            if (members.length == 1) {
+                emptied[0] = true;
+                return null;
+            }
+            SessionContext.Membership[] shrunk = new SessionContext.Membership[members.length - 1];
+            System.arraycopy(members, 0, shrunk, 0, index);
+            System.arraycopy(members, index + 1, shrunk, index, members.length - index - 1);
+            return shrunk;
+        });
+        return emptied[0];
+    }
+
+    /**
+     * The room's current members; the array must not be modified.
+     */
+    SessionContext.Membership[] members(String roomId) {
+        SessionContext.Membership[] members = rooms.get(roomId);
+        return members != null ? members : NONE;
+    }
+
+    void forEachRoom(BiConsumer<String, SessionContext.Membership[]> action) {
+        rooms.forEach(action);
+    }
+
+    private static int indexOf(SessionContext.Membership[] members, SessionContext.Membership membership) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == membership) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
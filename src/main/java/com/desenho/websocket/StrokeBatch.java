@@ -0,0 +1,120 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outbound frames for a group of stroke segments going to the same recipients.
+ * A single segment is sent as-is; several are wrapped into one
+ * DRAWING_ACTION_BATCH text frame or packed into as few binary frames as the
+ * record limit allows. Both forms are built lazily and at most once.
+ */
+final class StrokeBatch {
+
+    private static final String BATCH_TYPE = DrawingMessage.MessageType.DRAWING_ACTION_BATCH.name();
+
+    private final ObjectMapper objectMapper;
+    private final String roomId;
+    private final List<StrokeFrame> frames;
+    private String jsonFrame;
+    private List<byte[]> binaryFrames;
+    private boolean binaryUnavailable;
+
+    StrokeBatch(ObjectMapper objectMapper, String roomId, List<StrokeFrame> frames) {
+        this.objectMapper = objectMapper;
+        this.roomId = roomId;
+        this.frames = frames;
+    }
+
+    boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    String jsonFrame() {
+        if (jsonFrame == null) {
+            List<String> messages = new ArrayList<>();
+            for (StrokeFrame frame : frames) {
+                messages.addAll(frame.json());
+            }
+            jsonFrame = messages.size() == 1 ? messages.get(0) : wrap(messages);
+        }
+        return jsonFrame;
+    }
+
+    /**
+     * Binary frames for the batch, or null if any segment can't be binary encoded.
+     */
+    List<byte[]> binaryFrames() {
+        if (binaryFrames == null && !binaryUnavailable) {
+            if (frames.size() == 1) {
+                byte[] binary = frames.get(0).binary();
+                binaryFrames = binary != null ? List.of(binary) : null;
+            } else {
+                binaryFrames = pack();
+            }
+            binaryUnavailable = binaryFrames == null;
+        }
+        return binaryFrames;
+    }
+
+    private String wrap(List<String> messages) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("type", BATCH_TYPE);
+            generator.writeStringField("roomId", roomId);
+            generator.writeArrayFieldStart("messages");
+            for (String message : messages) {
+                generator.writeRawValue(message);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not encode stroke batch", e);
+        }
+        return writer.toString();
+    }
+
+    // Concatenates the records of every frame, re-splitting at the record limit
+    private List<byte[]> pack() {
+        List<byte[]> packed = new ArrayList<>();
+        ByteBuffer current = null;
+        int records = 0;
+        for (StrokeFrame frame : frames) {
+            byte[] binary = frame.binary();
+            if (binary == null) {
+                return null;
+            }
+            ByteBuffer source = ByteBuffer.wrap(binary);
+            int count = source.get(1) & 0xFF;
+            if (current == null || records + count > StrokeCodec.MAX_RECORDS) {
+                if (current != null) {
+                    packed.add(finish(current, records));
+                }
+                current = ByteBuffer.allocate(2 + StrokeCodec.MAX_RECORDS * StrokeCodec.MAX_RECORD_BYTES);
+                current.position(2);
+                records = 0;
+            }
+            current.put(binary, 2, binary.length - 2);
+            records += count;
+        }
+        if (current != null) {
+            packed.add(finish(current, records));
+        }
+        return packed;
+    }
+
+    private static byte[] finish(ByteBuffer buffer, int records) {
+        buffer.put(0, (byte) StrokeCodec.FRAME_STROKES);
+        buffer.put(1, (byte) records);
+        byte[] frame = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,98 @@
+package com.desenho.websocket;
+
+import jakarta.websocket.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Per-room outbound aggregator for stroke segments. Segments arriving within
+ * the flush window are handed to the flush callback together, so recipients get
+ * one frame per tick instead of one per pointer event. A room is flushed early
+ * when it reaches the maximum batch size.
+ */
+final class StrokeBatcher {
+
+    /**
+     * A stroke segment waiting to be relayed, with the session that sent it.
+     */
+    static final class PendingStroke {
+        final Session sender;
+        final StrokeFrame frame;
+
+        PendingStroke(Session sender, StrokeFrame frame) {
+            this.sender = sender;
+            this.frame = frame;
+        }
+    }
+
+    private static final class RoomBatch {
+        // Held while draining and flushing so batches of a room go out in order
+        private final Object flushLock = new Object();
+        private List<PendingStroke> strokes = new ArrayList<>();
+        private boolean scheduled;
+    }
+
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final BiConsumer<String, List<PendingStroke>> flush;
+    private final Map<String, RoomBatch> batches = new ConcurrentHashMap<>();
+
+    StrokeBatcher(long windowMillis, int maxBatchSize, ScheduledExecutorService scheduler,
+                  BiConsumer<String, List<PendingStroke>> flush) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, StrokeCodec.MAX_RECORDS));
+        this.scheduler = scheduler;
+        this.flush = flush;
+    }
+
+    /**
+     * Queues a segment for the room; only for a room the sender is in, since a
+     * room's batch is kept until its last session leaves (see {@link #discard}).
+     */
+    void submit(String roomId, Session sender, StrokeFrame frame) {
+        RoomBatch batch = batches.computeIfAbsent(roomId, k -> new RoomBatch());
+        boolean full = false;
+        boolean schedule = false;
+        synchronized (batch) {
+            batch.strokes.add(new PendingStroke(sender, frame));
+            if (batch.strokes.size() >= maxBatchSize) {
+                full = true;
+            } else if (!batch.scheduled) {
+                batch.scheduled = true;
+                schedule = true;
+            }
+        }
+        if (full) {
+            flushRoom(roomId, batch);
+        } else if (schedule) {
+            scheduler.schedule(() -> flushRoom(roomId, batch), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drops any pending segments of a room that no longer has sessions.
+     */
+    void discard(String roomId) {
+        batches.remove(roomId);
+    }
+
+    private void flushRoom(String roomId, RoomBatch batch) {
+        synchronized (batch.flushLock) {
+            List<PendingStroke> strokes;
+            synchronized (batch) {
+                strokes = batch.strokes;
+                batch.strokes = new ArrayList<>();
+                batch.scheduled = false;
+            }
+            if (!strokes.isEmpty()) {
+                flush.accept(roomId, strokes);
+            }
+        }
+    }
+}
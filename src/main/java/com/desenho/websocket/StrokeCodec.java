@@ -0,0 +1,177 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of stroke segments, used by clients that opt in with
+ * {@code binaryStrokes} on JOIN_ROOM.
+ *
+ * <pre>
+ * frame  := kind:u8 (0x01) count:u8 record{count}
+ * record := flags:u8 size:u8 color startX:s16 startY:s16 endX:s16 endY:s16
+ * flags  := bit0 isStart, bit1 isEnd, bit2-3 tool, bit4 custom color
+ * color  := paletteIndex:u8 | r:u8 g:u8 b:u8 (when custom color flag is set)
+ * </pre>
+ *
+ * Coordinates are quantized to a quarter pixel. A record is 11 bytes (13 with a
+ * custom color), against roughly 200 bytes for the equivalent JSON message.
+ */
+public final class StrokeCodec {
+
+    static final int FRAME_STROKES = 0x01;
+    static final int MAX_RECORDS = 255;
+    static final int MAX_RECORD_BYTES = 13;
+
+    private static final int FLAG_START = 0x01;
+    private static final int FLAG_END = 0x02;
+    private static final int TOOL_SHIFT = 2;
+    private static final int TOOL_MASK = 0x03;
+    private static final int FLAG_CUSTOM_COLOR = 0x10;
+
+    private static final double COORD_SCALE = 4.0;
+
+    // Same order as the preset colors in index.html / script.js
+    private static final String[] PALETTE = {
+        "#000000", "#ff0000", "#00ff00", "#0000ff", "#ffff00", "#ff00ff", "#00ffff", "#ffffff"
+    };
+    private static final String[] TOOLS = { "brush", "eraser", "spray" };
+
+    private StrokeCodec() {
+    }
+
+    /**
+     * Encodes the actions into a single frame, or returns null when any of them
+     * cannot be represented (unknown tool, color or size out of range).
+     */
+    public static byte[] encode(List<DrawingMessage.DrawingAction> actions) {
+        if (actions.isEmpty() || actions.size() > MAX_RECORDS) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(2 + actions.size() * MAX_RECORD_BYTES);
+        buffer.put((byte) FRAME_STROKES);
+        buffer.put((byte) actions.size());
+        for (DrawingMessage.DrawingAction action : actions) {
+            if (!encodeRecord(action, buffer)) {
+                return null;
+            }
+        }
+        byte[] frame = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(frame);
+        return frame;
+    }
+
+    /**
+     * Decodes a stroke frame.
+     *
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static List<DrawingMessage.DrawingAction> decode(ByteBuffer frame) {
+        try {
+            if ((frame.get() & 0xFF) != FRAME_STROKES) {
+                throw new IllegalArgumentException("Unknown frame kind");
+            }
+            int count = frame.get() & 0xFF;
+            List<DrawingMessage.DrawingAction> actions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                actions.add(decodeRecord(frame));
+            }
+            if (count == 0 || frame.hasRemaining()) {
+                throw new IllegalArgumentException("Unexpected frame length");
+            }
+            return actions;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    private static boolean encodeRecord(DrawingMessage.DrawingAction action, ByteBuffer buffer) {
+        if (action.getSeq() != null) {
+            // Traced segments go as JSON, the only form that carries the trace
+            return false;
+        }
+        int tool = indexOf(TOOLS, action.getTool());
+        int paletteIndex = indexOf(PALETTE, action.getColor() != null ? action.getColor().toLowerCase() : null);
+        int rgb = paletteIndex < 0 ? parseColor(action.getColor()) : 0;
+        if (tool < 0 || (paletteIndex < 0 && rgb < 0) || action.getSize() < 0 || action.getSize() > 0xFF) {
+            return false;
+        }
+
+        int flags = (tool & TOOL_MASK) << TOOL_SHIFT;
+        if (action.isStart()) flags |= FLAG_START;
+        if (action.isEnd()) flags |= FLAG_END;
+        if (paletteIndex < 0) flags |= FLAG_CUSTOM_COLOR;
+
+        buffer.put((byte) flags);
+        buffer.put((byte) action.getSize());
+        if (paletteIndex < 0) {
+            buffer.put((byte) (rgb >> 16));
+            buffer.put((byte) (rgb >> 8));
+            buffer.put((byte) rgb);
+        } else {
+            buffer.put((byte) paletteIndex);
+        }
+        buffer.putShort(quantize(action.getStartX()));
+        buffer.putShort(quantize(action.getStartY()));
+        buffer.putShort(quantize(action.getEndX()));
+        buffer.putShort(quantize(action.getEndY()));
+        return true;
+    }
+
+    private static DrawingMessage.DrawingAction decodeRecord(ByteBuffer buffer) {
+        int flags = buffer.get() & 0xFF;
+        int tool = (flags >> TOOL_SHIFT) & TOOL_MASK;
+        if (tool >= TOOLS.length) {
+            throw new IllegalArgumentException("Unknown tool " + tool);
+        }
+
+        DrawingMessage.DrawingAction action = new DrawingMessage.DrawingAction();
+        action.setTool(TOOLS[tool]);
+        action.setStart((flags & FLAG_START) != 0);
+        action.setEnd((flags & FLAG_END) != 0);
+        action.setSize(buffer.get() & 0xFF);
+        if ((flags & FLAG_CUSTOM_COLOR) != 0) {
+            int rgb = ((buffer.get() & 0xFF) << 16) | ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF);
+            action.setColor(String.format("#%06x", rgb));
+        } else {
+            int index = buffer.get() & 0xFF;
+            if (index >= PALETTE.length) {
+                throw new IllegalArgumentException("Unknown palette index " + index);
+            }
+            action.setColor(PALETTE[index]);
+        }
+        action.setStartX(buffer.getShort() / COORD_SCALE);
+        action.setStartY(buffer.getShort() / COORD_SCALE);
+        action.setEndX(buffer.getShort() / COORD_SCALE);
+        action.setEndY(buffer.getShort() / COORD_SCALE);
+        return action;
+    }
+
+    private static short quantize(double coordinate) {
+        long scaled = Math.round(coordinate * COORD_SCALE);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+    }
+
+    private static int parseColor(String color) {
+        if (color == null || color.length() != 7 || color.charAt(0) != '#') {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(color.substring(1), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
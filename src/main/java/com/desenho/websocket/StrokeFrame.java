@@ -0,0 +1,135 @@
+package com.desenho.websocket;
+
+import com.desenho.model.DrawingMessage;
+import com.desenho.model.StrokeSegment;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stroke segments received either as a JSON DRAWING_ACTION or as a binary
+ * {@link StrokeCodec} frame (or replayed from the room's stroke log), transcoded
+ * lazily to the other representation the first time a recipient needs it.
+ */
+final class StrokeFrame {
+
+    private final ObjectMapper objectMapper;
+    private final String roomId;
+    private final long receivedNanos;
+    private List<String> json;
+    private byte[] binary;
+    private List<DrawingMessage.DrawingAction> actions;
+    private boolean binaryUnavailable;
+
+    private StrokeFrame(ObjectMapper objectMapper, String roomId, long receivedNanos) {
+        this.objectMapper = objectMapper;
+        this.roomId = roomId;
+        this.receivedNanos = receivedNanos;
+    }
+
+    static StrokeFrame ofJson(ObjectMapper objectMapper, String roomId, String json, long receivedNanos) {
+        StrokeFrame frame = new StrokeFrame(objectMapper, roomId, receivedNanos);
+        frame.json = List.of(json);
+        return frame;
+    }
+
+    static StrokeFrame ofBinary(ObjectMapper objectMapper, String roomId, byte[] binary,
+                                List<DrawingMessage.DrawingAction> actions, long receivedNanos) {
+        StrokeFrame frame = new StrokeFrame(objectMapper, roomId, receivedNanos);
+        frame.binary = binary;
+        frame.actions = actions;
+        return frame;
+    }
+
+    static StrokeFrame ofActions(ObjectMapper objectMapper, String roomId,
+                                 List<DrawingMessage.DrawingAction> actions) {
+        StrokeFrame frame = new StrokeFrame(objectMapper, roomId, 0);
+        frame.actions = actions;
+        return frame;
+    }
+
+    /**
+     * When the server received the segments ({@link System#nanoTime()}), or 0 if
+     * they weren't received from a client.
+     */
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * The bound segments, parsing the JSON form on first use.
+     */
+    synchronized List<DrawingMessage.DrawingAction> actions() {
+        if (actions == null) {
+            List<DrawingMessage.DrawingAction> bound = new ArrayList<>(json.size());
+            for (String message : json) {
+                try {
+                    DrawingMessage parsed = objectMapper.readValue(message, DrawingMessage.class);
+                    if (parsed.getDrawingAction() != null) {
+                        bound.add(parsed.getDrawingAction());
+                    }
+                } catch (Exception e) {
+                    // Skip segments that don't bind
+                }
+            }
+            actions = bound;
+        }
+        return actions;
+    }
+
+    /**
+     * The segments as the room logs them, without the trace stamps only live
+     * recipients need. A JSON segment is left unbound until the log is read.
+     */
+    synchronized List<StrokeSegment> segments() {
+        if (actions == null && json.size() == 1) {
+            return List.of(StrokeSegment.unbound(() -> {
+                List<DrawingMessage.DrawingAction> bound = actions();
+                return bound.isEmpty() ? null : logged(bound.get(0));
+            }, json.get(0).length()));
+        }
+        List<StrokeSegment> segments = new ArrayList<>();
+        for (DrawingMessage.DrawingAction action : actions()) {
+            segments.add(StrokeSegment.bound(logged(action)));
+        }
+        return segments;
+    }
+
+    private static DrawingMessage.DrawingAction logged(DrawingMessage.DrawingAction action) {
+        return action.getSeq() != null ? LatencyTracer.untraced(action) : action;
+    }
+
+    /**
+     * One DRAWING_ACTION JSON message per segment.
+     */
+    synchronized List<String> json() {
+        if (json == null) {
+            List<String> messages = new ArrayList<>(actions.size());
+            for (DrawingMessage.DrawingAction action : actions) {
+                DrawingMessage message = new DrawingMessage();
+                message.setType(DrawingMessage.MessageType.DRAWING_ACTION);
+                message.setRoomId(roomId);
+                message.setDrawingAction(action);
+                try {
+                    messages.add(objectMapper.writeValueAsString(message));
+                } catch (Exception e) {
+                    // Skip segments that can't be encoded
+                }
+            }
+            json = messages;
+        }
+        return json;
+    }
+
+    /**
+     * The binary encoding, or null if the segments can't be represented in it.
+     */
+    synchronized byte[] binary() {
+        if (binary == null && !binaryUnavailable) {
+            // Null when a segment can't be encoded; recipients get JSON instead
+            binary = StrokeCodec.encode(actions());
+            binaryUnavailable = binary == null;
+        }
+        return binary;
+    }
+}
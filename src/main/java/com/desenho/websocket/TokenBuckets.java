@@ -0,0 +1,72 @@
+package com.desenho.websocket;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of token buckets, one per slot, kept as the generic cell rate
+ * algorithm does: each slot holds the time at which its bucket would be full
+ * again, so taking tokens is one compare-and-set and nothing has to refill
+ * them. Sessions of a room share its buckets from any thread without locking.
+ */
+final class TokenBuckets {
+
+    /**
+     * A rate in units per second with a burst of {@code burst} units; a
+     * single take of more than the burst is never allowed.
+     */
+    static final class Limit {
+        final double rate;
+        final double burst;
+        private final double nanosPerUnit;
+        private final long toleranceNanos;
+
+        Limit(double rate, double burst) {
+            if (!(rate > 0) || !(burst >= 1)) {
+                throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+            }
+            this.rate = rate;
+            this.burst = burst;
+            this.nanosPerUnit = 1_000_000_000d / rate;
+            this.toleranceNanos = (long) Math.min(burst * nanosPerUnit, Long.MAX_VALUE / 4);
+        }
+    }
+
+    private final AtomicLongArray fullAt;
+
+    TokenBuckets(int slots) {
+        fullAt = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            fullAt.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Takes {@code units} tokens from the bucket in {@code slot} if it has
+     * them; a refused take leaves the bucket as it was.
+     */
+    boolean take(int slot, Limit limit, long units, long now) {
+        long cost = (long) Math.min(units * limit.nanosPerUnit, Long.MAX_VALUE / 4);
+        while (true) {
+            long current = fullAt.get(slot);
+            long next = Math.max(current, now) + cost;
+            if (next - now > limit.toleranceNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(slot, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Whether every bucket is full, as in a new set.
+     */
+    boolean isFull(long now) {
+        for (int i = 0; i < fullAt.length(); i++) {
+            if (fullAt.get(i) > now) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -4,6 +4,166 @@
  * Cache-Control: no-cache, no-store, must-revalidate
  */
 
+// Compact binary stroke protocol, opted into with binaryStrokes on JOIN_ROOM (see StrokeCodec.java)
+const StrokeCodec = {
+    FRAME_STROKES: 0x01,
+    MAX_RECORDS: 255,
+    COORD_SCALE: 4,
+    // Same order as the preset colors in index.html
+    PALETTE: ['#000000', '#ff0000', '#00ff00', '#0000ff', '#ffff00', '#ff00ff', '#00ffff', '#ffffff'],
+    TOOLS: ['brush', 'eraser', 'spray'],
+
+    // Returns an ArrayBuffer, or null if some action can't be represented
+    encode(actions) {
+        if (actions.length === 0 || actions.length > this.MAX_RECORDS) return null;
+        const view = new DataView(new ArrayBuffer(2 + actions.length * 13));
+        let offset = 0;
+        view.setUint8(offset++, this.FRAME_STROKES);
+        view.setUint8(offset++, actions.length);
+        for (const action of actions) {
+            const tool = this.TOOLS.indexOf(action.tool);
+            const color = (action.color || '').toLowerCase();
+            const paletteIndex = this.PALETTE.indexOf(color);
+            const custom = paletteIndex < 0;
+            if (tool < 0 || action.size < 0 || action.size > 255 ||
+                (custom && !/^#[0-9a-f]{6}$/.test(color))) {
+                return null;
+            }
+            let flags = tool << 2;
+            if (action.isStart) flags |= 0x01;
+            if (action.isEnd) flags |= 0x02;
+            if (custom) flags |= 0x10;
+            view.setUint8(offset++, flags);
+            view.setUint8(offset++, action.size);
+            if (custom) {
+                const rgb = parseInt(color.substring(1), 16);
+                view.setUint8(offset++, (rgb >> 16) & 0xff);
+                view.setUint8(offset++, (rgb >> 8) & 0xff);
+                view.setUint8(offset++, rgb & 0xff);
+            } else {
+                view.setUint8(offset++, paletteIndex);
+            }
+            for (const value of [action.startX, action.startY, action.endX, action.endY]) {
+                const scaled = Math.round(value * this.COORD_SCALE);
+                view.setInt16(offset, Math.max(-32768, Math.min(32767, scaled)));
+                offset += 2;
+            }
+        }
+        return view.buffer.slice(0, offset);
+    },
+
+    decode(buffer) {
+        const view = new DataView(buffer);
+        let offset = 0;
+        if (view.getUint8(offset++) !== this.FRAME_STROKES) return [];
+        const count = view.getUint8(offset++);
+        const actions = [];
+        for (let i = 0; i < count; i++) {
+            const flags = view.getUint8(offset++);
+            const size = view.getUint8(offset++);
+            let color;
+            if (flags & 0x10) {
+                const rgb = (view.getUint8(offset) << 16) | (view.getUint8(offset + 1) << 8) | view.getUint8(offset + 2);
+                offset += 3;
+                color = '#' + rgb.toString(16).padStart(6, '0');
+            } else {
+                color = this.PALETTE[view.getUint8(offset++)];
+            }
+            const coords = [];
+            for (let c = 0; c < 4; c++) {
+                coords.push(view.getInt16(offset) / this.COORD_SCALE);
+                offset += 2;
+            }
+            actions.push({
+                tool: this.TOOLS[(flags >> 2) & 0x03],
+                color: color,
+                size: size,
+                startX: coords[0],
+                startY: coords[1],
+                endX: coords[2],
+                endY: coords[3],
+                isStart: (flags & 0x01) !== 0,
+                isEnd: (flags & 0x02) !== 0
+            });
+        }
+        return actions;
+    }
+};
+
+// Binary canvas images, opted into with binaryCanvas on JOIN_ROOM (see CanvasCodec.java)
+const CanvasCodec = {
+    FRAME_TILES: 0x02,
+    FRAME_CANVAS: 0x03,
+
+    // Returns the message the frame stands for, with Blobs as image data, or null
+    decode(buffer) {
+        const view = new DataView(buffer);
+        let offset = 0;
+        const readImage = () => {
+            const mimeLength = view.getUint8(offset++);
+            const mime = String.fromCharCode(...new Uint8Array(buffer, offset, mimeLength));
+            offset += mimeLength;
+            const length = view.getUint32(offset);
+            offset += 4;
+            const image = mimeLength > 0 ? new Blob([new Uint8Array(buffer, offset, length)], { type: mime }) : null;
+            offset += length;
+            return image;
+        };
+        const kind = view.getUint8(offset++);
+        if (kind === this.FRAME_TILES) {
+            const count = view.getUint8(offset++);
+            const tiles = [];
+            for (let i = 0; i < count; i++) {
+                const col = view.getUint8(offset++);
+                const row = view.getUint8(offset++);
+                const version = view.getUint32(offset) * 4294967296 + view.getUint32(offset + 4);
+                offset += 8;
+                tiles.push({ col: col, row: row, version: version, data: readImage() });
+            }
+            return { type: 'CANVAS_TILE_UPDATE', tiles: tiles };
+        }
+        if (kind === this.FRAME_CANVAS) {
+            const force = view.getUint8(offset++) !== 0;
+            return { type: force ? 'FORCE_CANVAS_UPDATE' : 'CANVAS_UPDATE', canvasData: readImage() };
+        }
+        return null;
+    }
+};
+
+// Messages over one frame's worth go as binary chunks the server puts back
+// together (see MessageChunks.java); the server takes frames of up to 1 MB
+const MessageChunks = {
+    FRAME_CHUNK: 0x04,
+    CHUNK_BYTES: 256 * 1024,
+    lastId: 0,
+
+    // Returns the chunk frames for the JSON text, or null if it fits in one frame
+    encode(json) {
+        // Under CHUNK_BYTES characters the UTF-8 text stays under the frame limit
+        if (json.length <= this.CHUNK_BYTES) return null;
+        const bytes = new TextEncoder().encode(json);
+        const count = Math.ceil(bytes.length / this.CHUNK_BYTES);
+        const id = this.lastId = (this.lastId + 1) >>> 0;
+        const frames = [];
+        for (let index = 0; index < count; index++) {
+            const chunk = bytes.subarray(index * this.CHUNK_BYTES, (index + 1) * this.CHUNK_BYTES);
+            const frame = new Uint8Array(9 + chunk.length);
+            const view = new DataView(frame.buffer);
+            view.setUint8(0, this.FRAME_CHUNK);
+            view.setUint32(1, id);
+            view.setUint16(5, index);
+            view.setUint16(7, count);
+            frame.set(chunk, 9);
+            frames.push(frame.buffer);
+        }
+        return frames;
+    }
+};
+
+// Canvas checkpoints travel as tiles (see DrawingMessage.CanvasTile / Room.java)
+const CANVAS_TILE_SIZE = 128;
+const CANVAS_TILE_COLS = 16;
+
 class DrawingGame {
     constructor() {
         this.canvas = null;
@@ -20,6 +180,35 @@ class DrawingGame {
         this.reconnectInterval = null;
         this.isConnected = false;
         this.hasJoinedRoom = false;
+        this.binaryStrokes = false;
+
+        // Fraction of our stroke segments traced end to end, set by JOIN_ACCEPTED
+        this.traceSampleRate = 0;
+        this.traceSeq = 0;
+
+        // Room state version we are up to date with (ROOM_VERSION), presented when
+        // rejoining after a dropped connection to only get the changes since
+        this.roomVersion = null;
+        this.roomVersionRoom = null;
+        this.resuming = false;
+
+        // Room roster, kept current by PLAYER_JOINED/PLAYER_LEFT events
+        this.players = [];
+        this.rosterVersion = null;
+        this.rosterRequested = false;
+
+        // Canvas snapshots are periodic checkpoints; the server replays strokes on top
+        this.checkpointIntervalMs = 10000;
+        this.checkpointTimeout = null;
+        this.lastCheckpointAt = 0;
+
+        // Tiles drawn on since the last checkpoint, keyed by row * CANVAS_TILE_COLS + col
+        this.dirtyTiles = new Set();
+
+        // Canvas images are drawn in arrival order; strokes received while any is
+        // still loading are drawn after them
+        this.canvasLoadQueue = [];
+        this.deferredActions = [];
         
         // Image upload properties
         this.isImageMode = false;
@@ -196,11 +385,14 @@ class DrawingGame {
         // console.log('WebSocket URL:', wsUrl);
         
         this.websocket = new WebSocket(wsUrl);
+        this.websocket.binaryType = 'arraybuffer';
         
         this.websocket.onopen = () => {
             // console.log('WebSocket connected successfully');
             // console.log('Chrome mobile detection in onopen:', isChromeOnMobile);
             this.isConnected = true;
+            this.binaryStrokes = false;
+            this.traceSampleRate = 0;
             this.updateConnectionStatus(true);
             
             if (this.reconnectInterval) {
@@ -217,7 +409,7 @@ class DrawingGame {
                         // console.log('Chrome mobile: Processing queued JOIN_ROOM message');
                     }
                     try {
-                        this.websocket.send(JSON.stringify(message));
+                        this.sendJson(message);
                         if (isChromeOnMobile && message.type === 'JOIN_ROOM') {
                             // console.log('Chrome mobile: Queued JOIN_ROOM sent successfully');
                         }
@@ -262,6 +454,15 @@ class DrawingGame {
         this.websocket.onmessage = (event) => {
             // console.log('WebSocket message received:', event.data);
             try {
+                if (event.data instanceof ArrayBuffer) {
+                    if (new DataView(event.data).getUint8(0) === StrokeCodec.FRAME_STROKES) {
+                        StrokeCodec.decode(event.data).forEach(action => this.renderDrawingAction(action));
+                    } else {
+                        const decoded = CanvasCodec.decode(event.data);
+                        if (decoded) this.handleWebSocketMessage(decoded);
+                    }
+                    return;
+                }
                 const message = JSON.parse(event.data);
                 this.handleWebSocketMessage(message);
             } catch (e) {
@@ -272,6 +473,8 @@ class DrawingGame {
         this.websocket.onclose = (event) => {
             // console.log('WebSocket disconnected - code:', event.code, 'reason:', event.reason);
             this.isConnected = false;
+            // Join again once reconnected
+            this.hasJoinedRoom = false;
             this.updateConnectionStatus(false);
             this.scheduleReconnect();
         };
@@ -325,6 +528,16 @@ class DrawingGame {
         }
     }
 
+    sendJson(message) {
+        const json = JSON.stringify(message);
+        const chunks = MessageChunks.encode(json);
+        if (chunks) {
+            chunks.forEach(chunk => this.websocket.send(chunk));
+        } else {
+            this.websocket.send(json);
+        }
+    }
+
     sendWebSocketMessage(message) {
         // console.log('sendWebSocketMessage called with:', message);
         
@@ -342,7 +555,7 @@ class DrawingGame {
         if (this.websocket && this.websocket.readyState === WebSocket.OPEN) {
             // console.log('WebSocket is open, sending message:', JSON.stringify(message));
             try {
-                this.websocket.send(JSON.stringify(message));
+                this.sendJson(message);
                 if (isChromeOnMobile && message.type === 'JOIN_ROOM') {
                     // console.log('🔥 Chrome mobile: JOIN_ROOM successfully sent via sendWebSocketMessage');
                 }
@@ -389,10 +602,32 @@ class DrawingGame {
                     this.loadCanvasFromData(message.canvasData);
                 }
                 break;
+            case 'CANVAS_TILE_UPDATE':
+                // Same rule as CANVAS_UPDATE: checkpoints only fill in an empty canvas,
+                // unless they are what changed while we were disconnected
+                if (message.tiles && (this.resuming || this.isCanvasEmpty())) {
+                    this.loadCanvasTiles(message.tiles);
+                }
+                break;
             case 'DRAWING_ACTION':
                 this.renderDrawingAction(message.drawingAction);
                 break;
+            case 'DRAWING_ACTION_BATCH':
+                message.messages.forEach(m => this.renderDrawingAction(m.drawingAction));
+                break;
             case 'CLEAR_CANVAS':
+                this.canvasLoadQueue = [];
+                this.deferredActions = [];
+                this.dirtyTiles.clear();
+                this.ctx.clearRect(0, 0, this.canvas.width, this.canvas.height);
+                this.clearFloatingImages();
+                break;
+            case 'RESYNC':
+                // We fell behind and the server dropped our backlog; the room
+                // state is sent again right after this, like on join
+                this.canvasLoadQueue = [];
+                this.deferredActions = [];
+                this.dirtyTiles.clear();
                 this.ctx.clearRect(0, 0, this.canvas.width, this.canvas.height);
                 this.clearFloatingImages();
                 break;
@@ -402,9 +637,26 @@ class DrawingGame {
             case 'FLOATING_IMAGE_REMOVE':
                 this.removeFloatingImageLocal(message.imageId);
                 break;
+            case 'JOIN_ACCEPTED':
+                this.binaryStrokes = message.binaryStrokes === true;
+                this.traceSampleRate = message.traceSampleRate || 0;
+                this.resuming = message.resumed === true;
+                break;
+            case 'ROOM_VERSION':
+                this.roomVersion = message.roomVersion;
+                this.roomVersionRoom = message.roomId;
+                this.resuming = false;
+                break;
+            case 'PLAYER_JOINED':
+            case 'PLAYER_LEFT':
+                this.applyRosterEvent(message);
+                break;
             case 'PLAYER_LIST_UPDATE':
                 // console.log('Received player list update:', message.playerName);
-                this.updatePlayersList(message.playerName);
+                this.players = message.playerName ? message.playerName.split(',') : [];
+                this.rosterVersion = message.rosterVersion != null ? message.rosterVersion : null;
+                this.rosterRequested = false;
+                this.updatePlayersList(this.players.join(','));
                 // Mark as successfully joined when we receive player list
                 this.hasJoinedRoom = true;
                 // Clear retry timeout since we successfully joined
@@ -443,8 +695,13 @@ class DrawingGame {
             const joinMessage = {
                 type: 'JOIN_ROOM',
                 roomId: this.currentRoom,
-                playerName: this.playerName
+                playerName: this.playerName,
+                binaryStrokes: true,
+                binaryCanvas: true
             };
+            if (this.roomVersion && this.roomVersionRoom === this.currentRoom) {
+                joinMessage.roomVersion = this.roomVersion;
+            }
             // console.log('JOIN_ROOM message object:', JSON.stringify(joinMessage));
             
             // Chrome mobile specific: Multiple aggressive attempts with forced sends
@@ -658,6 +915,8 @@ class DrawingGame {
         this.playerName = null;
         this.isConnected = false;
         this.hasJoinedRoom = false;
+        this.roomVersion = null;
+        this.roomVersionRoom = null;
         this.showLoginScreen();
     }
 
@@ -666,6 +925,30 @@ class DrawingGame {
         document.getElementById('currentPlayer').textContent = this.playerName;
     }
 
+    applyRosterEvent(message) {
+        if (this.rosterVersion === null || message.rosterVersion !== this.rosterVersion + 1) {
+            // Missed an event: ask for the whole roster again, once
+            this.rosterVersion = null;
+            if (!this.rosterRequested && this.websocket && this.websocket.readyState === WebSocket.OPEN) {
+                this.rosterRequested = true;
+                this.websocket.send(JSON.stringify({ type: 'ROSTER_REQUEST', roomId: this.currentRoom }));
+            }
+            return;
+        }
+        const names = message.playerName ? message.playerName.split(',') : [];
+        if (message.type === 'PLAYER_JOINED') {
+            names.forEach(name => {
+                if (!this.players.includes(name)) {
+                    this.players.push(name);
+                }
+            });
+        } else {
+            this.players = this.players.filter(name => !names.includes(name));
+        }
+        this.rosterVersion = message.rosterVersion;
+        this.updatePlayersList(this.players.join(','));
+    }
+
     updatePlayersList(playersString) {
         document.getElementById('playersList').textContent = playersString || '';
     }
@@ -812,12 +1095,67 @@ class DrawingGame {
     }
 
     loadCanvasFromData(canvasData) {
+        this.queueCanvasImage(canvasData, img => {
+            this.ctx.clearRect(0, 0, this.canvas.width, this.canvas.height);
+            if (img) {
+                this.ctx.globalCompositeOperation = 'source-over';
+                this.ctx.drawImage(img, 0, 0);
+            }
+        });
+    }
+
+    loadCanvasTiles(tiles) {
+        tiles.forEach(tile => {
+            this.queueCanvasImage(tile.data, img => {
+                const x = tile.col * CANVAS_TILE_SIZE;
+                const y = tile.row * CANVAS_TILE_SIZE;
+                this.ctx.clearRect(x, y, CANVAS_TILE_SIZE, CANVAS_TILE_SIZE);
+                if (img) {
+                    this.ctx.globalCompositeOperation = 'source-over';
+                    this.ctx.drawImage(img, x, y);
+                }
+            });
+        });
+    }
+
+    queueCanvasImage(src, draw) {
+        const entry = { img: null, ready: false, draw: draw };
+        const queue = this.canvasLoadQueue;
+        queue.push(entry);
+        const settle = img => {
+            entry.img = img;
+            entry.ready = true;
+            // A CLEAR_CANVAS replaced the queue while this image was loading
+            if (queue !== this.canvasLoadQueue) return;
+            while (queue.length > 0 && queue[0].ready) {
+                const next = queue.shift();
+                next.draw(next.img);
+            }
+            if (queue.length === 0) {
+                const deferred = this.deferredActions;
+                this.deferredActions = [];
+                deferred.forEach(action => this.renderDrawingAction(action));
+            }
+        };
+        if (!src) {
+            settle(null);
+            return;
+        }
+        // Binary canvas frames carry Blobs rather than data URLs
+        const url = src instanceof Blob ? URL.createObjectURL(src) : src;
+        const release = () => {
+            if (url !== src) URL.revokeObjectURL(url);
+        };
         const img = new Image();
         img.onload = () => {
-            this.ctx.clearRect(0, 0, this.canvas.width, this.canvas.height);
-            this.ctx.drawImage(img, 0, 0);
+            release();
+            settle(img);
+        };
+        img.onerror = () => {
+            release();
+            settle(null);
         };
-        img.src = canvasData;
+        img.src = url;
     }
 
     isCanvasEmpty() {
@@ -908,8 +1246,10 @@ class DrawingGame {
         
         const pos = this.getMousePos(e);
         
-        // Draw locally
+        // Draw locally; only our own strokes go into our checkpoints, as the
+        // server drops a logged segment once the tiles it touches are checkpointed
         this.drawLine(this.lastX, this.lastY, pos.x, pos.y);
+        this.markSegmentDirty(this.lastX, this.lastY, pos.x, pos.y);
         
         // Send drawing action to server
         this.sendDrawingAction(this.lastX, this.lastY, pos.x, pos.y, false, false);
@@ -925,14 +1265,23 @@ class DrawingGame {
             // Send drawing end action
             this.sendDrawingAction(this.lastX, this.lastY, this.lastX, this.lastY, false, true);
             
-            // Send canvas update to save the current state after a small delay
-            // This ensures the server has the latest canvas state for new players
-            setTimeout(() => {
-                this.sendCanvasUpdate();
-            }, 200);
+            // The server keeps the strokes themselves; a canvas snapshot is only a
+            // periodic checkpoint that lets it compact its stroke log
+            this.scheduleCanvasCheckpoint();
         }
     }
 
+    scheduleCanvasCheckpoint() {
+        if (this.checkpointTimeout) return;
+        const elapsed = Date.now() - this.lastCheckpointAt;
+        const delay = Math.max(200, this.checkpointIntervalMs - elapsed);
+        this.checkpointTimeout = setTimeout(() => {
+            this.checkpointTimeout = null;
+            this.lastCheckpointAt = Date.now();
+            this.sendCanvasTiles();
+        }, delay);
+    }
+
     drawLine(startX, startY, endX, endY) {
         this.ctx.globalCompositeOperation = this.currentTool === 'eraser' ? 'destination-out' : 'source-over';
         this.ctx.strokeStyle = this.currentTool === 'eraser' ? '#000000' : this.currentColor;
@@ -963,7 +1312,35 @@ class DrawingGame {
         }
     }
 
+    // Same reach as Room.coveredByTiles on the server
+    markSegmentDirty(startX, startY, endX, endY) {
+        const reach = this.currentTool === 'spray' ? this.currentSize + 1 : this.currentSize / 2 + 1;
+        this.markTilesDirty(Math.min(startX, endX) - reach, Math.min(startY, endY) - reach,
+            Math.max(startX, endX) + reach, Math.max(startY, endY) + reach);
+    }
+
+    markTilesDirty(minX, minY, maxX, maxY) {
+        const firstCol = Math.max(0, Math.floor(minX / CANVAS_TILE_SIZE));
+        const lastCol = Math.min(CANVAS_TILE_COLS - 1, Math.floor(maxX / CANVAS_TILE_SIZE));
+        const firstRow = Math.max(0, Math.floor(minY / CANVAS_TILE_SIZE));
+        const lastRow = Math.floor(maxY / CANVAS_TILE_SIZE);
+        for (let row = firstRow; row <= lastRow; row++) {
+            for (let col = firstCol; col <= lastCol; col++) {
+                this.dirtyTiles.add(row * CANVAS_TILE_COLS + col);
+            }
+        }
+    }
+
     renderDrawingAction(action) {
+        if (this.canvasLoadQueue.length > 0) {
+            this.deferredActions.push(action);
+            return;
+        }
+
+        if (action.seq != null) {
+            this.acknowledgeStroke(action);
+        }
+
         const prevTool = this.currentTool;
         const prevColor = this.currentColor;
         const prevSize = this.currentSize;
@@ -982,32 +1359,104 @@ class DrawingGame {
         this.currentSize = prevSize;
     }
 
+    // Tells the server when a traced segment reached our canvas, for its latency metrics
+    acknowledgeStroke(action) {
+        if (this.websocket && this.websocket.readyState === WebSocket.OPEN) {
+            this.websocket.send(JSON.stringify({
+                type: 'STROKE_ACK',
+                roomId: this.currentRoom,
+                drawingAction: { seq: action.seq, sentAt: action.sentAt, receivedAt: Date.now() }
+            }));
+        }
+    }
+
     sendDrawingAction(startX, startY, endX, endY, isStart, isEnd) {
+        const drawingAction = {
+            tool: this.currentTool,
+            color: this.currentColor,
+            size: this.currentSize,
+            startX: startX,
+            startY: startY,
+            endX: endX,
+            endY: endY,
+            isStart: isStart,
+            isEnd: isEnd
+        };
+
+        // Sampled segments carry a trace and go as JSON, which binary frames can't carry
+        const traced = this.traceSampleRate > 0 && Math.random() < this.traceSampleRate;
+        if (traced) {
+            drawingAction.seq = ++this.traceSeq;
+            drawingAction.sentAt = Date.now();
+        }
+
+        // Binary frames are routed by the room this connection joined, so only use
+        // them once the server accepted the join with binary strokes enabled
+        if (!traced && this.binaryStrokes && this.websocket && this.websocket.readyState === WebSocket.OPEN) {
+            const frame = StrokeCodec.encode([drawingAction]);
+            if (frame) {
+                this.websocket.send(frame);
+                return;
+            }
+        }
+
         this.sendWebSocketMessage({
             type: 'DRAWING_ACTION',
             roomId: this.currentRoom,
-            drawingAction: {
-                tool: this.currentTool,
-                color: this.currentColor,
-                size: this.currentSize,
-                startX: startX,
-                startY: startY,
-                endX: endX,
-                endY: endY,
-                isStart: isStart,
-                isEnd: isEnd
-            }
+            drawingAction: drawingAction
         });
     }
 
-    sendCanvasUpdate() {
-        if (this.canvas) {
+    // Checkpoints only the tiles drawn on since the previous one; a tile that is
+    // now fully transparent goes out without data so the server can drop it
+    sendCanvasTiles() {
+        if (!this.canvas || this.dirtyTiles.size === 0) return;
+        const tileCanvas = document.createElement('canvas');
+        const tileCtx = tileCanvas.getContext('2d');
+        const maxMessageChars = 512 * 1024;
+        let tiles = [];
+        let chars = 0;
+        const flush = () => {
+            if (tiles.length === 0) return;
             this.sendWebSocketMessage({
-                type: 'CANVAS_UPDATE',
+                type: 'CANVAS_TILE_UPDATE',
                 roomId: this.currentRoom,
-                canvasData: this.canvas.toDataURL()
+                tiles: tiles
             });
-        }
+            tiles = [];
+            chars = 0;
+        };
+
+        this.dirtyTiles.forEach(key => {
+            const col = key % CANVAS_TILE_COLS;
+            const row = Math.floor(key / CANVAS_TILE_COLS);
+            const x = col * CANVAS_TILE_SIZE;
+            const y = row * CANVAS_TILE_SIZE;
+            const width = Math.min(CANVAS_TILE_SIZE, this.canvas.width - x);
+            const height = Math.min(CANVAS_TILE_SIZE, this.canvas.height - y);
+            if (width <= 0 || height <= 0) return;
+
+            const pixels = this.ctx.getImageData(x, y, width, height);
+            let empty = true;
+            for (let i = 3; i < pixels.data.length; i += 4) {
+                if (pixels.data[i] > 0) {
+                    empty = false;
+                    break;
+                }
+            }
+            let data = null;
+            if (!empty) {
+                tileCanvas.width = width;
+                tileCanvas.height = height;
+                tileCtx.putImageData(pixels, 0, 0);
+                data = tileCanvas.toDataURL('image/png');
+            }
+            if (data && chars + data.length > maxMessageChars) flush();
+            tiles.push({ col: col, row: row, data: data });
+            chars += data ? data.length : 0;
+        });
+        this.dirtyTiles.clear();
+        flush();
     }
 
     clearCanvas() {
@@ -1716,12 +2165,19 @@ class DrawingGame {
             imageHeight: this.imageSize.height
         };
         
-        // Send to all players
-        this.sendWebSocketMessage(imageMessage);
-        
         // Add to local display
         this.addFloatingImageLocal(imageMessage);
         
+        // Send to all players as a reference to the uploaded asset; if the upload
+        // fails, send the image inline and let the server store it
+        this.uploadAsset(canvas)
+            .then(hash => {
+                this.sendWebSocketMessage(Object.assign({}, imageMessage, { imageData: null, imageHash: hash }));
+            })
+            .catch(() => {
+                this.sendWebSocketMessage(imageMessage);
+            });
+        
         // Clean up
         this.hideImageOverlay();
         
@@ -1729,6 +2185,19 @@ class DrawingGame {
         document.getElementById('imageUpload').value = '';
     }
 
+    uploadAsset(canvas) {
+        return new Promise((resolve, reject) => {
+            canvas.toBlob(blob => blob ? resolve(blob) : reject(new Error('toBlob failed')), 'image/png');
+        })
+            .then(blob => fetch('/api/assets', {
+                method: 'POST',
+                headers: { 'Content-Type': 'image/png' },
+                body: blob
+            }))
+            .then(response => response.ok ? response.json() : Promise.reject(new Error('Upload failed: ' + response.status)))
+            .then(asset => asset.hash);
+    }
+
     cancelImage() {
         this.hideImageOverlay();
         document.getElementById('imageUpload').value = '';
@@ -1769,7 +2238,7 @@ class DrawingGame {
         const floatingImg = document.createElement('img');
         floatingImg.id = imageMessage.imageId;
         floatingImg.className = 'floating-image';
-        floatingImg.src = imageMessage.imageData;
+        floatingImg.src = imageMessage.imageHash ? '/api/assets/' + imageMessage.imageHash : imageMessage.imageData;
 
         // Store canvas coordinates in data attributes for repositioning
         floatingImg.dataset.canvasX = imageMessage.imageX;
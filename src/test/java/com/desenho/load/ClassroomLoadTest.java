@@ -0,0 +1,38 @@
+package com.desenho.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Release gate: classrooms of drawing pupils against a locally started server.
+ * Only runs in the {@code load} profile; start the server first, then e.g.
+ *
+ * <pre>
+ * java -jar target/quarkus-app/quarkus-run.jar &amp;
+ * mvn test -Pload -Dload.rooms=20 -Dload.pupils-per-room=30
+ * </pre>
+ *
+ * The summary and a timeline (CSV) go to {@code target/load}; see
+ * {@link LoadSettings} for what can be set.
+ */
+@Tag("load")
+class ClassroomLoadTest {
+
+    @Test
+    void classroomsStayWithinReleaseGates() throws Exception {
+        LoadSettings settings = LoadSettings.fromSystemProperties();
+        LoadRun.Result result = new LoadRun(settings).run();
+        result.write(settings.reportDir);
+        System.out.println(result.summary);
+
+        assertTrue(result.p99Ms <= settings.maxP99Ms,
+                "p99 relay latency " + result.p99Ms + " ms over " + settings.maxP99Ms + " ms");
+        assertTrue(result.deliveryRatio >= settings.minDeliveryRatio,
+                "only " + result.deliveryRatio + " of the expected segments were relayed");
+        assertTrue(result.errors <= settings.maxErrors, result.errors + " error replies from the server");
+        assertEquals(0, result.unexpectedCloses, "connections closed by the server");
+    }
+}
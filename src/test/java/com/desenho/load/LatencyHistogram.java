@@ -0,0 +1,70 @@
+package com.desenho.load;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Relay latencies in 100 µs buckets up to 10 s (anything slower lands in the
+ * last one), recorded from many receiving threads without locking.
+ */
+final class LatencyHistogram {
+
+    private static final long BUCKET_NANOS = 100_000;
+    private static final int BUCKETS = 100_000;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        int bucket = (int) Math.min(BUCKETS - 1, Math.max(0, nanos / BUCKET_NANOS));
+        counts.incrementAndGet(bucket);
+    }
+
+    /**
+     * Counts so far, leaving them in place.
+     */
+    long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    static long total(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * The latency in milliseconds below which {@code quantile} of the samples
+     * fall, at the upper edge of its bucket; 0 without samples.
+     */
+    static double percentileMs(long[] counts, double quantile) {
+        long total = total(counts);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (i + 1) * BUCKET_NANOS / 1_000_000d;
+            }
+        }
+        return counts.length * BUCKET_NANOS / 1_000_000d;
+    }
+
+    /**
+     * The samples recorded between two snapshots.
+     */
+    static long[] since(long[] now, long[] before) {
+        long[] delta = new long[now.length];
+        for (int i = 0; i < now.length; i++) {
+            delta[i] = now[i] - before[i];
+        }
+        return delta;
+    }
+}
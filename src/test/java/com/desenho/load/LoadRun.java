@@ -0,0 +1,262 @@
+package com.desenho.load;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the classrooms of {@link LoadSettings} against a server that is already
+ * up: pupils join over the ramp, draw for the duration while the server is
+ * sampled, and the run ends with a summary and a timeline.
+ */
+final class LoadRun {
+
+    private static final Path IMAGES = Paths.get("src/main/resources/META-INF/resources/images");
+    private static final Pattern HASH = Pattern.compile("\"hash\"\\s*:\\s*\"([0-9a-f]+)\"");
+
+    /**
+     * The figures of a finished run that release gates look at.
+     */
+    static final class Result {
+        final double p50Ms;
+        final double p99Ms;
+        final double maxMs;
+        final double deliveryRatio;
+        final long errors;
+        final long unexpectedCloses;
+        final String summary;
+        final String timeline;
+
+        Result(double p50Ms, double p99Ms, double maxMs, double deliveryRatio, long errors, long unexpectedCloses,
+               String summary, String timeline) {
+            this.p50Ms = p50Ms;
+            this.p99Ms = p99Ms;
+            this.maxMs = maxMs;
+            this.deliveryRatio = deliveryRatio;
+            this.errors = errors;
+            this.unexpectedCloses = unexpectedCloses;
+            this.summary = summary;
+            this.timeline = timeline;
+        }
+
+        void write(Path dir) throws IOException {
+            Files.createDirectories(dir);
+            Files.writeString(dir.resolve("summary.txt"), summary);
+            Files.writeString(dir.resolve("timeline.csv"), timeline);
+        }
+    }
+
+    private final LoadSettings settings;
+    private final Traffic traffic = new Traffic();
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private final List<List<Pupil>> classrooms = new ArrayList<>();
+
+    LoadRun(LoadSettings settings) {
+        this.settings = settings;
+    }
+
+    Result run() throws Exception {
+        Random random = new Random(42);
+        String tag = Long.toString(System.currentTimeMillis() % 1_000_000, 36).toUpperCase(Locale.ROOT);
+        // A drawn-on 128 px tile is a few KB of PNG
+        byte[] tile = new byte[3000];
+        random.nextBytes(tile);
+        String tileData = "data:image/png;base64," + Base64.getEncoder().encodeToString(tile);
+        for (int r = 0; r < settings.rooms; r++) {
+            List<Pupil> pupils = new ArrayList<>();
+            for (int p = 0; p < settings.pupilsPerRoom; p++) {
+                pupils.add(new Pupil("LOAD" + tag + r, "aluno" + p, settings, traffic, new Random(random.nextLong()), tileData));
+            }
+            classrooms.add(pupils);
+        }
+
+        join();
+        ServerSampler sampler = new ServerSampler(http, settings.http);
+        ServerSampler.Sample before = sampler.sample();
+        List<String> images = uploadImages();
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "load-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long started = System.nanoTime();
+        for (List<Pupil> pupils : classrooms) {
+            for (Pupil pupil : pupils) {
+                pupil.start(started);
+            }
+        }
+        long tickNanos = 1_000_000_000L / settings.strokeHz;
+        ScheduledFuture<?> ticker = scheduler.scheduleAtFixedRate(this::tick, 0, tickNanos, TimeUnit.NANOSECONDS);
+        ScheduledFuture<?> imageAdds = images.isEmpty() ? null : scheduler.scheduleAtFixedRate(
+                () -> addImages(images, random), settings.imageEverySeconds, settings.imageEverySeconds, TimeUnit.SECONDS);
+
+        StringBuilder timeline = new StringBuilder("seconds,strokes_per_s,deliveries_per_s,received_kb_per_s,"
+                + "p50_ms,p99_ms,server_cpu,heap_mb,gc_pause_s,sessions,rejected\n");
+        long[] previousLatency = traffic.latency.snapshot();
+        long previousStrokes = 0;
+        long previousDeliveries = 0;
+        long previousBytes = 0;
+        double cpuTotal = 0;
+        int cpuSamples = 0;
+        double heapPeak = 0;
+        for (int elapsed = settings.sampleSeconds; elapsed <= settings.durationSeconds; elapsed += settings.sampleSeconds) {
+            Thread.sleep(Math.max(0, started + elapsed * 1_000_000_000L - System.nanoTime()) / 1_000_000);
+            long[] latency = traffic.latency.snapshot();
+            long[] interval = LatencyHistogram.since(latency, previousLatency);
+            long strokes = traffic.strokesSent.sum();
+            long deliveries = traffic.deliveries.sum();
+            long bytes = traffic.bytesReceived.sum();
+            ServerSampler.Sample sample = sampler.sample();
+            String row = String.format(Locale.ROOT, "%d,%.0f,%.0f,%.0f,%.1f,%.1f,%.2f,%.0f,%.3f,%.0f,%.0f",
+                    elapsed, (strokes - previousStrokes) / (double) settings.sampleSeconds,
+                    (deliveries - previousDeliveries) / (double) settings.sampleSeconds,
+                    (bytes - previousBytes) / 1024.0 / settings.sampleSeconds,
+                    LatencyHistogram.percentileMs(interval, 0.50), LatencyHistogram.percentileMs(interval, 0.99),
+                    sample.cpu, sample.heapBytes / (1024 * 1024), sample.gcPauseSeconds - before.gcPauseSeconds,
+                    sample.sessions, sample.rejected - before.rejected);
+            timeline.append(row).append('\n');
+            if (!Double.isNaN(sample.cpu)) {
+                cpuTotal += sample.cpu;
+                cpuSamples++;
+            }
+            heapPeak = Math.max(heapPeak, Double.isNaN(sample.heapBytes) ? 0 : sample.heapBytes);
+            System.out.println("[load] " + row);
+            previousLatency = latency;
+            previousStrokes = strokes;
+            previousDeliveries = deliveries;
+            previousBytes = bytes;
+        }
+
+        ticker.cancel(false);
+        if (imageAdds != null) {
+            imageAdds.cancel(false);
+        }
+        // Let the last relays arrive
+        Thread.sleep(2000);
+        ServerSampler.Sample after = sampler.sample();
+        scheduler.shutdownNow();
+        for (List<Pupil> pupils : classrooms) {
+            for (Pupil pupil : pupils) {
+                pupil.stop();
+            }
+        }
+        double cpuMean = cpuSamples > 0 ? cpuTotal / cpuSamples : Double.NaN;
+        return result(timeline.toString(), before, after, cpuMean, heapPeak, (System.nanoTime() - started) / 1e9);
+    }
+
+    /**
+     * Connects and joins every pupil, spread over the ramp.
+     */
+    private void join() throws Exception {
+        long pauseNanos = settings.rampSeconds * 1_000_000_000L / Math.max(1, settings.pupils());
+        for (int p = 0; p < settings.pupilsPerRoom; p++) {
+            for (List<Pupil> pupils : classrooms) {
+                Pupil pupil = pupils.get(p);
+                pupil.connected(http.newWebSocketBuilder()
+                        .connectTimeout(Duration.ofSeconds(10))
+                        .buildAsync(settings.webSocket, pupil)
+                        .get(30, TimeUnit.SECONDS));
+                if (pauseNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pauseNanos);
+                }
+            }
+        }
+        int missing = 0;
+        for (List<Pupil> pupils : classrooms) {
+            for (Pupil pupil : pupils) {
+                if (!pupil.awaitJoined(30, TimeUnit.SECONDS)) {
+                    missing++;
+                }
+            }
+        }
+        if (missing > 0) {
+            throw new IllegalStateException(missing + " pupils were never accepted into their room");
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (List<Pupil> pupils : classrooms) {
+            int open = 0;
+            for (Pupil pupil : pupils) {
+                if (pupil.isOpen()) {
+                    open++;
+                }
+            }
+            for (Pupil pupil : pupils) {
+                pupil.tick(now, open - 1);
+            }
+        }
+    }
+
+    /**
+     * Uploads the bundled pictures once; rooms then place them by hash.
+     */
+    private List<String> uploadImages() throws IOException, InterruptedException {
+        List<String> hashes = new ArrayList<>();
+        if (!Files.isDirectory(IMAGES)) {
+            return hashes;
+        }
+        try (var files = Files.list(IMAGES)) {
+            for (Path file : (Iterable<Path>) files.sorted().limit(5)::iterator) {
+                HttpResponse<String> response = http.send(HttpRequest.newBuilder(settings.http.resolve("/api/assets"))
+                        .header("Content-Type", "application/octet-stream")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(Files.readAllBytes(file)))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+                Matcher hash = HASH.matcher(response.body());
+                if (response.statusCode() / 100 == 2 && hash.find()) {
+                    hashes.add(hash.group(1));
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private void addImages(List<String> images, Random random) {
+        for (List<Pupil> pupils : classrooms) {
+            pupils.get(random.nextInt(pupils.size())).addImage(images.get(random.nextInt(images.size())));
+        }
+    }
+
+    private Result result(String timeline, ServerSampler.Sample before, ServerSampler.Sample after, double cpuMean,
+                          double heapPeak, double seconds) {
+        long[] latency = traffic.latency.snapshot();
+        double p50 = LatencyHistogram.percentileMs(latency, 0.50);
+        double p99 = LatencyHistogram.percentileMs(latency, 0.99);
+        double max = LatencyHistogram.percentileMs(latency, 1.0);
+        long expected = traffic.deliveriesExpected.sum();
+        double ratio = expected == 0 ? 1 : traffic.deliveries.sum() / (double) expected;
+        String summary = String.format(Locale.ROOT,
+                "%s%n"
+                        + "strokes sent      %d (%.0f/s), tile checkpoints %d, images %d%n"
+                        + "relayed segments  %d of %d expected (%.4f)%n"
+                        + "relay latency     p50 %.1f ms, p99 %.1f ms, max %.1f ms%n"
+                        + "client traffic    %.1f MB sent, %.1f MB received in %d frames%n"
+                        + "server            cpu %.2f on average, heap up to %.0f MB, gc pauses %.3f s, rejected %.0f%n"
+                        + "errors            %d error replies, %d unexpected closes%n",
+                settings, traffic.strokesSent.sum(), traffic.strokesSent.sum() / seconds,
+                traffic.checkpointsSent.sum(), traffic.imagesSent.sum(),
+                traffic.deliveries.sum(), expected, ratio, p50, p99, max,
+                traffic.bytesSent.sum() / 1e6, traffic.bytesReceived.sum() / 1e6, traffic.framesReceived.sum(),
+                cpuMean, heapPeak / (1024 * 1024), after.gcPauseSeconds - before.gcPauseSeconds,
+                after.rejected - before.rejected, traffic.errors.sum(), traffic.unexpectedCloses.sum());
+        return new Result(p50, p99, max, ratio, traffic.errors.sum(), traffic.unexpectedCloses.sum(), summary, timeline);
+    }
+}
@@ -0,0 +1,85 @@
+package com.desenho.load;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * What a load run simulates and the limits it is held to, read from
+ * {@code load.*} system properties (e.g. {@code -Dload.rooms=20}).
+ */
+final class LoadSettings {
+
+    // Server
+    final URI http;
+    final URI webSocket;
+
+    // Classrooms
+    final int rooms;
+    final int pupilsPerRoom;
+    final int rampSeconds;
+    final int durationSeconds;
+
+    // How each pupil behaves
+    final int strokeHz;
+    final int strokeMinMs;
+    final int strokeMaxMs;
+    final int pauseMeanMs;
+    final int checkpointSeconds;
+    final int imageEverySeconds;
+
+    // Reporting
+    final int sampleSeconds;
+    final Path reportDir;
+
+    // Release gates
+    final double maxP99Ms;
+    final double minDeliveryRatio;
+    final long maxErrors;
+
+    private LoadSettings() {
+        String base = property("load.url", "http://localhost:8080").replaceAll("/+$", "");
+        http = URI.create(base);
+        webSocket = URI.create(base.replaceFirst("^http", "ws") + "/drawing");
+        rooms = intProperty("load.rooms", 10);
+        pupilsPerRoom = intProperty("load.pupils-per-room", 25);
+        rampSeconds = intProperty("load.ramp-seconds", 10);
+        durationSeconds = intProperty("load.duration-seconds", 60);
+        strokeHz = intProperty("load.stroke-hz", 60);
+        strokeMinMs = intProperty("load.stroke-min-ms", 400);
+        strokeMaxMs = intProperty("load.stroke-max-ms", 2500);
+        pauseMeanMs = intProperty("load.pause-mean-ms", 4000);
+        checkpointSeconds = intProperty("load.checkpoint-seconds", 10);
+        imageEverySeconds = intProperty("load.image-every-seconds", 30);
+        sampleSeconds = intProperty("load.sample-seconds", 5);
+        reportDir = Paths.get(property("load.report-dir", "target/load"));
+        maxP99Ms = Double.parseDouble(property("load.max-p99-ms", "250"));
+        minDeliveryRatio = Double.parseDouble(property("load.min-delivery-ratio", "0.99"));
+        maxErrors = Long.parseLong(property("load.max-errors", "0"));
+    }
+
+    static LoadSettings fromSystemProperties() {
+        return new LoadSettings();
+    }
+
+    int pupils() {
+        return rooms * pupilsPerRoom;
+    }
+
+    @Override
+    public String toString() {
+        return rooms + " rooms x " + pupilsPerRoom + " pupils against " + webSocket + ", "
+                + durationSeconds + " s after a " + rampSeconds + " s ramp; strokes at " + strokeHz + " Hz of "
+                + strokeMinMs + "-" + strokeMaxMs + " ms with ~" + pauseMeanMs + " ms pauses, tile checkpoints every "
+                + checkpointSeconds + " s, an image per room every " + imageEverySeconds + " s";
+    }
+
+    private static String property(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        return Integer.parseInt(property(name, Integer.toString(defaultValue)));
+    }
+}
@@ -0,0 +1,99 @@
+package com.desenho.load;
+
+import java.util.Random;
+
+/**
+ * A pupil's pen: strokes wander across the 800x600 canvas the way a hand does,
+ * with speed and heading drifting a little on every sample and the pen turning
+ * back at the edges. Most strokes are brush strokes; some erase or spray.
+ */
+final class PenTrace {
+
+    static final int WIDTH = 800;
+    static final int HEIGHT = 600;
+
+    private static final String[] COLORS = {
+            "#000000", "#e53935", "#1e88e5", "#43a047", "#fdd835", "#8e24aa", "#fb8c00", "#6d4c41"
+    };
+
+    private final Random random;
+
+    private String tool;
+    private String color;
+    private int size;
+    private double x;
+    private double y;
+    private double heading;
+    private double speed;
+    private int remaining;
+    private boolean first;
+
+    PenTrace(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Puts the pen down for a stroke of {@code samples} segments.
+     */
+    void begin(int samples) {
+        double pick = random.nextDouble();
+        tool = pick < 0.8 ? "brush" : pick < 0.9 ? "eraser" : "spray";
+        color = COLORS[random.nextInt(COLORS.length)];
+        size = tool.equals("brush") ? 2 + random.nextInt(12) : 8 + random.nextInt(24);
+        x = 40 + random.nextDouble() * (WIDTH - 80);
+        y = 40 + random.nextDouble() * (HEIGHT - 80);
+        heading = random.nextDouble() * 2 * Math.PI;
+        speed = 2 + random.nextDouble() * 6;
+        remaining = Math.max(2, samples);
+        first = true;
+    }
+
+    boolean drawing() {
+        return remaining > 0;
+    }
+
+    /**
+     * The next segment as the {@code drawingAction} JSON the web client sends,
+     * stamped with {@code seq} and {@code sentAt} so receivers can time it.
+     */
+    String next(long seq, long sentAtMillis) {
+        double startX = x;
+        double startY = y;
+        heading += (random.nextDouble() - 0.5) * 0.6;
+        speed = Math.max(1, Math.min(12, speed + (random.nextDouble() - 0.5)));
+        x += Math.cos(heading) * speed;
+        y += Math.sin(heading) * speed;
+        if (x < 0 || x > WIDTH) {
+            heading = Math.PI - heading;
+            x = Math.max(0, Math.min(WIDTH, x));
+        }
+        if (y < 0 || y > HEIGHT) {
+            heading = -heading;
+            y = Math.max(0, Math.min(HEIGHT, y));
+        }
+        remaining--;
+        String segment = "{\"tool\":\"" + tool + "\",\"color\":\"" + color + "\",\"size\":" + size
+                + ",\"startX\":" + round(startX) + ",\"startY\":" + round(startY)
+                + ",\"endX\":" + round(x) + ",\"endY\":" + round(y)
+                + ",\"isStart\":" + first + ",\"isEnd\":" + (remaining == 0)
+                + ",\"seq\":" + seq + ",\"sentAt\":" + sentAtMillis + "}";
+        first = false;
+        return segment;
+    }
+
+    double x() {
+        return x;
+    }
+
+    double y() {
+        return y;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
@@ -0,0 +1,229 @@
+package com.desenho.load;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated pupil: joins its classroom, then alternates strokes and pauses,
+ * sending every so often a tile checkpoint of the tiles its own pen touched.
+ * script.js does the same: only local strokes mark tiles dirty, since the
+ * server compacts the stroke log per tile and every member already has the
+ * strokes the others drew. Relayed segments are only timed here, and tile
+ * checkpoints are not relayed to the room. Canvas updates come binary, as for
+ * the web client, but strokes come as JSON so relayed segments arrive with the
+ * sequence number their sender stamped on them.
+ */
+final class Pupil implements WebSocket.Listener {
+
+    private static final int TILE_SIZE = 128;
+    private static final int TILE_COLS = (PenTrace.WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+    private static final int TILE_ROWS = (PenTrace.HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+    private static final String SEQ = "\"seq\":";
+
+    final String roomId;
+    final String name;
+
+    private final LoadSettings settings;
+    private final Traffic traffic;
+    private final Random random;
+    private final PenTrace pen;
+    private final String tileData;
+    private final CountDownLatch joined = new CountDownLatch(1);
+    private final StringBuilder partial = new StringBuilder();
+    private final BitSet dirtyTiles = new BitSet(TILE_COLS * TILE_ROWS);
+
+    private volatile WebSocket webSocket;
+    private volatile boolean stopping;
+    private CompletableFuture<?> sending = CompletableFuture.completedFuture(null);
+
+    // Only touched by the ticking thread
+    private long nextStrokeAt;
+    private long lastCheckpointAt;
+
+    Pupil(String roomId, String name, LoadSettings settings, Traffic traffic, Random random, String tileData) {
+        this.roomId = roomId;
+        this.name = name;
+        this.settings = settings;
+        this.traffic = traffic;
+        this.random = random;
+        this.pen = new PenTrace(random);
+        this.tileData = tileData;
+    }
+
+    void connected(WebSocket webSocket) {
+        this.webSocket = webSocket;
+        send("{\"type\":\"JOIN_ROOM\",\"roomId\":\"" + roomId + "\",\"playerName\":\"" + name
+                + "\",\"binaryStrokes\":false,\"binaryCanvas\":true}");
+    }
+
+    /**
+     * Called once every pupil has joined, before the first tick.
+     */
+    void start(long now) {
+        // Pupils pick up the pen, and checkpoint, at different times
+        nextStrokeAt = now + (long) (random.nextDouble() * settings.pauseMeanMs * 1_000_000L);
+        lastCheckpointAt = now - (long) (random.nextDouble() * settings.checkpointSeconds * 1_000_000_000L);
+    }
+
+    boolean awaitJoined(long timeout, TimeUnit unit) throws InterruptedException {
+        return joined.await(timeout, unit);
+    }
+
+    boolean isOpen() {
+        WebSocket current = webSocket;
+        return current != null && !current.isOutputClosed() && !current.isInputClosed();
+    }
+
+    /**
+     * Sends whatever is due at {@code now}; {@code classmates} is how many
+     * other pupils of the room should receive a segment.
+     */
+    void tick(long now, int classmates) {
+        if (stopping || !isOpen()) {
+            return;
+        }
+        if (pen.drawing()) {
+            long seq = traffic.stroke(classmates);
+            send("{\"type\":\"DRAWING_ACTION\",\"roomId\":\"" + roomId + "\",\"drawingAction\":"
+                    + pen.next(seq, System.currentTimeMillis()) + "}");
+            markDirty(pen.x(), pen.y(), pen.size());
+            if (!pen.drawing()) {
+                nextStrokeAt = now + pause();
+            }
+        } else if (now >= nextStrokeAt) {
+            int millis = settings.strokeMinMs + random.nextInt(Math.max(1, settings.strokeMaxMs - settings.strokeMinMs));
+            pen.begin(millis * settings.strokeHz / 1000);
+        } else if (!dirtyTiles.isEmpty() && now - lastCheckpointAt >= settings.checkpointSeconds * 1_000_000_000L) {
+            lastCheckpointAt = now;
+            sendCheckpoint();
+        }
+    }
+
+    /**
+     * Places an image the way the client does: uploaded first, then referenced.
+     */
+    void addImage(String hash) {
+        traffic.imagesSent.increment();
+        send("{\"type\":\"FLOATING_IMAGE_ADD\",\"roomId\":\"" + roomId + "\",\"imageId\":\"img_" + name + "_"
+                + System.nanoTime() + "\",\"imageHash\":\"" + hash + "\",\"imageX\":" + random.nextInt(600)
+                + ",\"imageY\":" + random.nextInt(400) + ",\"imageWidth\":200,\"imageHeight\":150}");
+    }
+
+    void stop() {
+        stopping = true;
+        WebSocket current = webSocket;
+        if (current != null) {
+            current.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(e -> null);
+        }
+    }
+
+    private long pause() {
+        // Exponential, so most pauses are short and a few are long
+        return (long) (-Math.log(1 - random.nextDouble()) * settings.pauseMeanMs * 1_000_000L);
+    }
+
+    private void markDirty(double x, double y, int size) {
+        int reach = size / 2 + 1;
+        int fromCol = Math.max(0, (int) (x - reach) / TILE_SIZE);
+        int toCol = Math.min(TILE_COLS - 1, (int) (x + reach) / TILE_SIZE);
+        int fromRow = Math.max(0, (int) (y - reach) / TILE_SIZE);
+        int toRow = Math.min(TILE_ROWS - 1, (int) (y + reach) / TILE_SIZE);
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int col = fromCol; col <= toCol; col++) {
+                dirtyTiles.set(row * TILE_COLS + col);
+            }
+        }
+    }
+
+    private void sendCheckpoint() {
+        StringBuilder message = new StringBuilder("{\"type\":\"CANVAS_TILE_UPDATE\",\"roomId\":\"")
+                .append(roomId).append("\",\"tiles\":[");
+        boolean first = true;
+        for (int tile = dirtyTiles.nextSetBit(0); tile >= 0; tile = dirtyTiles.nextSetBit(tile + 1)) {
+            message.append(first ? "" : ",").append("{\"col\":").append(tile % TILE_COLS)
+                    .append(",\"row\":").append(tile / TILE_COLS).append(",\"data\":\"").append(tileData).append("\"}");
+            first = false;
+        }
+        dirtyTiles.clear();
+        traffic.checkpointsSent.increment();
+        send(message.append("]}").toString());
+    }
+
+    /**
+     * Queues a message behind the ones still being written; the client allows
+     * one outstanding send per connection.
+     */
+    private synchronized void send(String message) {
+        WebSocket current = webSocket;
+        traffic.bytesSent.add(message.length());
+        sending = sending.thenCompose(ignored -> current.sendText(message, true))
+                .exceptionally(e -> null);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        partial.append(data);
+        if (last) {
+            received(partial, System.nanoTime());
+            partial.setLength(0);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    private void received(CharSequence message, long now) {
+        traffic.bytesReceived.add(message.length());
+        traffic.framesReceived.increment();
+        String text = message.toString();
+        if (text.startsWith("{\"error\"")) {
+            traffic.errors.increment();
+            return;
+        }
+        if (joined.getCount() > 0 && text.startsWith("{\"type\":\"JOIN_ACCEPTED\"")) {
+            joined.countDown();
+            return;
+        }
+        // Relayed segments, alone or in a batch, still carry their sender's seq
+        for (int at = text.indexOf(SEQ); at >= 0; at = text.indexOf(SEQ, at + SEQ.length())) {
+            int from = at + SEQ.length();
+            int to = from;
+            while (to < text.length() && Character.isDigit(text.charAt(to))) {
+                to++;
+            }
+            if (to > from) {
+                traffic.delivered(Long.parseLong(text, from, to, 10), now);
+            }
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        traffic.bytesReceived.add(data.remaining());
+        if (last) {
+            traffic.framesReceived.increment();
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        if (!stopping) {
+            traffic.unexpectedCloses.increment();
+        }
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        if (!stopping) {
+            traffic.unexpectedCloses.increment();
+        }
+    }
+}
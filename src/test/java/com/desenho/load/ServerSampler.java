@@ -0,0 +1,83 @@
+package com.desenho.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * Reads the server's own view of itself from its Prometheus endpoint: process
+ * CPU, heap in use, GC pause time, open sessions and messages it dropped for
+ * going over rate limits.
+ */
+final class ServerSampler {
+
+    /**
+     * One reading; fields are NaN when the server didn't report them.
+     */
+    static final class Sample {
+        final double cpu;
+        final double heapBytes;
+        final double gcPauseSeconds;
+        final double sessions;
+        final double rejected;
+
+        Sample(double cpu, double heapBytes, double gcPauseSeconds, double sessions, double rejected) {
+            this.cpu = cpu;
+            this.heapBytes = heapBytes;
+            this.gcPauseSeconds = gcPauseSeconds;
+            this.sessions = sessions;
+            this.rejected = rejected;
+        }
+    }
+
+    private final HttpClient client;
+    private final URI metrics;
+
+    ServerSampler(HttpClient client, URI base) {
+        this.client = client;
+        this.metrics = base.resolve("/q/metrics");
+    }
+
+    Sample sample() {
+        String body;
+        try {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(metrics)
+                    .timeout(Duration.ofSeconds(5)).GET().build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return new Sample(Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+            }
+            body = response.body();
+        } catch (Exception e) {
+            return new Sample(Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        }
+        return new Sample(sum(body, "process_cpu_usage", null), sum(body, "jvm_memory_used_bytes", "area=\"heap\""),
+                sum(body, "jvm_gc_pause_seconds_sum", null), sum(body, "desenho_websocket_sessions", null),
+                sum(body, "desenho_messages_rejected_total", null));
+    }
+
+    /**
+     * Adds up the series of a metric, only those with {@code label} if given.
+     */
+    private static double sum(String body, String name, String label) {
+        double total = 0;
+        boolean found = false;
+        for (String line : body.split("\n")) {
+            if (!line.startsWith(name) || line.length() <= name.length()) {
+                continue;
+            }
+            char next = line.charAt(name.length());
+            if ((next != '{' && next != ' ') || (label != null && !line.contains(label))) {
+                continue;
+            }
+            try {
+                total += Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+                found = true;
+            } catch (NumberFormatException e) {
+                // Not a sample line
+            }
+        }
+        return found ? total : Double.NaN;
+    }
+}
@@ -0,0 +1,53 @@
+package com.desenho.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by all simulated pupils of a run. Every segment sent gets a
+ * sequence number whose send time is kept in a ring, so whoever receives it
+ * can tell how long the relay took.
+ */
+final class Traffic {
+
+    private static final int RING = 1 << 21;
+
+    final LongAdder strokesSent = new LongAdder();
+    final LongAdder deliveriesExpected = new LongAdder();
+    final LongAdder deliveries = new LongAdder();
+    final LongAdder checkpointsSent = new LongAdder();
+    final LongAdder imagesSent = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    // With stroke batching on, many relayed segments share a frame
+    final LongAdder framesReceived = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder unexpectedCloses = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray sentAt = new AtomicLongArray(RING);
+
+    /**
+     * Numbers a segment about to be sent to {@code recipients} other pupils.
+     */
+    long stroke(int recipients) {
+        long seq = sequence.incrementAndGet();
+        sentAt.set((int) (seq & (RING - 1)), System.nanoTime());
+        strokesSent.increment();
+        deliveriesExpected.add(recipients);
+        return seq;
+    }
+
+    /**
+     * Records segment {@code seq} reaching a recipient at {@code now}.
+     */
+    void delivered(long seq, long now) {
+        long sent = sentAt.get((int) (seq & (RING - 1)));
+        deliveries.increment();
+        if (sent != 0 && now >= sent) {
+            latency.record(now - sent);
+        }
+    }
+}
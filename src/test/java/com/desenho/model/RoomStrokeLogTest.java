@@ -0,0 +1,113 @@
+package com.desenho.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class RoomStrokeLogTest {
+
+    @Test
+    void logIsCappedByTheBytesItHolds() {
+        Room room = new Room("LOG");
+        int frameChars = 1000;
+        long maxBytes = 10 * (StrokeSegment.BOUND_BYTES + frameChars);
+        for (int i = 0; i < 25; i++) {
+            room.appendStrokes(List.of(unbound(i, frameChars)), 20000, maxBytes, i);
+        }
+        assertEquals(10, room.getStrokeLogSize());
+        assertEquals(maxBytes, room.estimateCanvasBytes());
+        // The newest ones are kept
+        assertEquals(15.0, room.getStrokeLog().get(0).getStartX());
+        assertEquals(24.0, room.getStrokeLog().get(9).getStartX());
+    }
+
+    @Test
+    void accountingFollowsTheLog() {
+        Room room = new Room("LOG");
+        List<StrokeSegment> segments = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            segments.add(i % 2 == 0 ? unbound(i, 300) : StrokeSegment.bound(action(i)));
+        }
+        room.appendStrokes(segments.subList(0, 2), 20000, Long.MAX_VALUE, 1);
+        room.appendStrokes(segments.subList(2, 4), 20000, Long.MAX_VALUE, 2);
+        assertEquals(4 * StrokeSegment.BOUND_BYTES + 2 * 300, room.estimateCanvasBytes());
+
+        // A canvas checkpoint covering the first two lets go of them
+        room.checkpointCanvas(new CanvasImage("image/png", new byte[] {1}), 2);
+        assertEquals(1 + 2 * StrokeSegment.BOUND_BYTES + 300, room.estimateCanvasBytes());
+        room.clearCanvas();
+        assertEquals(0, room.estimateCanvasBytes());
+    }
+
+    @Test
+    void tileCheckpointsDropOnlyTheSegmentsTheyCover() {
+        Room room = new Room("LOG");
+        int size = DrawingMessage.CanvasTile.SIZE;
+        room.appendStrokes(List.of(
+                segment("brush", 4, 10, 10, 100, 100),
+                // Over the edge into the next tile
+                segment("brush", 4, 100, 10, 140, 10),
+                // Close enough to the edge to paint past it
+                segment("spray", 20, 120, 60, 120, 60),
+                segment("brush", 4, 3 * size + 10, 10, 3 * size + 20, 10)), 20000, Long.MAX_VALUE, 1);
+        room.appendStrokes(List.of(segment("brush", 4, 20, 20, 30, 30)), 20000, Long.MAX_VALUE, 5);
+
+        // Someone checkpoints the first tile, covering what came in before 3
+        room.checkpointTiles(List.of(new DrawingMessage.CanvasTile(0, 0, 0, new CanvasImage("image/png", new byte[] {1}))), 3);
+        List<DrawingMessage.DrawingAction> left = room.getStrokeLog();
+        assertEquals(4, left.size());
+        assertEquals(100.0, left.get(0).getStartX());
+        assertEquals(120.0, left.get(1).getStartX());
+        assertEquals(3.0 * size + 10, left.get(2).getStartX());
+        assertEquals(20.0, left.get(3).getStartX(), "came in after what the checkpoint covers");
+        assertEquals(4 * StrokeSegment.BOUND_BYTES + 1, room.estimateCanvasBytes());
+
+        // The next tile too, which covers the segments over the edge between them
+        room.checkpointTiles(List.of(new DrawingMessage.CanvasTile(1, 0, 0, new CanvasImage("image/png", new byte[] {2}))), 3);
+        assertEquals(2, room.getStrokeLogSize());
+
+        // A checkpoint of the first tile from before the last segment came in leaves it
+        room.checkpointTiles(List.of(new DrawingMessage.CanvasTile(0, 0, 0, new CanvasImage("image/png", new byte[] {3}))), 4);
+        assertEquals(2, room.getStrokeLogSize());
+        room.checkpointTiles(List.of(new DrawingMessage.CanvasTile(0, 0, 0, new CanvasImage("image/png", new byte[] {4}))), 6);
+        assertEquals(1, room.getStrokeLogSize());
+    }
+
+    @Test
+    void segmentCountStillCaps() {
+        Room room = new Room("LOG");
+        for (int i = 0; i < 30; i++) {
+            room.appendStrokes(List.of(StrokeSegment.bound(action(i))), 20, Long.MAX_VALUE, i);
+        }
+        assertEquals(20, room.getStrokeLogSize());
+        assertEquals(20 * StrokeSegment.BOUND_BYTES, room.estimateCanvasBytes());
+    }
+
+    private static StrokeSegment segment(String tool, int size, double startX, double startY, double endX, double endY) {
+        DrawingMessage.DrawingAction action = action(0);
+        action.setTool(tool);
+        action.setSize(size);
+        action.setStartX(startX);
+        action.setStartY(startY);
+        action.setEndX(endX);
+        action.setEndY(endY);
+        return StrokeSegment.bound(action);
+    }
+
+    private static StrokeSegment unbound(int x, int frameChars) {
+        return StrokeSegment.unbound(() -> action(x), frameChars);
+    }
+
+    private static DrawingMessage.DrawingAction action(int x) {
+        DrawingMessage.DrawingAction action = new DrawingMessage.DrawingAction();
+        action.setTool("brush");
+        action.setColor("#000000");
+        action.setSize(4);
+        action.setStartX(x);
+        action.setEndX(x + 1);
+        return action;
+    }
+}
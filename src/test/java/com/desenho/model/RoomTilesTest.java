@@ -0,0 +1,163 @@
+package com.desenho.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tile checkpoints as the web client makes them (see sendCanvasTiles in
+ * script.js): the canvas rebuilt from what a room stores has to be the one
+ * that was drawn, pixel for pixel.
+ */
+class RoomTilesTest {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int SIZE = DrawingMessage.CanvasTile.SIZE;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void canvasIsRebuiltFromTilesExactly() throws Exception {
+        BufferedImage canvas = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D pen = canvas.createGraphics();
+        pen.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        pen.setStroke(new BasicStroke(6, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        pen.setColor(new Color(200, 30, 30, 180));
+        pen.drawLine(40, 60, 700, 400);
+        pen.setColor(Color.BLUE);
+        // Into the partial tiles of the last row and column
+        pen.drawOval(1780, 980, 130, 95);
+        Room room = new Room("TILES");
+        checkpoint(room, canvas, dirty(0, 0, WIDTH, HEIGHT));
+        int firstCheckpoint = room.getTiles().size();
+        assertTrue(firstCheckpoint < 135 / 3, "a sparse drawing stores few tiles, got " + firstCheckpoint);
+        String afterFirst = room.getVersionTag();
+
+        // More drawing, and a tile rubbed out entirely
+        pen.setColor(Color.GREEN);
+        pen.fillRect(300, 500, 90, 90);
+        pen.setComposite(AlphaComposite.Clear);
+        pen.fillRect(0, 0, SIZE, SIZE);
+        pen.dispose();
+        List<Integer> dirty = dirty(300, 500, 390, 590);
+        dirty.add(0);
+        checkpoint(room, canvas, dirty);
+
+        // A client that saw the first checkpoint only gets the tiles changed since
+        Room.Changes changes = room.changesSince(afterFirst);
+        assertTrue(changes.isResumable());
+        assertEquals(dirty.size() - 1, changes.getTiles().size(), "erased tile without a canvas underneath is dropped");
+
+        // What a restart brings back from the journal's snapshot
+        Room restored = new Room("TILES");
+        restored.restore(mapper.readValue(mapper.writeValueAsString(room.toSnapshot()), RoomSnapshot.class));
+        assertArrayEquals(pixels(canvas), pixels(rebuild(restored.getTiles())));
+    }
+
+    @Test
+    void erasedTilesStayAsTombstonesOverASnapshot() {
+        Room room = new Room("TILES");
+        room.checkpointCanvas(new CanvasImage("image/png", new byte[] {1, 2, 3}), System.currentTimeMillis());
+        room.checkpointTiles(List.of(new DrawingMessage.CanvasTile(2, 1, 0, null)), System.currentTimeMillis());
+        assertEquals(1, room.getTiles().size());
+        assertNull(room.getTiles().get(0).getData(), "hides what the snapshot has under it");
+    }
+
+    /**
+     * Sends the given tiles of the canvas, as a JSON CANVAS_TILE_UPDATE, into
+     * the room.
+     */
+    private void checkpoint(Room room, BufferedImage canvas, List<Integer> keys) throws IOException {
+        List<DrawingMessage.CanvasTile> tiles = new ArrayList<>();
+        for (int key : keys) {
+            int col = key % Room.MAX_TILE_COLS;
+            int row = key / Room.MAX_TILE_COLS;
+            int width = Math.min(SIZE, WIDTH - col * SIZE);
+            int height = Math.min(SIZE, HEIGHT - row * SIZE);
+            if (width <= 0 || height <= 0) {
+                continue;
+            }
+            BufferedImage tile = canvas.getSubimage(col * SIZE, row * SIZE, width, height);
+            CanvasImage data = null;
+            if (!transparent(tile)) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(tile, "png", png);
+                data = new CanvasImage("image/png", png.toByteArray());
+            }
+            tiles.add(new DrawingMessage.CanvasTile(col, row, 0, data));
+        }
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.CANVAS_TILE_UPDATE);
+        message.setTiles(tiles);
+        DrawingMessage received = mapper.readValue(mapper.writeValueAsString(message), DrawingMessage.class);
+        room.checkpointTiles(received.getTiles(), System.currentTimeMillis());
+    }
+
+    private static BufferedImage rebuild(List<DrawingMessage.CanvasTile> tiles) throws IOException {
+        BufferedImage canvas = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (DrawingMessage.CanvasTile tile : tiles) {
+            if (tile.getData() == null) {
+                continue;
+            }
+            assertEquals("image/png", tile.getData().getMimeType());
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(tile.getData().getBytes()));
+            // Copied, not drawn, so nothing is blended
+            canvas.setRGB(tile.getCol() * SIZE, tile.getRow() * SIZE, image.getWidth(), image.getHeight(),
+                    image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()),
+                    0, image.getWidth());
+        }
+        return canvas;
+    }
+
+    /**
+     * Keys of the tiles a box drawn from (x0, y0) to (x1, y1) touches.
+     */
+    private static List<Integer> dirty(int x0, int y0, int x1, int y1) {
+        List<Integer> keys = new ArrayList<>();
+        for (int row = y0 / SIZE; row <= (y1 - 1) / SIZE; row++) {
+            for (int col = x0 / SIZE; col <= (x1 - 1) / SIZE; col++) {
+                keys.add(row * Room.MAX_TILE_COLS + col);
+            }
+        }
+        return keys;
+    }
+
+    private static boolean transparent(BufferedImage tile) {
+        for (int y = 0; y < tile.getHeight(); y++) {
+            for (int x = 0; x < tile.getWidth(); x++) {
+                if ((tile.getRGB(x, y) >>> 24) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        int[] pixels = image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        for (int i = 0; i < pixels.length; i++) {
+            // Fully transparent is fully transparent, whatever the color bits say
+            if ((pixels[i] >>> 24) == 0) {
+                pixels[i] = 0;
+            }
+        }
+        return pixels;
+    }
+}
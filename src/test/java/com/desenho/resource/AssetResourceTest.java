@@ -0,0 +1,46 @@
+package com.desenho.resource;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+import com.desenho.websocket.RateLimits;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+@QuarkusTest
+class AssetResourceTest {
+
+    @Inject
+    RateLimits rateLimits;
+
+    @Test
+    void uploadsGoThroughTheRateLimits() {
+        Map<String, String> saved = Map.copyOf(rateLimits.current());
+        rateLimits.update(Map.of(RateLimits.UPLOADS, "0.01:3"));
+        try {
+            for (int i = 0; i < 3; i++) {
+                given().contentType("image/png").body(png(i))
+                        .when().post("/api/assets")
+                        .then().statusCode(201).body("hash", notNullValue());
+            }
+            given().contentType("image/png").body(png(3))
+                    .when().post("/api/assets")
+                    .then().statusCode(429).body("error", equalTo("Muitos envios; aguarde um momento"));
+        } finally {
+            rateLimits.update(saved);
+        }
+    }
+
+    private static byte[] png(int seed) {
+        byte[] bytes = new byte[64];
+        bytes[0] = (byte) 0x89;
+        bytes[1] = 'P';
+        bytes[2] = 'N';
+        bytes[3] = 'G';
+        bytes[4] = (byte) seed;
+        return bytes;
+    }
+}
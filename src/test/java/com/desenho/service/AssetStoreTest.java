@@ -0,0 +1,99 @@
+package com.desenho.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AssetStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentPutsStayWithinTheDiskBudget() throws Exception {
+        AssetStore store = store(dir, 10 * 1000);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<AssetStore.Asset>> puts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Every asset twice, so duplicates race each other too
+            byte[] bytes = png(i % 100, 1000);
+            puts.add(pool.submit(() -> store.put(bytes)));
+        }
+        for (Future<AssetStore.Asset> put : puts) {
+            assertNotNull(put.get());
+        }
+        pool.shutdown();
+
+        assertTrue(store.getDiskBytes() <= 10 * 1000, "disk over budget: " + store.getDiskBytes());
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> left = files.toList();
+            assertEquals(store.getDiskAssetCount(), left.size(), "files other than the indexed assets: " + left);
+        }
+        assertArrayEquals(png(99, 1000), store.get(puts.get(199).get().getHash()).getBytes());
+    }
+
+    @Test
+    void diskTierOutlivesTheMemoryTier() {
+        AssetStore store = store(dir, 1 << 20);
+        AssetStore.Asset first = store.put(png(1, 1000));
+        for (int i = 2; i < 20; i++) {
+            store.put(png(i, 1000));
+        }
+
+        AssetStore restarted = store(dir, 1 << 20);
+        assertEquals(19, restarted.getDiskAssetCount());
+        assertArrayEquals(first.getBytes(), restarted.get(first.getHash()).getBytes());
+        assertEquals("image/png", restarted.get(first.getHash()).getMimeType());
+    }
+
+    @Test
+    void leftoversOfInterruptedWritesAreRemovedAtStart() throws Exception {
+        AssetStore.Asset kept = store(dir, 1 << 20).put(png(1, 1000));
+        Files.write(dir.resolve(kept.getHash() + "123.tmp"), new byte[10]);
+        Files.write(dir.resolve(kept.getHash() + ".evicted"), new byte[10]);
+
+        AssetStore restarted = store(dir, 1 << 20);
+        assertEquals(1, restarted.getDiskAssetCount());
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(List.of(dir.resolve(kept.getHash())), files.toList());
+        }
+    }
+
+    private static AssetStore store(Path dir, long diskMaxBytes) {
+        AssetStore store = new AssetStore();
+        store.directory = dir.toString();
+        store.maxAssetBytes = 5 * 1024 * 1024;
+        // Small enough that most gets go to disk
+        store.memoryMaxBytes = 4000;
+        store.diskMaxBytes = diskMaxBytes;
+        store.init();
+        return store;
+    }
+
+    /**
+     * Bytes that sniff as a PNG, different for each {@code seed}.
+     */
+    private static byte[] png(int seed, int length) {
+        byte[] bytes = new byte[length];
+        bytes[0] = (byte) 0x89;
+        bytes[1] = 'P';
+        bytes[2] = 'N';
+        bytes[3] = 'G';
+        for (int i = 4; i < length; i++) {
+            bytes[i] = (byte) (seed * 31 + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,131 @@
+package com.desenho.service;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.DrawingMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * What the server-side raster costs per relayed stroke. Segments go through
+ * {@link CanvasCompositor} in flush-sized batches, as the relay hands them
+ * over, with a checkpoint rendered every so often. Needs no server, so it can
+ * run on its own:
+ *
+ * <pre>
+ * mvn test -Pload -Dtest=CanvasRenderBenchmarkTest
+ * </pre>
+ *
+ * Fails if one compositor thread could not keep up with a classroom of
+ * {@value #PUPILS} pupils drawing at {@value #STROKE_HZ} Hz.
+ */
+@Tag("load")
+class CanvasRenderBenchmarkTest {
+
+    private static final int PUPILS = 30;
+    private static final int STROKE_HZ = 60;
+    // Segments the relay flushes together in a 16 ms window for such a class
+    private static final int BATCH = PUPILS * STROKE_HZ * 16 / 1000;
+    private static final int SEGMENTS = 200_000;
+    private static final int CHECKPOINT_EVERY = 5_000;
+    private static final String[] COLORS = { "#000000", "#e53935", "#1e88e5", "#43a047", "#fdd835" };
+
+    private CanvasCompositor compositor;
+
+    @BeforeEach
+    void start() {
+        compositor = new CanvasCompositor();
+        compositor.enabled = true;
+        compositor.width = 800;
+        compositor.height = 600;
+        compositor.threads = 1;
+        compositor.queueSize = 1024;
+        compositor.maxPendingSegments = SEGMENTS;
+        compositor.init();
+    }
+
+    @AfterEach
+    void stop() {
+        compositor.shutdown();
+    }
+
+    @Test
+    void renderCostPerRelayedStroke() throws Exception {
+        List<DrawingMessage.DrawingAction> segments = segments(new Random(7), SEGMENTS);
+        // Warm-up, on a room of its own
+        render("AQUECIMENTO", segments.subList(0, SEGMENTS / 4));
+
+        long checkpoints = 0;
+        long checkpointNanos = 0;
+        long start = System.nanoTime();
+        for (int from = 0; from < SEGMENTS; from += BATCH) {
+            int to = Math.min(SEGMENTS, from + BATCH);
+            compositor.applyStrokes("SALA", segments.subList(from, to), to);
+            if (to % CHECKPOINT_EVERY < BATCH) {
+                long before = System.nanoTime();
+                assertNotNull(compositor.checkpoint("SALA").get(30, TimeUnit.SECONDS), "the raster went invalid");
+                checkpointNanos += System.nanoTime() - before;
+                checkpoints++;
+            }
+        }
+        assertNotNull(compositor.checkpoint("SALA").get(30, TimeUnit.SECONDS), "the raster went invalid");
+        long nanos = System.nanoTime() - start;
+
+        double perSegmentUs = nanos / 1e3 / SEGMENTS;
+        double budgetUs = 1e6 / (PUPILS * STROKE_HZ);
+        System.out.printf("[render] %d segments in batches of %d: %.1f us per segment, checkpoint every %d segments"
+                        + " waited %.1f ms on average; a %d-pupil class at %d Hz leaves %.0f us per segment%n",
+                SEGMENTS, BATCH, perSegmentUs, CHECKPOINT_EVERY, checkpointNanos / 1e6 / checkpoints,
+                PUPILS, STROKE_HZ, budgetUs);
+        assertTrue(perSegmentUs < budgetUs, perSegmentUs + " us per segment");
+    }
+
+    private void render(String roomId, List<DrawingMessage.DrawingAction> segments) throws Exception {
+        for (int from = 0; from < segments.size(); from += BATCH) {
+            int to = Math.min(segments.size(), from + BATCH);
+            compositor.applyStrokes(roomId, segments.subList(from, to), to);
+        }
+        compositor.checkpoint(roomId).get(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Strokes of a few dozen short segments, as a pen sampled at 60 Hz draws
+     * them: mostly brush, some eraser and spray, in varied sizes.
+     */
+    private static List<DrawingMessage.DrawingAction> segments(Random random, int count) {
+        List<DrawingMessage.DrawingAction> segments = new ArrayList<>(count);
+        while (segments.size() < count) {
+            double pick = random.nextDouble();
+            String tool = pick < 0.8 ? "brush" : pick < 0.9 ? "eraser" : "spray";
+            String color = COLORS[random.nextInt(COLORS.length)];
+            int size = tool.equals("brush") ? 2 + random.nextInt(12) : 8 + random.nextInt(24);
+            double x = 40 + random.nextDouble() * 720;
+            double y = 40 + random.nextDouble() * 520;
+            double heading = random.nextDouble() * 2 * Math.PI;
+            for (int s = 20 + random.nextInt(100); s > 0 && segments.size() < count; s--) {
+                heading += (random.nextDouble() - 0.5) * 0.4;
+                double endX = Math.max(0, Math.min(799, x + Math.cos(heading) * 5));
+                double endY = Math.max(0, Math.min(599, y + Math.sin(heading) * 5));
+                DrawingMessage.DrawingAction segment = new DrawingMessage.DrawingAction();
+                segment.setTool(tool);
+                segment.setColor(color);
+                segment.setSize(size);
+                segment.setStartX(x);
+                segment.setStartY(y);
+                segment.setEndX(endX);
+                segment.setEndY(endY);
+                segments.add(segment);
+                x = endX;
+                y = endY;
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,117 @@
+package com.desenho.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class RoomActorsTest {
+
+    private final RoomActors actors = new RoomActors();
+
+    @AfterEach
+    void shutdown() {
+        actors.shutdown();
+    }
+
+    @Test
+    void tasksOfARoomRunOneAtATimeInSubmissionOrder() throws Exception {
+        start(4);
+        int rooms = 8;
+        int tasks = 2000;
+        Map<String, List<Integer>> order = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> running = new HashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(rooms * tasks);
+        for (int r = 0; r < rooms; r++) {
+            order.put("SALA" + r, Collections.synchronizedList(new ArrayList<>()));
+            running.put("SALA" + r, new AtomicInteger());
+        }
+        // Submitted from several threads at once, each room from one of them
+        List<Thread> submitters = new ArrayList<>();
+        for (int r = 0; r < rooms; r++) {
+            String roomId = "SALA" + r;
+            submitters.add(new Thread(() -> {
+                for (int t = 0; t < tasks; t++) {
+                    int task = t;
+                    actors.execute(roomId, () -> {
+                        if (running.get(roomId).incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        order.get(roomId).add(task);
+                        running.get(roomId).decrementAndGet();
+                        done.countDown();
+                    });
+                }
+            }));
+        }
+        submitters.forEach(Thread::start);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        assertEquals(0, overlaps.get(), "tasks of a room ran at the same time");
+        for (List<Integer> ran : order.values()) {
+            assertEquals(tasks, ran.size());
+            for (int t = 0; t < tasks; t++) {
+                assertEquals(t, ran.get(t), "task order");
+            }
+        }
+    }
+
+    @Test
+    void aRoomAlwaysRunsOnTheSameThread() throws Exception {
+        start(4);
+        Map<String, String> threads = new ConcurrentHashMap<>();
+        AtomicInteger moves = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(100);
+        for (int t = 0; t < 100; t++) {
+            actors.execute("SALA", () -> {
+                String previous = threads.put("SALA", Thread.currentThread().getName());
+                if (previous != null && !previous.equals(Thread.currentThread().getName())) {
+                    moves.incrementAndGet();
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, moves.get());
+        assertTrue(threads.get("SALA").startsWith("room-shard-"));
+        assertNotEquals(Thread.currentThread().getName(), threads.get("SALA"));
+    }
+
+    @Test
+    void aFailingTaskDoesNotStopTheOnesAfterIt() throws Exception {
+        start(1);
+        CountDownLatch after = new CountDownLatch(1);
+        actors.execute("SALA", () -> {
+            throw new IllegalStateException("falhou");
+        });
+        actors.execute("SALA", after::countDown);
+        assertTrue(after.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void disabledRunsOnTheCallingThread() {
+        actors.enabled = false;
+        actors.init();
+        List<String> ran = new ArrayList<>();
+        actors.execute("SALA", () -> ran.add(Thread.currentThread().getName()));
+        assertEquals(List.of(Thread.currentThread().getName()), ran);
+    }
+
+    private void start(int shards) {
+        actors.enabled = true;
+        actors.shardCount = shards;
+        actors.init();
+    }
+}
@@ -0,0 +1,105 @@
+package com.desenho.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.DrawingMessage;
+import com.desenho.model.RoomSnapshot;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RoomJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void failedWritesAreRetriedInANewSegmentAndDropsAreCounted() throws Exception {
+        Path root = dir.resolve("journal");
+        RoomJournal journal = journal(root, 50);
+        AtomicLong covered = new AtomicLong();
+        journal.recover(snapshot -> { }, record -> { });
+        journal.start(() -> List.of(snapshot("ROOM1", covered.get())));
+
+        // The directory goes away, so the next rollover can't open a segment
+        deleteRecursively(root);
+        Files.writeString(root, "not a directory");
+        await(() -> journal.getFailedWrites() > 0);
+        covered.set(journal.append(strokes("ROOM1", 1)));
+        await(() -> journal.getDroppedRecords() == 1);
+
+        // Back again: a snapshot covers what was dropped, and records go on
+        Files.delete(root);
+        Files.createDirectories(root);
+        covered.set(journal.append(strokes("ROOM1", 2)));
+        await(() -> journal.getWrittenRecords() == 1);
+        journal.shutdown();
+
+        AtomicLong recovered = new AtomicLong();
+        journal(root, 60000).recover(snapshot -> recovered.accumulateAndGet(snapshot.getJournalSeq(), Math::max),
+                record -> recovered.accumulateAndGet(record.getSeq(), Math::max));
+        assertEquals(2, recovered.get());
+        assertTrue(journal.getLastFailure() != null);
+    }
+
+    static RoomJournal journal(Path root, long snapshotIntervalMs) {
+        RoomJournal journal = new RoomJournal();
+        journal.enabled = true;
+        journal.directory = root.toString();
+        journal.snapshotIntervalMs = snapshotIntervalMs;
+        journal.fsync = false;
+        journal.maxPendingRecords = 1000;
+        journal.init();
+        return journal;
+    }
+
+    static JournalRecord strokes(String roomId, int count) {
+        List<DrawingMessage.DrawingAction> actions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            DrawingMessage.DrawingAction action = new DrawingMessage.DrawingAction();
+            action.setTool("brush");
+            action.setColor("#000000");
+            action.setSize(4);
+            action.setStartX(i);
+            action.setStartY(i);
+            action.setEndX(i + 1);
+            action.setEndY(i + 1);
+            actions.add(action);
+        }
+        JournalRecord record = new JournalRecord(JournalRecord.Op.STROKES, roomId, System.currentTimeMillis());
+        record.setActions(actions);
+        return record;
+    }
+
+    static RoomSnapshot snapshot(String roomId, long journalSeq) {
+        RoomSnapshot snapshot = new RoomSnapshot();
+        snapshot.setRoomId(roomId);
+        snapshot.setJournalSeq(journalSeq);
+        return snapshot;
+    }
+
+    static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
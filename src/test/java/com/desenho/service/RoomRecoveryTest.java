@@ -0,0 +1,165 @@
+package com.desenho.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.CanvasImage;
+import com.desenho.model.DrawingMessage;
+import com.desenho.model.Room;
+import com.desenho.model.RoomSnapshot;
+import com.desenho.model.StrokeSegment;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Journal recovery through {@link RoomService}: what a restart brings back,
+ * and how long it takes.
+ */
+class RoomRecoveryTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tornRecordEndsItsSegmentOnly() throws Exception {
+        Path root = dir.resolve("journal");
+        Files.createDirectories(root);
+        JournalRecord last = record(4, RoomJournalTest.strokes("ROOM1", 1));
+        writeLines(root.resolve("journal-1.log"),
+                record(1, RoomJournalTest.strokes("ROOM1", 1)),
+                record(2, RoomJournalTest.strokes("ROOM1", 1)),
+                record(3, RoomJournalTest.strokes("ROOM1", 1)));
+        // A crash in the middle of a write
+        Files.writeString(root.resolve("journal-1.log"), "{\"op\":\"STROKES\",\"roomId\":\"RO",
+                StandardOpenOption.APPEND);
+        // Written after the restart that followed it
+        writeLines(root.resolve("journal-2.log"), last);
+
+        RoomService service = recover(root);
+        Room room = service.getRoom("ROOM1");
+        assertNotNull(room);
+        assertEquals(4, room.getStrokeLogSize());
+        assertEquals(4, room.getJournalSeq());
+        service.journal.shutdown();
+    }
+
+    @Test
+    void recordsAlreadyInTheSnapshotAreSkipped() throws Exception {
+        Path root = dir.resolve("journal");
+        Files.createDirectories(root);
+        Room drawn = new Room("ROOM1");
+        drawn.appendStrokes(StrokeSegment.boundAll(RoomJournalTest.strokes("ROOM1", 2).getActions()), 20000, Long.MAX_VALUE, 1);
+        drawn.setJournalSeq(2);
+        Room removedLater = new Room("ROOM2");
+        removedLater.setJournalSeq(5);
+        MAPPER.writeValue(root.resolve("snapshot-1.json").toFile(), List.of(drawn.toSnapshot(), removedLater.toSnapshot()));
+        // Records around the rollover that wrote the snapshot
+        writeLines(root.resolve("journal-1.log"),
+                record(2, RoomJournalTest.strokes("ROOM1", 2)),
+                record(3, RoomJournalTest.strokes("ROOM1", 1)),
+                record(4, new JournalRecord(JournalRecord.Op.ROOM_REMOVED, "ROOM2", 1)));
+
+        RoomService service = recover(root);
+        assertEquals(3, service.getRoom("ROOM1").getStrokeLogSize());
+        assertEquals(3, service.getRoom("ROOM1").getJournalSeq());
+        assertNotNull(service.getRoom("ROOM2"), "removal older than the snapshot");
+        service.journal.shutdown();
+    }
+
+    /**
+     * Recovery-time benchmark: a node with 1,000 drawn-on rooms, restarted
+     * halfway through a snapshot interval.
+     */
+    @Test
+    void recoversAThousandRooms() throws Exception {
+        int rooms = 1000;
+        int snapshotStrokes = 500;
+        int journaledBatches = 10;
+        int batchSegments = 20;
+        Path root = dir.resolve("journal");
+        Random random = new Random(42);
+        byte[] png = new byte[3000];
+        random.nextBytes(png);
+
+        List<RoomSnapshot> snapshots = new ArrayList<>(rooms);
+        for (int r = 0; r < rooms; r++) {
+            Room room = new Room("ROOM" + r);
+            room.appendStrokes(StrokeSegment.boundAll(RoomJournalTest.strokes(room.getRoomId(), snapshotStrokes).getActions()),
+                    20000, Long.MAX_VALUE, 1);
+            room.checkpointTiles(List.of(new DrawingMessage.CanvasTile(r % Room.MAX_TILE_COLS, 0, 0,
+                    new CanvasImage("image/png", png))), 1);
+            snapshots.add(room.toSnapshot());
+        }
+        RoomJournal written = RoomJournalTest.journal(root, 60000);
+        written.maxPendingRecords = rooms * journaledBatches;
+        written.init();
+        written.recover(snapshot -> { }, record -> { });
+        written.start(() -> snapshots);
+        for (int b = 0; b < journaledBatches; b++) {
+            for (int r = 0; r < rooms; r++) {
+                written.append(RoomJournalTest.strokes("ROOM" + r, batchSegments));
+            }
+        }
+        RoomJournalTest.await(() -> written.getWrittenRecords() == (long) rooms * journaledBatches);
+        written.shutdown();
+
+        long started = System.nanoTime();
+        RoomService service = recover(root);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        System.out.printf("[recovery] %d rooms, %d records replayed: %d ms (journal replay %d ms)%n",
+                rooms, service.journal.getLastRecoveredRecords(), millis, service.journal.getLastRecoveryMillis());
+
+        assertEquals(rooms, service.getAllRooms().size());
+        assertEquals(snapshotStrokes + journaledBatches * batchSegments, service.getRoom("ROOM999").getStrokeLogSize());
+        assertEquals(1, service.getRoom("ROOM999").getTiles().size());
+        // About 6 s on the build machine, most of it parsing the 700,000 logged
+        // segments; the bound is loose enough for a busy one
+        assertTrue(millis < 30_000, "recovery took " + millis + " ms");
+        service.journal.shutdown();
+    }
+
+    /**
+     * A room service on its own, as at startup with the journal in {@code root}.
+     */
+    private static RoomService recover(Path root) {
+        RoomService service = new RoomService();
+        service.compositor = new CanvasCompositor();
+        service.bus = new LocalRoomBus();
+        service.assetStore = new AssetStore();
+        service.coldStorage = new ColdStorage();
+        service.roomActors = new RoomActors();
+        service.journal = RoomJournalTest.journal(root, 60000);
+        service.strokeLogMaxSegments = 20000;
+        service.strokeLogMaxBytes = 8388608;
+        service.recoverRooms(null);
+        assertTrue(service.journal.isEnabled(), "journal disabled during recovery");
+        return service;
+    }
+
+    private static JournalRecord record(long seq, JournalRecord record) {
+        record.setSeq(seq);
+        return record;
+    }
+
+    private static void writeLines(Path segment, JournalRecord... records) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (JournalRecord record : records) {
+            lines.append(MAPPER.writeValueAsString(record)).append('\n');
+        }
+        Files.writeString(segment, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,144 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.DrawingMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A room broadcast is serialized once and the same frame queued for every
+ * recipient, rather than serialized again for each of them.
+ */
+@QuarkusTest
+class BroadcastEncodingTest {
+
+    private static final String ROOM = "MURAL";
+    private static final int MEMBERS = 30;
+
+    @TestHTTPResource("/drawing")
+    URI drawing;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @Test
+    void aBroadcastIsEncodedOnce() throws Exception {
+        URI webSocket = URI.create(drawing.toString().replaceFirst("^http", "ws"));
+        HttpClient http = HttpClient.newHttpClient();
+        List<FloodTest.Client> members = new ArrayList<>();
+        try {
+            for (int m = 0; m < MEMBERS; m++) {
+                members.add(new FloodTest.Client().join(http, webSocket, ROOM, "mural" + m));
+            }
+            double encoded = encoded();
+            double recipients = recipients();
+            members.get(0).send("{\"type\":\"FLOATING_IMAGE_REMOVE\",\"roomId\":\"" + ROOM + "\",\"imageId\":\"img_1\"}");
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (recipients() - recipients < MEMBERS - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(MEMBERS - 1, recipients() - recipients, "sessions the removal was queued for");
+            assertEquals(1, encoded() - encoded, "times the removal was encoded");
+        } finally {
+            members.forEach(FloodTest.Client::close);
+        }
+    }
+
+    /**
+     * What encoding once saves over the per-recipient baseline, for a roster
+     * update of a full class queued for each of its sessions.
+     */
+    @Test
+    void encodingOnceBeatsEncodingPerRecipient() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        DrawingMessage message = new DrawingMessage();
+        message.setType(DrawingMessage.MessageType.PLAYER_LIST_UPDATE);
+        message.setRoomId(ROOM);
+        List<String> names = new ArrayList<>();
+        for (int m = 0; m < MEMBERS; m++) {
+            names.add("aluno" + m);
+        }
+        message.setPlayerName(String.join(",", names));
+        List<OutboundQueue> queues = new ArrayList<>();
+        OutboundMetrics metrics = new OutboundMetrics(new SimpleMeterRegistry());
+        for (int m = 0; m < MEMBERS; m++) {
+            queues.add(new OutboundQueue(instantSession(), Long.MAX_VALUE, metrics, session -> { }));
+        }
+
+        int rounds = 20_000;
+        long perRecipient = Long.MAX_VALUE;
+        long once = Long.MAX_VALUE;
+        // Best of a few passes, the first of which warms the JIT up
+        for (int pass = 0; pass < 5; pass++) {
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (OutboundQueue queue : queues) {
+                    queue.relay(objectMapper.writeValueAsString(message), null);
+                }
+            }
+            perRecipient = Math.min(perRecipient, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                String frame = objectMapper.writeValueAsString(message);
+                for (OutboundQueue queue : queues) {
+                    queue.relay(frame, null);
+                }
+            }
+            once = Math.min(once, System.nanoTime() - start);
+        }
+        System.out.printf("[broadcast] %d recipients: %.1f us per broadcast encoding per recipient,"
+                        + " %.1f us encoding once (%.1fx)%n",
+                MEMBERS, perRecipient / 1e3 / rounds, once / 1e3 / rounds, perRecipient / (double) once);
+        assertTrue(once * 2 < perRecipient, once + " ns vs " + perRecipient + " ns");
+    }
+
+    /**
+     * A session whose sends complete as soon as they are made.
+     */
+    private static Session instantSession() {
+        RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                BroadcastEncodingTest.class.getClassLoader(), new Class<?>[] {RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    ((SendHandler) args[1]).onResult(new SendResult());
+                    return null;
+                });
+        return (Session) Proxy.newProxyInstance(
+                BroadcastEncodingTest.class.getClassLoader(), new Class<?>[] {Session.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAsyncRemote":
+                            return remote;
+                        case "getId":
+                            return "S1";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private double encoded() {
+        return meterRegistry.get("desenho.messages.encoded").tag("type", "FLOATING_IMAGE_REMOVE").counter().count();
+    }
+
+    private double recipients() {
+        return meterRegistry.get("desenho.messages.fanout").tag("type", "FLOATING_IMAGE_REMOVE").summary().totalAmount();
+    }
+}
@@ -0,0 +1,109 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.CanvasImage;
+import com.desenho.model.DrawingMessage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class CanvasCodecTest {
+
+    @Test
+    void tilesRoundTripAcrossFrames() {
+        Random random = new Random(1);
+        List<DrawingMessage.CanvasTile> tiles = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] bytes = new byte[random.nextInt(3000)];
+            random.nextBytes(bytes);
+            // Every tenth one erased
+            CanvasImage data = i % 10 == 9 ? null : new CanvasImage(i % 2 == 0 ? "image/png" : "image/webp", bytes);
+            tiles.add(new DrawingMessage.CanvasTile(i % 16, i / 16, (1L << 40) + i, data));
+        }
+
+        List<byte[]> frames = CanvasCodec.encodeTiles(tiles, 16 * 1024);
+        assertTrue(frames.size() > 1, "split into frames of 16 KB");
+        List<DrawingMessage.CanvasTile> decoded = new ArrayList<>();
+        for (byte[] frame : frames) {
+            assertTrue(frame.length <= 16 * 1024 || decodeTiles(frame).size() == 1);
+            decoded.addAll(decodeTiles(frame));
+        }
+        assertEquals(tiles.size(), decoded.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            assertTile(tiles.get(i), decoded.get(i));
+        }
+    }
+
+    @Test
+    void framesHoldAtMost255Tiles() {
+        List<DrawingMessage.CanvasTile> tiles = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            tiles.add(new DrawingMessage.CanvasTile(i % 16, i / 16, i, new CanvasImage("image/png", new byte[] {(byte) i})));
+        }
+        List<byte[]> frames = CanvasCodec.encodeTiles(tiles, Integer.MAX_VALUE);
+        assertEquals(2, frames.size());
+        assertEquals(255, decodeTiles(frames.get(0)).size());
+        assertTile(tiles.get(255), decodeTiles(frames.get(1)).get(0));
+    }
+
+    @Test
+    void canvasRoundTrips() {
+        byte[] bytes = new byte[70_000];
+        new Random(2).nextBytes(bytes);
+        for (boolean force : new boolean[] {false, true}) {
+            ByteBuffer frame = ByteBuffer.wrap(CanvasCodec.encodeCanvas(new CanvasImage("image/png", bytes), force));
+            assertEquals(CanvasCodec.FRAME_CANVAS, frame.get());
+            assertEquals(force ? 1 : 0, frame.get());
+            CanvasImage image = readImage(frame);
+            assertEquals("image/png", image.getMimeType());
+            assertArrayEquals(bytes, image.getBytes());
+            assertEquals(0, frame.remaining());
+        }
+        assertNull(CanvasCodec.encodeCanvas(new CanvasImage("image/" + "x".repeat(300), bytes), false));
+    }
+
+    private static void assertTile(DrawingMessage.CanvasTile expected, DrawingMessage.CanvasTile actual) {
+        assertEquals(expected.getCol(), actual.getCol());
+        assertEquals(expected.getRow(), actual.getRow());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        if (expected.getData() == null) {
+            assertNull(actual.getData());
+        } else {
+            assertEquals(expected.getData().getMimeType(), actual.getData().getMimeType());
+            assertArrayEquals(expected.getData().getBytes(), actual.getData().getBytes());
+        }
+    }
+
+    /**
+     * Reads a tile frame the way CanvasCodec.decode in script.js does.
+     */
+    private static List<DrawingMessage.CanvasTile> decodeTiles(byte[] bytes) {
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        assertEquals(CanvasCodec.FRAME_TILE, frame.get());
+        int count = frame.get() & 0xFF;
+        List<DrawingMessage.CanvasTile> tiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int col = frame.get() & 0xFF;
+            int row = frame.get() & 0xFF;
+            long version = frame.getLong();
+            tiles.add(new DrawingMessage.CanvasTile(col, row, version, readImage(frame)));
+        }
+        assertEquals(0, frame.remaining());
+        return tiles;
+    }
+
+    private static CanvasImage readImage(ByteBuffer frame) {
+        byte[] mime = new byte[frame.get() & 0xFF];
+        frame.get(mime);
+        byte[] bytes = new byte[frame.getInt()];
+        frame.get(bytes);
+        return mime.length > 0 ? new CanvasImage(new String(mime, StandardCharsets.US_ASCII), bytes) : null;
+    }
+}
@@ -0,0 +1,219 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.Test;
+
+/**
+ * permessage-deflate as a client sees it on the wire: the JDK's WebSocket
+ * client never offers it, so these tests speak the protocol over a socket.
+ */
+@QuarkusTest
+class DeflateHandshakeTest {
+
+    private static final int QUIET_MS = 1000;
+    private static final String JOIN = "{\"type\":\"JOIN_ROOM\",\"roomId\":\"DEFLATE\",\"playerName\":\"%s\"}";
+
+    @TestHTTPResource("/drawing")
+    URI uri;
+
+    @Test
+    void offeredDeflateIsNegotiatedAndUsed() throws Exception {
+        try (Socket socket = new Socket(uri.getHost(), uri.getPort())) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String response = upgrade(socket, in, "permessage-deflate; client_max_window_bits");
+            String extensions = header(response, "sec-websocket-extensions");
+            assertNotNull(extensions, "no extensions in " + response);
+            assertTrue(extensions.startsWith("permessage-deflate"), extensions);
+
+            send(socket.getOutputStream(), String.format(JOIN, "Ana"));
+            // One inflater for the connection: the server keeps its context
+            Inflater inflater = new Inflater(true);
+            List<String> compressed = new ArrayList<>();
+            for (Frame frame : readFrames(socket, in)) {
+                if (frame.compressed) {
+                    compressed.add(inflate(inflater, frame.payload));
+                }
+            }
+            assertFalse(compressed.isEmpty(), "no compressed frames");
+            for (String message : compressed) {
+                assertTrue(message.startsWith("{\"type\":\""), message);
+            }
+        }
+    }
+
+    @Test
+    void withoutAnOfferFramesAreSentAsTheyAre() throws Exception {
+        try (Socket socket = new Socket(uri.getHost(), uri.getPort())) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String response = upgrade(socket, in, null);
+            assertEquals(null, header(response, "sec-websocket-extensions"));
+
+            send(socket.getOutputStream(), String.format(JOIN, "Bia"));
+            for (Frame frame : readFrames(socket, in)) {
+                assertFalse(frame.compressed);
+                assertTrue(new String(frame.payload, StandardCharsets.UTF_8).startsWith("{\"type\":\""));
+            }
+        }
+    }
+
+    @Test
+    void unknownExtensionsAreNotNegotiated() throws Exception {
+        try (Socket socket = new Socket(uri.getHost(), uri.getPort())) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String response = upgrade(socket, in, "x-webkit-deflate-frame");
+            assertEquals(null, header(response, "sec-websocket-extensions"));
+
+            send(socket.getOutputStream(), String.format(JOIN, "Caio"));
+            for (Frame frame : readFrames(socket, in)) {
+                assertFalse(frame.compressed);
+            }
+        }
+    }
+
+    @Test
+    void deflateIsPickedAmongOtherOffers() throws Exception {
+        try (Socket socket = new Socket(uri.getHost(), uri.getPort())) {
+            socket.setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String response = upgrade(socket, in, "x-webkit-deflate-frame, permessage-deflate");
+            String extensions = header(response, "sec-websocket-extensions");
+            assertNotNull(extensions, "no extensions in " + response);
+            assertTrue(extensions.startsWith("permessage-deflate"), extensions);
+            assertFalse(extensions.contains("x-webkit"), extensions);
+        }
+    }
+
+    private static final class Frame {
+        final boolean compressed;
+        final byte[] payload;
+
+        Frame(boolean compressed, byte[] payload) {
+            this.compressed = compressed;
+            this.payload = payload;
+        }
+    }
+
+    private String upgrade(Socket socket, DataInputStream in, String extensions) throws IOException {
+        StringBuilder request = new StringBuilder()
+                .append("GET ").append(uri.getPath()).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(uri.getHost()).append(':').append(uri.getPort()).append("\r\n")
+                .append("Upgrade: websocket\r\nConnection: Upgrade\r\n")
+                .append("Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n");
+        if (extensions != null) {
+            request.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+        }
+        socket.getOutputStream().write(request.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n")) {
+            head.write(in.readUnsignedByte());
+        }
+        String response = head.toString(StandardCharsets.US_ASCII);
+        assertTrue(response.startsWith("HTTP/1.1 101"), response);
+        return response;
+    }
+
+    private static String header(String response, String name) {
+        for (String line : response.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends a masked, uncompressed text frame, as a client may even after
+     * negotiating deflate.
+     */
+    private static void send(OutputStream out, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] mask = {1, 2, 3, 4};
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x81);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        }
+        frame.write(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ mask[i % 4]);
+        }
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * The data frames the server sends until it goes quiet, all of them
+     * single-frame messages.
+     */
+    private static List<Frame> readFrames(Socket socket, DataInputStream in) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        while (true) {
+            int first;
+            try {
+                first = in.readUnsignedByte();
+            } catch (SocketTimeoutException e) {
+                assertFalse(frames.isEmpty(), "nothing received");
+                return frames;
+            }
+            // What the join sends comes at once; only wait long for the first
+            socket.setSoTimeout(QUIET_MS);
+            int second = in.readUnsignedByte();
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            int opcode = first & 0x0F;
+            assertTrue((first & 0x80) != 0, "fragmented message");
+            if (opcode == 1 || opcode == 2) {
+                frames.add(new Frame((first & 0x40) != 0, payload));
+            }
+        }
+    }
+
+    private static String inflate(Inflater inflater, byte[] payload) throws DataFormatException {
+        byte[] input = new byte[payload.length + 4];
+        System.arraycopy(payload, 0, input, 0, payload.length);
+        // The tail every compressed message had stripped (RFC 7692, 7.2.2)
+        input[payload.length + 2] = (byte) 0xFF;
+        input[payload.length + 3] = (byte) 0xFF;
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
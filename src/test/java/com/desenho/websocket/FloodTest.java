@@ -0,0 +1,330 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Synthetic flood: a few sessions of one room send canvas snapshots and
+ * strokes far over their limits, which without limits the room would store
+ * and rebroadcast to every member, while a quiet room next to it keeps
+ * drawing. The quiet room's relay latency must stay where it was before the
+ * flood. The same flood with the limits off is run last, for comparison.
+ * Disconnecting flooders is left out, so that only the limits hold them back.
+ */
+@QuarkusTest
+class FloodTest {
+
+    private static final String SEQ = "\"seq\":";
+    private static final int FLOODERS = 3;
+    private static final int LISTENERS = 10;
+    private static final int STROKE_EVERY_MS = 5;
+    private static final long PHASE_MS = 2500;
+    private static final long WARMUP_MS = 1500;
+
+    @TestHTTPResource("/drawing")
+    URI drawing;
+
+    @Inject
+    RateLimits rateLimits;
+
+    @Test
+    void floodedRoomDoesNotSlowDownOthers() throws Exception {
+        URI webSocket = URI.create(drawing.toString().replaceFirst("^http", "ws"));
+        HttpClient quietHttp = HttpClient.newHttpClient();
+        // Their own client, so its selector thread isn't shared with the quiet room
+        HttpClient floodHttp = HttpClient.newHttpClient();
+        Client sender = new Client().join(quietHttp, webSocket, "QUIET", "aluno1");
+        Client receiver = new Client().join(quietHttp, webSocket, "QUIET", "aluno2");
+        List<Client> listeners = new ArrayList<>();
+        for (int l = 0; l < LISTENERS; l++) {
+            listeners.add(new Client().join(floodHttp, webSocket, "FLOOD", "colega" + l));
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService flooding = Executors.newFixedThreadPool(FLOODERS);
+        String rejections = rateLimits.current().get(RateLimits.SESSION_REJECTIONS);
+        // Flooders stay connected, so the limits alone have to hold them back
+        rateLimits.update(Map.of(RateLimits.SESSION_REJECTIONS, ""));
+        try {
+            long[] baseline = draw(sender, receiver, scheduler, 0);
+
+            List<Flooder> flooders = new ArrayList<>();
+            AtomicBoolean flood = new AtomicBoolean(true);
+            for (int f = 0; f < FLOODERS; f++) {
+                Flooder flooder = new Flooder(floodHttp, webSocket, "FLOOD", "vandalo" + f, flood);
+                flooders.add(flooder);
+                flooding.execute(flooder);
+            }
+            // Once the flooders are in and the JIT has seen the rejection path
+            Thread.sleep(WARMUP_MS);
+            long[] limited = draw(sender, receiver, scheduler, baseline.length);
+            long sent = flooders.stream().mapToLong(flooder -> flooder.sent.get()).sum();
+            long refused = flooders.stream().mapToLong(flooder -> flooder.refused.get()).sum();
+
+            rateLimits.update(Map.of(RateLimits.ENABLED, "false"));
+            long[] unlimited = draw(sender, receiver, scheduler, baseline.length + limited.length);
+            flood.set(false);
+
+            double baselineP99 = percentileMs(baseline, 0.99);
+            double limitedP99 = percentileMs(limited, 0.99);
+            System.out.printf(Locale.ROOT, "[flood] quiet room p50/p99: %.1f/%.1f ms before, %.1f/%.1f ms during a flood"
+                            + " of %d messages (%d throttled notices), %.1f/%.1f ms with the limits off%n",
+                    percentileMs(baseline, 0.5), baselineP99, percentileMs(limited, 0.5), limitedP99, sent, refused,
+                    percentileMs(unlimited, 0.5), percentileMs(unlimited, 0.99));
+
+            assertEquals(0, sender.errors.get() + receiver.errors.get(), "the quiet room was throttled");
+            assertTrue(refused > 0, "the flood went through unthrottled");
+            // Flat within what a shared build machine jitters by
+            assertTrue(limitedP99 <= baselineP99 * 2 + 25,
+                    "p99 went from " + baselineP99 + " ms to " + limitedP99 + " ms during the flood");
+        } finally {
+            rateLimits.update(Map.of(RateLimits.ENABLED, "true", RateLimits.SESSION_REJECTIONS, rejections));
+            scheduler.shutdownNow();
+            flooding.shutdownNow();
+            sender.close();
+            receiver.close();
+            listeners.forEach(Client::close);
+        }
+    }
+
+    /**
+     * Sends a stroke every few milliseconds for a phase and returns how long
+     * each took to reach the receiver, in nanoseconds.
+     */
+    private static long[] draw(Client sender, Client receiver, ScheduledExecutorService scheduler, int firstSeq)
+            throws Exception {
+        int strokes = (int) (PHASE_MS / STROKE_EVERY_MS);
+        AtomicLong next = new AtomicLong(firstSeq);
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.scheduleAtFixedRate(() -> {
+            long seq = next.getAndIncrement();
+            if (seq >= firstSeq + strokes) {
+                done.countDown();
+                // Ends the schedule
+                throw new IllegalStateException("done");
+            }
+            receiver.sentAt.put(seq, System.nanoTime());
+            sender.send("{\"type\":\"DRAWING_ACTION\",\"roomId\":\"QUIET\",\"drawingAction\":{\"tool\":\"brush\","
+                    + "\"color\":\"#000000\",\"size\":4,\"startX\":" + seq % 800 + ",\"startY\":10,\"endX\":"
+                    + (seq % 800 + 2) + ",\"endY\":12,\"seq\":" + seq + "}}");
+        }, 0, STROKE_EVERY_MS, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(PHASE_MS * 4, TimeUnit.MILLISECONDS), "strokes could not be sent in time");
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (receiver.latencies(firstSeq, strokes) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        long[] latencies = receiver.latencies(firstSeq, strokes);
+        assertTrue(latencies != null, "strokes of the quiet room went missing");
+        return latencies;
+    }
+
+    private static double percentileMs(long[] nanos, double percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+    }
+
+    /**
+     * A pupil's connection: sends one message at a time and keeps what it
+     * needs of what comes back.
+     */
+    static class Client implements WebSocket.Listener {
+        final Map<Long, Long> sentAt = new ConcurrentHashMap<>();
+        final Map<Long, Long> receivedAt = new ConcurrentHashMap<>();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch joined = new CountDownLatch(1);
+        final CompletableFuture<Void> closed = new CompletableFuture<>();
+        private final StringBuilder partial = new StringBuilder();
+        private volatile WebSocket webSocket;
+        private CompletableFuture<?> sending = CompletableFuture.completedFuture(null);
+
+        Client join(HttpClient http, URI uri, String roomId, String name) throws Exception {
+            webSocket = http.newWebSocketBuilder().buildAsync(uri, this).get(10, TimeUnit.SECONDS);
+            send("{\"type\":\"JOIN_ROOM\",\"roomId\":\"" + roomId + "\",\"playerName\":\"" + name + "\"}");
+            assertTrue(joined.await(10, TimeUnit.SECONDS), name + " was not let in");
+            return this;
+        }
+
+        synchronized CompletableFuture<?> send(String message) {
+            WebSocket current = webSocket;
+            sending = sending.thenCompose(ignored -> current.sendText(message, true)).exceptionally(e -> null);
+            return sending;
+        }
+
+        synchronized CompletableFuture<?> send(byte[] frame) {
+            WebSocket current = webSocket;
+            sending = sending.thenCompose(ignored -> current.sendBinary(ByteBuffer.wrap(frame), true)).exceptionally(e -> null);
+            return sending;
+        }
+
+        long[] latencies(int firstSeq, int count) {
+            long[] latencies = new long[count];
+            for (int i = 0; i < count; i++) {
+                Long received = receivedAt.get((long) firstSeq + i);
+                if (received == null) {
+                    return null;
+                }
+                latencies[i] = received - sentAt.get((long) firstSeq + i);
+            }
+            return latencies;
+        }
+
+        void close() {
+            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(e -> null);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                received(partial.toString(), System.nanoTime());
+                partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            webSocket.request(1);
+            return null;
+        }
+
+        void received(String text, long now) {
+            if (text.startsWith("{\"error\"")) {
+                errors.incrementAndGet();
+            } else if (text.startsWith("{\"type\":\"JOIN_ACCEPTED\"")) {
+                joined.countDown();
+            }
+            for (int at = text.indexOf(SEQ); at >= 0; at = text.indexOf(SEQ, at + SEQ.length())) {
+                int from = at + SEQ.length();
+                int to = from;
+                while (to < text.length() && Character.isDigit(text.charAt(to))) {
+                    to++;
+                }
+                if (to > from) {
+                    receivedAt.putIfAbsent(Long.parseLong(text, from, to, 10), now);
+                }
+            }
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            closed.complete(null);
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            closed.complete(null);
+        }
+    }
+
+    /**
+     * Sends a canvas snapshot and a run of strokes into its room every tick,
+     * far more than the limits allow, joining again soon after the server
+     * disconnects it.
+     */
+    static class Flooder implements Runnable {
+        private static final long TICK_MS = 20;
+        private static final int STROKES_PER_TICK = 40;
+        private static final long RECONNECT_MS = 5000;
+
+        private final HttpClient http;
+        private final URI uri;
+        private final String roomId;
+        private final String name;
+        private final AtomicBoolean flooding;
+        private final String canvas;
+        private final String stroke;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong refused = new AtomicLong();
+
+        Flooder(HttpClient http, URI uri, String roomId, String name, AtomicBoolean flooding) {
+            this.http = http;
+            this.uri = uri;
+            this.roomId = roomId;
+            this.name = name;
+            this.flooding = flooding;
+            byte[] image = new byte[24 * 1024];
+            new Random(name.hashCode()).nextBytes(image);
+            this.canvas = "{\"type\":\"FORCE_CANVAS_UPDATE\",\"roomId\":\"" + roomId + "\",\"canvasData\":\""
+                    + "data:image/png;base64," + Base64.getEncoder().encodeToString(image) + "\"}";
+            this.stroke = "{\"type\":\"DRAWING_ACTION\",\"roomId\":\"" + roomId + "\",\"drawingAction\":{"
+                    + "\"tool\":\"brush\",\"color\":\"#ff0000\",\"size\":40,\"startX\":1,\"startY\":1,"
+                    + "\"endX\":799,\"endY\":599}}";
+        }
+
+        @Override
+        public void run() {
+            while (flooding.get()) {
+                Client client = new Client() {
+                    @Override
+                    void received(String text, long now) {
+                        super.received(text, now);
+                        if (text.startsWith("{\"error\"")) {
+                            refused.incrementAndGet();
+                        }
+                    }
+                };
+                try {
+                    client.join(http, uri, roomId, name);
+                } catch (Exception | AssertionError e) {
+                    continue;
+                }
+                try {
+                    while (flooding.get() && !client.closed.isDone()) {
+                        long tick = System.nanoTime();
+                        client.send(canvas);
+                        for (int i = 0; i < STROKES_PER_TICK; i++) {
+                            client.send(stroke);
+                        }
+                        sent.addAndGet(1 + STROKES_PER_TICK);
+                        long left = TICK_MS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - tick);
+                        if (left > 0) {
+                            Thread.sleep(left);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                client.close();
+                if (client.closed.isDone()) {
+                    refused.incrementAndGet();
+                    // As the web client does
+                    try {
+                        Thread.sleep(RECONNECT_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
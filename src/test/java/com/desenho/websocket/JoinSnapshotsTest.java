@@ -0,0 +1,165 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.DrawingMessage;
+import com.desenho.model.Room;
+import com.desenho.model.StrokeSegment;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+
+class JoinSnapshotsTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicInteger builds = new AtomicInteger();
+
+    @Test
+    void joinsAtTheSameVersionShareTheState() {
+        JoinSnapshots snapshots = new JoinSnapshots(60_000, registry);
+        List<JoinSnapshots.Part> first = snapshots.full("SALA", "e-1", this::build);
+        assertSame(first, snapshots.full("SALA", "e-1", this::build));
+        assertSame(first, snapshots.getFull("SALA", "e-1"));
+        assertEquals(1, builds.get());
+        assertEquals(1, count("miss"));
+        assertEquals(2, count("hit"));
+    }
+
+    @Test
+    void aVersionBumpInvalidatesTheStateAndTheDeltas() {
+        JoinSnapshots snapshots = new JoinSnapshots(60_000, registry);
+        List<JoinSnapshots.Part> full = snapshots.full("SALA", "e-1", this::build);
+        List<JoinSnapshots.Part> delta = snapshots.delta("SALA", "e-1", "e-0", this::build);
+
+        assertNull(snapshots.getFull("SALA", "e-2"), "state of a version nobody built yet");
+        assertNotSame(full, snapshots.full("SALA", "e-2", this::build));
+        assertNotSame(delta, snapshots.delta("SALA", "e-2", "e-0", this::build));
+        assertEquals(4, builds.get());
+        // And the old version is gone, not kept alongside
+        assertNull(snapshots.getFull("SALA", "e-1"));
+    }
+
+    @Test
+    void deltasAreCachedPerVersionResumedFrom() {
+        JoinSnapshots snapshots = new JoinSnapshots(60_000, registry);
+        List<JoinSnapshots.Part> sinceOne = snapshots.delta("SALA", "e-3", "e-1", this::build);
+        List<JoinSnapshots.Part> sinceTwo = snapshots.delta("SALA", "e-3", "e-2", this::build);
+        assertNotSame(sinceOne, sinceTwo);
+        assertSame(sinceOne, snapshots.delta("SALA", "e-3", "e-1", this::build));
+        assertSame(sinceTwo, snapshots.delta("SALA", "e-3", "e-2", this::build));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    void roomsAreCachedApartAndDiscarded() {
+        JoinSnapshots snapshots = new JoinSnapshots(60_000, registry);
+        List<JoinSnapshots.Part> a = snapshots.full("A", "e-1", this::build);
+        List<JoinSnapshots.Part> b = snapshots.full("B", "e-1", this::build);
+        assertNotSame(a, b);
+        snapshots.discard("A");
+        assertNull(snapshots.getFull("A", "e-1"));
+        assertSame(b, snapshots.getFull("B", "e-1"));
+    }
+
+    @Test
+    void entriesExpireAndAZeroTimeToLiveCachesNothing() throws Exception {
+        JoinSnapshots expiring = new JoinSnapshots(1, registry);
+        expiring.full("SALA", "e-1", this::build);
+        Thread.sleep(5);
+        expiring.expire();
+        assertNull(expiring.getFull("SALA", "e-1"));
+
+        JoinSnapshots off = new JoinSnapshots(0, registry);
+        off.full("SALA", "e-1", this::build);
+        off.full("SALA", "e-1", this::build);
+        assertEquals(3, builds.get());
+    }
+
+    @Test
+    void partsAreEncodedOnceOnFirstUse() {
+        AtomicInteger encodes = new AtomicInteger();
+        Supplier<List<String>> json = () -> {
+            encodes.incrementAndGet();
+            return List.of("{}");
+        };
+        JoinSnapshots.Part part = new JoinSnapshots.Part(DrawingMessage.MessageType.CANVAS_UPDATE, true, json, null);
+        assertEquals(0, encodes.get());
+        assertSame(part.json(), part.json());
+        assertEquals(1, encodes.get());
+        assertNull(part.binary(), "a part without a binary form");
+    }
+
+    /**
+     * A session resuming from the version it last saw gets only what changed
+     * since, cached for others resuming from the same version until the room
+     * changes again.
+     */
+    @Test
+    void resumingServesTheChangesSince() {
+        JoinSnapshots snapshots = new JoinSnapshots(60_000, registry);
+        Room room = new Room("SALA");
+        room.appendStrokes(List.of(StrokeSegment.bound(segment(1))), 20000, Long.MAX_VALUE, 1);
+        String seen = room.getVersionTag();
+        room.appendStrokes(List.of(StrokeSegment.bound(segment(2))), 20000, Long.MAX_VALUE, 2);
+        DrawingMessage image = new DrawingMessage();
+        image.setImageId("img_1");
+        room.addFloatingImage(image);
+
+        Room.Changes changes = room.changesSince(seen);
+        assertTrue(changes.isResumable());
+        assertEquals(room.getVersionTag(), changes.getVersion());
+        assertEquals(1, changes.getStrokes().size(), "only the segment drawn after the version seen");
+        assertEquals(2.0, changes.getStrokes().get(0).getStartX());
+        assertEquals(List.of(image), changes.getImages());
+
+        List<JoinSnapshots.Part> delta = snapshots.delta("SALA", changes.getVersion(), seen, this::build);
+        assertSame(delta, snapshots.delta("SALA", room.changesSince(seen).getVersion(), seen, this::build));
+        room.removeFloatingImage("img_1");
+        Room.Changes later = room.changesSince(seen);
+        assertEquals(List.of("img_1"), later.getRemovedImageIds());
+        assertNotSame(delta, snapshots.delta("SALA", later.getVersion(), seen, this::build));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    void versionsThatCannotBeResumedFrom() {
+        Room room = new Room("SALA");
+        String seen = room.getVersionTag();
+        assertNull(room.changesSince(new Room("SALA").getVersionTag()), "a tag of another room instance");
+        assertNull(room.changesSince("lixo"));
+        room.appendStrokes(List.of(StrokeSegment.bound(segment(1))), 20000, Long.MAX_VALUE, 1);
+        room.clearCanvas();
+        Room.Changes changes = room.changesSince(seen);
+        assertFalse(changes.isResumable(), "a canvas cleared since needs a resync");
+        assertTrue(changes.getStrokes().isEmpty());
+    }
+
+    private List<JoinSnapshots.Part> build() {
+        builds.incrementAndGet();
+        return List.of(new JoinSnapshots.Part(DrawingMessage.MessageType.CANVAS_UPDATE, true, () -> List.of("{}"), null));
+    }
+
+    private double count(String result) {
+        return registry.get("desenho.join.snapshots").tag("result", result).counter().count();
+    }
+
+    private static DrawingMessage.DrawingAction segment(double x) {
+        DrawingMessage.DrawingAction action = new DrawingMessage.DrawingAction();
+        action.setTool("brush");
+        action.setColor("#000000");
+        action.setSize(4);
+        action.setStartX(x);
+        action.setStartY(x);
+        action.setEndX(x + 1);
+        action.setEndY(x + 1);
+        return action;
+    }
+}
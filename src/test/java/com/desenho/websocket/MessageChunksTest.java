@@ -0,0 +1,126 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class MessageChunksTest {
+
+    private static final String MESSAGE = "{\"type\":\"CANVAS_UPDATE\",\"roomId\":\"ROOM1\",\"canvasData\":\"...\"}";
+
+    @Test
+    void reassemblesInOrder() {
+        MessageChunks chunks = new MessageChunks(1024);
+        byte[][] frames = frames(7, MESSAGE, 3);
+        assertEquals("{\"type\":\"CAN", MessageChunks.head(frames[0], 12));
+        assertNull(MessageChunks.head(frames[1], 12));
+        assertNull(chunks.add(frames[0]));
+        assertNull(chunks.add(frames[1]));
+        assertEquals(MESSAGE, chunks.add(frames[2]));
+    }
+
+    @Test
+    void outOfOrderAndOversizedMessagesAreRefused() {
+        MessageChunks chunks = new MessageChunks(1024);
+        byte[][] frames = frames(7, MESSAGE, 3);
+        chunks.add(frames[0]);
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(frames[2]));
+        assertThrows(IllegalArgumentException.class, () -> new MessageChunks(10).add(frames[0]));
+    }
+
+    @Test
+    void theLimitCountsTheWholeMessage() {
+        int bytes = MESSAGE.getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(MESSAGE, reassemble(new MessageChunks(bytes), frames(7, MESSAGE, 4)));
+
+        // Every chunk is within the limit, the message one byte over it is not
+        MessageChunks chunks = new MessageChunks(bytes - 1);
+        byte[][] frames = frames(7, MESSAGE, 4);
+        assertNull(chunks.add(frames[0]));
+        assertNull(chunks.add(frames[1]));
+        assertNull(chunks.add(frames[2]));
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(frames[3]));
+
+        // Nothing of the refused message is kept, and the next one fits again
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(frames[3]));
+        String shorter = MESSAGE.substring(0, bytes - 1);
+        assertEquals(shorter, reassemble(chunks, frames(8, shorter, 2)));
+    }
+
+    @Test
+    void droppedMessagesCountTowardsTheLimitToo() {
+        MessageChunks chunks = new MessageChunks(MESSAGE.length() - 1);
+        byte[][] frames = frames(7, MESSAGE, 2);
+        chunks.drop(frames[0]);
+        assertThrows(IllegalArgumentException.class, () -> chunks.drop(frames[1]));
+    }
+
+    @Test
+    void malformedFramesAreRefused() {
+        MessageChunks chunks = new MessageChunks(1024);
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(new byte[] {MessageChunks.FRAME_CHUNK, 0, 0}));
+        byte[] notAChunk = frames(7, MESSAGE, 1)[0];
+        notAChunk[0] = 0x01;
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(notAChunk));
+        assertNull(MessageChunks.head(notAChunk, 12));
+        // A message of no chunks, and one past its last chunk
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(chunk(7, 0, 0)));
+        chunks.add(chunk(7, 0, 2));
+        assertEquals("{{", chunks.add(chunk(7, 1, 2)));
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(chunk(7, 2, 2)));
+        // A chunk of another message midway
+        chunks.add(frames(7, MESSAGE, 3)[0]);
+        assertThrows(IllegalArgumentException.class, () -> chunks.add(frames(9, MESSAGE, 3)[1]));
+    }
+
+    @Test
+    void droppedMessagesAreLetGoToTheEnd() {
+        MessageChunks chunks = new MessageChunks(1024);
+        byte[][] dropped = frames(7, MESSAGE, 3);
+        assertNull(chunks.add(dropped[0]));
+        assertFalse(chunks.continuesDropped(dropped[1]));
+        chunks.drop(dropped[1]);
+        assertTrue(chunks.continuesDropped(dropped[2]));
+        assertNull(chunks.add(dropped[2]));
+
+        // The next message starts afresh
+        byte[][] next = frames(8, MESSAGE, 2);
+        assertFalse(chunks.continuesDropped(next[0]));
+        assertNull(chunks.add(next[0]));
+        assertEquals(MESSAGE, chunks.add(next[1]));
+    }
+
+    private static String reassemble(MessageChunks chunks, byte[][] frames) {
+        String message = null;
+        for (byte[] frame : frames) {
+            assertNull(message, "a message before its last chunk");
+            message = chunks.add(frame);
+        }
+        return message;
+    }
+
+    private static byte[] chunk(int id, int index, int count) {
+        return ByteBuffer.allocate(10).put((byte) MessageChunks.FRAME_CHUNK).putInt(id)
+                .putShort((short) index).putShort((short) count).put((byte) '{').array();
+    }
+
+    static byte[][] frames(int id, String message, int count) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int size = (bytes.length + count - 1) / count;
+        byte[][] frames = new byte[count][];
+        for (int index = 0; index < count; index++) {
+            int from = Math.min(bytes.length, index * size);
+            int to = Math.min(bytes.length, from + size);
+            frames[index] = ByteBuffer.allocate(9 + to - from)
+                    .put((byte) MessageChunks.FRAME_CHUNK).putInt(id).putShort((short) index).putShort((short) count)
+                    .put(bytes, from, to - from).array();
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,97 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class MessageExecutorTest {
+
+    @Test
+    void aSessionOverItsBoundIsShedOnce() throws Exception {
+        MessageExecutor executor = new MessageExecutor("worker", 1, 3, 1000);
+        AtomicInteger overflows = new AtomicInteger();
+        MessageExecutor.SessionExecutor session = executor.forSession(overflows::incrementAndGet);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Integer> ran = new ArrayList<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+
+        session.offer(() -> {
+            running.countDown();
+            await(blocked);
+        }, 0);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            int message = i;
+            session.offer(() -> ran.add(message), 10);
+        }
+        // Closing always gets in, after what was queued
+        session.execute(closed::countDown);
+        blocked.countDown();
+
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2), ran, "three waiting fit the bound");
+        assertEquals(1, overflows.get());
+        executor.shutdown();
+    }
+
+    @Test
+    void bytesAreBoundedToo() throws Exception {
+        MessageExecutor executor = new MessageExecutor("worker", 1, 100, 1000);
+        AtomicInteger overflows = new AtomicInteger();
+        MessageExecutor.SessionExecutor session = executor.forSession(overflows::incrementAndGet);
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+
+        session.offer(() -> await(blocked), 0);
+        session.offer(ran::incrementAndGet, 600);
+        session.offer(ran::incrementAndGet, 600);
+        CountDownLatch drained = new CountDownLatch(1);
+        session.execute(drained::countDown);
+        blocked.countDown();
+
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+        assertEquals(1, overflows.get());
+        executor.shutdown();
+    }
+
+    @Test
+    void sessionsKeepTheirOrderOnThePool() throws Exception {
+        MessageExecutor executor = new MessageExecutor("worker", 4, 10_000, Long.MAX_VALUE);
+        List<List<Integer>> seen = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(8);
+        for (int s = 0; s < 8; s++) {
+            List<Integer> order = new ArrayList<>();
+            seen.add(order);
+            MessageExecutor.SessionExecutor session = executor.forSession(() -> { });
+            for (int i = 0; i < 1000; i++) {
+                int message = i;
+                session.offer(() -> order.add(message), 1);
+            }
+            session.execute(done::countDown);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> order : seen) {
+            assertEquals(1000, order.size());
+            for (int i = 0; i < order.size(); i++) {
+                assertEquals(i, order.get(i));
+            }
+        }
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
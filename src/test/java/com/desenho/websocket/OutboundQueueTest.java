@@ -0,0 +1,177 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final Client client = new Client();
+    private final AtomicInteger resyncs = new AtomicInteger();
+
+    @Test
+    void messagesGoOneAtATimeInOrder() {
+        OutboundQueue queue = queue(1000);
+        queue.relay("a", null);
+        queue.reply("b");
+        queue.relay(new byte[] {'c'});
+        assertEquals(List.of("a"), client.sent);
+        client.complete();
+        client.complete();
+        assertEquals(List.of("a", "b", "c"), client.sent);
+        client.complete();
+        assertEquals(0, gauge("desenho.outbound.queue.depth"));
+        assertEquals(0, gauge("desenho.outbound.queue.bytes"));
+    }
+
+    @Test
+    void newerCanvasUpdatesSupersedeQueuedOnes() {
+        OutboundQueue queue = queue(1000);
+        queue.relay("first", null);
+        queue.relay("canvas1", OutboundQueue.Kind.CANVAS);
+        queue.relay("canvas2", OutboundQueue.Kind.CANVAS);
+        queue.relay("force", OutboundQueue.Kind.FORCE_CANVAS);
+        // Must not replace the forced one, which a plain update can't stand in for
+        queue.relay("canvas3", OutboundQueue.Kind.CANVAS);
+        drain();
+        assertEquals(List.of("first", "force", "canvas3"), client.sent);
+        assertEquals(2, dropped(OutboundMetrics.SUPERSEDED));
+    }
+
+    @Test
+    void goingOverBudgetResyncsThenDisconnects() {
+        OutboundQueue queue = queue(100);
+        queue.relay("x".repeat(60), null);
+        queue.relay("y".repeat(30), null);
+        queue.reply("join state");
+        // Over budget: the relayed backlog goes, the reply stays, and the session is resynced
+        queue.relay("z".repeat(30), null);
+        assertEquals(1, resyncs.get());
+        assertEquals(2, dropped(OutboundMetrics.OVERFLOW), "the message over budget and the one queued before it");
+        assertEquals(2, gauge("desenho.outbound.queue.depth"), "the one in flight and the reply");
+        assertNull(client.closed);
+
+        // Over again before it caught up: it can't keep up, so it is closed
+        queue.relay("w".repeat(90), null);
+        assertEquals(1, resyncs.get());
+        assertEquals(CloseReason.CloseCodes.TRY_AGAIN_LATER, client.closed.getCloseCode());
+        assertEquals(1, registry.counter("desenho.outbound.disconnects").count());
+        drain();
+        assertEquals(List.of("x".repeat(60)), client.sent);
+    }
+
+    @Test
+    void catchingUpEarnsAnotherResync() {
+        OutboundQueue queue = queue(100);
+        queue.relay("x".repeat(60), null);
+        queue.relay("y".repeat(60), null);
+        assertEquals(1, resyncs.get());
+        drain();
+
+        queue.relay("x".repeat(60), null);
+        queue.relay("y".repeat(60), null);
+        assertEquals(2, resyncs.get());
+        assertNull(client.closed);
+    }
+
+    @Test
+    void aFailedSendEndsTheQueue() {
+        OutboundQueue queue = queue(1000);
+        queue.relay("a", null);
+        queue.relay("b", null);
+        client.fail();
+        queue.relay("c", null);
+        assertEquals(List.of("a"), client.sent);
+        assertEquals(1, registry.counter("desenho.outbound.send.failures").count());
+        assertEquals(0, gauge("desenho.outbound.queue.depth"));
+    }
+
+    private OutboundQueue queue(long maxBytes) {
+        return new OutboundQueue(client.session, maxBytes, new OutboundMetrics(registry), session -> resyncs.incrementAndGet());
+    }
+
+    private void drain() {
+        while (client.pending != null) {
+            client.complete();
+        }
+    }
+
+    private double gauge(String name) {
+        return registry.get(name).gauge().value();
+    }
+
+    private double dropped(String reason) {
+        return registry.get("desenho.outbound.dropped").tag("reason", reason).counter().count();
+    }
+
+    /**
+     * The far end of a session: sends complete only when the test says so.
+     */
+    private static final class Client {
+        final List<String> sent = new ArrayList<>();
+        SendHandler pending;
+        CloseReason closed;
+
+        final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                OutboundQueueTest.class.getClassLoader(), new Class<?>[] {RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "sendText":
+                            sent.add((String) args[0]);
+                            break;
+                        case "sendBinary":
+                            sent.add(StandardCharsets.UTF_8.decode((ByteBuffer) args[0]).toString());
+                            break;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                    pending = (SendHandler) args[1];
+                    return null;
+                });
+
+        final Session session = (Session) Proxy.newProxyInstance(
+                OutboundQueueTest.class.getClassLoader(), new Class<?>[] {Session.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAsyncRemote":
+                            return remote;
+                        case "close":
+                            closed = (CloseReason) args[0];
+                            return null;
+                        case "getId":
+                            return "S1";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        void complete() {
+            finish(new SendResult());
+        }
+
+        void fail() {
+            finish(new SendResult(new java.io.IOException("reset")));
+        }
+
+        private void finish(SendResult result) {
+            SendHandler handler = pending;
+            pending = null;
+            handler.onResult(result);
+        }
+    }
+}
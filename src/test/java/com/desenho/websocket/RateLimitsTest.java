@@ -0,0 +1,125 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.DrawingMessage.MessageType;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class RateLimitsTest {
+
+    @Test
+    void sessionAndRoomBudgetsAreSeparate() {
+        RateLimits limits = limits("DRAWING_ACTION:1:3", "DRAWING_ACTION:1:5");
+        TokenBuckets alice = limits.newSessionBuckets();
+        TokenBuckets bob = limits.newSessionBuckets();
+        for (int i = 0; i < 3; i++) {
+            assertNull(limits.admit(alice, "ROOM1", MessageType.DRAWING_ACTION, 1, 100));
+        }
+        assertEquals(RateLimits.SESSION, limits.admit(alice, "ROOM1", MessageType.DRAWING_ACTION, 1, 100));
+        // Bob has his own budget, but the room's runs out after two more
+        assertNull(limits.admit(bob, "ROOM1", MessageType.DRAWING_ACTION, 1, 100));
+        assertNull(limits.admit(bob, "ROOM1", MessageType.DRAWING_ACTION, 1, 100));
+        assertEquals(RateLimits.ROOM, limits.admit(bob, "ROOM1", MessageType.DRAWING_ACTION, 1, 100));
+        // Other rooms and types are untouched
+        assertNull(limits.admit(limits.newSessionBuckets(), "ROOM2", MessageType.DRAWING_ACTION, 1, 100));
+        assertNull(limits.admit(alice, "ROOM1", MessageType.LEAVE_ROOM, 1, 100));
+    }
+
+    @Test
+    void messagesAreChargedByCount() {
+        RateLimits limits = limits("DRAWING_ACTION:250:500", "");
+        TokenBuckets session = limits.newSessionBuckets();
+        // A full binary stroke frame costs its 255 segments
+        assertNull(limits.admit(session, "ROOM1", MessageType.DRAWING_ACTION, 255, 2000));
+        assertEquals(RateLimits.SESSION, limits.admit(session, "ROOM1", MessageType.DRAWING_ACTION, 255, 2000));
+        assertNull(limits.admit(session, "ROOM1", MessageType.DRAWING_ACTION, 245, 2000));
+    }
+
+    @Test
+    void bytesAreChargedSeparately() {
+        RateLimits limits = limits("", "");
+        limits.update(Map.of(RateLimits.SESSION_BYTES, "CANVAS_UPDATE:1000:4000"));
+        TokenBuckets session = limits.newSessionBuckets();
+        assertNull(limits.admit(session, null, MessageType.CANVAS_UPDATE, 1, 3000));
+        assertEquals(RateLimits.SESSION, limits.admit(session, null, MessageType.CANVAS_UPDATE, 1, 3000));
+        assertNull(limits.admit(session, null, MessageType.CANVAS_UPDATE, 1, 1000));
+    }
+
+    @Test
+    void paddedStrokesRunOutOfBytesBeforeMessages() {
+        RateLimits limits = limits(RateLimits.DEFAULT_SESSION_MESSAGES, "");
+        limits.update(Map.of(RateLimits.SESSION_BYTES, RateLimits.DEFAULT_SESSION_BYTES));
+        TokenBuckets drawing = limits.newSessionBuckets();
+        // A full burst of real segments, traced ones included
+        for (int i = 0; i < 500; i++) {
+            assertNull(limits.admit(drawing, "ROOM1", MessageType.DRAWING_ACTION, 1, 300));
+        }
+        TokenBuckets padding = limits.newSessionBuckets();
+        int admitted = 0;
+        while (limits.admit(padding, "ROOM1", MessageType.DRAWING_ACTION, 1, DrawingWebSocket.MAX_STROKE_CHARS) == null) {
+            admitted++;
+        }
+        assertEquals(256, admitted, "1 KB strokes admitted out of a burst of 500 messages");
+    }
+
+    @Test
+    void rejectionsAreToleratedUpToTheirBurst() {
+        RateLimits limits = limits("", "");
+        TokenBuckets session = limits.newSessionBuckets();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limits.tolerate(session));
+        }
+        assertFalse(limits.tolerate(session));
+    }
+
+    @Test
+    void updatesApplyAtOnceOrNotAtAll() {
+        RateLimits limits = limits("DRAWING_ACTION:1:1", "");
+        TokenBuckets session = limits.newSessionBuckets();
+        assertThrows(IllegalArgumentException.class, () -> limits.update(Map.of(
+                RateLimits.SESSION_MESSAGES, "DRAWING_ACTION:100:100",
+                RateLimits.ROOM_MESSAGES, "NOT_A_TYPE:1:1")));
+        assertEquals("DRAWING_ACTION:1:1", limits.current().get(RateLimits.SESSION_MESSAGES));
+
+        limits.update(Map.of(RateLimits.ENABLED, "false"));
+        for (int i = 0; i < 10; i++) {
+            assertNull(limits.admit(session, "ROOM1", MessageType.DRAWING_ACTION, 1, 100));
+        }
+    }
+
+    @Test
+    void uploadsAreLimitedPerClient() {
+        RateLimits limits = limits("", "");
+        assertTrue(limits.admitUpload("10.0.0.1", 1000));
+        assertTrue(limits.admitUpload("10.0.0.1", 1000));
+        assertFalse(limits.admitUpload("10.0.0.1", 1000), "over the upload burst");
+        assertTrue(limits.admitUpload("10.0.0.2", 2500));
+        assertFalse(limits.admitUpload("10.0.0.3", 4000), "larger than the byte burst");
+
+        limits.update(Map.of(RateLimits.UPLOADS, "", RateLimits.UPLOAD_BYTES, ""));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limits.admitUpload("10.0.0.1", 1000));
+        }
+    }
+
+    static RateLimits limits(String sessionMessages, String roomMessages) {
+        RateLimits limits = new RateLimits();
+        limits.enabled = true;
+        limits.sessionMessages = sessionMessages;
+        limits.sessionBytes = "";
+        limits.roomMessages = roomMessages;
+        limits.roomBytes = "";
+        limits.sessionRejections = "1:3";
+        limits.uploads = "1:2";
+        limits.uploadBytes = "1000:3000";
+        limits.adminToken = Optional.empty();
+        limits.init();
+        return limits;
+    }
+}
@@ -0,0 +1,205 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.DrawingMessage;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A whole school joining one room at once. Every session has to end up with
+ * the full roster, at a fraction of what sending each session the full roster
+ * on every join would have cost.
+ */
+@QuarkusTest
+class RosterStormTest {
+
+    private static final String ROOM = "ASSEMBLEIA";
+    private static final int PUPILS = 200;
+    private static final long QUIET_MS = 500;
+
+    @TestHTTPResource("/drawing")
+    URI drawing;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    @Test
+    void twoHundredSimultaneousJoins() throws Exception {
+        URI webSocket = URI.create(drawing.toString().replaceFirst("^http", "ws"));
+        HttpClient http = HttpClient.newHttpClient();
+        List<Pupil> pupils = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        try {
+            for (int p = 0; p < PUPILS; p++) {
+                names.add("aluno" + p);
+                pupils.add(new Pupil(http, webSocket));
+            }
+            // All connected first, so the joins arrive together
+            for (int p = 0; p < PUPILS; p++) {
+                pupils.get(p).send("{\"type\":\"JOIN_ROOM\",\"roomId\":\"" + ROOM + "\",\"playerName\":\"" + names.get(p) + "\"}");
+            }
+
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (pupils.stream().anyMatch(pupil -> pupil.playerCount() < PUPILS) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            // Lets the last events and any roster requests settle
+            long total;
+            do {
+                total = pupils.stream().mapToLong(pupil -> pupil.bytes.get()).sum();
+                Thread.sleep(QUIET_MS);
+            } while (total != pupils.stream().mapToLong(pupil -> pupil.bytes.get()).sum());
+
+            long rosterBytes = pupils.stream().mapToLong(pupil -> pupil.rosterBytes.get()).sum();
+            long events = pupils.stream().mapToLong(pupil -> pupil.events.get()).sum();
+            long requests = pupils.stream().mapToLong(pupil -> pupil.requests.get()).sum();
+            long fullRosters = fullRosterRebroadcastBytes(names);
+            System.out.printf("[roster] %d simultaneous joins: %d bytes sent in all, %d of them rosters"
+                            + " (%d events, %d roster requests); a full roster to everyone on each join is %d bytes%n",
+                    PUPILS, total, rosterBytes, events, requests, fullRosters);
+
+            for (Pupil pupil : pupils) {
+                assertEquals(new LinkedHashSet<>(names), pupil.players, "a pupil's roster");
+            }
+            // Joins are folded per debounce window; a slow machine spreads them over a few more
+            assertTrue(events < PUPILS * 20L, events + " roster events");
+            assertTrue(rosterBytes * 10 < fullRosters, rosterBytes + " roster bytes vs " + fullRosters);
+            assertTrue(total * 5 < fullRosters, total + " bytes vs " + fullRosters);
+        } finally {
+            pupils.forEach(Pupil::close);
+        }
+    }
+
+    /**
+     * What PLAYER_LIST_UPDATE with the whole roster, sent to every session in
+     * the room on every join, would have cost: the k-th join sends k names to
+     * k sessions, so the total grows with the cube of the class size.
+     */
+    private long fullRosterRebroadcastBytes(List<String> names) throws Exception {
+        long bytes = 0;
+        for (int k = 1; k <= names.size(); k++) {
+            DrawingMessage message = new DrawingMessage();
+            message.setType(DrawingMessage.MessageType.PLAYER_LIST_UPDATE);
+            message.setRoomId(ROOM);
+            message.setPlayerName(String.join(",", names.subList(0, k)));
+            bytes += (long) k * objectMapper.writeValueAsBytes(message).length;
+        }
+        return bytes;
+    }
+
+    /**
+     * A pupil's connection, keeping its roster the way script.js does
+     * (applyRosterEvent) and counting what it is sent.
+     */
+    private class Pupil implements WebSocket.Listener {
+        final Set<String> players = new LinkedHashSet<>();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong rosterBytes = new AtomicLong();
+        final AtomicLong events = new AtomicLong();
+        final AtomicLong requests = new AtomicLong();
+        private final StringBuilder partial = new StringBuilder();
+        private final WebSocket webSocket;
+        private CompletableFuture<?> sending = CompletableFuture.completedFuture(null);
+        private Long rosterVersion;
+        private boolean rosterRequested;
+
+        Pupil(HttpClient http, URI uri) throws Exception {
+            webSocket = http.newWebSocketBuilder().buildAsync(uri, this).get(10, TimeUnit.SECONDS);
+        }
+
+        synchronized void send(String message) {
+            sending = sending.thenCompose(ignored -> webSocket.sendText(message, true)).exceptionally(e -> null);
+        }
+
+        synchronized int playerCount() {
+            return players.size();
+        }
+
+        void close() {
+            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(e -> null);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                String text = partial.toString();
+                partial.setLength(0);
+                bytes.addAndGet(text.length());
+                try {
+                    received(text);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            bytes.addAndGet(data.remaining());
+            webSocket.request(1);
+            return null;
+        }
+
+        private synchronized void received(String text) throws Exception {
+            JsonNode message = objectMapper.readTree(text);
+            String type = message.path("type").asText();
+            String playerName = message.path("playerName").asText("");
+            List<String> names = playerName.isEmpty() ? List.of() : Arrays.asList(playerName.split(","));
+            Long version = message.hasNonNull("rosterVersion") ? message.get("rosterVersion").asLong() : null;
+            switch (type) {
+                case "PLAYER_LIST_UPDATE":
+                    rosterBytes.addAndGet(text.length());
+                    players.clear();
+                    players.addAll(names);
+                    rosterVersion = version;
+                    rosterRequested = false;
+                    break;
+                case "PLAYER_JOINED":
+                case "PLAYER_LEFT":
+                    rosterBytes.addAndGet(text.length());
+                    events.incrementAndGet();
+                    if (rosterVersion == null || version == null || version != rosterVersion + 1) {
+                        // Missed an event: ask for the whole roster again, once
+                        rosterVersion = null;
+                        if (!rosterRequested) {
+                            rosterRequested = true;
+                            requests.incrementAndGet();
+                            send("{\"type\":\"ROSTER_REQUEST\",\"roomId\":\"" + ROOM + "\"}");
+                        }
+                        break;
+                    }
+                    if (type.equals("PLAYER_JOINED")) {
+                        players.addAll(names);
+                    } else {
+                        players.removeAll(names);
+                    }
+                    rosterVersion = version;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
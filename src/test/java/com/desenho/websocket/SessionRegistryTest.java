@@ -0,0 +1,126 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Who the registry counts as a room's members, directly and as sessions join
+ * and close on the endpoint.
+ */
+@QuarkusTest
+class SessionRegistryTest {
+
+    private static final String ROOM = "CHAMADA";
+
+    @TestHTTPResource("/drawing")
+    URI drawing;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    private final SessionRegistry registry = new SessionRegistry();
+
+    @Test
+    void joiningAddsAndLeavingRemovesExactlyThatMembership() {
+        SessionContext ana = context();
+        SessionContext bia = context();
+        SessionContext.Membership anaIn = registry.join(ana, "A", "ana");
+        assertNull(anaIn, "ana was in no room before");
+        registry.join(bia, "A", "bia");
+        assertEquals(List.of("ana", "bia"), names("A"));
+
+        assertFalse(registry.leave(ana.getMembership()));
+        assertEquals(List.of("bia"), names("A"));
+        assertNull(ana.getRoomId());
+        assertTrue(registry.leave(bia.getMembership()), "bia was the last one");
+        assertArrayEquals(new SessionContext.Membership[0], registry.members("A"));
+    }
+
+    @Test
+    void aLateLeaveOfAnOldRoomDoesNotUndoANewerJoin() {
+        SessionContext ana = context();
+        registry.join(ana, "A", "ana");
+        SessionContext.Membership previous = registry.join(ana, "B", "ana");
+        assertEquals("A", previous.roomId);
+        assertEquals("B", ana.getRoomId());
+
+        assertTrue(registry.leave(previous));
+        assertEquals(List.of(), names("A"));
+        assertEquals(List.of("ana"), names("B"));
+        assertEquals("B", ana.getRoomId(), "leaving A must not clear the newer membership");
+        // Leaving the same membership twice is harmless
+        assertFalse(registry.leave(previous));
+        assertEquals(List.of("ana"), names("B"));
+    }
+
+    @Test
+    void membersArraysAreNotChangedByLaterJoins() {
+        registry.join(context(), "A", "ana");
+        SessionContext.Membership[] before = registry.members("A");
+        registry.join(context(), "A", "bia");
+        assertEquals(1, before.length, "a broadcast iterating the old array");
+        assertEquals(2, registry.members("A").length);
+    }
+
+    @Test
+    void endpointSessionsAreMembersFromJoinUntilClose() throws Exception {
+        URI webSocket = URI.create(drawing.toString().replaceFirst("^http", "ws"));
+        HttpClient http = HttpClient.newHttpClient();
+        List<FloodTest.Client> clients = new ArrayList<>();
+        for (int c = 0; c < 3; c++) {
+            clients.add(new FloodTest.Client().join(http, webSocket, ROOM, "chamada" + c));
+        }
+        assertEquals(3, sessions());
+
+        clients.get(0).close();
+        await(() -> sessions() == 2);
+        assertEquals(2, sessions());
+
+        clients.get(1).close();
+        clients.get(2).close();
+        // The room's gauges go with its last session
+        await(() -> meterRegistry.find("desenho.room.sessions").tag("room", ROOM).gauge() == null);
+        assertNull(meterRegistry.find("desenho.room.sessions").tag("room", ROOM).gauge());
+    }
+
+    private double sessions() {
+        Gauge gauge = meterRegistry.find("desenho.room.sessions").tag("room", ROOM).gauge();
+        return gauge != null ? gauge.value() : 0;
+    }
+
+    private List<String> names(String roomId) {
+        List<String> names = new ArrayList<>();
+        for (SessionContext.Membership member : registry.members(roomId)) {
+            assertSame(member, member.context.getMembership());
+            names.add(member.playerName);
+        }
+        return names;
+    }
+
+    private static SessionContext context() {
+        return new SessionContext(null, null, null, null, null);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+}
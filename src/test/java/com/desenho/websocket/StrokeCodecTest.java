@@ -0,0 +1,182 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.desenho.model.DrawingMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class StrokeCodecTest {
+
+    @Test
+    void segmentsRoundTripToAQuarterPixel() {
+        Random random = new Random(3);
+        String[] tools = {"brush", "eraser", "spray"};
+        String[] colors = {"#000000", "#ff0000", "#FFFF00", "#12ab9f", "#ffffff"};
+        List<DrawingMessage.DrawingAction> actions = new ArrayList<>();
+        for (int i = 0; i < StrokeCodec.MAX_RECORDS; i++) {
+            actions.add(action(tools[i % tools.length], colors[i % colors.length], i,
+                    random.nextDouble() * 1920, random.nextDouble() * 1080,
+                    random.nextDouble() * 1920, random.nextDouble() * 1080));
+            actions.get(i).setStart(i % 7 == 0);
+            actions.get(i).setEnd(i % 7 == 6);
+        }
+
+        byte[] frame = StrokeCodec.encode(actions);
+        List<DrawingMessage.DrawingAction> decoded = StrokeCodec.decode(ByteBuffer.wrap(frame));
+        assertEquals(actions.size(), decoded.size());
+        int customColors = 0;
+        for (int i = 0; i < actions.size(); i++) {
+            DrawingMessage.DrawingAction sent = actions.get(i);
+            DrawingMessage.DrawingAction received = decoded.get(i);
+            assertEquals(sent.getTool(), received.getTool());
+            assertEquals(sent.getColor().toLowerCase(), received.getColor());
+            assertEquals(sent.getSize(), received.getSize());
+            assertEquals(sent.isStart(), received.isStart());
+            assertEquals(sent.isEnd(), received.isEnd());
+            assertEquals(sent.getStartX(), received.getStartX(), 0.125);
+            assertEquals(sent.getStartY(), received.getStartY(), 0.125);
+            assertEquals(sent.getEndX(), received.getEndX(), 0.125);
+            assertEquals(sent.getEndY(), received.getEndY(), 0.125);
+            customColors += "#12ab9f".equals(sent.getColor()) ? 1 : 0;
+        }
+        assertEquals(2 + 11 * actions.size() + 2 * customColors, frame.length);
+    }
+
+    @Test
+    void coordinatesOutsideTheRangeAreClamped() {
+        DrawingMessage.DrawingAction far = action("brush", "#000000", 4, -1e6, 1e6, 8191.75, -8192);
+        DrawingMessage.DrawingAction decoded = StrokeCodec.decode(ByteBuffer.wrap(StrokeCodec.encode(List.of(far)))).get(0);
+        assertEquals(Short.MIN_VALUE / 4.0, decoded.getStartX());
+        assertEquals(Short.MAX_VALUE / 4.0, decoded.getStartY());
+        assertEquals(8191.75, decoded.getEndX());
+        assertEquals(-8192, decoded.getEndY());
+    }
+
+    @Test
+    void framesAreMuchSmallerThanJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        List<DrawingMessage.DrawingAction> actions = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            actions.add(action("brush", "#ff0000", 5, 100 + i * 1.5, 200 + i * 0.75, 101.5 + i * 1.5, 200.75 + i * 0.75));
+        }
+        int json = 0;
+        for (DrawingMessage.DrawingAction action : actions) {
+            DrawingMessage message = new DrawingMessage();
+            message.setType(DrawingMessage.MessageType.DRAWING_ACTION);
+            message.setRoomId("ROOM1");
+            message.setDrawingAction(action);
+            json += mapper.writeValueAsBytes(message).length;
+        }
+        int binary = StrokeCodec.encode(actions).length;
+        System.out.printf("[strokes] 60 segments: %d bytes as JSON messages, %d as one binary frame%n", json, binary);
+        assertTrue(binary * 10 < json, binary + " vs " + json);
+    }
+
+    @Test
+    void aSingleSegmentIsAFractionOfItsJson() throws Exception {
+        // One pointer move as script.js sends it, and as the server encodes it
+        String sent = "{\"type\":\"DRAWING_ACTION\",\"roomId\":\"SALA42\",\"drawingAction\":{\"tool\":\"brush\","
+                + "\"color\":\"#1e88e5\",\"size\":6,\"startX\":412.5,\"startY\":233.25,\"endX\":417.75,\"endY\":236.5,"
+                + "\"isStart\":false,\"isEnd\":false}}";
+        DrawingMessage message = new ObjectMapper().readValue(sent, DrawingMessage.class);
+        int encoded = new ObjectMapper().writeValueAsBytes(message).length;
+        int binary = StrokeCodec.encode(List.of(message.getDrawingAction())).length;
+        System.out.printf("[strokes] one segment: %d bytes as sent by the client, %d as encoded by the server,"
+                + " %d as binary (%.1fx)%n", sent.length(), encoded, binary, sent.length() / (double) binary);
+        assertTrue(binary * 10 < sent.length(), binary + " vs " + sent.length());
+    }
+
+    /**
+     * Encoding and decoding a flush window's worth of segments, against doing
+     * the same through Jackson.
+     */
+    @Test
+    void codingIsFasterThanJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Random random = new Random(5);
+        List<DrawingMessage.DrawingAction> actions = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            actions.add(action("brush", "#1e88e5", 2 + random.nextInt(12), random.nextDouble() * 800,
+                    random.nextDouble() * 600, random.nextDouble() * 800, random.nextDouble() * 600));
+        }
+        DrawingMessage.DrawingAction[] asArray = actions.toArray(new DrawingMessage.DrawingAction[0]);
+        int rounds = 5_000;
+        long json = Long.MAX_VALUE;
+        long binary = Long.MAX_VALUE;
+        int decoded = 0;
+        // Best of a few passes, the first of which warms the JIT up
+        for (int pass = 0; pass < 5; pass++) {
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                byte[] bytes = mapper.writeValueAsBytes(asArray);
+                decoded += mapper.readValue(bytes, DrawingMessage.DrawingAction[].class).length;
+            }
+            json = Math.min(json, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                byte[] bytes = StrokeCodec.encode(actions);
+                decoded += StrokeCodec.decode(ByteBuffer.wrap(bytes)).size();
+            }
+            binary = Math.min(binary, System.nanoTime() - start);
+        }
+        assertEquals(2 * 5 * rounds * actions.size(), decoded);
+        System.out.printf("[strokes] 60 segments encoded and decoded: %.1f us through JSON, %.1f us binary (%.1fx)%n",
+                json / 1e3 / rounds, binary / 1e3 / rounds, json / (double) binary);
+        assertTrue(binary < json, binary + " ns vs " + json + " ns");
+    }
+
+    @Test
+    void unrepresentableActionsAreLeftToJson() {
+        assertNull(StrokeCodec.encode(List.of()));
+        assertNull(StrokeCodec.encode(Collections.nCopies(StrokeCodec.MAX_RECORDS + 1, action("brush", "#000000", 1, 0, 0, 1, 1))));
+        assertNull(StrokeCodec.encode(List.of(action("pencil", "#000000", 1, 0, 0, 1, 1))));
+        assertNull(StrokeCodec.encode(List.of(action("brush", "red", 1, 0, 0, 1, 1))));
+        assertNull(StrokeCodec.encode(List.of(action("brush", "#000000", 256, 0, 0, 1, 1))));
+        DrawingMessage.DrawingAction traced = action("brush", "#000000", 1, 0, 0, 1, 1);
+        traced.setSeq(1L);
+        assertNull(StrokeCodec.encode(List.of(action("brush", "#000000", 1, 0, 0, 1, 1), traced)));
+    }
+
+    @Test
+    void malformedFramesAreRejected() {
+        byte[] valid = StrokeCodec.encode(List.of(action("brush", "#000000", 1, 0, 0, 1, 1)));
+        assertThrows(IllegalArgumentException.class, () -> decode(Arrays.copyOf(valid, valid.length - 1)));
+        assertThrows(IllegalArgumentException.class, () -> decode(Arrays.copyOf(valid, valid.length + 1)));
+        assertThrows(IllegalArgumentException.class, () -> decode(new byte[] {StrokeCodec.FRAME_STROKES, 0}));
+        assertThrows(IllegalArgumentException.class, () -> decode(new byte[] {(byte) CanvasCodec.FRAME_TILE, 0}));
+        byte[] badPalette = valid.clone();
+        badPalette[4] = 8;
+        assertThrows(IllegalArgumentException.class, () -> decode(badPalette));
+        byte[] badTool = valid.clone();
+        badTool[2] = 3 << 2;
+        assertThrows(IllegalArgumentException.class, () -> decode(badTool));
+    }
+
+    private static List<DrawingMessage.DrawingAction> decode(byte[] frame) {
+        return StrokeCodec.decode(ByteBuffer.wrap(frame));
+    }
+
+    private static DrawingMessage.DrawingAction action(String tool, String color, int size,
+                                                       double startX, double startY, double endX, double endY) {
+        DrawingMessage.DrawingAction action = new DrawingMessage.DrawingAction();
+        action.setTool(tool);
+        action.setColor(color);
+        action.setSize(size);
+        action.setStartX(startX);
+        action.setStartY(startY);
+        action.setEndX(endX);
+        action.setEndY(endY);
+        return action;
+    }
+}
@@ -0,0 +1,121 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * What reaches the rest of the room of what a member draws: real segments as
+ * they came, nothing a client padded them with, and of a tile checkpoint only
+ * the room version it makes.
+ */
+@QuarkusTest
+class StrokeRelayTest {
+
+    private static final String ROOM = "RELAY";
+    private static final String SEGMENT = "\"drawingAction\":{\"tool\":\"brush\",\"color\":\"#000000\",\"size\":4,"
+            + "\"startX\":1,\"startY\":2,\"endX\":3,\"endY\":4}";
+
+    @TestHTTPResource("/drawing")
+    URI drawing;
+
+    private static int pairs;
+
+    private Recorder sender;
+    private Recorder receiver;
+
+    @BeforeEach
+    void join() throws Exception {
+        URI webSocket = URI.create(drawing.toString().replaceFirst("^http", "ws"));
+        HttpClient http = HttpClient.newHttpClient();
+        int pair = ++pairs;
+        sender = (Recorder) new Recorder().join(http, webSocket, ROOM, "pintor" + pair);
+        receiver = (Recorder) new Recorder().join(http, webSocket, ROOM, "plateia" + pair);
+        // The roster and room state the joins brought
+        Thread.sleep(300);
+        sender.texts.clear();
+        receiver.texts.clear();
+    }
+
+    @AfterEach
+    void leave() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    void segmentsAreRelayedVerbatim() throws Exception {
+        String stroke = "{\"type\":\"DRAWING_ACTION\",\"roomId\":\"" + ROOM + "\"," + SEGMENT + "}";
+        sender.send(stroke);
+        assertEquals(stroke, receiver.next());
+    }
+
+    @Test
+    void paddedSegmentsAreRefused() throws Exception {
+        String padded = "{\"type\":\"DRAWING_ACTION\",\"roomId\":\"" + ROOM + "\",\"drawingAction\":{\"tool\":\"brush\","
+                + "\"color\":\"#000000\",\"size\":4,\"startX\":1,\"startY\":2,\"endX\":3,\"endY\":4,"
+                + "\"junk\":\"" + "x".repeat(4000) + "\"}}";
+        sender.send(padded);
+        assertTrue(sender.next().startsWith("{\"error\""));
+        assertNull(receiver.texts.poll(500, TimeUnit.MILLISECONDS), "a padded segment was relayed");
+    }
+
+    @Test
+    void onlyTheSegmentOfALongMessageIsRelayed() throws Exception {
+        String image = "data:image/png;base64," + Base64.getEncoder().encodeToString(new byte[3000]);
+        sender.send("{\"type\":\"DRAWING_ACTION\",\"roomId\":\"" + ROOM + "\",\"canvasData\":\"" + image + "\"," + SEGMENT + "}");
+        String relayed = receiver.next();
+        assertTrue(relayed.length() <= DrawingWebSocket.MAX_STROKE_CHARS, relayed.length() + " characters relayed");
+        assertFalse(relayed.contains("base64"), "the image went along");
+        assertTrue(relayed.contains("\"endY\":4"));
+    }
+
+    @Test
+    void strokesCannotComeInChunks() throws Exception {
+        String stroke = "{\"type\":\"DRAWING_ACTION\",\"roomId\":\"" + ROOM + "\"," + SEGMENT + "}";
+        for (byte[] chunk : MessageChunksTest.frames(1, stroke, 2)) {
+            sender.send(chunk);
+        }
+        assertEquals("{\"error\":\"Mensagem grande demais ou incompleta\"}", sender.next());
+        assertNull(receiver.texts.poll(500, TimeUnit.MILLISECONDS), "a chunked segment was relayed");
+    }
+
+    @Test
+    void tileCheckpointsAreNotRelayed() throws Exception {
+        String tile = "data:image/png;base64," + Base64.getEncoder().encodeToString(new byte[] {1, 2, 3});
+        sender.send("{\"type\":\"CANVAS_TILE_UPDATE\",\"roomId\":\"" + ROOM + "\",\"tiles\":[{\"col\":0,\"row\":0,"
+                + "\"version\":0,\"data\":\"" + tile + "\"}]}");
+        assertTrue(receiver.next().startsWith("{\"type\":\"ROOM_VERSION\""));
+        assertNull(receiver.texts.poll(500, TimeUnit.MILLISECONDS), "the checkpoint was relayed");
+    }
+
+    private static class Recorder extends FloodTest.Client {
+        final BlockingQueue<String> texts = new LinkedBlockingQueue<>();
+
+        @Override
+        void received(String text, long now) {
+            super.received(text, now);
+            texts.add(text);
+        }
+
+        String next() throws InterruptedException {
+            String text = texts.poll(5, TimeUnit.SECONDS);
+            assertNotNull(text, "nothing was received");
+            return text;
+        }
+    }
+}
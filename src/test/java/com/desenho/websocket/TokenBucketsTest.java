@@ -0,0 +1,96 @@
+package com.desenho.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TokenBucketsTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void burstThenRate() {
+        TokenBuckets buckets = new TokenBuckets(1);
+        TokenBuckets.Limit limit = new TokenBuckets.Limit(10, 5);
+        long now = 42 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buckets.take(0, limit, 1, now), "take " + i + " of the burst");
+        }
+        assertFalse(buckets.take(0, limit, 1, now));
+        // One token back every 100 ms
+        assertFalse(buckets.take(0, limit, 1, now + SECOND / 10 - 1));
+        assertTrue(buckets.take(0, limit, 1, now + SECOND / 10));
+        // Full again after half a second, and no fuller after longer
+        assertEquals(5, takeAll(buckets, limit, now + 10 * SECOND));
+    }
+
+    @Test
+    void refusedTakesCostNothing() {
+        TokenBuckets buckets = new TokenBuckets(1);
+        TokenBuckets.Limit limit = new TokenBuckets.Limit(100, 10);
+        assertTrue(buckets.take(0, limit, 8, 0));
+        assertFalse(buckets.take(0, limit, 3, 0));
+        assertTrue(buckets.take(0, limit, 2, 0));
+        // More than the burst at once never fits
+        assertFalse(buckets.take(0, limit, 11, 100 * SECOND));
+        assertTrue(buckets.take(0, limit, 10, 100 * SECOND));
+    }
+
+    @Test
+    void slotsAreIndependent() {
+        TokenBuckets buckets = new TokenBuckets(2);
+        TokenBuckets.Limit limit = new TokenBuckets.Limit(1, 1);
+        assertTrue(buckets.take(0, limit, 1, 0));
+        assertFalse(buckets.take(0, limit, 1, 0));
+        assertTrue(buckets.take(1, limit, 1, 0));
+    }
+
+    @Test
+    void concurrentTakesNeverOverdraw() throws Exception {
+        TokenBuckets buckets = new TokenBuckets(1);
+        TokenBuckets.Limit limit = new TokenBuckets.Limit(1, 1000);
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            threads.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    if (buckets.take(0, limit, 1, 0)) {
+                        granted.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1000, granted.get());
+    }
+
+    @Test
+    void invalidLimitsAreRefused() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBuckets.Limit(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBuckets.Limit(10, 0.5));
+    }
+
+    private static int takeAll(TokenBuckets buckets, TokenBuckets.Limit limit, long now) {
+        int taken = 0;
+        while (buckets.take(0, limit, 1, now)) {
+            taken++;
+        }
+        return taken;
+    }
+}